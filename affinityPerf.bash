@@ -0,0 +1,53 @@
+#!/usr/bin/env bash
+
+# Compares request latency and proxy CPU use with and without running
+# connections to remote hosts on the same I/O thread as their browser
+# connections. Pass the URL to fetch, ideally from a server on the local
+# network so the proxy itself dominates the numbers.
+function die() {
+  echo $*
+  exit 1
+}
+
+url=${1:-http://127.0.0.1:8000/}
+requests=${REQUESTS:-20000}
+concurrency=${CONCURRENCY:-100}
+port=8080
+
+which ab > /dev/null || die "ab is required for the benchmark"
+
+mvn package -Dmaven.test.skip=true || die "Could not package"
+
+fullPath=`dirname $0`
+jar=`find $fullPath/target/*with-dependencies.jar`
+
+function cpuTicks() {
+  # User plus system time of the process, in clock ticks.
+  awk '{print $14 + $15}' /proc/$1/stat
+}
+
+function run() {
+  affinity=$1
+  java -server -Xmx600m -jar $jar --port $port --affinity $affinity > /dev/null 2>&1 &
+  pid=$!
+  sleep 5
+  kill -0 $pid 2> /dev/null || die "Proxy did not start"
+
+  # Warm up the JIT before measuring.
+  ab -q -n 2000 -c $concurrency -X 127.0.0.1:$port $url > /dev/null 2>&1
+
+  before=`cpuTicks $pid`
+  ab -n $requests -c $concurrency -X 127.0.0.1:$port $url > ab-affinity-$affinity.txt 2>&1
+  after=`cpuTicks $pid`
+  kill $pid
+  wait $pid 2> /dev/null
+
+  echo "affinity=$affinity"
+  grep -E "Requests per second|Time per request:.*\(mean\)" ab-affinity-$affinity.txt
+  grep -E "^ +(50|90|99)%" ab-affinity-$affinity.txt
+  echo "CPU ticks used by proxy: $((after - before))"
+  echo
+}
+
+run false
+run true
@@ -0,0 +1,86 @@
+package org.littleshoot.proxy;
+
+import java.util.concurrent.Executor;
+
+import org.jboss.netty.channel.socket.nio.NioWorker;
+import org.jboss.netty.channel.socket.nio.NioWorkerPool;
+
+/**
+ * Worker pool that registers channels created from an I/O thread on that
+ * same thread's worker. Connections to remote hosts are created from the
+ * I/O thread handling the browser connection, so with this pool both sides
+ * of a relay run on one thread and relayed messages are written directly
+ * instead of being handed off to another worker's write queue. Channels
+ * created from any other thread, including all accepted browser
+ * connections, are still spread across workers round-robin.
+ */
+public class AffinityNioWorkerPool extends NioWorkerPool {
+
+    /**
+     * The worker running on the current thread, if any. This is static as
+     * workers are created from the super class constructor, before any of
+     * our own fields are initialized.
+     */
+    private static final ThreadLocal<WorkerBinding> CURRENT_WORKER =
+        new ThreadLocal<WorkerBinding>();
+
+    /**
+     * Creates a new worker pool.
+     *
+     * @param workerExecutor The executor that runs the workers.
+     * @param workerCount The number of workers.
+     * @param allowShutdownOnIdle Whether or not workers should stop when
+     * they no longer have any channels.
+     */
+    public AffinityNioWorkerPool(final Executor workerExecutor,
+        final int workerCount, final boolean allowShutdownOnIdle) {
+        super(workerExecutor, workerCount, allowShutdownOnIdle);
+    }
+
+    @Override
+    protected NioWorker createWorker(final Executor executor,
+        final boolean allowShutdownOnIdle) {
+        final WorkerBinding binding = new WorkerBinding(this, executor);
+        binding.worker = super.createWorker(binding, allowShutdownOnIdle);
+        return binding.worker;
+    }
+
+    @Override
+    public NioWorker nextWorker() {
+        final WorkerBinding binding = CURRENT_WORKER.get();
+        if (binding != null && binding.pool == this) {
+            return binding.worker;
+        }
+        return super.nextWorker();
+    }
+
+    /**
+     * Executor for a single worker that remembers which worker the thread
+     * running it belongs to.
+     */
+    private static final class WorkerBinding implements Executor {
+
+        private final AffinityNioWorkerPool pool;
+        private final Executor executor;
+        private volatile NioWorker worker;
+
+        private WorkerBinding(final AffinityNioWorkerPool pool,
+            final Executor executor) {
+            this.pool = pool;
+            this.executor = executor;
+        }
+
+        public void execute(final Runnable command) {
+            this.executor.execute(new Runnable() {
+                public void run() {
+                    CURRENT_WORKER.set(WorkerBinding.this);
+                    try {
+                        command.run();
+                    } finally {
+                        CURRENT_WORKER.remove();
+                    }
+                }
+            });
+        }
+    }
+}
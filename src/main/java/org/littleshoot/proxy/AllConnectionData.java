@@ -6,4 +6,6 @@ import javax.management.MXBean;
 public interface AllConnectionData {
 
     int getNumRequestHandlers();
+    
+    int getNumIdleUpstreamConnections();
 }
@@ -0,0 +1,147 @@
+package org.littleshoot.proxy;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jboss.netty.buffer.AbstractChannelBufferFactory;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+
+/**
+ * Buffer factory that bump allocates direct buffers out of larger direct
+ * slabs, so reads don't each pay for allocating a direct buffer of their
+ * own and writes don't need to copy heap buffers into direct ones first.
+ * <p>
+ * This is not a pool. Netty buffers have no explicit release, so we can't
+ * tell when a buffer is done with, and we never hand out the same memory
+ * twice. A slab is reclaimed by the garbage collector once no buffer carved
+ * from it is referenced, which means a single buffer that's held on to
+ * keeps its whole slab around. Requests are grouped into size classes,
+ * each with its own slabs, and slabs are kept small so a long-lived buffer
+ * can't pin much more than itself.
+ */
+public class BumpDirectChannelBufferFactory
+    extends AbstractChannelBufferFactory implements DirectBufferData {
+
+    private static final int[] SIZE_CLASSES = {
+        256, 1024, 4 * 1024, 16 * 1024, 64 * 1024
+    };
+
+    /**
+     * The size of each slab, which is the most a buffer can keep from being
+     * collected beyond its own size.
+     */
+    private static final int SLAB_BYTES = 256 * 1024;
+
+    private final SizeClass[] sizeClasses = new SizeClass[SIZE_CLASSES.length];
+
+    private final AtomicLong slabBuffers = new AtomicLong();
+
+    private final AtomicLong ownBuffers = new AtomicLong();
+
+    private final AtomicLong slabs = new AtomicLong();
+
+    private final AtomicLong slabBytes = new AtomicLong();
+
+    private final AtomicLong bytesServed = new AtomicLong();
+
+    /**
+     * Creates a new factory for big-endian buffers.
+     */
+    public BumpDirectChannelBufferFactory() {
+        super(ByteOrder.BIG_ENDIAN);
+        for (int i = 0; i < SIZE_CLASSES.length; i++) {
+            this.sizeClasses[i] = new SizeClass(SIZE_CLASSES[i]);
+        }
+    }
+
+    public ChannelBuffer getBuffer(final ByteOrder order, final int capacity) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("capacity: " + capacity);
+        }
+        if (capacity == 0) {
+            return ChannelBuffers.EMPTY_BUFFER;
+        }
+        this.bytesServed.addAndGet(capacity);
+        if (order == getDefaultOrder()) {
+            for (final SizeClass sizeClass : this.sizeClasses) {
+                if (capacity <= sizeClass.size) {
+                    this.slabBuffers.incrementAndGet();
+                    return sizeClass.allocate(capacity);
+                }
+            }
+        }
+        // Too big, or an unusual byte order.
+        this.ownBuffers.incrementAndGet();
+        return ChannelBuffers.directBuffer(order, capacity);
+    }
+
+    public ChannelBuffer getBuffer(final ByteOrder order, final byte[] array,
+        final int offset, final int length) {
+        if (array == null) {
+            throw new NullPointerException("array");
+        }
+        final ChannelBuffer buf = getBuffer(order, length);
+        buf.writeBytes(array, offset, length);
+        return buf;
+    }
+
+    public ChannelBuffer getBuffer(final ByteBuffer nioBuffer) {
+        if (!nioBuffer.isReadOnly() && nioBuffer.isDirect()) {
+            return ChannelBuffers.wrappedBuffer(nioBuffer);
+        }
+        final ChannelBuffer buf =
+            getBuffer(nioBuffer.order(), nioBuffer.remaining());
+        final int pos = nioBuffer.position();
+        buf.writeBytes(nioBuffer);
+        nioBuffer.position(pos);
+        return buf;
+    }
+
+    public long getSlabBuffers() {
+        return this.slabBuffers.get();
+    }
+
+    public long getOwnBuffers() {
+        return this.ownBuffers.get();
+    }
+
+    public long getSlabsAllocated() {
+        return this.slabs.get();
+    }
+
+    public long getSlabBytesAllocated() {
+        return this.slabBytes.get();
+    }
+
+    public long getBytesServed() {
+        return this.bytesServed.get();
+    }
+
+    private final class SizeClass {
+
+        private final int size;
+        private ChannelBuffer slab;
+        private int position;
+
+        private SizeClass(final int size) {
+            this.size = size;
+        }
+
+        private synchronized ChannelBuffer allocate(final int capacity) {
+            if (this.slab == null ||
+                this.slab.capacity() - this.position < capacity) {
+                this.slab = ChannelBuffers.directBuffer(getDefaultOrder(),
+                    Math.max(this.size, SLAB_BYTES));
+                this.position = 0;
+                slabs.incrementAndGet();
+                slabBytes.addAndGet(this.slab.capacity());
+            }
+            final ChannelBuffer buf = this.slab.slice(this.position, capacity);
+            this.position += capacity;
+            buf.clear();
+            return buf;
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package org.littleshoot.proxy;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.FileRegion;
+
+/**
+ * The body of a cached response, wherever it's stored.
+ */
+public interface CacheBody {
+
+    /**
+     * Accessor for the length of the body.
+     * 
+     * @return The length in bytes.
+     */
+    long getLength();
+    
+    /**
+     * Accessor for the body as a buffer. Each call returns a buffer with 
+     * its own indexes, so the body can be written to several browsers at 
+     * once.
+     * 
+     * @return The body.
+     */
+    ChannelBuffer getBuffer();
+    
+    /**
+     * Accessor for the body as a region of a file, which we can send 
+     * straight from the page cache to a socket without copying it into 
+     * the heap. The caller must release the region once it's written, or 
+     * once the write fails.
+     * 
+     * @return The region, or <code>null</code> if the body isn't in a file
+     * we can send from.
+     */
+    FileRegion getFileRegion();
+    
+    /**
+     * Tells the store we're done with the body, once it's been written. 
+     * Stores that reuse the memory bodies are in keep a body where it is 
+     * until it's released, so nothing may read the body or any buffer 
+     * from it afterwards.
+     */
+    void release();
+}
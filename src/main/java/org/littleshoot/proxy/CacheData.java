@@ -0,0 +1,60 @@
+package org.littleshoot.proxy;
+
+import javax.management.MXBean;
+
+/**
+ * Interface for JMX data on the cache, and for purging it.
+ */
+@MXBean(true)
+public interface CacheData {
+
+    /**
+     * @return The number of cached responses, counting each variant.
+     */
+    int getEntryCount();
+
+    /**
+     * @return Roughly how many bytes the cached responses take up.
+     */
+    long getSizeBytes();
+
+    /**
+     * @return The number of responses we didn't cache because too many were
+     * already waiting to go in the cache.
+     */
+    long getDroppedInsertCount();
+
+    /**
+     * Purges the cached response for a URI.
+     *
+     * @param uri The absolute URI, such as http://www.example.com/index.html.
+     * @return The number of responses purged.
+     */
+    int purgeUri(String uri);
+
+    /**
+     * Purges every cached response whose URI starts with the prefix.
+     *
+     * @param uriPrefix The absolute URI prefix, such as
+     * http://www.example.com/images/.
+     * @return The number of responses purged.
+     */
+    int purgePrefix(String uriPrefix);
+
+    /**
+     * Purges every cached response from a host.
+     *
+     * @param host The host, such as www.example.com.
+     * @return The number of responses purged.
+     */
+    int purgeHost(String host);
+
+    /**
+     * Purges every cached response the origin tagged with the tag in its
+     * Surrogate-Key or Cache-Tag header.
+     *
+     * @param tag The tag.
+     * @return The number of responses purged.
+     */
+    int purgeTag(String tag);
+}
@@ -0,0 +1,630 @@
+package org.littleshoot.proxy;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.lang.StringUtils;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.handler.codec.http.DefaultHttpResponse;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
+import org.jboss.netty.handler.codec.http.HttpRequest;
+import org.jboss.netty.handler.codec.http.HttpResponse;
+import org.jboss.netty.handler.codec.http.HttpResponseStatus;
+import org.jboss.netty.handler.codec.http.HttpVersion;
+import org.jboss.netty.util.CharsetUtil;
+
+/**
+ * A complete response stored in the cache, along with everything we need to
+ * know to decide whether it's fresh enough to serve. Entries are immutable,
+ * so they can be served to any number of browsers at once.
+ */
+public class CacheEntry {
+
+    /**
+     * The headers we send with a 304 response, in lower case. See:
+     *
+     * http://tools.ietf.org/html/rfc7232#section-4.1
+     */
+    private static final Set<String> NOT_MODIFIED_HEADERS =
+        new HashSet<String>();
+
+    static {
+        NOT_MODIFIED_HEADERS.add(HttpHeaders.Names.CACHE_CONTROL.toLowerCase());
+        NOT_MODIFIED_HEADERS.add(
+            HttpHeaders.Names.CONTENT_LOCATION.toLowerCase());
+        NOT_MODIFIED_HEADERS.add(HttpHeaders.Names.DATE.toLowerCase());
+        NOT_MODIFIED_HEADERS.add(HttpHeaders.Names.ETAG.toLowerCase());
+        NOT_MODIFIED_HEADERS.add(HttpHeaders.Names.EXPIRES.toLowerCase());
+        NOT_MODIFIED_HEADERS.add(HttpHeaders.Names.VARY.toLowerCase());
+    }
+
+    private final String key;
+
+    private final HttpVersion version;
+
+    private final HttpResponseStatus status;
+
+    /**
+     * The response headers as name and value pairs.
+     */
+    private final List<String[]> headers;
+
+    private final CacheBody body;
+
+    private final List<String> varyHeaders;
+
+    private final Map<String, String> varyValues;
+
+    private final long responseTime;
+
+    private final long correctedInitialAgeMillis;
+
+    private final long freshnessLifetimeMillis;
+
+    private final boolean mustRevalidate;
+
+    /**
+     * Creates a new entry for a response.
+     *
+     * @param key The key for the entry, typically from
+     * {@link ProxyUtils#cacheUri(HttpRequest)}.
+     * @param request The request the response is for.
+     * @param response The response, with hop-by-hop headers already
+     * removed.
+     * @param body The full response body. This must not change after it's
+     * passed in.
+     * @param requestTime When we sent the request to the origin.
+     * @param responseTime When we received the response.
+     */
+    public CacheEntry(final String key, final HttpRequest request,
+        final HttpResponse response, final ChannelBuffer body,
+        final long requestTime, final long responseTime) {
+        this(key, request, response, new HeapCacheBody(body), requestTime,
+            responseTime);
+    }
+
+    /**
+     * Creates a new entry for a response.
+     *
+     * @param key The key for the entry.
+     * @param request The request the response is for.
+     * @param response The response, with hop-by-hop headers already
+     * removed.
+     * @param body The full response body.
+     * @param requestTime When we sent the request to the origin.
+     * @param responseTime When we received the response.
+     */
+    public CacheEntry(final String key, final HttpRequest request,
+        final HttpResponse response, final CacheBody body,
+        final long requestTime, final long responseTime) {
+        this.key = key;
+        this.version = response.getProtocolVersion();
+        this.status = response.getStatus();
+        final List<String[]> copy = new ArrayList<String[]>();
+        for (final Map.Entry<String, String> header : response.getHeaders()) {
+            final String name = header.getKey();
+            // We calculate the age ourselves, and we always know the length.
+            if (name.equalsIgnoreCase(HttpHeaders.Names.AGE) ||
+                name.equalsIgnoreCase(HttpHeaders.Names.CONTENT_LENGTH) ||
+                name.equalsIgnoreCase(HttpHeaders.Names.TRANSFER_ENCODING)) {
+                continue;
+            }
+            copy.add(new String[] {name, header.getValue()});
+        }
+        this.headers = Collections.unmodifiableList(copy);
+        this.body = body;
+        this.varyHeaders = HttpCacheRules.varyHeaders(response);
+        this.varyValues = HttpCacheRules.varyValues(request, this.varyHeaders);
+        this.responseTime = responseTime;
+        this.correctedInitialAgeMillis = HttpCacheRules.correctedInitialAgeMillis(
+            response, requestTime, responseTime);
+        this.freshnessLifetimeMillis =
+            HttpCacheRules.freshnessLifetimeMillis(response, responseTime);
+        final Map<String, String> cc = HttpCacheRules.cacheControl(response);
+        this.mustRevalidate =
+            cc.containsKey(HttpHeaders.Values.MUST_REVALIDATE) ||
+            cc.containsKey(HttpHeaders.Values.PROXY_REVALIDATE) ||
+            cc.containsKey(HttpHeaders.Values.S_MAXAGE);
+    }
+
+    private CacheEntry(final String key, final HttpVersion version,
+        final HttpResponseStatus status, final List<String[]> headers,
+        final CacheBody body, final List<String> varyHeaders,
+        final Map<String, String> varyValues, final long responseTime,
+        final long correctedInitialAgeMillis,
+        final long freshnessLifetimeMillis, final boolean mustRevalidate) {
+        this.key = key;
+        this.version = version;
+        this.status = status;
+        this.headers = headers;
+        this.body = body;
+        this.varyHeaders = varyHeaders;
+        this.varyValues = varyValues;
+        this.responseTime = responseTime;
+        this.correctedInitialAgeMillis = correctedInitialAgeMillis;
+        this.freshnessLifetimeMillis = freshnessLifetimeMillis;
+        this.mustRevalidate = mustRevalidate;
+    }
+
+    /**
+     * Encodes the response for writing to a browser, with its current age.
+     *
+     * @param now The current time.
+     * @param headOnly Whether or not to leave out the body, such as for a
+     * HEAD request.
+     * @return The encoded response.
+     */
+    public ChannelBuffer encode(final long now, final boolean headOnly) {
+        return encode(now, headOnly, null);
+    }
+
+    /**
+     * Encodes the response for writing to a browser, with its current age
+     * and a warning, such as that the response is stale. See:
+     *
+     * http://tools.ietf.org/html/rfc7234#section-5.5
+     *
+     * @param now The current time.
+     * @param headOnly Whether or not to leave out the body.
+     * @param warning The value of the Warning header to add, or
+     * <code>null</code> for none.
+     * @return The encoded response.
+     */
+    public ChannelBuffer encode(final long now, final boolean headOnly,
+        final String warning) {
+        final StringBuilder sb = new StringBuilder(256);
+        sb.append(this.version.getText()).append(' ').append(this.status)
+            .append("\r\n");
+        for (final String[] header : this.headers) {
+            sb.append(header[0]).append(": ").append(header[1]).append("\r\n");
+        }
+        if (warning != null) {
+            sb.append(HttpHeaders.Names.WARNING).append(": ").append(warning)
+                .append("\r\n");
+        }
+        sb.append(HttpHeaders.Names.CONTENT_LENGTH).append(": ")
+            .append(this.body.getLength()).append("\r\n");
+        final ChannelBuffer head = endHeaders(sb, now);
+        if (headOnly || this.body.getLength() == 0) {
+            return head;
+        }
+        return ChannelBuffers.wrappedBuffer(head, this.body.getBuffer());
+    }
+
+    /**
+     * Encodes a 304 response telling a browser its copy of this response
+     * is still good.
+     *
+     * @param now The current time.
+     * @return The encoded response.
+     */
+    public ChannelBuffer encodeNotModified(final long now) {
+        final StringBuilder sb = new StringBuilder(256);
+        sb.append(this.version.getText()).append(' ')
+            .append(HttpResponseStatus.NOT_MODIFIED).append("\r\n");
+        for (final String[] header : this.headers) {
+            if (NOT_MODIFIED_HEADERS.contains(header[0].toLowerCase())) {
+                sb.append(header[0]).append(": ").append(header[1])
+                    .append("\r\n");
+            }
+        }
+        return endHeaders(sb, now);
+    }
+
+    /**
+     * Encodes a 206 response with only the requested ranges of the body. A
+     * single range is sent as is, and several ranges as a
+     * multipart/byteranges body. See:
+     *
+     * http://tools.ietf.org/html/rfc7233#section-4.1
+     *
+     * @param now The current time.
+     * @param ranges The ranges, as from
+     * {@link HttpCacheRules#parseRange(String, long)}. There must be at
+     * least one.
+     * @return The encoded response.
+     */
+    public ChannelBuffer encodeRanges(final long now,
+        final List<long[]> ranges) {
+        final long length = this.body.getLength();
+        final ChannelBuffer full = this.body.getBuffer();
+        final StringBuilder sb = new StringBuilder(256);
+        sb.append(this.version.getText()).append(' ')
+            .append(HttpResponseStatus.PARTIAL_CONTENT).append("\r\n");
+        if (ranges.size() == 1) {
+            final long[] range = ranges.get(0);
+            for (final String[] header : this.headers) {
+                sb.append(header[0]).append(": ").append(header[1])
+                    .append("\r\n");
+            }
+            sb.append(HttpHeaders.Names.CONTENT_RANGE).append(": ")
+                .append(contentRange(range, length)).append("\r\n");
+            sb.append(HttpHeaders.Names.CONTENT_LENGTH).append(": ")
+                .append(range[1] - range[0] + 1).append("\r\n");
+            return ChannelBuffers.wrappedBuffer(endHeaders(sb, now),
+                slice(full, range));
+        }
+
+        final String boundary = Long.toHexString(
+            Double.doubleToLongBits(Math.random()));
+        final String contentType = getHeader(HttpHeaders.Names.CONTENT_TYPE);
+        final List<ChannelBuffer> parts = new ArrayList<ChannelBuffer>();
+        long partsLength = 0;
+        for (final long[] range : ranges) {
+            final StringBuilder part = new StringBuilder(128);
+            part.append("\r\n--").append(boundary).append("\r\n");
+            if (contentType != null) {
+                part.append(HttpHeaders.Names.CONTENT_TYPE).append(": ")
+                    .append(contentType).append("\r\n");
+            }
+            part.append(HttpHeaders.Names.CONTENT_RANGE).append(": ")
+                .append(contentRange(range, length)).append("\r\n\r\n");
+            final ChannelBuffer partHead =
+                ChannelBuffers.copiedBuffer(part, CharsetUtil.ISO_8859_1);
+            final ChannelBuffer partBody = slice(full, range);
+            parts.add(partHead);
+            parts.add(partBody);
+            partsLength += partHead.readableBytes() + partBody.readableBytes();
+        }
+        final ChannelBuffer end = ChannelBuffers.copiedBuffer(
+            "\r\n--" + boundary + "--\r\n", CharsetUtil.ISO_8859_1);
+        parts.add(end);
+        partsLength += end.readableBytes();
+
+        for (final String[] header : this.headers) {
+            if (!header[0].equalsIgnoreCase(HttpHeaders.Names.CONTENT_TYPE)) {
+                sb.append(header[0]).append(": ").append(header[1])
+                    .append("\r\n");
+            }
+        }
+        sb.append(HttpHeaders.Names.CONTENT_TYPE)
+            .append(": multipart/byteranges; boundary=").append(boundary)
+            .append("\r\n");
+        sb.append(HttpHeaders.Names.CONTENT_LENGTH).append(": ")
+            .append(partsLength).append("\r\n");
+        parts.add(0, endHeaders(sb, now));
+        return ChannelBuffers.wrappedBuffer(
+            parts.toArray(new ChannelBuffer[parts.size()]));
+    }
+
+    /**
+     * Encodes a 416 response telling a browser none of the ranges it asked
+     * for are in the response.
+     *
+     * @param now The current time.
+     * @return The encoded response.
+     */
+    public ChannelBuffer encodeUnsatisfiable(final long now) {
+        final StringBuilder sb = new StringBuilder(128);
+        sb.append(this.version.getText()).append(' ')
+            .append(HttpResponseStatus.REQUESTED_RANGE_NOT_SATISFIABLE)
+            .append("\r\n");
+        sb.append(HttpHeaders.Names.CONTENT_RANGE).append(": bytes */")
+            .append(this.body.getLength()).append("\r\n");
+        sb.append(HttpHeaders.Names.CONTENT_LENGTH).append(": 0\r\n");
+        return endHeaders(sb, now);
+    }
+
+    private static String contentRange(final long[] range, final long length) {
+        return "bytes " + range[0] + "-" + range[1] + "/" + length;
+    }
+
+    private static ChannelBuffer slice(final ChannelBuffer full,
+        final long[] range) {
+        return full.slice(full.readerIndex() + (int) range[0],
+            (int) (range[1] - range[0] + 1));
+    }
+
+    private ChannelBuffer endHeaders(final StringBuilder sb, final long now) {
+        sb.append(HttpHeaders.Names.AGE).append(": ")
+            .append(getCurrentAgeMillis(now) / 1000).append("\r\n");
+        sb.append("\r\n");
+        return ChannelBuffers.copiedBuffer(sb, CharsetUtil.ISO_8859_1);
+    }
+
+    /**
+     * Creates a new entry with the same body as this one and with the
+     * headers updated from a 304 response the origin sent when we checked
+     * whether this response is still good.
+     *
+     * @param request The request we checked with.
+     * @param notModified The 304 response.
+     * @param requestTime When we sent the request to the origin.
+     * @param responseTime When we received the 304 response.
+     * @return The new entry.
+     */
+    public CacheEntry refresh(final HttpRequest request,
+        final HttpResponse notModified, final long requestTime,
+        final long responseTime) {
+        final HttpResponse merged =
+            new DefaultHttpResponse(this.version, this.status);
+        for (final String[] header : this.headers) {
+            merged.addHeader(header[0], header[1]);
+        }
+        for (final String name : notModified.getHeaderNames()) {
+            if (name.equalsIgnoreCase(HttpHeaders.Names.CONTENT_LENGTH) ||
+                name.equalsIgnoreCase(HttpHeaders.Names.TRANSFER_ENCODING)) {
+                continue;
+            }
+            merged.setHeader(name, notModified.getHeaders(name));
+        }
+        return new CacheEntry(this.key, request, merged, this.body,
+            requestTime, responseTime);
+    }
+
+    /**
+     * Creates a copy of this entry with a different body, such as when the
+     * body moves to other storage.
+     *
+     * @param newBody The body, which must hold the same bytes as this
+     * entry's body.
+     * @return The new entry.
+     */
+    public CacheEntry withBody(final CacheBody newBody) {
+        return new CacheEntry(this.key, this.version, this.status,
+            this.headers, newBody, this.varyHeaders, this.varyValues,
+            this.responseTime, this.correctedInitialAgeMillis,
+            this.freshnessLifetimeMillis, this.mustRevalidate);
+    }
+
+    /**
+     * Returns whether or not this is the variant for the request, based on
+     * the request headers the response varies on.
+     *
+     * @param request The request.
+     * @return <code>true</code> if the entry matches the request.
+     */
+    public boolean matches(final HttpRequest request) {
+        if (this.varyHeaders.isEmpty()) {
+            return true;
+        }
+        return this.varyValues.equals(
+            HttpCacheRules.varyValues(request, this.varyHeaders));
+    }
+
+    /**
+     * Returns whether or not this entry is a variant of the same response
+     * as the other entry, i.e. whether it would replace the other entry.
+     *
+     * @param other The other entry.
+     * @return <code>true</code> if the entries vary on the same values.
+     */
+    public boolean sameVariant(final CacheEntry other) {
+        return this.varyValues.equals(other.varyValues);
+    }
+
+    /**
+     * Calculates the age of the response.
+     *
+     * @param now The current time.
+     * @return The current age in milliseconds.
+     */
+    public long getCurrentAgeMillis(final long now) {
+        return this.correctedInitialAgeMillis +
+            Math.max(0, now - this.responseTime);
+    }
+
+    /**
+     * Returns whether or not the response is fresh, ignoring any
+     * requirements of the request.
+     *
+     * @param now The current time.
+     * @return <code>true</code> if the response is fresh.
+     */
+    public boolean isFresh(final long now) {
+        return this.freshnessLifetimeMillis > getCurrentAgeMillis(now);
+    }
+
+    /**
+     * Encodes everything about the entry except its body, for storing it
+     * outside the heap.
+     *
+     * @return The encoded entry.
+     * @see #decodeMetadata(ChannelBuffer, CacheBody)
+     */
+    public ChannelBuffer encodeMetadata() {
+        final ChannelBuffer buf = ChannelBuffers.dynamicBuffer(512);
+        writeString(buf, this.key);
+        writeString(buf, this.version.getText());
+        buf.writeInt(this.status.getCode());
+        writeString(buf, this.status.getReasonPhrase());
+        buf.writeInt(this.headers.size());
+        for (final String[] header : this.headers) {
+            writeString(buf, header[0]);
+            writeString(buf, header[1]);
+        }
+        buf.writeInt(this.varyHeaders.size());
+        for (final String name : this.varyHeaders) {
+            writeString(buf, name);
+            writeString(buf, this.varyValues.get(name));
+        }
+        buf.writeLong(this.responseTime);
+        buf.writeLong(this.correctedInitialAgeMillis);
+        buf.writeLong(this.freshnessLifetimeMillis);
+        buf.writeByte(this.mustRevalidate ? 1 : 0);
+        return buf;
+    }
+
+    /**
+     * Decodes an entry encoded with {@link #encodeMetadata()}.
+     *
+     * @param buf The encoded entry.
+     * @param body The entry's body.
+     * @return The entry.
+     */
+    public static CacheEntry decodeMetadata(final ChannelBuffer buf,
+        final CacheBody body) {
+        final String key = readString(buf);
+        final HttpVersion version = HttpVersion.valueOf(readString(buf));
+        final int code = buf.readInt();
+        final HttpResponseStatus status =
+            new HttpResponseStatus(code, readString(buf));
+        final int headerCount = buf.readInt();
+        final List<String[]> headers = new ArrayList<String[]>(headerCount);
+        for (int i = 0; i < headerCount; i++) {
+            headers.add(new String[] {readString(buf), readString(buf)});
+        }
+        final int varyCount = buf.readInt();
+        final List<String> varyHeaders = new ArrayList<String>(varyCount);
+        final Map<String, String> varyValues = new HashMap<String, String>();
+        for (int i = 0; i < varyCount; i++) {
+            final String name = readString(buf);
+            varyHeaders.add(name);
+            varyValues.put(name, readString(buf));
+        }
+        final long responseTime = buf.readLong();
+        final long correctedInitialAgeMillis = buf.readLong();
+        final long freshnessLifetimeMillis = buf.readLong();
+        final boolean mustRevalidate = buf.readByte() != 0;
+        return new CacheEntry(key, version, status,
+            Collections.unmodifiableList(headers), body,
+            Collections.unmodifiableList(varyHeaders), varyValues,
+            responseTime, correctedInitialAgeMillis,
+            freshnessLifetimeMillis, mustRevalidate);
+    }
+
+    static void writeString(final ChannelBuffer buf,
+        final String str) {
+        final byte[] bytes = str.getBytes(CharsetUtil.UTF_8);
+        buf.writeInt(bytes.length);
+        buf.writeBytes(bytes);
+    }
+
+    static String readString(final ChannelBuffer buf) {
+        final int length = buf.readInt();
+        final String str = buf.toString(buf.readerIndex(), length,
+            CharsetUtil.UTF_8);
+        buf.skipBytes(length);
+        return str;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public HttpResponseStatus getStatus() {
+        return status;
+    }
+
+    public CacheBody getBody() {
+        return body;
+    }
+
+    /**
+     * Accessor for the values of the request headers the response varies
+     * on, which identify this variant among others for the same key.
+     *
+     * @return The header values by header name.
+     */
+    public Map<String, String> getVaryValues() {
+        return Collections.unmodifiableMap(varyValues);
+    }
+
+    /**
+     * Accessor for the value of the response's ETag header.
+     *
+     * @return The entity tag, or <code>null</code> if there isn't one.
+     */
+    public String getETag() {
+        return getHeader(HttpHeaders.Names.ETAG);
+    }
+
+    /**
+     * Accessor for the value of the response's Last-Modified header.
+     *
+     * @return The last modified date, or <code>null</code> if there isn't
+     * one.
+     */
+    public String getLastModified() {
+        return getHeader(HttpHeaders.Names.LAST_MODIFIED);
+    }
+
+    /**
+     * Accessor for the response's Cache-Control directives.
+     *
+     * @return The directives, as from
+     * {@link HttpCacheRules#cacheControl(List)}.
+     */
+    public Map<String, String> getCacheControl() {
+        final List<String> values = new ArrayList<String>(1);
+        for (final String[] header : this.headers) {
+            if (header[0].equalsIgnoreCase(HttpHeaders.Names.CACHE_CONTROL)) {
+                values.add(header[1]);
+            }
+        }
+        return HttpCacheRules.cacheControl(values);
+    }
+
+    /**
+     * Accessor for the tags the origin gave the response for purging
+     * groups of responses at once, from the space separated Surrogate-Key
+     * and the comma separated Cache-Tag headers.
+     *
+     * @return The tags.
+     */
+    public Set<String> getTags() {
+        final Set<String> tags = new HashSet<String>();
+        for (final String[] header : this.headers) {
+            final String separators;
+            if (header[0].equalsIgnoreCase("Surrogate-Key")) {
+                separators = " \t";
+            } else if (header[0].equalsIgnoreCase("Cache-Tag")) {
+                separators = ", \t";
+            } else {
+                continue;
+            }
+            for (final String tag : StringUtils.split(header[1], separators)) {
+                tags.add(tag);
+            }
+        }
+        return tags;
+    }
+
+    private String getHeader(final String name) {
+        for (final String[] header : this.headers) {
+            if (header[0].equalsIgnoreCase(name)) {
+                return header[1];
+            }
+        }
+        return null;
+    }
+
+    public long getFreshnessLifetimeMillis() {
+        return freshnessLifetimeMillis;
+    }
+
+    /**
+     * Accessor for whether or not we must never serve the response once
+     * it's stale.
+     *
+     * @return <code>true</code> if the response can't be served stale.
+     */
+    public boolean isMustRevalidate() {
+        return mustRevalidate;
+    }
+
+    /**
+     * Accessor for roughly how much memory the entry takes up.
+     *
+     * @return The size of the entry in bytes.
+     */
+    public long getSize() {
+        long size = this.status.toString().length() + this.body.getLength();
+        for (final String[] header : this.headers) {
+            size += header[0].length() + header[1].length() + 4;
+        }
+        return size;
+    }
+
+    @Override
+    public String toString() {
+        return "CacheEntry [key=" + key + ", status=" + status +
+            ", bodyBytes=" + body.getLength() + "]";
+    }
+}
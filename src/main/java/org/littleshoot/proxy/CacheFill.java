@@ -0,0 +1,104 @@
+package org.littleshoot.proxy;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.handler.codec.http.HttpRequest;
+import org.jboss.netty.handler.codec.http.HttpResponse;
+
+/**
+ * Collects the body of a response as it's relayed to the browser, chunk by
+ * chunk, so we can cache the whole response once the last chunk arrives.
+ * A fill gives up once the body grows past its limit, so a huge response
+ * never ties up more than the limit in memory.
+ */
+public class CacheFill {
+
+    private final String key;
+
+    private final HttpRequest request;
+
+    private final HttpResponse response;
+
+    private final long maxBytes;
+
+    private final long responseTime;
+
+    private List<ChannelBuffer> parts = new ArrayList<ChannelBuffer>();
+
+    private long bytes;
+
+    /**
+     * Creates a new fill.
+     *
+     * @param key The cache key for the response.
+     * @param request The request the response is for.
+     * @param response The response headers as written to the browser.
+     * @param maxBytes The largest body we'll collect.
+     * @param responseTime When we received the response headers.
+     */
+    public CacheFill(final String key, final HttpRequest request,
+        final HttpResponse response, final long maxBytes,
+        final long responseTime) {
+        this.key = key;
+        this.request = request;
+        this.response = response;
+        this.maxBytes = maxBytes;
+        this.responseTime = responseTime;
+    }
+
+    /**
+     * Adds the next piece of the body.
+     *
+     * @param content The content. This must not change after it's passed
+     * in, although its indexes may.
+     * @return <code>false</code> if the body is now too big to cache, in
+     * which case the fill has let go of everything it collected.
+     */
+    public synchronized boolean append(final ChannelBuffer content) {
+        if (this.parts == null) {
+            return false;
+        }
+        final int readable = content.readableBytes();
+        if (readable == 0) {
+            return true;
+        }
+        this.bytes += readable;
+        if (this.bytes > this.maxBytes) {
+            this.parts = null;
+            return false;
+        }
+        this.parts.add(content.slice());
+        return true;
+    }
+
+    /**
+     * Creates the cache entry for the complete response. The body is copied
+     * into a single buffer so it can be written to browsers in one go.
+     *
+     * @return The entry, or <code>null</code> if the body was too big.
+     */
+    public synchronized CacheEntry toEntry() {
+        if (this.parts == null) {
+            return null;
+        }
+        final ChannelBuffer body = ChannelBuffers.buffer((int) this.bytes);
+        for (final ChannelBuffer part : this.parts) {
+            body.writeBytes(part, part.readerIndex(), part.readableBytes());
+        }
+        // We don't know when the request went out here, so the age we
+        // calculate may be slightly low.
+        return new CacheEntry(this.key, this.request, this.response, body,
+            this.responseTime, this.responseTime);
+    }
+
+    public HttpRequest getRequest() {
+        return request;
+    }
+
+    public HttpResponse getResponse() {
+        return response;
+    }
+}
@@ -0,0 +1,360 @@
+package org.littleshoot.proxy;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
+import org.jboss.netty.handler.codec.http.HttpRequest;
+import org.jboss.netty.handler.codec.http.HttpResponse;
+import org.jboss.netty.handler.codec.http.HttpVersion;
+import org.jboss.netty.util.CharsetUtil;
+import org.jboss.netty.util.Timeout;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A fetch from the remote server for a response that isn't in the cache
+ * yet, which other browsers asking for the same response can wait on
+ * instead of each fetching it themselves. The browser whose request goes
+ * to the server is the leader, and the others are followers. Followers get
+ * the response streamed to them as chunks as it arrives, or all at once if
+ * it arrives all at once. Followers the response doesn't apply to, because
+ * it varies on request headers they sent differently, have to fetch it
+ * themselves.
+ */
+public class CacheFlight {
+
+    private static final Logger LOG =
+        LoggerFactory.getLogger(CacheFlight.class);
+
+    private static final byte[] CRLF = {'\r', '\n'};
+
+    private static final byte[] LAST_CHUNK = {'0', '\r', '\n', '\r', '\n'};
+
+    private final String key;
+
+    private final HttpRequest leader;
+
+    private final long maxBytes;
+
+    private final List<Follower> followers = new ArrayList<Follower>();
+
+    /**
+     * The head of the response once we've started streaming it.
+     */
+    private ChannelBuffer head;
+
+    /**
+     * The chunks we've streamed so far, for followers that join late, or
+     * <code>null</code> once there's too much to hold.
+     */
+    private List<ChannelBuffer> sent = new ArrayList<ChannelBuffer>();
+
+    private long sentBytes;
+
+    /**
+     * The request headers the response varies on, once we know them.
+     */
+    private List<String> varyHeaders;
+
+    private Map<String, String> varyValues;
+
+    private boolean done;
+
+    private Timeout timeout;
+
+    /**
+     * Creates a new flight.
+     *
+     * @param key The cache key for the response.
+     * @param leader The request we're sending to the remote server.
+     * @param maxBytes The most response body we hold for followers that
+     * join once we've started streaming.
+     */
+    public CacheFlight(final String key, final HttpRequest leader,
+        final long maxBytes) {
+        this.key = key;
+        this.leader = leader;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Adds a follower that wants the response too.
+     *
+     * @param channel The follower's browser connection.
+     * @param request The follower's request.
+     * @return <code>true</code> if the follower will get the response from
+     * this flight, or <code>false</code> if it's too late to join.
+     */
+    public synchronized boolean follow(final Channel channel,
+        final HttpRequest request) {
+        if (this.done || this.sent == null) {
+            return false;
+        }
+        if (this.head != null && !matches(request)) {
+            return false;
+        }
+        final Follower follower = new Follower(channel, request);
+        final ResponseSequencer sequencer = ResponseSequencer.get(channel);
+        if (sequencer != null) {
+            sequencer.register(request);
+        }
+
+        // We won't answer anything else from this browser until we've
+        // answered this.
+        ReadThrottle.get(channel).suspend(this);
+        this.followers.add(follower);
+        if (this.head != null) {
+            write(follower, this.head.duplicate(), false);
+            for (final ChannelBuffer chunk : this.sent) {
+                write(follower, chunk.duplicate(), false);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Starts streaming a chunked response to the followers.
+     *
+     * @param response The response headers.
+     * @return The requests of the followers the response doesn't apply to,
+     * mapped to their browser connections, which need to fetch the response
+     * themselves. We stay a reason not to read from those connections, so
+     * the caller has to resume them once it has resent their requests.
+     */
+    public synchronized Map<HttpRequest, Channel> start(
+        final HttpResponse response) {
+        final Map<HttpRequest, Channel> mismatched =
+            new LinkedHashMap<HttpRequest, Channel>();
+        if (this.done) {
+            return mismatched;
+        }
+        this.varyHeaders = HttpCacheRules.varyHeaders(response);
+        this.varyValues = 
+            HttpCacheRules.varyValues(this.leader, this.varyHeaders);
+        for (final Iterator<Follower> it = this.followers.iterator(); 
+            it.hasNext();) {
+            final Follower follower = it.next();
+            if (!matches(follower.request)) {
+                it.remove();
+                mismatched.put(follower.request, follower.channel);
+            }
+        }
+        this.head = encodeHead(response);
+        for (final Follower follower : this.followers) {
+            write(follower, this.head.duplicate(), false);
+        }
+        return mismatched;
+    }
+
+    /**
+     * Streams the next chunk of the response to the followers.
+     *
+     * @param content The chunk content.
+     */
+    public synchronized void chunk(final ChannelBuffer content) {
+        if (this.done || this.head == null || !content.readable()) {
+            return;
+        }
+        final ChannelBuffer chunk = ChannelBuffers.wrappedBuffer(
+            ChannelBuffers.copiedBuffer(
+                Integer.toHexString(content.readableBytes()) + "\r\n",
+                CharsetUtil.US_ASCII),
+            content.duplicate(), ChannelBuffers.wrappedBuffer(CRLF));
+        if (this.sent != null) {
+            this.sentBytes += content.readableBytes();
+            if (this.sentBytes > this.maxBytes) {
+                // Too late for anyone else to join.
+                this.sent = null;
+            } else {
+                this.sent.add(chunk);
+            }
+        }
+        for (final Follower follower : this.followers) {
+            write(follower, chunk.duplicate(), false);
+        }
+    }
+
+    /**
+     * Ends the streamed response for all followers.
+     */
+    public synchronized void finish() {
+        if (this.done || this.head == null) {
+            return;
+        }
+        for (final Follower follower : this.followers) {
+            write(follower, ChannelBuffers.wrappedBuffer(LAST_CHUNK), true);
+        }
+        end(Collections.<HttpRequest, Channel>emptyMap());
+    }
+
+    /**
+     * Answers all followers with the complete response.
+     *
+     * @param entry The response.
+     * @return The requests of the followers the response doesn't apply to,
+     * mapped to their browser connections, which need to fetch the response
+     * themselves. We stay a reason not to read from those connections, so
+     * the caller has to resume them once it has resent their requests.
+     */
+    public synchronized Map<HttpRequest, Channel> complete(
+        final CacheEntry entry) {
+        final Map<HttpRequest, Channel> mismatched =
+            new LinkedHashMap<HttpRequest, Channel>();
+        if (this.done) {
+            return mismatched;
+        }
+        final long now = System.currentTimeMillis();
+        for (final Follower follower : this.followers) {
+            if (entry.matches(follower.request)) {
+                write(follower, entry.encode(now, false), true);
+            } else {
+                mismatched.put(follower.request, follower.channel);
+            }
+        }
+        end(mismatched);
+        return mismatched;
+    }
+
+    /**
+     * Gives up on the flight, such as when the response turns out not to be
+     * cacheable. Followers we've already started streaming to are closed,
+     * as we can't finish their responses.
+     *
+     * @return The requests of the followers we haven't written anything to,
+     * mapped to their browser connections, which need to fetch the response
+     * themselves. We stay a reason not to read from those connections, so
+     * the caller has to resume them once it has resent their requests.
+     */
+    public synchronized Map<HttpRequest, Channel> abandon() {
+        final Map<HttpRequest, Channel> waiting =
+            new LinkedHashMap<HttpRequest, Channel>();
+        if (this.done) {
+            return waiting;
+        }
+        LOG.debug("Abandoning flight for {}", this.key);
+        for (final Follower follower : this.followers) {
+            if (this.head == null) {
+                waiting.put(follower.request, follower.channel);
+                continue;
+            }
+            final ResponseSequencer sequencer =
+                ResponseSequencer.get(follower.channel);
+            if (sequencer != null) {
+                sequencer.abort(follower.request);
+            } else {
+                ProxyUtils.closeOnFlush(follower.channel);
+            }
+        }
+        end(waiting);
+        return waiting;
+    }
+
+    /**
+     * Ends the flight, reading from the followers' browser connections 
+     * again except for the ones handed back to fetch the response 
+     * themselves.
+     */
+    private void end(final Map<HttpRequest, Channel> handedBack) {
+        this.done = true;
+        if (this.timeout != null) {
+            this.timeout.cancel();
+        }
+        for (final Follower follower : this.followers) {
+            if (!handedBack.containsKey(follower.request)) {
+                ReadThrottle.get(follower.channel).resume(this);
+            }
+        }
+        this.followers.clear();
+        this.sent = null;
+    }
+
+    private boolean matches(final HttpRequest request) {
+        if (this.varyHeaders == null || this.varyHeaders.isEmpty()) {
+            return true;
+        }
+        return this.varyValues.equals(
+            HttpCacheRules.varyValues(request, this.varyHeaders));
+    }
+
+    private void write(final Follower follower, final Object msg,
+        final boolean complete) {
+        final ResponseSequencer sequencer =
+            ResponseSequencer.get(follower.channel);
+        final ChannelFuture future;
+        if (sequencer == null) {
+            future = follower.channel.write(msg);
+        } else {
+            future = sequencer.write(follower.request, msg, complete, null);
+        }
+        if (complete && !HttpHeaders.isKeepAlive(follower.request)) {
+            future.addListener(ChannelFutureListener.CLOSE);
+        }
+    }
+
+    private static ChannelBuffer encodeHead(final HttpResponse response) {
+        final StringBuilder sb = new StringBuilder(256);
+        // Followers are all HTTP 1.1, so they can take chunks.
+        sb.append(HttpVersion.HTTP_1_1.getText()).append(' ')
+            .append(response.getStatus()).append("\r\n");
+        for (final Map.Entry<String, String> header : response.getHeaders()) {
+            final String name = header.getKey();
+            if (name.equalsIgnoreCase(HttpHeaders.Names.CONTENT_LENGTH) ||
+                name.equalsIgnoreCase(HttpHeaders.Names.TRANSFER_ENCODING)) {
+                continue;
+            }
+            sb.append(name).append(": ").append(header.getValue())
+                .append("\r\n");
+        }
+        sb.append(HttpHeaders.Names.TRANSFER_ENCODING).append(": ")
+            .append(HttpHeaders.Values.CHUNKED).append("\r\n\r\n");
+        return ChannelBuffers.copiedBuffer(sb, CharsetUtil.ISO_8859_1);
+    }
+
+    /**
+     * Sets the timeout for the leader's response, which is cancelled once
+     * the flight is done.
+     *
+     * @param timeout The timeout.
+     */
+    public synchronized void setTimeout(final Timeout timeout) {
+        this.timeout = timeout;
+    }
+
+    /**
+     * Accessor for whether or not we've started streaming the response.
+     *
+     * @return <code>true</code> if we've sent the response head.
+     */
+    public synchronized boolean isStreaming() {
+        return this.head != null;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public HttpRequest getLeader() {
+        return leader;
+    }
+
+    private static final class Follower {
+
+        private final Channel channel;
+        private final HttpRequest request;
+
+        private Follower(final Channel channel, final HttpRequest request) {
+            this.channel = channel;
+            this.request = request;
+        }
+    }
+}
@@ -0,0 +1,217 @@
+package org.littleshoot.proxy;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Puts responses in the cache off the threads sending them to browsers.
+ * Inserts are spread over shards by key, so inserts for the same key stay
+ * in order, and each shard has its own bounded queue and thread. Queueing
+ * an insert never blocks or takes a lock: when a shard's queue is full we
+ * drop the insert, as the response will simply be fetched and cached again
+ * later. Each shard's thread takes inserts off its queue in batches, so a
+ * busy shard doesn't wake its thread for every insert.
+ */
+public class CacheInserter {
+
+    private static final Logger LOG =
+        LoggerFactory.getLogger(CacheInserter.class);
+
+    private final Shard[] shards;
+
+    private final AtomicLong inserted = new AtomicLong();
+
+    private final AtomicLong dropped = new AtomicLong();
+
+    private volatile boolean stopped;
+
+    /**
+     * Creates a new inserter.
+     *
+     * @param numShards The number of shards, each with its own thread.
+     * @param queueSize The most inserts all shards can have waiting.
+     * @param batchSize The most inserts a shard's thread takes at once.
+     */
+    public CacheInserter(final int numShards, final int queueSize,
+        final int batchSize) {
+        final int n = Math.max(1, numShards);
+        this.shards = new Shard[n];
+        for (int i = 0; i < n; i++) {
+            this.shards[i] = new Shard(i, Math.max(1, queueSize / n),
+                Math.max(1, batchSize));
+            this.shards[i].thread.start();
+        }
+    }
+
+    /**
+     * Queues an insert.
+     *
+     * @param key The cache key, which picks the shard.
+     * @param insert The insert, returning the key.
+     * @return The future for the insert, which is cancelled if we dropped
+     * it.
+     */
+    public Future<String> insert(final String key,
+        final Callable<String> insert) {
+        final FutureTask<String> task = new FutureTask<String>(insert);
+        final Shard shard = this.shards[
+            (key.hashCode() & Integer.MAX_VALUE) % this.shards.length];
+        if (this.stopped || !shard.offer(task)) {
+            final long count = this.dropped.incrementAndGet();
+            LOG.debug("Insert queue full -- dropping {} ({} dropped)",
+                key, count);
+            task.cancel(false);
+        }
+        return task;
+    }
+
+    /**
+     * Accessor for the number of inserts we've run.
+     *
+     * @return The number of inserts run.
+     */
+    public long getInsertedCount() {
+        return this.inserted.get();
+    }
+
+    /**
+     * Accessor for the number of inserts we've dropped because their
+     * queue was full.
+     *
+     * @return The number of inserts dropped.
+     */
+    public long getDroppedCount() {
+        return this.dropped.get();
+    }
+
+    /**
+     * Accessor for the number of inserts waiting in all the queues.
+     *
+     * @return The number of waiting inserts.
+     */
+    public int getQueuedCount() {
+        int count = 0;
+        for (final Shard shard : this.shards) {
+            count += shard.size.get();
+        }
+        return count;
+    }
+
+    /**
+     * Stops taking inserts and waits for the ones already queued to run.
+     *
+     * @param timeout How long to wait.
+     * @param unit The unit of the timeout.
+     * @return <code>true</code> if all queued inserts ran in time.
+     * @throws InterruptedException If we're interrupted while waiting.
+     */
+    public boolean stop(final long timeout, final TimeUnit unit)
+        throws InterruptedException {
+        this.stopped = true;
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (final Shard shard : this.shards) {
+            LockSupport.unpark(shard.thread);
+        }
+        for (final Shard shard : this.shards) {
+            final long remaining = deadline - System.nanoTime();
+            if (remaining > 0) {
+                shard.thread.join(Math.max(1,
+                    TimeUnit.NANOSECONDS.toMillis(remaining)));
+            }
+            if (shard.thread.isAlive()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private final class Shard implements Runnable {
+
+        private final Queue<FutureTask<String>> queue =
+            new ConcurrentLinkedQueue<FutureTask<String>>();
+
+        /**
+         * The number of inserts in the queue, or reserved by producers
+         * about to add them. We count separately because the size of the
+         * queue itself isn't constant time.
+         */
+        private final AtomicInteger size = new AtomicInteger();
+
+        private final AtomicBoolean parked = new AtomicBoolean();
+
+        private final int capacity;
+
+        private final int batchSize;
+
+        private final Thread thread;
+
+        private Shard(final int id, final int capacity, final int batchSize) {
+            this.capacity = capacity;
+            this.batchSize = batchSize;
+            this.thread = new Thread(this, "Cache-Insertion-Thread-" + id);
+            this.thread.setDaemon(true);
+        }
+
+        private boolean offer(final FutureTask<String> task) {
+            while (true) {
+                final int current = this.size.get();
+                if (current >= this.capacity) {
+                    return false;
+                }
+                if (this.size.compareAndSet(current, current + 1)) {
+                    break;
+                }
+            }
+            this.queue.offer(task);
+            if (this.parked.get()) {
+                LockSupport.unpark(this.thread);
+            }
+            return true;
+        }
+
+        public void run() {
+            final List<FutureTask<String>> batch =
+                new ArrayList<FutureTask<String>>(this.batchSize);
+            while (true) {
+                FutureTask<String> task;
+                while (batch.size() < this.batchSize &&
+                    (task = this.queue.poll()) != null) {
+                    batch.add(task);
+                }
+                if (batch.isEmpty()) {
+                    if (stopped && this.size.get() == 0) {
+                        return;
+                    }
+                    // Check the queue again once we're marked as parked,
+                    // so we can't miss the unpark for an insert that was
+                    // added in between.
+                    this.parked.set(true);
+                    if (this.queue.isEmpty() && !stopped) {
+                        LockSupport.park(this);
+                    }
+                    this.parked.set(false);
+                    continue;
+                }
+                this.size.addAndGet(-batch.size());
+                for (final FutureTask<String> queued : batch) {
+                    queued.run();
+                    inserted.incrementAndGet();
+                }
+                batch.clear();
+            }
+        }
+    }
+}
@@ -0,0 +1,410 @@
+package org.littleshoot.proxy;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.ChannelPipelineFactory;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.ExceptionEvent;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.jboss.netty.channel.socket.ClientSocketChannelFactory;
+import org.jboss.netty.channel.socket.nio.NioClientSocketChannelFactory;
+import org.jboss.netty.handler.codec.frame.TooLongFrameException;
+import org.jboss.netty.handler.codec.http.HttpChunkAggregator;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
+import org.jboss.netty.handler.codec.http.HttpMethod;
+import org.jboss.netty.handler.codec.http.HttpRequest;
+import org.jboss.netty.handler.codec.http.HttpRequestEncoder;
+import org.jboss.netty.handler.codec.http.HttpResponse;
+import org.jboss.netty.handler.codec.http.HttpResponseDecoder;
+import org.jboss.netty.handler.codec.http.HttpResponseStatus;
+import org.jboss.netty.handler.timeout.ReadTimeoutHandler;
+import org.jboss.netty.util.HashedWheelTimer;
+import org.jboss.netty.util.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Fetches fresh copies of stale cached responses in the background, so
+ * browsers can be answered with the stale copy right away. There's only
+ * ever one refresh of a response at a time, and we cap how many run at
+ * once. When we're at the cap we skip the refresh, and the next request
+ * for the response tries again.
+ * <p>
+ * Refreshes go out the same way requests from browsers do: through the
+ * chain proxy if there is one, over an idle pooled connection if we have
+ * one, and otherwise over a new connection from the
+ * {@link UpstreamConnector}, so host names are resolved without blocking.
+ * Connections still good for another request go back in the pool.
+ */
+public class CacheRefresher {
+
+    private static final Logger LOG =
+        LoggerFactory.getLogger(CacheRefresher.class);
+
+    private static final Timer TIMER = new HashedWheelTimer();
+
+    private final HttpCacheStore store;
+
+    private final UpstreamConnector upstreamConnector;
+
+    private final UpstreamChannelPool upstreamChannelPool;
+
+    private final ChainProxyManager chainProxyManager;
+
+    /**
+     * The factory for our own connections when we don't share the proxy's,
+     * or <code>null</code>.
+     */
+    private final ClientSocketChannelFactory ownedChannelFactory;
+
+    /**
+     * The keys of the responses we're refreshing.
+     */
+    private final Set<String> refreshing = new HashSet<String>();
+
+    /**
+     * Creates a new refresher with its own connections to remote hosts.
+     *
+     * @param store The store to put fresh responses in.
+     */
+    public CacheRefresher(final HttpCacheStore store) {
+        this(store, new NioClientSocketChannelFactory(
+            Executors.newCachedThreadPool(), Executors.newCachedThreadPool()));
+    }
+
+    private CacheRefresher(final HttpCacheStore store,
+        final ClientSocketChannelFactory ownedChannelFactory) {
+        this(store, new UpstreamConnector(ownedChannelFactory), null, null,
+            ownedChannelFactory);
+    }
+
+    /**
+     * Creates a new refresher sharing the proxy's connections to remote
+     * hosts.
+     *
+     * @param store The store to put fresh responses in.
+     * @param upstreamConnector The class for opening new connections to
+     * remote hosts.
+     * @param upstreamChannelPool The pool of idle connections to remote
+     * hosts, or <code>null</code> to always open new connections.
+     * @param chainProxyManager The manager for the proxy we chain to, or
+     * <code>null</code> if we don't chain.
+     */
+    public CacheRefresher(final HttpCacheStore store,
+        final UpstreamConnector upstreamConnector,
+        final UpstreamChannelPool upstreamChannelPool,
+        final ChainProxyManager chainProxyManager) {
+        this(store, upstreamConnector, upstreamChannelPool, chainProxyManager,
+            null);
+    }
+
+    private CacheRefresher(final HttpCacheStore store,
+        final UpstreamConnector upstreamConnector,
+        final UpstreamChannelPool upstreamChannelPool,
+        final ChainProxyManager chainProxyManager,
+        final ClientSocketChannelFactory ownedChannelFactory) {
+        this.store = store;
+        this.upstreamConnector = upstreamConnector;
+        this.upstreamChannelPool = upstreamChannelPool;
+        this.chainProxyManager = chainProxyManager;
+        this.ownedChannelFactory = ownedChannelFactory;
+    }
+
+    /**
+     * Starts fetching a fresh copy of the entry unless we're already
+     * fetching one.
+     *
+     * @param entry The stale entry.
+     * @param request The request we're answering with the stale entry, whose
+     * headers we send along.
+     * @return <code>true</code> if we started a refresh.
+     */
+    public boolean refresh(final CacheEntry entry, final HttpRequest request) {
+        final String key = entry.getKey();
+        synchronized (this.refreshing) {
+            if (this.refreshing.size() >=
+                LittleProxyConfig.getCacheMaxRefreshes()) {
+                LOG.debug("Too many refreshes running -- skipping {}", key);
+                return false;
+            }
+            if (!this.refreshing.add(key)) {
+                return false;
+            }
+        }
+        try {
+            fetch(entry, request);
+            return true;
+        } catch (final Exception e) {
+            LOG.debug("Could not refresh " + key, e);
+            done(key);
+            return false;
+        }
+    }
+
+    /**
+     * Marks the refresh of the key as over, so the next request for it can
+     * start another.
+     *
+     * @param key The key.
+     */
+    protected void done(final String key) {
+        synchronized (this.refreshing) {
+            this.refreshing.remove(key);
+        }
+    }
+
+    /**
+     * Sends a request validating the entry we have to the origin, storing
+     * the result once it arrives. The refresh is over once we call
+     * {@link #done(String)}.
+     *
+     * @param entry The stale entry.
+     * @param request The request to copy headers from.
+     * @throws Exception If we can't start the request.
+     */
+    protected void fetch(final CacheEntry entry, final HttpRequest request)
+        throws Exception {
+        String chainProxy = null;
+        if (this.chainProxyManager != null) {
+            chainProxy = this.chainProxyManager.getChainProxy(request);
+        }
+        final String hostAndPort;
+        if (chainProxy != null) {
+            hostAndPort = chainProxy;
+        } else {
+            hostAndPort = ProxyUtils.parseHostAndPort(request);
+        }
+        final HttpRequest validation =
+            ProxyUtils.copyHttpRequest(request, chainProxy != null);
+        // We want the body even when the browser only asked for the head.
+        validation.setMethod(HttpMethod.GET);
+        for (final String name : validation.getHeaderNames()) {
+            if (!isForwarded(name)) {
+                validation.removeHeader(name);
+            }
+        }
+        if (entry.getETag() != null) {
+            validation.setHeader(HttpHeaders.Names.IF_NONE_MATCH,
+                entry.getETag());
+        }
+        if (entry.getLastModified() != null) {
+            validation.setHeader(HttpHeaders.Names.IF_MODIFIED_SINCE,
+                entry.getLastModified());
+        }
+
+        final RefreshHandler handler = new RefreshHandler(entry, validation,
+            hostAndPort, chainProxy != null);
+        final ChannelPipelineFactory cpf = new ChannelPipelineFactory() {
+            public ChannelPipeline getPipeline() {
+                final ChannelPipeline pipeline = Channels.pipeline();
+                pipeline.addLast("decoder",
+                    new HttpResponseDecoder(8192, 8192*2, 8192*2));
+                pipeline.addLast("aggregator", new HttpChunkAggregator(
+                    (int) Math.min(Integer.MAX_VALUE,
+                        LittleProxyConfig.getCacheMaxObjectBytes())));
+                pipeline.addLast("encoder", new HttpRequestEncoder());
+                pipeline.addLast("timeout", new ReadTimeoutHandler(TIMER,
+                    LittleProxyConfig.getConnectTimeoutMillis(),
+                    TimeUnit.MILLISECONDS));
+                pipeline.addLast("handler", handler);
+                return pipeline;
+            }
+        };
+
+        Channel pooled = null;
+        if (this.upstreamChannelPool != null) {
+            pooled = this.upstreamChannelPool.borrow(hostAndPort);
+        }
+        if (pooled != null) {
+            ProxyUtils.replaceHandlers(pooled.getPipeline(), cpf.getPipeline());
+            handler.send(pooled, validation);
+            return;
+        }
+        this.upstreamConnector.connect(hostAndPort, cpf).addListener(
+            new ChannelFutureListener() {
+                public void operationComplete(final ChannelFuture cf) {
+                    if (cf.isSuccess()) {
+                        handler.send(cf.getChannel(), validation);
+                    } else {
+                        handler.failed(cf.getCause());
+                    }
+                }
+            });
+    }
+
+    /**
+     * Stores what the origin said about the stale entry.
+     *
+     * @param entry The stale entry.
+     * @param request The request we sent.
+     * @param response The response from the origin.
+     * @param requestTime When we sent the request.
+     * @param responseTime When we got the response.
+     */
+    private void store(final CacheEntry entry, final HttpRequest request,
+        final HttpResponse response, final long requestTime,
+        final long responseTime) {
+        final int status = response.getStatus().getCode();
+        if (status == HttpResponseStatus.NOT_MODIFIED.getCode()) {
+            if (HttpCacheRules.cacheControl(response).containsKey(
+                HttpHeaders.Values.NO_STORE)) {
+                this.store.remove(entry.getKey());
+            } else {
+                LOG.debug("Refreshed {}", entry.getKey());
+                this.store.put(entry.refresh(request, response,
+                    requestTime, responseTime));
+            }
+            return;
+        }
+        // Keep the stale copy, which may still be good to serve on an
+        // error.
+        if (HttpCacheRules.isStaleIfErrorStatus(status)) {
+            return;
+        }
+        if (!HttpCacheRules.isCacheable(request, response)) {
+            this.store.remove(entry.getKey());
+            return;
+        }
+        LOG.debug("Replaced {}", entry.getKey());
+        // The aggregated body can be a slice of a buffer shared with other
+        // responses, so we copy it rather than keep all of that alive.
+        this.store.put(new CacheEntry(entry.getKey(), request, response,
+            ChannelBuffers.copiedBuffer(response.getContent()), requestTime,
+            responseTime));
+    }
+
+    /**
+     * Returns whether or not we pass the browser's header along. We leave
+     * out anything that would make the request partial or conditional on
+     * the browser's own copy, along with headers only meant for us.
+     */
+    private static boolean isForwarded(final String name) {
+        final String lower = name.toLowerCase();
+        return !lower.startsWith("proxy-") &&
+            !lower.equals("range") &&
+            !lower.startsWith("if-");
+    }
+
+    /**
+     * Stops refreshing, closing our own connections if we have any.
+     */
+    public void stop() {
+        if (this.ownedChannelFactory != null) {
+            this.ownedChannelFactory.releaseExternalResources();
+        }
+    }
+
+    /**
+     * Handles the connection for a single refresh.
+     */
+    private final class RefreshHandler extends SimpleChannelUpstreamHandler {
+
+        private final CacheEntry entry;
+        private final HttpRequest request;
+        private final String hostAndPort;
+        private final boolean chained;
+        private long requestTime;
+        private boolean finished;
+
+        private RefreshHandler(final CacheEntry entry,
+            final HttpRequest request, final String hostAndPort,
+            final boolean chained) {
+            this.entry = entry;
+            this.request = request;
+            this.hostAndPort = hostAndPort;
+            this.chained = chained;
+        }
+
+        private void send(final Channel channel,
+            final HttpRequest validation) {
+            this.requestTime = System.currentTimeMillis();
+            channel.write(validation).addListener(
+                new ChannelFutureListener() {
+                    public void operationComplete(final ChannelFuture cf) {
+                        if (!cf.isSuccess()) {
+                            channel.close();
+                            failed(cf.getCause());
+                        }
+                    }
+                });
+        }
+
+        @Override
+        public void messageReceived(final ChannelHandlerContext ctx,
+            final MessageEvent me) {
+            final HttpResponse response = (HttpResponse) me.getMessage();
+            final long responseTime = System.currentTimeMillis();
+            if (!finish()) {
+                return;
+            }
+            final Channel channel = me.getChannel();
+            if (HttpHeaders.isKeepAlive(response) &&
+                upstreamChannelPool != null) {
+                // Idle pooled connections time out on their own terms.
+                ctx.getPipeline().remove("timeout");
+                upstreamChannelPool.release(this.hostAndPort, channel);
+            } else {
+                channel.close();
+            }
+            ProxyUtils.stripHopByHopHeaders(response);
+            store(this.entry, this.request, response, this.requestTime,
+                responseTime);
+        }
+
+        @Override
+        public void channelClosed(final ChannelHandlerContext ctx,
+            final ChannelStateEvent cse) {
+            if (finish()) {
+                LOG.debug("Connection closed refreshing {}",
+                    this.entry.getKey());
+            }
+        }
+
+        @Override
+        public void exceptionCaught(final ChannelHandlerContext ctx,
+            final ExceptionEvent ee) {
+            ee.getChannel().close();
+            if (ee.getCause() instanceof TooLongFrameException) {
+                // Too big to cache, so the stale copy can't be replaced.
+                if (finish()) {
+                    store.remove(this.entry.getKey());
+                }
+                return;
+            }
+            failed(ee.getCause());
+        }
+
+        private void failed(final Throwable cause) {
+            if (!finish()) {
+                return;
+            }
+            LOG.debug("Could not refresh " + this.entry.getKey(), cause);
+            if (this.chained && chainProxyManager != null) {
+                chainProxyManager.onCommunicationError(this.hostAndPort);
+            }
+        }
+
+        /**
+         * Ends the refresh, returning whether or not it was still going.
+         */
+        private synchronized boolean finish() {
+            if (this.finished) {
+                return false;
+            }
+            this.finished = true;
+            done(this.entry.getKey());
+            return true;
+        }
+    }
+}
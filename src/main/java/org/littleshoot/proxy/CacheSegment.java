@@ -0,0 +1,311 @@
+package org.littleshoot.proxy;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.FileRegion;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An append-only file of cached responses. Segments are only ever appended
+ * to and then deleted whole, so the disk cache never has to find room in
+ * the middle of a file.
+ */
+public class CacheSegment {
+
+    private static final Logger LOG =
+        LoggerFactory.getLogger(CacheSegment.class);
+
+    private final int id;
+
+    private final File file;
+
+    private final RandomAccessFile raf;
+
+    private final FileChannel channel;
+
+    private final long capacity;
+
+    private long size;
+
+    private int records;
+
+    /**
+     * Regions of this segment that are being sent to browsers.
+     */
+    private int regions;
+
+    private boolean deleted;
+
+    private boolean closed;
+
+    /**
+     * Creates a new, empty segment, replacing any file already there.
+     *
+     * @param file The file for the segment.
+     * @param id The ID of the segment. Later segments have higher IDs.
+     * @param capacity The most bytes we'll append to the segment.
+     * @throws IOException If we can't create the file.
+     */
+    public CacheSegment(final File file, final int id, final long capacity)
+        throws IOException {
+        this.file = file;
+        this.id = id;
+        this.capacity = capacity;
+        this.raf = new RandomAccessFile(file, "rw");
+        this.raf.setLength(0);
+        this.channel = this.raf.getChannel();
+    }
+
+    /**
+     * Opens a segment written by an earlier run. Anything in the file past
+     * the given size isn't part of the segment until it's passed to
+     * {@link #recovered(long)}, and is cut off by {@link #truncate()}.
+     *
+     * @param file The file for the segment.
+     * @param id The ID of the segment.
+     * @param capacity The most bytes we'll append to the segment.
+     * @param size The number of bytes known to hold whole records.
+     * @param records The number of records in those bytes.
+     * @throws IOException If we can't open the file.
+     */
+    public CacheSegment(final File file, final int id, final long capacity,
+        final long size, final int records) throws IOException {
+        this.file = file;
+        this.id = id;
+        this.capacity = capacity;
+        this.size = size;
+        this.records = records;
+        this.raf = new RandomAccessFile(file, "rw");
+        this.channel = this.raf.getChannel();
+    }
+
+    /**
+     * Appends a record to the segment.
+     *
+     * @param record The record.
+     * @return Where the record starts in the segment, or -1 if there isn't
+     * room for it.
+     * @throws IOException If we can't write the record.
+     */
+    public synchronized long append(final ChannelBuffer record)
+        throws IOException {
+        if (this.closed) {
+            throw new IOException("Segment closed: " + this.file);
+        }
+        if (this.size + record.readableBytes() > this.capacity) {
+            return -1;
+        }
+        final long offset = this.size;
+        long position = offset;
+        for (final ByteBuffer buf : record.toByteBuffers()) {
+            while (buf.hasRemaining()) {
+                position += this.channel.write(buf, position);
+            }
+        }
+        this.size = position;
+        this.records++;
+        return offset;
+    }
+
+    /**
+     * Adds a record found past the end of a segment from an earlier run.
+     *
+     * @param end Where the record ends.
+     */
+    public synchronized void recovered(final long end) {
+        this.size = end;
+        this.records++;
+    }
+
+    /**
+     * Cuts off anything in the file past the last whole record, such as a
+     * record we were writing when we crashed.
+     *
+     * @throws IOException If we can't truncate the file.
+     */
+    public synchronized void truncate() throws IOException {
+        if (this.raf.length() > this.size) {
+            LOG.info("Truncating cache segment " + this.file + " to " +
+                this.size + " bytes");
+            this.raf.setLength(this.size);
+        }
+    }
+
+    /**
+     * Forces everything appended so far to disk.
+     *
+     * @return The size of the segment on disk.
+     * @throws IOException If we can't sync the file.
+     */
+    public synchronized long force() throws IOException {
+        if (!this.closed) {
+            this.channel.force(false);
+        }
+        return this.size;
+    }
+
+    /**
+     * Reads part of the segment into the heap, for small reads such as
+     * record headers.
+     *
+     * @param offset Where to start reading.
+     * @param length The most bytes to read.
+     * @return The bytes read, which can be fewer than requested at the end
+     * of the segment.
+     * @throws IOException If we can't read the segment.
+     */
+    public ChannelBuffer read(final long offset, final int length)
+        throws IOException {
+        final ByteBuffer buf = ByteBuffer.allocate(length);
+        long position = offset;
+        while (buf.hasRemaining()) {
+            final int read = this.channel.read(buf, position);
+            if (read < 0) {
+                break;
+            }
+            position += read;
+        }
+        buf.flip();
+        return ChannelBuffers.wrappedBuffer(buf);
+    }
+
+    /**
+     * Maps part of the segment into memory. The mapping stays valid after
+     * the segment is deleted.
+     *
+     * @param offset Where the mapping starts.
+     * @param length The length of the mapping.
+     * @return The mapped bytes.
+     * @throws IOException If we can't map the segment.
+     */
+    public ChannelBuffer map(final long offset, final long length)
+        throws IOException {
+        if (length == 0) {
+            return ChannelBuffers.EMPTY_BUFFER;
+        }
+        return ChannelBuffers.wrappedBuffer(
+            this.channel.map(FileChannel.MapMode.READ_ONLY, offset, length));
+    }
+
+    /**
+     * Creates a region of the segment to send to a browser. The segment
+     * stays open until the region is released, even if it's deleted.
+     *
+     * @param offset Where the region starts.
+     * @param length The length of the region.
+     * @return The region, or <code>null</code> if the segment is closed.
+     */
+    public synchronized FileRegion region(final long offset,
+        final long length) {
+        if (this.closed) {
+            return null;
+        }
+        this.regions++;
+        return new SegmentRegion(offset, length);
+    }
+
+    /**
+     * Deletes the segment. The file goes away now, and we close it once
+     * we're no longer sending any of it.
+     */
+    public synchronized void delete() {
+        this.deleted = true;
+        if (!this.file.delete()) {
+            LOG.warn("Could not delete cache segment: {}", this.file);
+        }
+        if (this.regions == 0) {
+            close();
+        }
+    }
+
+    /**
+     * Closes the segment without deleting it.
+     */
+    public synchronized void close() {
+        if (this.closed) {
+            return;
+        }
+        this.closed = true;
+        try {
+            this.raf.close();
+        } catch (final IOException e) {
+            LOG.warn("Could not close cache segment: " + this.file, e);
+        }
+    }
+
+    private synchronized void released() {
+        this.regions--;
+        if (this.deleted && this.regions == 0) {
+            close();
+        }
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public synchronized long getSize() {
+        return size;
+    }
+
+    public synchronized int getRecords() {
+        return records;
+    }
+
+    private final class SegmentRegion implements FileRegion {
+
+        private final long position;
+        private final long count;
+        private boolean released;
+
+        private SegmentRegion(final long position, final long count) {
+            this.position = position;
+            this.count = count;
+        }
+
+        public long getPosition() {
+            return this.position;
+        }
+
+        public long getCount() {
+            return this.count;
+        }
+
+        public long transferTo(final WritableByteChannel target,
+            final long pos) throws IOException {
+            final long remaining = this.count - pos;
+            if (remaining < 0 || pos < 0) {
+                throw new IllegalArgumentException("position out of range: " +
+                    pos + " (expected: 0 - " + (this.count - 1) + ")");
+            }
+            if (remaining == 0) {
+                return 0L;
+            }
+            return channel.transferTo(this.position + pos, remaining, target);
+        }
+
+        public void releaseExternalResources() {
+            // Netty releases regions after sending them, and we release
+            // them again when the write completes in case it never did.
+            synchronized (CacheSegment.this) {
+                if (this.released) {
+                    return;
+                }
+                this.released = true;
+            }
+            released();
+        }
+    }
+}
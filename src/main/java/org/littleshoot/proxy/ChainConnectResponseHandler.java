@@ -0,0 +1,85 @@
+package org.littleshoot.proxy;
+
+import java.nio.charset.Charset;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Handler that reads the chain proxy's response to a CONNECT request we've
+ * forwarded after we've already told the browser the tunnel is established.
+ * The browser isn't expecting another response, so we don't relay it. If 
+ * the chain proxy refused the tunnel, we close it. Anything after the 
+ * response is passed on, and the handler then removes itself.
+ */
+public class ChainConnectResponseHandler extends SimpleChannelUpstreamHandler {
+
+    private static final Logger LOG = 
+        LoggerFactory.getLogger(ChainConnectResponseHandler.class);
+    
+    /**
+     * The longest response we'll read before giving up on the chain proxy.
+     */
+    private static final int MAX_RESPONSE_BYTES = 8192;
+    
+    private final ChannelBuffer response = ChannelBuffers.dynamicBuffer(256);
+
+    @Override
+    public void messageReceived(final ChannelHandlerContext ctx, 
+        final MessageEvent e) {
+        this.response.writeBytes((ChannelBuffer) e.getMessage());
+        final int end = endOfHeaders();
+        if (end < 0) {
+            if (this.response.readableBytes() > MAX_RESPONSE_BYTES) {
+                LOG.warn("Chain proxy response to CONNECT too long -- " +
+                    "closing {}", e.getChannel());
+                e.getChannel().close();
+            }
+            return;
+        }
+        final String headers = this.response.toString(
+            this.response.readerIndex(), end - this.response.readerIndex(),
+            Charset.forName("US-ASCII"));
+        this.response.readerIndex(end);
+        final String statusLine = headers.split("\r\n", 2)[0];
+        final String[] parts = statusLine.split(" ", 3);
+        if (parts.length < 2 || !parts[1].startsWith("2")) {
+            LOG.warn("Chain proxy refused CONNECT with '{}' -- closing {}", 
+                statusLine, e.getChannel());
+            e.getChannel().close();
+            return;
+        }
+        LOG.info("Chain proxy established tunnel: {}", statusLine);
+        ctx.getPipeline().remove(this);
+        if (this.response.readable()) {
+            Channels.fireMessageReceived(ctx, this.response, 
+                e.getRemoteAddress());
+        }
+    }
+
+    /**
+     * Finds the end of the response headers.
+     * 
+     * @return The index just past the blank line ending the headers, or -1
+     * if we haven't read it yet.
+     */
+    private int endOfHeaders() {
+        final int start = this.response.readerIndex();
+        final int limit = this.response.writerIndex() - 3;
+        for (int i = start; i < limit; i++) {
+            if (this.response.getByte(i) == '\r' && 
+                this.response.getByte(i + 1) == '\n' &&
+                this.response.getByte(i + 2) == '\r' && 
+                this.response.getByte(i + 3) == '\n') {
+                return i + 4;
+            }
+        }
+        return -1;
+    }
+}
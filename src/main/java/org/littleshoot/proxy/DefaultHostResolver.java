@@ -0,0 +1,257 @@
+package org.littleshoot.proxy;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.security.Security;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.lang.math.NumberUtils;
+import org.littleshoot.dnssec4j.VerifiedAddressFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Default host resolver. Lookups run on a small, dedicated pool of threads
+ * so slow DNS servers, and particularly DNSSEC verification, never hold up
+ * the I/O threads. Both successful and failed lookups are cached for their
+ * time to live, so we only pay for verifying DNSSEC signatures once per
+ * host, and concurrent lookups of the same host share a single query.
+ */
+public class DefaultHostResolver implements HostResolver {
+
+    private static final Logger LOG =
+        LoggerFactory.getLogger(DefaultHostResolver.class);
+
+    private final ExecutorService executor;
+
+    private final Map<String, CachedLookup> cache;
+
+    private final Map<String, List<HostResolverListener>> pending =
+        new HashMap<String, List<HostResolverListener>>();
+
+    private final long ttlMillis;
+
+    private final long negativeTtlMillis;
+
+    /**
+     * Creates a new resolver using the settings from
+     * {@link LittleProxyConfig}, falling back to the JVM's own DNS cache
+     * settings for times to live.
+     */
+    public DefaultHostResolver() {
+        this(LittleProxyConfig.getDnsResolverThreads(),
+            LittleProxyConfig.getDnsCacheSize(),
+            ttlMillis(LittleProxyConfig.getDnsCacheTtlSeconds(),
+                "networkaddress.cache.ttl", 30),
+            ttlMillis(LittleProxyConfig.getDnsNegativeCacheTtlSeconds(),
+                "networkaddress.cache.negative.ttl", 10));
+    }
+
+    /**
+     * Creates a new resolver.
+     *
+     * @param threads The number of threads performing lookups.
+     * @param maxCacheEntries The maximum number of hosts to cache results
+     * for.
+     * @param ttlMillis How long to cache successful lookups for.
+     * @param negativeTtlMillis How long to cache failed lookups for.
+     */
+    public DefaultHostResolver(final int threads, final int maxCacheEntries,
+        final long ttlMillis, final long negativeTtlMillis) {
+        this.ttlMillis = ttlMillis;
+        this.negativeTtlMillis = negativeTtlMillis;
+        this.cache = new LinkedHashMap<String, CachedLookup>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(
+                final Map.Entry<String, CachedLookup> eldest) {
+                return size() > maxCacheEntries;
+            }
+        };
+        this.executor = Executors.newFixedThreadPool(threads,
+            new ThreadFactory() {
+                private final AtomicInteger threadNumber = new AtomicInteger(1);
+                public Thread newThread(final Runnable r) {
+                    final Thread t = new Thread(r,
+                        "Host-Resolver-"+threadNumber.getAndIncrement());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+    }
+
+    public void resolve(final String host,
+        final HostResolverListener listener) {
+        final String key = cacheKey(host);
+        final CachedLookup cached;
+        synchronized (this.cache) {
+            final CachedLookup entry = this.cache.get(key);
+            if (entry != null && entry.expires > now()) {
+                cached = entry;
+            } else {
+                cached = null;
+                if (entry != null) {
+                    this.cache.remove(key);
+                }
+                final List<HostResolverListener> waiting = this.pending.get(key);
+                if (waiting != null) {
+                    // Someone else is already looking this host up.
+                    waiting.add(listener);
+                    return;
+                }
+                final List<HostResolverListener> listeners =
+                    new LinkedList<HostResolverListener>();
+                listeners.add(listener);
+                this.pending.put(key, listeners);
+            }
+        }
+        if (cached != null) {
+            LOG.debug("Using cached lookup for {}", host);
+            notify(host, cached, listener);
+            return;
+        }
+        try {
+            this.executor.execute(new Runnable() {
+                public void run() {
+                    lookupAndNotify(host, key);
+                }
+            });
+        } catch (final RejectedExecutionException e) {
+            LOG.warn("Could not queue lookup of "+host, e);
+            final UnknownHostException uhe = new UnknownHostException(host);
+            uhe.initCause(e);
+            complete(host, key, new CachedLookup(null, uhe, 0));
+        }
+    }
+
+    private void lookupAndNotify(final String host, final String key) {
+        CachedLookup result;
+        try {
+            final InetAddress[] addresses = lookup(host);
+            result = new CachedLookup(addresses, null, now() + this.ttlMillis);
+        } catch (final UnknownHostException e) {
+            LOG.info("Could not resolve {}", host);
+            result = new CachedLookup(null, e, now() + this.negativeTtlMillis);
+        } catch (final RuntimeException e) {
+            // Don't leave anyone waiting on a lookup that blew up.
+            LOG.warn("Error resolving "+host, e);
+            final UnknownHostException uhe = new UnknownHostException(host);
+            uhe.initCause(e);
+            result = new CachedLookup(null, uhe, 0);
+        }
+        complete(host, key, result);
+    }
+
+    private void complete(final String host, final String key,
+        final CachedLookup result) {
+        final List<HostResolverListener> listeners;
+        synchronized (this.cache) {
+            if (result.expires > now()) {
+                this.cache.put(key, result);
+            }
+            listeners = this.pending.remove(key);
+        }
+        if (listeners == null) {
+            return;
+        }
+        for (final HostResolverListener listener : listeners) {
+            notify(host, result, listener);
+        }
+    }
+
+    private void notify(final String host, final CachedLookup result,
+        final HostResolverListener listener) {
+        try {
+            if (result.addresses != null) {
+                listener.onResolved(host, result.addresses);
+            } else {
+                listener.onFailure(host, result.failure);
+            }
+        } catch (final RuntimeException e) {
+            LOG.warn("Error notifying listener of lookup of "+host, e);
+        }
+    }
+
+    /**
+     * Performs the actual, blocking lookup of the specified host.
+     *
+     * @param host The host to look up.
+     * @return The addresses of the host.
+     * @throws UnknownHostException If the host could not be resolved.
+     */
+    protected InetAddress[] lookup(final String host)
+        throws UnknownHostException {
+        if (LittleProxyConfig.isUseDnsSec()) {
+            final InetSocketAddress isa =
+                VerifiedAddressFactory.newInetSocketAddress(host, 0, true);
+            if (isa.isUnresolved()) {
+                throw new UnknownHostException(host);
+            }
+            return new InetAddress[] {isa.getAddress()};
+        }
+        return InetAddress.getAllByName(host);
+    }
+
+    /**
+     * Accessor for the current time, in milliseconds.
+     *
+     * @return The current time.
+     */
+    protected long now() {
+        return System.currentTimeMillis();
+    }
+
+    /**
+     * Stops the threads performing lookups.
+     */
+    public void shutdown() {
+        this.executor.shutdownNow();
+    }
+
+    private static String cacheKey(final String host) {
+        // Results verified with DNSSEC and results that weren't are kept
+        // apart in case DNSSEC is switched on at runtime.
+        final String lower = host.toLowerCase();
+        return LittleProxyConfig.isUseDnsSec() ? "dnssec:" + lower : lower;
+    }
+
+    private static long ttlMillis(final int configuredSeconds,
+        final String securityProperty, final int defaultSeconds) {
+        int seconds = configuredSeconds;
+        if (seconds < 0) {
+            final String prop = Security.getProperty(securityProperty);
+            seconds = prop == null ? -1 :
+                NumberUtils.toInt(prop.trim(), -1);
+            if (seconds < 0) {
+                // Unset, or cache forever, which we never want for a proxy.
+                seconds = defaultSeconds;
+            }
+        }
+        return seconds * 1000L;
+    }
+
+    private static final class CachedLookup {
+
+        private final InetAddress[] addresses;
+        private final UnknownHostException failure;
+        private final long expires;
+
+        private CachedLookup(final InetAddress[] addresses,
+            final UnknownHostException failure, final long expires) {
+            this.addresses = addresses;
+            this.failure = failure;
+            this.expires = expires;
+        }
+    }
+}
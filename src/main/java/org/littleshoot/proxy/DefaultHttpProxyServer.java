@@ -4,14 +4,12 @@ import java.lang.Thread.UncaughtExceptionHandler;
 import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
 import java.util.Map;
-import java.util.concurrent.Executors;
 
 import org.jboss.netty.bootstrap.ServerBootstrap;
 import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.group.ChannelGroup;
 import org.jboss.netty.channel.group.ChannelGroupFuture;
 import org.jboss.netty.channel.group.DefaultChannelGroup;
-import org.jboss.netty.channel.socket.nio.NioServerSocketChannelFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -38,6 +36,10 @@ public class DefaultHttpProxyServer implements HttpProxyServer {
 
     private final ServerBootstrap serverBootstrap;
 
+    private final ProxyChannelFactories channelFactories;
+
+    private volatile HttpServerPipelineFactory pipelineFactory;
+
     private final HttpResponseFilters responseFilters;
     
     /**
@@ -122,10 +124,12 @@ public class DefaultHttpProxyServer implements HttpProxyServer {
             }
         });
         
+        
+        // Connections from browsers and to remote hosts share the same, 
+        // fixed number of I/O threads.
+        this.channelFactories = new ProxyChannelFactories();
         this.serverBootstrap = new ServerBootstrap(
-            new NioServerSocketChannelFactory(
-                Executors.newCachedThreadPool(),
-                Executors.newCachedThreadPool()));
+            this.channelFactories.getServerChannelFactory());
     }
     
     public void start() {
@@ -139,8 +143,16 @@ public class DefaultHttpProxyServer implements HttpProxyServer {
                 this.allChannels, this.chainProxyManager, this.ksm, 
                 new DefaultRelayPipelineFactoryFactory(chainProxyManager, 
                     this.responseFilters, this.requestFilter, 
-                    this.allChannels));
+                    this.allChannels),
+                this.channelFactories);
         serverBootstrap.setPipelineFactory(factory);
+        this.pipelineFactory = factory;
+        serverBootstrap.setOption("child.bufferFactory", 
+            this.channelFactories.getBufferFactory());
+        serverBootstrap.setOption("child.writeBufferHighWaterMark", 
+            LittleProxyConfig.getWriteBufferHighWaterMark());
+        serverBootstrap.setOption("child.writeBufferLowWaterMark", 
+            LittleProxyConfig.getWriteBufferLowWaterMark());
         
         // Binding only to localhost can significantly improve the security of
         // the proxy.
@@ -182,6 +194,13 @@ public class DefaultHttpProxyServer implements HttpProxyServer {
         final ChannelGroupFuture future = allChannels.close();
         future.awaitUninterruptibly(6*1000);
         serverBootstrap.releaseExternalResources();
+        channelFactories.releaseExternalResources();
+        
+        // Now nothing else can go in the cache, save it for the next run.
+        final HttpServerPipelineFactory factory = this.pipelineFactory;
+        if (factory != null) {
+            factory.getCacheManager().stop();
+        }
         log.info("Done shutting down proxy");
     }
 
@@ -1,275 +1,1019 @@
 package org.littleshoot.proxy;
 
-import java.util.HashSet;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.HashMap;
 import java.util.List;
-import java.util.Set;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
 import java.util.concurrent.Future;
-import java.util.concurrent.ThreadFactory;
-
-import net.sf.ehcache.Cache;
-import net.sf.ehcache.CacheManager;
-import net.sf.ehcache.Element;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.lang.StringUtils;
 import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
 import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelFuture;
 import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.FileRegion;
+import org.jboss.netty.handler.codec.http.DefaultHttpResponse;
+import org.jboss.netty.handler.codec.http.HttpChunk;
 import org.jboss.netty.handler.codec.http.HttpHeaders;
+import org.jboss.netty.handler.codec.http.HttpMethod;
 import org.jboss.netty.handler.codec.http.HttpRequest;
 import org.jboss.netty.handler.codec.http.HttpResponse;
 import org.jboss.netty.handler.codec.http.HttpResponseStatus;
+import org.jboss.netty.handler.codec.http.HttpVersion;
+import org.jboss.netty.handler.ssl.SslHandler;
+import org.jboss.netty.handler.traffic.AbstractTrafficShapingHandler;
+import org.jboss.netty.util.CharsetUtil;
+import org.jboss.netty.util.HashedWheelTimer;
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.Timer;
+import org.jboss.netty.util.TimerTask;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * Default cache manager for the proxy.
+ * Default cache manager for the proxy. This is a shared cache following the
+ * HTTP caching rules in {@link HttpCacheRules}, keeping complete responses
+ * in an {@link HttpCacheStore}. Chunked responses are collected as they're
+ * relayed and only become visible in the cache once the last chunk is in.
+ * 
+ * Concurrent misses for the same response are collapsed into a single 
+ * request to the remote server, with the other browsers waiting on that 
+ * request's {@link CacheFlight}.
+ * 
+ * Stale responses are served right away while a {@link CacheRefresher}
+ * fetches a fresh copy, for as long as stale-while-revalidate allows, and
+ * in place of server errors for as long as stale-if-error allows.
+ * 
+ * If {@link LittleProxyConfig#getCacheDir()} is set, responses are also
+ * stored on disk, and bodies on disk are sent to browsers straight from the
+ * file where the pipeline allows it.
+ * 
+ * Cached responses can be purged by URI, host, path prefix or tag, either
+ * with PURGE requests from the addresses in 
+ * {@link LittleProxyConfig#getCachePurgeAllowedAddresses()} or over JMX.
+ * Successful POST, PUT and DELETE requests purge the URI they went to.
  */
-public class DefaultProxyCacheManager implements ProxyCacheManager {
+public class DefaultProxyCacheManager implements ProxyCacheManager, 
+    CacheData {
+
+    private static final Timer TIMER = new HashedWheelTimer();
+
+    private static final String STALE_WARNING = 
+        "110 - \"Response is Stale\"";
+
+    private static final String REVALIDATION_FAILED_WARNING = 
+        "111 - \"Revalidation Failed\"";
 
     private final Logger log = LoggerFactory.getLogger(getClass());
-    private final CacheManager cacheManager = new CacheManager();
-    
-    private static final boolean CACHE_ENABLED = false;
-    
-    private final ExecutorService cacheExecutor = 
-        Executors.newSingleThreadExecutor(new ThreadFactory() {
-            private int numThreads = 0;
-            public Thread newThread(final Runnable r) {
-                final Thread t = 
-                    new Thread(r, "Cache-Insertion-Thread-"+numThreads);
-                numThreads++;
-                t.setDaemon(true);
-                return t;
-            }
-        });
-    
+
+    private final IndexedHttpCacheStore store;
+
+    private final CacheRefresher refresher;
+
+    private final NegativeCache negativeCache = new NegativeCache();
+
     /**
-     * Creates a new cache manager.
+     * Responses we're collecting chunks for, keyed on the request. These go
+     * away along with the request if a response is never finished.
+     */
+    private final Map<HttpRequest, CacheFill> fills =
+        new WeakHashMap<HttpRequest, CacheFill>();
+
+    /**
+     * Stale entries we've asked the remote server to validate, keyed on the
+     * request we asked with.
+     */
+    private final Map<HttpRequest, CacheEntry> revalidating =
+        new WeakHashMap<HttpRequest, CacheEntry>();
+
+    /**
+     * Stale entries we can serve if the remote server fails to answer the
+     * request, keyed on the request.
+     */
+    private final Map<HttpRequest, CacheEntry> staleIfError =
+        new WeakHashMap<HttpRequest, CacheEntry>();
+
+    /**
+     * Fetches in progress that other requests can wait on, keyed on the
+     * cache key. All flight state is guarded by this map.
+     */
+    private final Map<String, CacheFlight> flights =
+        new HashMap<String, CacheFlight>();
+
+    /**
+     * The flights in progress, keyed on the leader's request.
+     */
+    private final Map<HttpRequest, CacheFlight> leading =
+        new WeakHashMap<HttpRequest, CacheFlight>();
+
+    /**
+     * Requests that were waiting on a flight that couldn't answer them, and
+     * that now go to the remote server themselves.
+     */
+    private final Map<HttpRequest, Boolean> fallingBack =
+        new WeakHashMap<HttpRequest, Boolean>();
+
+    private final CacheInserter inserter = new CacheInserter(
+        LittleProxyConfig.getCacheInsertThreads(),
+        LittleProxyConfig.getCacheInsertQueueSize(),
+        LittleProxyConfig.getCacheInsertBatchSize());
+
+    /**
+     * Creates a new cache manager with an in-memory store sized from
+     * {@link LittleProxyConfig#getCacheMaxBytes()}, off the heap if
+     * {@link LittleProxyConfig#isCacheOffHeap()}, backed by a disk store
+     * if {@link LittleProxyConfig#getCacheDir()} is set.
      */
     public DefaultProxyCacheManager() {
-        this.cacheManager.addCache(ProxyConstants.CACHE);
-        this.cacheManager.addCache(ProxyConstants.CHUNKS_CACHE);
-        this.cacheManager.addCache(ProxyConstants.CHUNK_CACHE);
+        this(newStore());
     }
 
-    public boolean returnCacheHit(final HttpRequest httpRequest, 
+    /**
+     * Creates a new cache manager with the store from 
+     * {@link #DefaultProxyCacheManager()} that refreshes stale responses 
+     * over the proxy's own connections to remote hosts.
+     *
+     * @param upstreamConnector The class for opening new connections to
+     * remote hosts.
+     * @param upstreamChannelPool The pool of idle connections to remote
+     * hosts.
+     * @param chainProxyManager The manager for the proxy we chain to, or
+     * <code>null</code> if we don't chain.
+     */
+    public DefaultProxyCacheManager(final UpstreamConnector upstreamConnector,
+        final UpstreamChannelPool upstreamChannelPool,
+        final ChainProxyManager chainProxyManager) {
+        this.store = indexed(newStore());
+        this.refresher = new CacheRefresher(this.store, upstreamConnector,
+            upstreamChannelPool, chainProxyManager);
+    }
+
+    /**
+     * Creates a new cache manager that refreshes stale responses over its
+     * own connections to remote hosts.
+     *
+     * @param store The store for cached responses.
+     */
+    public DefaultProxyCacheManager(final HttpCacheStore store) {
+        this(store, null);
+    }
+
+    /**
+     * Creates a new cache manager.
+     *
+     * @param store The store for cached responses.
+     * @param refresher Fetches fresh copies of stale responses we serve, or
+     * <code>null</code> for one that stores them through our index. A
+     * refresher that stores them anywhere else hides them from purges.
+     */
+    public DefaultProxyCacheManager(final HttpCacheStore store,
+        final CacheRefresher refresher) {
+        this.store = indexed(store);
+        if (refresher == null) {
+            this.refresher = new CacheRefresher(this.store);
+        } else {
+            this.refresher = refresher;
+        }
+    }
+
+    private static IndexedHttpCacheStore indexed(final HttpCacheStore store) {
+        if (store instanceof IndexedHttpCacheStore) {
+            return (IndexedHttpCacheStore) store;
+        }
+        return new IndexedHttpCacheStore(store, 
+            LittleProxyConfig.getCacheIndexMaxKeys());
+    }
+
+    private static HttpCacheStore newStore() {
+        final HttpCacheStore memory;
+        if (LittleProxyConfig.isCacheOffHeap()) {
+            memory = new SlabHttpCacheStore(
+                LittleProxyConfig.getCacheMaxBytes(), 
+                LittleProxyConfig.getCacheSlabBytes());
+        } else {
+            memory = new StripedHttpCacheStore(
+                LittleProxyConfig.getCacheMaxBytes());
+        }
+        final String dir = LittleProxyConfig.getCacheDir();
+        if (dir == null) {
+            return memory;
+        }
+        try {
+            final DiskHttpCacheStore disk = new DiskHttpCacheStore(
+                new File(dir), LittleProxyConfig.getCacheDiskMaxBytes(),
+                LittleProxyConfig.getCacheDiskSegmentBytes(),
+                LittleProxyConfig.getCacheDiskIndexSlots(),
+                LittleProxyConfig.getCacheDiskCheckpointIntervalMillis());
+            return new TieredHttpCacheStore(memory, disk, 
+                LittleProxyConfig.getCacheMemoryMaxObjectBytes());
+        } catch (final IOException e) {
+            LoggerFactory.getLogger(DefaultProxyCacheManager.class).warn(
+                "Could not open disk cache in "+dir+
+                " -- caching in memory only", e);
+            return memory;
+        }
+    }
+
+    public boolean returnCacheHit(final HttpRequest httpRequest,
         final Channel channel) {
+        if (!LittleProxyConfig.isCacheEnabled()) {
+            return false;
+        }
+        if (!HttpCacheRules.isServableFromCache(httpRequest)) {
+            return false;
+        }
         final String uri = ProxyUtils.cacheUri(httpRequest);
-        final Cache cache = this.cacheManager.getCache(ProxyConstants.CACHE);
-        final Element elem = cache.get(uri);
-        if (elem != null) {
+        final CacheEntry found = this.store.get(uri, httpRequest);
+        final long now = System.currentTimeMillis();
+        if (found != null && 
+            HttpCacheRules.isFreshEnough(found, httpRequest, now)) {
             log.info("Found element in cache for URI: {}", uri);
-            final CachedHttpResponse cached = 
-                (CachedHttpResponse) elem.getObjectValue();
-            final ChannelFutureListener cfl = cached.getChannelFutureListener();
-            final ChannelFuture cf = channel.write(cached.getChannelBuffer());
-            cf.addListener(cfl);
-            log.info("Wrote response from cache!!");
-            return true;
+            if (answerIfReadable(found, httpRequest, channel, now, null)) {
+                return true;
+            }
+            return returnMiss(uri, httpRequest, channel, null, now);
         }
-        /*
-        final Cache chunkedCache = 
-            this.cacheManager.getCache(ProxyConstants.CHUNKS_CACHE);
-        final Element chunkedElem = chunkedCache.get(uri);
-        if (chunkedElem != null) {
-            log.info("Found chunk element in cache");
-            final CachedHttpChunks chunker = 
-                (CachedHttpChunks) chunkedElem.getObjectValue();
-            if (chunker.isComplete()) {
-                log.info("Writing all chunks from cache!!");
-                return chunker.writeAllChunks(channel);
+        log.debug("No fresh element for: {}", uri);
+        return returnMiss(uri, httpRequest, channel, detach(found), now);
+    }
+
+    /**
+     * Answers a request we don't have a fresh response for, from a stale
+     * one or a recent error if we can, and otherwise gets it ready to go to
+     * the remote server.
+     * 
+     * @return <code>true</code> if the request is taken care of.
+     */
+    private boolean returnMiss(final String uri, final HttpRequest httpRequest,
+        final Channel channel, final CacheEntry stale, final long now) {
+        CacheEntry entry = stale;
+        if (entry != null && 
+            HttpCacheRules.isStaleWhileRevalidate(entry, httpRequest, now)) {
+            log.debug("Serving stale element while refreshing: {}", uri);
+            if (answerIfReadable(entry, httpRequest, channel, now, 
+                STALE_WARNING)) {
+                this.refresher.refresh(entry, httpRequest);
+                return true;
+            }
+            entry = null;
+        }
+        final CacheEntry negative = 
+            this.negativeCache.get(httpRequest, now);
+        if (negative != null) {
+            if (entry != null && 
+                HttpCacheRules.isStaleIfError(entry, httpRequest, now)) {
+                log.debug("Serving stale element for failing URI: {}", 
+                    uri);
+                if (answerIfReadable(entry, httpRequest, channel, now, 
+                    REVALIDATION_FAILED_WARNING)) {
+                    return true;
+                }
             }
-            else {
-                // TODO: Return a 206 partial response with whatever data
-                // we have. 
-                //
-                // See: http://tools.ietf.org/html/rfc2616#section-13.8
+            log.debug("Answering with recent {} for {}", 
+                negative.getStatus(), uri);
+            writeInOrder(httpRequest, channel, negative.encode(
+                now, httpRequest.getMethod() == HttpMethod.HEAD));
+            return true;
+        }
+        if (entry != null && 
+            HttpCacheRules.isStaleIfError(entry, httpRequest, now)) {
+            synchronized (this.staleIfError) {
+                this.staleIfError.put(httpRequest, entry);
             }
         }
-        else {
-            log.info("No matching element for: {}", uri);
+        if (collapse(uri, httpRequest, channel)) {
+            return true;
+        }
+        if (entry != null) {
+            revalidate(entry, httpRequest);
         }
-        */
         return false;
     }
-    
-    public Future<String> cache(final HttpRequest httpRequest, 
-        final HttpResponse httpResponse, final Object response, 
-        final ChannelBuffer encoded) {
-        
-        // We can't depend on the write position and such of the
-        // original buffer, so make a duplicate.
-        
-        // NOTE: This does not copy the actual bytes.
-        /*
-        final ChannelBuffer copy = encoded.duplicate();
+
+    /**
+     * Answers the request from the entry, unless the entry's body is gone,
+     * such as when the segment it's in was deleted after we looked it up.
+     * We only read the body before writing anything, so nothing has gone
+     * to the browser if we can't.
+     * 
+     * @return <code>true</code> if we answered the request.
+     */
+    private boolean answerIfReadable(final CacheEntry entry, 
+        final HttpRequest httpRequest, final Channel channel, final long now,
+        final String warning) {
+        try {
+            answer(entry, httpRequest, channel, now, warning);
+            return true;
+        } catch (final IllegalStateException e) {
+            log.info("Cached body gone for {}, treating as a miss: {}", 
+                entry.getKey(), e.getMessage());
+            entry.getBody().release();
+            return false;
+        }
+    }
+
+    /**
+     * Returns a copy of a stale entry with its body on the heap, releasing
+     * the body the store gave us. We hold on to stale entries while we 
+     * refresh or revalidate them, well past when the store can reuse the
+     * memory of bodies it doesn't keep on the heap.
+     */
+    private static CacheEntry detach(final CacheEntry entry) {
+        if (entry == null) {
+            return null;
+        }
+        final CacheBody body = entry.getBody();
+        if (body instanceof HeapCacheBody || body instanceof SegmentCacheBody) {
+            return entry;
+        }
+        final CacheEntry copy = entry.withBody(new HeapCacheBody(
+            ChannelBuffers.copiedBuffer(body.getBuffer())));
+        body.release();
+        return copy;
+    }
+
+    private void answer(final CacheEntry entry, final HttpRequest httpRequest,
+        final Channel channel, final long now, final String warning) {
+        final ChannelFuture cf;
+        if (HttpCacheRules.isNotModified(entry, httpRequest)) {
+            cf = send(channel, httpRequest, entry.encodeNotModified(now), 
+                true);
+        } else if (HttpCacheRules.isRangeApplicable(entry, httpRequest)) {
+            cf = writeRanges(channel, entry, httpRequest, now, warning);
+        } else {
+            cf = write(channel, entry, httpRequest, now, warning);
+        }
+        cf.addListener(new ChannelFutureListener() {
+            public void operationComplete(final ChannelFuture future) {
+                entry.getBody().release();
+            }
+        });
+        if (!HttpHeaders.isKeepAlive(httpRequest)) {
+            cf.addListener(ChannelFutureListener.CLOSE);
+        }
+    }
+
+    /**
+     * Writes the entry to the browser. Bodies in files go straight from the
+     * file to the socket unless something in the pipeline needs to see the
+     * bytes, like SSL or traffic shaping.
+     */
+    private ChannelFuture write(final Channel channel, final CacheEntry entry,
+        final HttpRequest httpRequest, final long now, final String warning) {
+        final boolean head = httpRequest.getMethod() == HttpMethod.HEAD;
+        if (head || entry.getBody().getLength() == 0) {
+            return send(channel, httpRequest, 
+                entry.encode(now, head, warning), true);
+        }
+        final FileRegion region = entry.getBody().getFileRegion();
+        if (region == null) {
+            return send(channel, httpRequest, 
+                entry.encode(now, false, warning), true);
+        }
+        final ChannelPipeline pipeline = channel.getPipeline();
+        if (pipeline.get(SslHandler.class) != null ||
+            pipeline.get(AbstractTrafficShapingHandler.class) != null) {
+            // The region keeps the file open until we have the body.
+            final ChannelBuffer encoded;
+            try {
+                encoded = entry.encode(now, false, warning);
+            } finally {
+                region.releaseExternalResources();
+            }
+            return send(channel, httpRequest, encoded, true);
+        }
+        send(channel, httpRequest, entry.encode(now, true, warning), false);
+        final ChannelFuture cf = send(channel, httpRequest, region, true);
+        cf.addListener(new ChannelFutureListener() {
+            public void operationComplete(final ChannelFuture future) {
+                region.releaseExternalResources();
+            }
+        });
+        return cf;
+    }
+
+    /**
+     * Writes only the ranges of the entry the browser asked for, or the
+     * whole entry if the Range header doesn't make sense.
+     */
+    private ChannelFuture writeRanges(final Channel channel, 
+        final CacheEntry entry, final HttpRequest httpRequest, final long now,
+        final String warning) {
+        final List<long[]> ranges = HttpCacheRules.parseRange(
+            httpRequest.getHeader(HttpHeaders.Names.RANGE), 
+            entry.getBody().getLength());
+        if (ranges == null) {
+            return write(channel, entry, httpRequest, now, warning);
+        }
+        if (ranges.isEmpty()) {
+            return send(channel, httpRequest, entry.encodeUnsatisfiable(now),
+                true);
+        }
+        log.debug("Serving {} ranges from cache", ranges.size());
+        return send(channel, httpRequest, entry.encodeRanges(now, ranges), 
+            true);
+    }
+
+    /**
+     * Makes the request wait on a request for the same response that's
+     * already on its way to the remote server, or otherwise makes it the
+     * request other requests can wait on.
+     * 
+     * @return <code>true</code> if the request is waiting on another one.
+     */
+    private boolean collapse(final String uri, final HttpRequest httpRequest,
+        final Channel channel) {
+        // Only requests for the full response can share one, and they have
+        // to be able to take it in chunks.
+        if (httpRequest.getMethod() != HttpMethod.GET ||
+            !HttpVersion.HTTP_1_1.equals(httpRequest.getProtocolVersion()) ||
+            HttpCacheRules.isConditional(httpRequest) ||
+            httpRequest.containsHeader(HttpHeaders.Names.RANGE)) {
+            return false;
+        }
+        final CacheFlight existing;
+        final CacheFlight created;
+        synchronized (this.flights) {
+            if (this.fallingBack.remove(httpRequest) != null) {
+                return false;
+            }
+            existing = this.flights.get(uri);
+            if (existing == null) {
+                created = new CacheFlight(uri, httpRequest, 
+                    LittleProxyConfig.getCacheMaxObjectBytes());
+                this.flights.put(uri, created);
+                this.leading.put(httpRequest, created);
+            } else {
+                created = null;
+            }
+        }
+        if (existing != null) {
+            if (existing.follow(channel, httpRequest)) {
+                log.debug("Waiting on request in flight for {}", uri);
+                return true;
+            }
+            return false;
+        }
         
-        final Callable<String> task = new Callable<String>() {
-            public String call() {
-                final String uri = ProxyUtils.cacheUri(httpRequest);
-                if (!isCacheable(httpRequest, httpResponse)) {
-                    log.info("Not cachable: {}", uri);
-                    return uri;
+        // If the leader's response never shows up, the others fetch it
+        // themselves.
+        created.setTimeout(TIMER.newTimeout(new TimerTask() {
+            public void run(final Timeout timeout) {
+                if (!created.isStreaming()) {
+                    log.debug("Timed out waiting on response for {}", uri);
+                    abandonFlight(created);
                 }
-                log.info("Response is cacheable -- caching {}", uri);
-                
-                // We store the ChannelFutureListener so we don't have to
-                // keep the request and response objects in memory to 
-                // determine what to do after writing the response.
-                final ChannelFutureListener cfl = 
-                    ProxyUtils.newWriteListener(httpRequest, httpResponse, 
-                        response);
-                
-                if (response instanceof HttpResponse) {
-                    final HttpResponse hr = (HttpResponse) response;
-                    // We don't currently support caching chunked responses.
-                    if (hr.isChunked()) {
-                        return uri;
+            }
+        }, LittleProxyConfig.getCollapsedForwardingTimeoutMillis(), 
+            TimeUnit.MILLISECONDS));
+        channel.getCloseFuture().addListener(new ChannelFutureListener() {
+            public void operationComplete(final ChannelFuture future) {
+                abandonFlight(created);
+            }
+        });
+        return false;
+    }
+
+    private CacheFlight leadingFlight(final HttpRequest httpRequest) {
+        synchronized (this.flights) {
+            return this.leading.get(httpRequest);
+        }
+    }
+
+    private void endFlight(final CacheFlight flight) {
+        synchronized (this.flights) {
+            if (this.flights.get(flight.getKey()) == flight) {
+                this.flights.remove(flight.getKey());
+            }
+            this.leading.remove(flight.getLeader());
+        }
+    }
+
+    private void abandonFlight(final CacheFlight flight) {
+        endFlight(flight);
+        fallBack(flight, flight.abandon());
+    }
+
+    /**
+     * Sends requests that were waiting on a flight to the remote server.
+     * Each request is resent on its browser connection's own I/O thread, so
+     * it can't race with the next request on that connection, and we only
+     * read from the connection again once the request has been handled.
+     */
+    private void fallBack(final CacheFlight flight, 
+        final Map<HttpRequest, Channel> waiting) {
+        for (final Map.Entry<HttpRequest, Channel> e : waiting.entrySet()) {
+            final Channel channel = e.getValue();
+            if (!channel.isConnected()) {
+                ReadThrottle.get(channel).resume(flight);
+                continue;
+            }
+            final HttpRequest httpRequest = e.getKey();
+            synchronized (this.flights) {
+                this.fallingBack.put(httpRequest, Boolean.TRUE);
+            }
+            log.debug("Fetching {} separately", httpRequest.getUri());
+            channel.getPipeline().execute(new Runnable() {
+                public void run() {
+                    try {
+                        Channels.fireMessageReceived(channel, httpRequest);
+                    } finally {
+                        ReadThrottle.get(channel).resume(flight);
                     }
-                    final Cache cache = 
-                        cacheManager.getCache(ProxyConstants.CACHE);
-                    final CachedHttpResponse cached = 
-                        new DefaultCachedHttpResponse(copy, cfl);
-                    log.info("Adding to response cache under URI: {}", uri);
-                    cache.put(new Element(uri, cached));
                 }
-//                else if (response instanceof HttpChunk) {
-//                    final Cache cache = 
-//                        cacheManager.getCache(ProxyConstants.CHUNKS_CACHE);
-//                    final CachedHttpChunks cacher;
-//                    synchronized (cache) {
-//                        final Element chunkedElem = cache.get(uri);
-//                        if (chunkedElem != null) {
-//                            cacher = 
-//                                (CachedHttpChunks) chunkedElem.getObjectValue();
-//                        }
-//                        else {
-//                            cacher = new DefaultCachedHttpChunks(
-//                                cacheManager, httpRequest, cfl);
-//                            cache.put(new Element(uri, cacher));
-//                        }
-//                    }
-//                    log.info("Adding to chunk cache under URI: {}", uri);
-//                    cacher.cache((HttpChunk)response, copy);
-//                }
-//                else {
-//                    log.error("Unknown response type: {}", 
-//                        response.getClass());
-//                }
-                return uri;
-            }
-        };
-        log.info("Submitting task");
-        return this.cacheExecutor.submit(task);
-        */
-        return null;
+            });
+        }
     }
-    
-    private boolean isCacheable(final HttpRequest httpRequest, 
+
+    /**
+     * Adds the validators from a stale entry to the request, so the remote
+     * server can tell us the entry is still good instead of sending the
+     * whole response again.
+     */
+    private void revalidate(final CacheEntry entry, 
+        final HttpRequest httpRequest) {
+        // If the browser is checking its own copy, the answer is for it.
+        // The same goes for ranges, as we'd only get a 304 or the part of
+        // the response the browser asked for.
+        if (HttpCacheRules.isConditional(httpRequest) ||
+            httpRequest.containsHeader(HttpHeaders.Names.RANGE)) {
+            return;
+        }
+        final String etag = entry.getETag();
+        final String lastModified = entry.getLastModified();
+        if (etag == null && lastModified == null) {
+            return;
+        }
+        if (etag != null) {
+            httpRequest.setHeader(HttpHeaders.Names.IF_NONE_MATCH, etag);
+        }
+        if (lastModified != null) {
+            httpRequest.setHeader(HttpHeaders.Names.IF_MODIFIED_SINCE, 
+                lastModified);
+        }
+        synchronized (this.revalidating) {
+            this.revalidating.put(httpRequest, entry);
+        }
+    }
+
+    public ChannelBuffer returnRevalidated(final HttpRequest httpRequest,
         final HttpResponse httpResponse) {
-        if (!CACHE_ENABLED) {
-            log.info("Cache is not enabled");
+        if (httpRequest == null) {
+            return null;
+        }
+        final CacheEntry stale;
+        synchronized (this.staleIfError) {
+            stale = this.staleIfError.remove(httpRequest);
+        }
+        final CacheEntry entry;
+        synchronized (this.revalidating) {
+            entry = this.revalidating.remove(httpRequest);
+        }
+        if (stale != null && HttpCacheRules.isStaleIfErrorStatus(
+            httpResponse.getStatus().getCode())) {
+            log.info("Serving stale response in place of {}", 
+                httpResponse.getStatus());
+            // Requests that follow get the stale response right away too.
+            if (LittleProxyConfig.isCacheEnabled()) {
+                this.negativeCache.put(httpRequest, httpResponse);
+            }
+            return answerStale(httpRequest, stale);
+        }
+        if (entry == null) {
+            return null;
+        }
+        // Anything other than a 304 replaces the entry as usual.
+        if (!httpResponse.getStatus().equals(
+            HttpResponseStatus.NOT_MODIFIED)) {
+            return null;
+        }
+        final long now = System.currentTimeMillis();
+        final CacheEntry refreshed = 
+            entry.refresh(httpRequest, httpResponse, now, now);
+        if (HttpCacheRules.cacheControl(httpResponse).containsKey(
+            HttpHeaders.Values.NO_STORE)) {
+            this.store.remove(entry.getKey());
+        } else {
+            log.info("Revalidated cached response: {}", refreshed);
+            this.store.put(refreshed);
+        }
+        final CacheFlight flight = leadingFlight(httpRequest);
+        if (flight != null) {
+            endFlight(flight);
+            fallBack(flight, flight.complete(refreshed));
+        }
+        return refreshed.encode(now, 
+            httpRequest.getMethod() == HttpMethod.HEAD);
+    }
+
+    public boolean returnStaleOnError(final HttpRequest httpRequest,
+        final Channel channel) {
+        final CacheEntry stale;
+        synchronized (this.staleIfError) {
+            stale = this.staleIfError.remove(httpRequest);
+        }
+        if (stale == null) {
             return false;
         }
-        final HttpResponseStatus responseStatus = httpResponse.getStatus();
-        final boolean cachableStatus;
-        final int status = responseStatus.getCode();
-        
-        // For rules on this, see: 
-        // http://tools.ietf.org/html/rfc2616#section-13.4
-        //
-        // We can't cache 206 responses unless we can support the Range 
-        // header in requests. That would be a fantastic extension.
-        switch (status) {
-            case 200:
-            case 203:  
-            case 300: 
-            case 301:
-            case 410:
-                cachableStatus = true;
-                break;
-            default:
-                cachableStatus = false;
-                break;
-        }
-        if (!cachableStatus) {
-            log.info("HTTP status is not cachable: {}", String.valueOf(status));
+        log.info("Serving stale response for unreachable server: {}", stale);
+        writeInOrder(httpRequest, channel, answerStale(httpRequest, stale));
+        return true;
+    }
+
+    public void onConnectFailure(final String hostAndPort) {
+        if (LittleProxyConfig.isCacheEnabled()) {
+            this.negativeCache.putConnectFailure(hostAndPort);
+        }
+    }
+
+    public boolean returnConnectFailure(final HttpRequest httpRequest,
+        final Channel channel, final String hostAndPort) {
+        if (!LittleProxyConfig.isCacheEnabled()) {
             return false;
         }
-        
-        // Don't use the cache if the request has cookies -- security violation.
-        if (httpResponse.containsHeader(HttpHeaders.Names.SET_COOKIE)) {
-            log.info("Response contains set cookie header");
+        final long now = System.currentTimeMillis();
+        final CacheEntry failure = 
+            this.negativeCache.getConnectFailure(hostAndPort, now);
+        if (failure == null) {
             return false;
         }
-        if (httpResponse.containsHeader(HttpHeaders.Names.SET_COOKIE2)) {
-            log.info("Response contains set cookie2 header");
+        if (returnStaleOnError(httpRequest, channel)) {
+            return true;
+        }
+        synchronized (this.revalidating) {
+            this.revalidating.remove(httpRequest);
+        }
+        final CacheFlight flight = leadingFlight(httpRequest);
+        if (flight != null) {
+            abandonFlight(flight);
+        }
+        log.info("Recently failed to connect to {}", hostAndPort);
+        writeInOrder(httpRequest, channel, failure.encode(now, 
+            httpRequest.getMethod() == HttpMethod.HEAD));
+        return true;
+    }
+
+    public void returnPurge(final HttpRequest httpRequest, 
+        final Channel channel) {
+        final HttpResponseStatus status;
+        final String message;
+        if (!isPurgeAllowed(channel.getRemoteAddress())) {
+            log.info("Refusing PURGE from {}", channel.getRemoteAddress());
+            status = HttpResponseStatus.FORBIDDEN;
+            message = "Purging not allowed";
+        } else {
+            final String uri = ProxyUtils.cacheUri(httpRequest);
+            final String tags = httpRequest.getHeader("Surrogate-Key");
+            final int purged;
+            if (StringUtils.isNotBlank(tags)) {
+                int count = 0;
+                for (final String tag : StringUtils.split(tags, " \t")) {
+                    count += this.store.purgeTag(tag);
+                }
+                purged = count;
+            } else if (uri.endsWith("*")) {
+                purged = this.store.purgePrefix(
+                    uri.substring(0, uri.length() - 1));
+            } else {
+                purged = purgeKey(uri);
+            }
+            status = purged > 0 ? 
+                HttpResponseStatus.OK : HttpResponseStatus.NOT_FOUND;
+            message = "Purged " + purged;
+        }
+        final HttpResponse response = 
+            new DefaultHttpResponse(HttpVersion.HTTP_1_1, status);
+        response.setHeader(HttpHeaders.Names.CONTENT_TYPE, 
+            "text/plain; charset=UTF-8");
+        final ChannelBuffer body = 
+            ChannelBuffers.copiedBuffer(message + "\r\n", CharsetUtil.UTF_8);
+        HttpHeaders.setContentLength(response, body.readableBytes());
+        response.setContent(body);
+        writeInOrder(httpRequest, channel, response);
+    }
+
+    private boolean isPurgeAllowed(final SocketAddress address) {
+        if (!(address instanceof InetSocketAddress)) {
             return false;
         }
-        
-        /*
-        if (httpRequest.containsHeader(HttpHeaders.Names.COOKIE)) {
-            log.info("Request contains Cookie header");
+        final InetSocketAddress isa = (InetSocketAddress) address;
+        if (isa.getAddress() == null) {
             return false;
         }
-        */
-        
-        final List<String> responseControl = 
-            httpResponse.getHeaders(HttpHeaders.Names.CACHE_CONTROL);
-        final List<String> requestControl =
-            httpRequest.getHeaders(HttpHeaders.Names.CACHE_CONTROL);
-        final Set<String> cacheControl = new HashSet<String>();
-        cacheControl.addAll(requestControl);
-        cacheControl.addAll(responseControl);
+        final String ip = isa.getAddress().getHostAddress();
+        final String[] allowed = StringUtils.split(
+            LittleProxyConfig.getCachePurgeAllowedAddresses(), ", \t");
+        for (final String candidate : allowed) {
+            if (candidate.equals(ip)) {
+                return true;
+            }
+        }
+        return false;
+    }
 
-        
-        // We should really follow all the caching rules from:
-        // http://www.w3.org/Protocols/rfc2616/rfc2616-sec14.html
-        //
-        // The effect is not caching some things we could.
-        if (!cacheControl.isEmpty()) {
-            if (cacheControl.contains(HttpHeaders.Values.NO_CACHE)) {
-                log.info("No cache header");
-                return false;
+    private int purgeKey(final String key) {
+        this.negativeCache.remove(key);
+        if (this.store.remove(key)) {
+            log.info("Purged cached response for {}", key);
+            return 1;
+        }
+        return 0;
+    }
+
+    /**
+     * Removes what we have cached for the URI of a successful request with
+     * an unsafe method, along with what we have for the URIs in its 
+     * Location and Content-Location headers if they're on the same host.
+     */
+    private void invalidate(final HttpRequest httpRequest, 
+        final HttpResponse response) {
+        final String uri = ProxyUtils.cacheUri(httpRequest);
+        log.debug("Invalidating {} after {}", uri, httpRequest.getMethod());
+        purgeKey(uri);
+        final String host = httpRequest.getHeader(HttpHeaders.Names.HOST);
+        invalidateLocation(host, 
+            response.getHeader(HttpHeaders.Names.LOCATION));
+        invalidateLocation(host, 
+            response.getHeader(HttpHeaders.Names.CONTENT_LOCATION));
+    }
+
+    private void invalidateLocation(final String host, final String location) {
+        if (StringUtils.isBlank(location)) {
+            return;
+        }
+        if (location.startsWith("/")) {
+            purgeKey(host + location);
+        } else if (location.startsWith("http") && 
+            ProxyUtils.parseHostAndPort(location).equals(host)) {
+            purgeKey(host + ProxyUtils.stripHost(location));
+        }
+    }
+
+    public int purgeUri(final String uri) {
+        return purgeKey(toKey(uri));
+    }
+
+    public int purgePrefix(final String uriPrefix) {
+        return this.store.purgePrefix(toKey(uriPrefix));
+    }
+
+    public int purgeHost(final String host) {
+        return this.store.purgeHost(host);
+    }
+
+    public int purgeTag(final String tag) {
+        return this.store.purgeTag(tag);
+    }
+
+    public int getEntryCount() {
+        return this.store.getEntryCount();
+    }
+
+    public long getSizeBytes() {
+        return this.store.getSizeBytes();
+    }
+
+    /**
+     * Turns an absolute URI into the key we cache its response under.
+     */
+    private static String toKey(final String uri) {
+        if (!uri.contains("://")) {
+            return uri;
+        }
+        return ProxyUtils.parseHostAndPort(uri) + ProxyUtils.stripHost(uri);
+    }
+
+    /**
+     * Writes a complete response to a request the browser may have 
+     * pipelined behind others.
+     */
+    private void writeInOrder(final HttpRequest httpRequest, 
+        final Channel channel, final Object encoded) {
+        final ChannelFuture cf = send(channel, httpRequest, encoded, true);
+        if (!HttpHeaders.isKeepAlive(httpRequest)) {
+            cf.addListener(ChannelFutureListener.CLOSE);
+        }
+    }
+
+    /**
+     * Writes part of the response to the request, holding it until the 
+     * responses to any earlier pipelined requests have gone out.
+     */
+    private static ChannelFuture send(final Channel channel, 
+        final HttpRequest httpRequest, final Object msg, 
+        final boolean complete) {
+        final ResponseSequencer sequencer = ResponseSequencer.get(channel);
+        if (sequencer == null) {
+            return channel.write(msg);
+        }
+        return sequencer.write(httpRequest, msg, complete, null);
+    }
+
+    /**
+     * Encodes the stale entry for a request the remote server failed to
+     * answer, and answers anything waiting on that request with it too.
+     */
+    private ChannelBuffer answerStale(final HttpRequest httpRequest, 
+        final CacheEntry stale) {
+        final CacheFlight flight = leadingFlight(httpRequest);
+        if (flight != null) {
+            endFlight(flight);
+            fallBack(flight, flight.complete(stale));
+        }
+        return stale.encode(System.currentTimeMillis(), 
+            httpRequest.getMethod() == HttpMethod.HEAD, 
+            REVALIDATION_FAILED_WARNING);
+    }
+
+    public void stop() {
+        this.refresher.stop();
+        try {
+            if (!this.inserter.stop(5, TimeUnit.SECONDS)) {
+                log.warn("Gave up waiting on cache insertions");
             }
-            if (cacheControl.contains(HttpHeaders.Values.PRIVATE)) {
-                log.info("Private header");
-                return false;
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        this.store.close();
+    }
+
+    public Future<String> cache(final HttpRequest httpRequest,
+        final HttpResponse httpResponse, final Object response,
+        final ChannelBuffer encoded) {
+        if (httpRequest == null) {
+            return null;
+        }
+        if (response instanceof HttpResponse) {
+            if (HttpCacheRules.isInvalidating(httpRequest, 
+                (HttpResponse) response)) {
+                invalidate(httpRequest, (HttpResponse) response);
             }
-            if (cacheControl.contains(HttpHeaders.Values.NO_STORE)) {
-                log.info("No store header");
-                return false;
+            if (LittleProxyConfig.isCacheEnabled()) {
+                this.negativeCache.put(httpRequest, (HttpResponse) response);
             }
-            if (cacheControl.contains(HttpHeaders.Values.MUST_REVALIDATE)) {
-                log.info("Not caching with 'must revalidate' header");
-                return false;
+            return startFill(httpRequest, (HttpResponse) response);
+        }
+        if (!(response instanceof HttpChunk)) {
+            return null;
+        }
+        final HttpChunk chunk = (HttpChunk) response;
+        final CacheFlight flight = leadingFlight(httpRequest);
+        if (flight != null) {
+            flight.chunk(chunk.getContent());
+            if (chunk.isLast()) {
+                endFlight(flight);
+                flight.finish();
             }
-            if (cacheControl.contains(HttpHeaders.Values.PROXY_REVALIDATE)) {
-                log.info("Not caching with 'proxy revalidate' header");
-                return false;
+        }
+        final CacheFill fill;
+        synchronized (this.fills) {
+            fill = this.fills.get(httpRequest);
+        }
+        if (fill == null) {
+            return null;
+        }
+        if (!fill.append(chunk.getContent())) {
+            log.debug("Response too big to cache: {}", httpRequest.getUri());
+            removeFill(httpRequest);
+            return null;
+        }
+        if (!chunk.isLast()) {
+            return null;
+        }
+        removeFill(httpRequest);
+        return insert(fill);
+    }
+
+    private Future<String> startFill(final HttpRequest httpRequest,
+        final HttpResponse response) {
+        // A new response for the same request, which shouldn't happen, 
+        // replaces any fill in progress.
+        removeFill(httpRequest);
+        final CacheFlight flight = leadingFlight(httpRequest);
+        final CacheFill fill = newFill(httpRequest, response);
+        if (fill == null) {
+            if (flight != null) {
+                abandonFlight(flight);
             }
+            return null;
         }
-        
-        final String responsePragma = 
-            httpResponse.getHeader(HttpHeaders.Names.PRAGMA);
-        if (StringUtils.isNotBlank(responsePragma) &&
-            responsePragma.contains(HttpHeaders.Values.NO_CACHE)) {
-            log.info("Not caching with response pragma no cache");
-            return false;
+        if (!response.isChunked()) {
+            if (flight == null) {
+                return insert(fill);
+            }
+            // Others are waiting on the response, so we can't leave
+            // checking and copying it to the insertion thread.
+            final CacheEntry entry;
+            if (HttpCacheRules.isCacheable(httpRequest, response)) {
+                entry = fill.toEntry();
+            } else {
+                entry = null;
+            }
+            if (entry == null) {
+                abandonFlight(flight);
+                return null;
+            }
+            endFlight(flight);
+            fallBack(flight, flight.complete(entry));
+            return insert(entry);
         }
         
-        final String requestPragma = 
-            httpRequest.getHeader(HttpHeaders.Names.PRAGMA);
-        if (StringUtils.isNotBlank(requestPragma) &&
-            requestPragma.contains(HttpHeaders.Values.NO_CACHE)) {
-            log.info("Not caching with request pragma no cache");
-            return false;
+        // We only hold on to the chunks if we'll be able to cache them.
+        if (!HttpCacheRules.isCacheable(httpRequest, response)) {
+            log.debug("Not cachable: {}", httpRequest.getUri());
+            if (flight != null) {
+                abandonFlight(flight);
+            }
+            return null;
         }
-        
-        log.info("Got cachable response!");
-        return true;
+        synchronized (this.fills) {
+            this.fills.put(httpRequest, fill);
+        }
+        if (flight != null) {
+            fallBack(flight, flight.start(response));
+        }
+        return null;
+    }
+
+    /**
+     * Creates a fill for the response if it's one we might cache.
+     */
+    private CacheFill newFill(final HttpRequest httpRequest,
+        final HttpResponse response) {
+        if (!LittleProxyConfig.isCacheEnabled()) {
+            return null;
+        }
+        if (httpRequest.getMethod() != HttpMethod.GET) {
+            return null;
+        }
+        final long maxBytes = LittleProxyConfig.getCacheMaxObjectBytes();
+        if (HttpHeaders.getContentLength(response, 0) > maxBytes) {
+            log.debug("Response too big to cache: {}", httpRequest.getUri());
+            return null;
+        }
+        final CacheFill fill = new CacheFill(ProxyUtils.cacheUri(httpRequest),
+            httpRequest, response, maxBytes, System.currentTimeMillis());
+        if (!response.isChunked() && !fill.append(response.getContent())) {
+            return null;
+        }
+        return fill;
+    }
+
+    private void removeFill(final HttpRequest httpRequest) {
+        synchronized (this.fills) {
+            this.fills.remove(httpRequest);
+        }
+    }
+
+    /**
+     * Accessor for the number of responses we didn't cache because too
+     * many were already waiting to go in the cache.
+     * 
+     * @return The number of dropped cache insertions.
+     */
+    public long getDroppedInsertCount() {
+        return this.inserter.getDroppedCount();
+    }
+
+    private Future<String> insert(final CacheFill fill) {
+        final HttpRequest request = fill.getRequest();
+        final String uri = ProxyUtils.cacheUri(request);
+        final Callable<String> task = new Callable<String>() {
+            public String call() {
+                if (!HttpCacheRules.isCacheable(request, fill.getResponse())) {
+                    log.debug("Not cachable: {}", uri);
+                    return uri;
+                }
+                final CacheEntry entry = fill.toEntry();
+                if (entry == null) {
+                    return uri;
+                }
+                log.info("Adding to response cache under URI: {}", uri);
+                store.put(entry);
+                return uri;
+            }
+        };
+        return this.inserter.insert(uri, task);
+    }
+
+    private Future<String> insert(final CacheEntry entry) {
+        final Callable<String> task = new Callable<String>() {
+            public String call() {
+                log.info("Adding to response cache under URI: {}", 
+                    entry.getKey());
+                store.put(entry);
+                return entry.getKey();
+            }
+        };
+        return this.inserter.insert(entry.getKey(), task);
     }
 }
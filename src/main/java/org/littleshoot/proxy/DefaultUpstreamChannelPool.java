@@ -0,0 +1,260 @@
+package org.littleshoot.proxy;
+
+import java.util.LinkedList;
+import java.util.ListIterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Default pool of idle connections to remote hosts. Idle channels are reused
+ * most recently used first, as those are the least likely to have been
+ * closed by the remote host, and are validated again when they're borrowed.
+ * Channels that sit idle for too long are closed, although we always keep
+ * the configured minimum number of idle channels to each host around.
+ */
+public class DefaultUpstreamChannelPool implements UpstreamChannelPool {
+
+    private static final Logger LOG =
+        LoggerFactory.getLogger(DefaultUpstreamChannelPool.class);
+
+    private static final ScheduledExecutorService EVICTOR =
+        Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(final Runnable r) {
+                final Thread t = new Thread(r, "Upstream-Pool-Evictor");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+    private final ConcurrentMap<String, HostPool> hostPools =
+        new ConcurrentHashMap<String, HostPool>();
+
+    private final AtomicInteger idleCount = new AtomicInteger(0);
+
+    private final int maxIdlePerHost;
+
+    private final int minIdlePerHost;
+
+    private final long idleTimeoutMillis;
+
+    private final ScheduledFuture<?> evictionTask;
+
+    private volatile boolean closed = false;
+
+    /**
+     * Creates a new pool using the sizes and timeouts from
+     * {@link LittleProxyConfig}.
+     */
+    public DefaultUpstreamChannelPool() {
+        this(LittleProxyConfig.getUpstreamPoolMaxIdlePerHost(),
+            LittleProxyConfig.getUpstreamPoolMinIdlePerHost(),
+            LittleProxyConfig.getUpstreamPoolIdleTimeoutMillis());
+    }
+
+    /**
+     * Creates a new pool.
+     *
+     * @param maxIdlePerHost The maximum number of idle channels to keep for
+     * any single host.
+     * @param minIdlePerHost The number of idle channels to each host that are
+     * never closed for being idle.
+     * @param idleTimeoutMillis The time after which idle channels are closed.
+     */
+    public DefaultUpstreamChannelPool(final int maxIdlePerHost,
+        final int minIdlePerHost, final long idleTimeoutMillis) {
+        this.maxIdlePerHost = maxIdlePerHost;
+        this.minIdlePerHost = Math.min(minIdlePerHost, maxIdlePerHost);
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        final long period = Math.max(1000, idleTimeoutMillis / 2);
+        this.evictionTask = EVICTOR.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                evictIdleChannels();
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    public Channel borrow(final String hostAndPort) {
+        final HostPool pool = this.hostPools.get(hostAndPort);
+        if (pool == null) {
+            return null;
+        }
+        while (true) {
+            final IdleChannel idle;
+            synchronized (pool) {
+                if (pool.channels.isEmpty()) {
+                    return null;
+                }
+                idle = pool.channels.removeFirst();
+            }
+            this.idleCount.decrementAndGet();
+            if (idle.channel.isConnected()) {
+                LOG.info("Reusing pooled channel to {}", hostAndPort);
+                return idle.channel;
+            }
+            LOG.info("Discarding pooled channel closed by remote host: {}",
+                idle.channel);
+            idle.channel.close();
+        }
+    }
+
+    public void release(final String hostAndPort, final Channel channel) {
+        if (this.closed || this.maxIdlePerHost <= 0 ||
+            !channel.isConnected()) {
+            channel.close();
+            return;
+        }
+        reset(channel);
+        Channel overflow = null;
+        while (true) {
+            final HostPool pool = hostPool(hostAndPort);
+            synchronized (pool) {
+                if (pool.retired) {
+                    // The evictor removed this pool in the meantime.
+                    continue;
+                }
+                for (final IdleChannel idle : pool.channels) {
+                    if (idle.channel == channel) {
+                        return;
+                    }
+                }
+                pool.channels.addFirst(
+                    new IdleChannel(channel, System.currentTimeMillis()));
+                if (pool.channels.size() > this.maxIdlePerHost) {
+                    overflow = pool.channels.removeLast().channel;
+                }
+            }
+            break;
+        }
+        if (overflow == null) {
+            this.idleCount.incrementAndGet();
+        } else {
+            LOG.info("Too many idle channels to {} -- closing oldest",
+                hostAndPort);
+            overflow.close();
+        }
+    }
+
+    /**
+     * Strips the channel of everything whoever used it last set up for
+     * their browser connection: their handlers, which would otherwise
+     * still hear about the channel, and their reasons for not reading from
+     * it, which would otherwise stall whoever borrows it next.
+     */
+    private static void reset(final Channel channel) {
+        final ChannelPipeline pipeline = channel.getPipeline();
+        for (final String name : pipeline.getNames()) {
+            pipeline.remove(name);
+        }
+        pipeline.addLast("handler", new IdleUpstreamHandler());
+        ReadThrottle.get(channel).reset();
+    }
+
+    private HostPool hostPool(final String hostAndPort) {
+        final HostPool existing = this.hostPools.get(hostAndPort);
+        if (existing != null) {
+            return existing;
+        }
+        final HostPool created = new HostPool();
+        final HostPool raced = this.hostPools.putIfAbsent(hostAndPort, created);
+        return raced == null ? created : raced;
+    }
+
+    public int getIdleCount(final String hostAndPort) {
+        final HostPool pool = this.hostPools.get(hostAndPort);
+        if (pool == null) {
+            return 0;
+        }
+        synchronized (pool) {
+            return pool.channels.size();
+        }
+    }
+
+    public int getIdleCount() {
+        return this.idleCount.get();
+    }
+
+    public void close() {
+        this.closed = true;
+        this.evictionTask.cancel(false);
+        for (final HostPool pool : this.hostPools.values()) {
+            synchronized (pool) {
+                for (final IdleChannel idle : pool.channels) {
+                    idle.channel.close();
+                }
+                this.idleCount.addAndGet(-pool.channels.size());
+                pool.channels.clear();
+            }
+        }
+        this.hostPools.clear();
+    }
+
+    private void evictIdleChannels() {
+        final long cutoff = System.currentTimeMillis() - this.idleTimeoutMillis;
+        for (final Map.Entry<String, HostPool> entry : this.hostPools.entrySet()) {
+            final HostPool pool = entry.getValue();
+            final LinkedList<Channel> toClose = new LinkedList<Channel>();
+            synchronized (pool) {
+                // The oldest channels are at the end of the list.
+                int remaining = pool.channels.size();
+                final ListIterator<IdleChannel> iter =
+                    pool.channels.listIterator(remaining);
+                while (iter.hasPrevious()) {
+                    final IdleChannel idle = iter.previous();
+                    final boolean expired = idle.idleSince < cutoff &&
+                        remaining > this.minIdlePerHost;
+                    if (expired || !idle.channel.isConnected()) {
+                        iter.remove();
+                        remaining--;
+                        toClose.add(idle.channel);
+                    }
+                }
+                if (pool.channels.isEmpty()) {
+                    pool.retired = true;
+                    this.hostPools.remove(entry.getKey(), pool);
+                }
+            }
+            if (!toClose.isEmpty()) {
+                LOG.info("Closing {} idle channels to {}", toClose.size(),
+                    entry.getKey());
+                this.idleCount.addAndGet(-toClose.size());
+                for (final Channel ch : toClose) {
+                    ch.close();
+                }
+            }
+        }
+    }
+
+    private static final class HostPool {
+
+        /**
+         * Idle channels with the most recently used first.
+         */
+        private final LinkedList<IdleChannel> channels =
+            new LinkedList<IdleChannel>();
+
+        private boolean retired = false;
+    }
+
+    private static final class IdleChannel {
+
+        private final Channel channel;
+        private final long idleSince;
+
+        private IdleChannel(final Channel channel, final long idleSince) {
+            this.channel = channel;
+            this.idleSince = idleSince;
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package org.littleshoot.proxy;
+
+import javax.management.MXBean;
+
+/**
+ * Statistics for bump allocating direct buffers out of slabs.
+ */
+@MXBean(true)
+public interface DirectBufferData {
+
+    /**
+     * @return The number of buffers carved out of slabs.
+     */
+    long getSlabBuffers();
+    
+    /**
+     * @return The number of buffers that didn't fit any slab and were 
+     * allocated on their own.
+     */
+    long getOwnBuffers();
+    
+    /**
+     * @return The number of slabs allocated.
+     */
+    long getSlabsAllocated();
+    
+    /**
+     * @return The total size of all slabs allocated, in bytes.
+     */
+    long getSlabBytesAllocated();
+    
+    /**
+     * @return The total size of all buffers handed out, in bytes.
+     */
+    long getBytesServed();
+}
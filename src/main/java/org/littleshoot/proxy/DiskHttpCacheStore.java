@@ -0,0 +1,890 @@
+package org.littleshoot.proxy;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.handler.codec.http.HttpRequest;
+import org.jboss.netty.util.CharsetUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Disk store for cached responses, big enough to hold far more than fits in
+ * the heap. Entries are appended to large segment files, and the oldest
+ * segment is deleted whole when we need room, so eviction is FIFO by
+ * segment. A fixed size index memory-mapped from its own file maps key
+ * hashes to where entries are in the segments.
+ * <p>
+ * Each index slot is 24 bytes: the 64 bit hash of the key, the offset of the
+ * entry in its segment, the ID of the segment, and a hash of the values of
+ * the request headers the entry varies on. Slots are found by linear
+ * probing. We don't clear slots when we delete a segment, so slots pointing
+ * at segments that are gone are simply free.
+ * <p>
+ * The store survives restarts. A checkpoint of the segments and the live
+ * index slots is written to its own file on {@link #close()} and
+ * periodically, and replaces the previous checkpoint only once it's fully
+ * on disk. On start we index the entries in the checkpoint again and then
+ * scan whatever was appended after it, keeping each record whose checksum
+ * matches and cutting off the segment at the first one that doesn't, such
+ * as a record we were writing when we crashed. Entries removed after the last
+ * checkpoint can come back after a crash, which costs at most a
+ * revalidation once they're stale. We keep the key and tags of each slot in
+ * memory and in the checkpoint too, so we can hand them to
+ * {@link #takeRecoveredKeys()} without reading every entry back.
+ */
+public class DiskHttpCacheStore implements HttpCacheStore {
+
+    private static final Logger LOG =
+        LoggerFactory.getLogger(DiskHttpCacheStore.class);
+
+    private static final int MAGIC = 0x4C504332;
+
+    /**
+     * Magic number, metadata length, body length and the CRC32 of the
+     * metadata and body.
+     */
+    private static final int RECORD_HEADER_BYTES = 20;
+
+    private static final int CHECKPOINT_MAGIC = 0x4C504349;
+
+    private static final int CHECKPOINT_VERSION = 2;
+
+    private static final String CHECKPOINT = "checkpoint";
+
+    private static final ScheduledExecutorService CHECKPOINTER =
+        Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(final Runnable r) {
+                final Thread t = new Thread(r, "Cache-Checkpoint-Thread");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+    private static final int SLOT_BYTES = 24;
+
+    private static final int MAX_PROBES = 16;
+
+    private static final int EMPTY = 0;
+
+    private static final int TOMBSTONE = -1;
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final File dir;
+
+    private final long segmentBytes;
+
+    private final int maxSegments;
+
+    private final int indexSlots;
+
+    private final RandomAccessFile indexFile;
+
+    private final MappedByteBuffer index;
+
+    /**
+     * The key and tags of the entry in each slot of the index.
+     */
+    private final SlotKey[] keys;
+
+    /**
+     * Live segments by ID, oldest first.
+     */
+    private final Map<Integer, CacheSegment> segments =
+        new LinkedHashMap<Integer, CacheSegment>();
+
+    /**
+     * Serializes appending to the current segment and rolling over to a new
+     * one. Always taken before the lock on the store itself.
+     */
+    private final Object appendLock = new Object();
+
+    /**
+     * Serializes writing checkpoints. Always taken before the append lock.
+     */
+    private final Object checkpointLock = new Object();
+
+    private final ScheduledFuture<?> checkpointTask;
+
+    private CacheSegment current;
+
+    private int nextSegmentId = 1;
+
+    /**
+     * The tags of each key we recovered on start, oldest first, until
+     * they're taken.
+     */
+    private Map<String, Set<String>> recovered =
+        new LinkedHashMap<String, Set<String>>();
+
+    private boolean closed;
+
+    /**
+     * Creates a new store that only checkpoints when it's closed.
+     *
+     * @param dir The directory for the segment and index files.
+     * @param maxBytes The most bytes all segments can take up.
+     * @param segmentBytes The size of each segment. Entries bigger than this
+     * aren't stored.
+     * @param indexSlots The number of slots in the index, which caps the
+     * number of entries.
+     * @throws IOException If we can't create the files.
+     */
+    public DiskHttpCacheStore(final File dir, final long maxBytes,
+        final long segmentBytes, final int indexSlots) throws IOException {
+        this(dir, maxBytes, segmentBytes, indexSlots, 0);
+    }
+
+    /**
+     * Creates a new store, picking up the entries from the last checkpoint
+     * in the directory if there is one.
+     *
+     * @param dir The directory for the segment and index files.
+     * @param maxBytes The most bytes all segments can take up.
+     * @param segmentBytes The size of each segment. Entries bigger than this
+     * aren't stored.
+     * @param indexSlots The number of slots in the index, which caps the
+     * number of entries.
+     * @param checkpointIntervalMillis How often to write a checkpoint, or 0
+     * to only write one when the store is closed.
+     * @throws IOException If we can't create the files.
+     */
+    public DiskHttpCacheStore(final File dir, final long maxBytes,
+        final long segmentBytes, final int indexSlots,
+        final long checkpointIntervalMillis) throws IOException {
+        if (indexSlots <= 0 || indexSlots > Integer.MAX_VALUE / SLOT_BYTES) {
+            throw new IllegalArgumentException(
+                "Bad number of index slots: " + indexSlots);
+        }
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Could not create cache directory: " + dir);
+        }
+        this.dir = dir;
+        this.segmentBytes = segmentBytes;
+        this.maxSegments = (int) Math.max(2, maxBytes / segmentBytes);
+        this.indexSlots = indexSlots;
+        this.keys = new SlotKey[indexSlots];
+
+        this.indexFile = new RandomAccessFile(new File(dir, "index"), "rw");
+        this.indexFile.setLength(0);
+        final long indexBytes = (long) indexSlots * SLOT_BYTES;
+        this.indexFile.setLength(indexBytes);
+        this.index = this.indexFile.getChannel().map(
+            FileChannel.MapMode.READ_WRITE, 0, indexBytes);
+        recover();
+        roll();
+        if (checkpointIntervalMillis > 0) {
+            this.checkpointTask = CHECKPOINTER.scheduleWithFixedDelay(
+                new Runnable() {
+                    public void run() {
+                        try {
+                            checkpoint();
+                        } catch (final IOException e) {
+                            LOG.warn("Could not checkpoint disk cache", e);
+                        }
+                    }
+                }, checkpointIntervalMillis, checkpointIntervalMillis,
+                TimeUnit.MILLISECONDS);
+        } else {
+            this.checkpointTask = null;
+        }
+    }
+
+    /**
+     * Loads the segments and index from the last checkpoint, along with
+     * any whole records appended after it. Without a usable checkpoint we
+     * start empty.
+     */
+    private void recover() throws IOException {
+        final Map<Integer, File> files = new TreeMap<Integer, File>();
+        final File[] listed = this.dir.listFiles(new FilenameFilter() {
+            public boolean accept(final File parent, final String name) {
+                return name.startsWith("segment-") && name.endsWith(".dat");
+            }
+        });
+        if (listed != null) {
+            for (final File file : listed) {
+                final String name = file.getName();
+                try {
+                    files.put(Integer.valueOf(name.substring(8,
+                        name.length() - 4)), file);
+                } catch (final NumberFormatException e) {
+                    LOG.warn("Ignoring unknown file in cache: {}", file);
+                }
+            }
+        }
+
+        final ChannelBuffer checkpoint = readCheckpoint();
+        if (checkpoint == null) {
+            deleteAll(files.values());
+            return;
+        }
+        final int slots = checkpoint.readInt();
+        final long checkpointSegmentBytes = checkpoint.readLong();
+        if (slots != this.indexSlots ||
+            checkpointSegmentBytes != this.segmentBytes) {
+            LOG.info("Disk cache settings changed -- starting empty");
+            deleteAll(files.values());
+            return;
+        }
+        this.nextSegmentId = checkpoint.readInt();
+        final int segmentCount = checkpoint.readInt();
+        for (int i = 0; i < segmentCount; i++) {
+            final int id = checkpoint.readInt();
+            final long size = checkpoint.readLong();
+            final int records = checkpoint.readInt();
+            final File file = files.remove(id);
+            if (file == null || file.length() < size) {
+                LOG.warn("Cache segment {} is missing or short", id);
+                continue;
+            }
+            this.segments.put(id, new CacheSegment(file, id,
+                this.segmentBytes, size, records));
+        }
+        // We insert the entries afresh rather than putting them back in
+        // their old slots. The checkpoint leaves out removed entries and
+        // entries in deleted segments, and the empty slots they'd leave
+        // would cut short the probing for the entries after them.
+        final int slotCount = checkpoint.readInt();
+        for (int i = 0; i < slotCount; i++) {
+            checkpoint.readInt();
+            final long hash = checkpoint.readLong();
+            final long offset = checkpoint.readLong();
+            final int segmentId = checkpoint.readInt();
+            final int variant = checkpoint.readInt();
+            final String key = CacheEntry.readString(checkpoint);
+            final int tagCount = checkpoint.readInt();
+            final Set<String> tags = new HashSet<String>();
+            for (int j = 0; j < tagCount; j++) {
+                tags.add(CacheEntry.readString(checkpoint));
+            }
+            final CacheSegment segment = this.segments.get(segmentId);
+            if (segment != null && offset < segment.getSize()) {
+                index(hash, variant, segmentId, offset,
+                    new SlotKey(key, tags));
+            }
+        }
+
+        // Segments started after the checkpoint follow the ones in it, and
+        // anything older than the checkpoint that isn't in it was evicted.
+        final List<File> evicted = new ArrayList<File>();
+        for (final Map.Entry<Integer, File> e : files.entrySet()) {
+            final int id = e.getKey().intValue();
+            if (id < this.nextSegmentId) {
+                evicted.add(e.getValue());
+            } else {
+                this.segments.put(id, new CacheSegment(e.getValue(), id,
+                    this.segmentBytes, 0, 0));
+                this.nextSegmentId = id + 1;
+            }
+        }
+        deleteAll(evicted);
+
+        for (final CacheSegment segment : this.segments.values()) {
+            scanTail(segment);
+            segment.truncate();
+        }
+        readRecoveredKeys();
+        LOG.info("Recovered {} cached responses in {} segments",
+            getEntryCount(), this.segments.size());
+    }
+
+    /**
+     * Collects the key and tags of every entry in the index, in the order
+     * they were stored.
+     */
+    private void readRecoveredKeys() {
+        final List<Integer> live = new ArrayList<Integer>();
+        for (int slot = 0; slot < this.indexSlots; slot++) {
+            if (this.segments.containsKey(segmentId(slot))) {
+                live.add(slot);
+            }
+        }
+        Collections.sort(live, new Comparator<Integer>() {
+            public int compare(final Integer a, final Integer b) {
+                final int aId = segmentId(a.intValue());
+                final int bId = segmentId(b.intValue());
+                if (aId != bId) {
+                    return aId < bId ? -1 : 1;
+                }
+                final long aOffset = offset(a.intValue());
+                final long bOffset = offset(b.intValue());
+                if (aOffset != bOffset) {
+                    return aOffset < bOffset ? -1 : 1;
+                }
+                return 0;
+            }
+        });
+        for (final Integer slot : live) {
+            final SlotKey key = this.keys[slot.intValue()];
+            // Variants of the same key share their tags, and the key is
+            // as new as its newest variant.
+            final Set<String> tags = new HashSet<String>(key.tags);
+            final Set<String> existing = this.recovered.remove(key.key);
+            if (existing != null) {
+                tags.addAll(existing);
+            }
+            this.recovered.put(key.key, tags);
+        }
+    }
+
+    /**
+     * Hands over the keys of the entries we recovered from the last run,
+     * so they can be indexed. Only the first call gets them.
+     *
+     * @return The tags of each recovered key, oldest key first.
+     */
+    public synchronized Map<String, Set<String>> takeRecoveredKeys() {
+        final Map<String, Set<String>> keys = this.recovered;
+        this.recovered = Collections.emptyMap();
+        return keys;
+    }
+
+    /**
+     * Maps the checkpoint in and checks it's whole.
+     *
+     * @return The checkpoint positioned after the version, or
+     * <code>null</code> if there isn't a usable one.
+     */
+    private ChannelBuffer readCheckpoint() throws IOException {
+        final File file = new File(this.dir, CHECKPOINT);
+        if (!file.isFile()) {
+            return null;
+        }
+        final RandomAccessFile raf = new RandomAccessFile(file, "r");
+        final ChannelBuffer checkpoint;
+        try {
+            checkpoint = ChannelBuffers.wrappedBuffer(raf.getChannel().map(
+                FileChannel.MapMode.READ_ONLY, 0, raf.length()));
+        } finally {
+            raf.close();
+        }
+        final int length = checkpoint.readableBytes();
+        if (length < 16 || crc(checkpoint.slice(0, length - 8)) !=
+            checkpoint.getLong(length - 8)) {
+            LOG.warn("Ignoring corrupt cache checkpoint");
+            return null;
+        }
+        if (checkpoint.readInt() != CHECKPOINT_MAGIC ||
+            checkpoint.readInt() != CHECKPOINT_VERSION) {
+            LOG.info("Ignoring cache checkpoint from another version");
+            return null;
+        }
+        return checkpoint;
+    }
+
+    /**
+     * Indexes the whole records appended to the segment after the last
+     * checkpoint, stopping at the first one that's cut short or doesn't
+     * match its checksum.
+     */
+    private void scanTail(final CacheSegment segment) throws IOException {
+        final long length = segment.getFile().length();
+        long offset = segment.getSize();
+        while (offset + RECORD_HEADER_BYTES <= length) {
+            final ChannelBuffer header =
+                segment.read(offset, RECORD_HEADER_BYTES);
+            if (header.readInt() != MAGIC) {
+                break;
+            }
+            final int metadataLength = header.readInt();
+            final long bodyLength = header.readLong();
+            final long checksum = header.readUnsignedInt();
+            final long metadataOffset = offset + RECORD_HEADER_BYTES;
+            final long end = metadataOffset + metadataLength + bodyLength;
+            if (metadataLength < 0 || bodyLength < 0 || bodyLength > length ||
+                end > length) {
+                break;
+            }
+            final ChannelBuffer metadata =
+                segment.read(metadataOffset, metadataLength);
+            final ChannelBuffer body =
+                segment.map(metadataOffset + metadataLength, bodyLength);
+            if (crc(metadata, body) != checksum) {
+                break;
+            }
+            final CacheEntry entry;
+            try {
+                entry = CacheEntry.decodeMetadata(metadata,
+                    new HeapCacheBody(body));
+            } catch (final RuntimeException e) {
+                LOG.warn("Bad metadata in segment " + segment.getId(), e);
+                break;
+            }
+            index(hash(entry.getKey()), variantHash(entry), segment.getId(),
+                offset, new SlotKey(entry.getKey(), entry.getTags()));
+            segment.recovered(end);
+            offset = end;
+        }
+    }
+
+    private static void deleteAll(final Iterable<File> files) {
+        for (final File file : files) {
+            if (!file.delete()) {
+                LOG.warn("Could not delete old segment: {}", file);
+            }
+        }
+    }
+
+    public CacheEntry get(final String key, final HttpRequest request) {
+        final long hash = hash(key);
+        final List<Location> candidates = new ArrayList<Location>(2);
+        synchronized (this) {
+            for (int i = 0; i < MAX_PROBES; i++) {
+                final int slot = slot(hash, i);
+                final int segmentId = segmentId(slot);
+                if (segmentId == EMPTY) {
+                    break;
+                }
+                final CacheSegment segment = this.segments.get(segmentId);
+                if (segment != null && keyHash(slot) == hash) {
+                    candidates.add(new Location(segment, offset(slot)));
+                }
+            }
+        }
+        // We read the entries without holding the lock. If a segment is
+        // deleted under us, reading it fails and we treat it as a miss.
+        for (final Location location : candidates) {
+            final CacheEntry entry = read(location);
+            if (entry != null && entry.getKey().equals(key) &&
+                entry.matches(request)) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    public void put(final CacheEntry entry) {
+        final ChannelBuffer metadata = entry.encodeMetadata();
+        final ChannelBuffer body = entry.getBody().getBuffer();
+        final ChannelBuffer header = ChannelBuffers.buffer(RECORD_HEADER_BYTES);
+        header.writeInt(MAGIC);
+        header.writeInt(metadata.readableBytes());
+        header.writeLong(body.readableBytes());
+        header.writeInt((int) crc(metadata, body));
+        final ChannelBuffer record =
+            ChannelBuffers.wrappedBuffer(header, metadata, body);
+        if (record.readableBytes() > this.segmentBytes) {
+            LOG.debug("Entry too big for disk cache: {}", entry);
+            return;
+        }
+
+        final long hash = hash(entry.getKey());
+        final int variant = variantHash(entry);
+        final SlotKey key = new SlotKey(entry.getKey(), entry.getTags());
+        synchronized (this.appendLock) {
+            final CacheSegment segment;
+            final long offset;
+            try {
+                long appended = this.current.append(record);
+                if (appended < 0) {
+                    roll();
+                    appended = this.current.append(record);
+                }
+                segment = this.current;
+                offset = appended;
+            } catch (final IOException e) {
+                LOG.warn("Could not write to disk cache", e);
+                return;
+            }
+            synchronized (this) {
+                index(hash, variant, segment.getId(), offset, key);
+            }
+        }
+    }
+
+    private void index(final long hash, final int variant,
+        final int segmentId, final long offset, final SlotKey key) {
+        int free = -1;
+        int oldest = -1;
+        for (int i = 0; i < MAX_PROBES; i++) {
+            final int slot = slot(hash, i);
+            final int id = segmentId(slot);
+            if (id == EMPTY) {
+                if (free == -1) {
+                    free = slot;
+                }
+                break;
+            }
+            if (id == TOMBSTONE || !this.segments.containsKey(id)) {
+                if (free == -1) {
+                    free = slot;
+                }
+                continue;
+            }
+            if (keyHash(slot) == hash && variantHash(slot) == variant) {
+                // Replace the old copy of the same variant.
+                write(slot, hash, offset, segmentId, variant, key);
+                return;
+            }
+            if (oldest == -1 || id < segmentId(oldest)) {
+                oldest = slot;
+            }
+        }
+        if (free != -1) {
+            write(free, hash, offset, segmentId, variant, key);
+        } else {
+            // All the slots we can probe are in use, so push out whichever
+            // entry is in the oldest segment, as it'll go soonest anyway.
+            write(oldest, hash, offset, segmentId, variant, key);
+        }
+    }
+
+    public synchronized boolean remove(final String key) {
+        final long hash = hash(key);
+        boolean removed = false;
+        for (int i = 0; i < MAX_PROBES; i++) {
+            final int slot = slot(hash, i);
+            final int id = segmentId(slot);
+            if (id == EMPTY) {
+                break;
+            }
+            // Another key with the same hash goes too, which only costs
+            // us a miss.
+            if (keyHash(slot) == hash && this.segments.containsKey(id)) {
+                this.index.putInt(slot * SLOT_BYTES + 16, TOMBSTONE);
+                removed = true;
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Accessor for the number of entries, including old copies of entries
+     * that have since been replaced, until their segments are deleted.
+     */
+    public synchronized int getEntryCount() {
+        int count = 0;
+        for (final CacheSegment segment : this.segments.values()) {
+            count += segment.getRecords();
+        }
+        return count;
+    }
+
+    public synchronized long getSizeBytes() {
+        long bytes = 0;
+        for (final CacheSegment segment : this.segments.values()) {
+            bytes += segment.getSize();
+        }
+        return bytes;
+    }
+
+    /**
+     * Writes a checkpoint of the store, so we can pick up where we left off
+     * after a restart. The checkpoint replaces the last one only once it's
+     * fully on disk.
+     * <p>
+     * We only hold the locks on the store long enough to copy the index and
+     * note how far each segment goes. Appended bytes never change, so we
+     * can sync the segments and write the checkpoint while lookups and
+     * appends carry on, and whatever comes after our snapshot is picked up
+     * by scanning the segments on start.
+     *
+     * @throws IOException If we can't write the checkpoint.
+     */
+    public void checkpoint() throws IOException {
+        synchronized (this.checkpointLock) {
+            final int nextId;
+            final List<CacheSegment> snapshot = new ArrayList<CacheSegment>();
+            final Map<Integer, long[]> sizes = new HashMap<Integer, long[]>();
+            final byte[] slots = new byte[this.indexSlots * SLOT_BYTES];
+            final SlotKey[] keys;
+            synchronized (this.appendLock) {
+                synchronized (this) {
+                    if (this.closed) {
+                        return;
+                    }
+                    nextId = this.nextSegmentId;
+                    for (final CacheSegment segment : this.segments.values()) {
+                        snapshot.add(segment);
+                        sizes.put(segment.getId(), new long[] {
+                            segment.getSize(), segment.getRecords()});
+                    }
+                    final ByteBuffer index = this.index.duplicate();
+                    index.clear();
+                    index.get(slots);
+                    keys = this.keys.clone();
+                }
+            }
+
+            final ChannelBuffer checkpoint = 
+                ChannelBuffers.dynamicBuffer(4096);
+            checkpoint.writeInt(CHECKPOINT_MAGIC);
+            checkpoint.writeInt(CHECKPOINT_VERSION);
+            checkpoint.writeInt(this.indexSlots);
+            checkpoint.writeLong(this.segmentBytes);
+            checkpoint.writeInt(nextId);
+            checkpoint.writeInt(snapshot.size());
+            for (final CacheSegment segment : snapshot) {
+                // The records must be on disk before the checkpoint that
+                // points at them.
+                segment.force();
+                final long[] size = sizes.get(segment.getId());
+                checkpoint.writeInt(segment.getId());
+                checkpoint.writeLong(size[0]);
+                checkpoint.writeInt((int) size[1]);
+            }
+            final ChannelBuffer index = ChannelBuffers.wrappedBuffer(slots);
+            final int countIndex = checkpoint.writerIndex();
+            checkpoint.writeInt(0);
+            int count = 0;
+            for (int slot = 0; slot < this.indexSlots; slot++) {
+                final int position = slot * SLOT_BYTES;
+                final int id = index.getInt(position + 16);
+                final long offset = index.getLong(position + 8);
+                final long[] size = sizes.get(id);
+                if (size == null || offset >= size[0]) {
+                    continue;
+                }
+                checkpoint.writeInt(slot);
+                checkpoint.writeLong(index.getLong(position));
+                checkpoint.writeLong(offset);
+                checkpoint.writeInt(id);
+                checkpoint.writeInt(index.getInt(position + 20));
+                CacheEntry.writeString(checkpoint, keys[slot].key);
+                checkpoint.writeInt(keys[slot].tags.size());
+                for (final String tag : keys[slot].tags) {
+                    CacheEntry.writeString(checkpoint, tag);
+                }
+                count++;
+            }
+            checkpoint.setInt(countIndex, count);
+            checkpoint.writeLong(crc(checkpoint));
+
+            final File temp = new File(this.dir, CHECKPOINT + ".tmp");
+            final RandomAccessFile raf = new RandomAccessFile(temp, "rw");
+            try {
+                raf.setLength(0);
+                final FileChannel channel = raf.getChannel();
+                final ByteBuffer buf = checkpoint.toByteBuffer();
+                while (buf.hasRemaining()) {
+                    channel.write(buf);
+                }
+                channel.force(true);
+            } finally {
+                raf.close();
+            }
+            final File file = new File(this.dir, CHECKPOINT);
+            if (!temp.renameTo(file)) {
+                // Some platforms won't rename over an existing file.
+                file.delete();
+                if (!temp.renameTo(file)) {
+                    throw new IOException("Could not replace " + file);
+                }
+            }
+            LOG.debug("Wrote cache checkpoint with {} entries", 
+                getEntryCount());
+        }
+    }
+
+    /**
+     * Writes a checkpoint and closes all the files of the store.
+     */
+    public void close() {
+        synchronized (this.checkpointLock) {
+            if (this.checkpointTask != null) {
+                this.checkpointTask.cancel(false);
+            }
+            try {
+                checkpoint();
+            } catch (final IOException e) {
+                LOG.warn("Could not checkpoint disk cache", e);
+            }
+            synchronized (this.appendLock) {
+                synchronized (this) {
+                    if (this.closed) {
+                        return;
+                    }
+                    this.closed = true;
+                    for (final CacheSegment segment : this.segments.values()) {
+                        segment.close();
+                    }
+                    this.index.force();
+                    try {
+                        this.indexFile.close();
+                    } catch (final IOException e) {
+                        LOG.warn("Could not close cache index", e);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Starts a new segment, deleting the oldest ones if we're over budget.
+     * Callers must hold the append lock.
+     */
+    private void roll() throws IOException {
+        final int id;
+        synchronized (this) {
+            id = this.nextSegmentId++;
+        }
+        final CacheSegment segment = new CacheSegment(
+            new File(this.dir, "segment-" + id + ".dat"), id,
+            this.segmentBytes);
+        synchronized (this) {
+            this.segments.put(id, segment);
+            this.current = segment;
+            final Iterator<CacheSegment> it =
+                this.segments.values().iterator();
+            while (this.segments.size() > this.maxSegments) {
+                final CacheSegment oldest = it.next();
+                it.remove();
+                LOG.debug("Evicting cache segment {} with {} entries",
+                    oldest.getId(), oldest.getRecords());
+                oldest.delete();
+            }
+        }
+    }
+
+    private CacheEntry read(final Location location) {
+        final CacheSegment segment = location.segment;
+        try {
+            final ChannelBuffer header =
+                segment.read(location.offset, RECORD_HEADER_BYTES);
+            if (header.readableBytes() < RECORD_HEADER_BYTES ||
+                header.readInt() != MAGIC) {
+                LOG.warn("Bad record in segment {} at {}", segment.getId(),
+                    location.offset);
+                return null;
+            }
+            final int metadataLength = header.readInt();
+            final long bodyLength = header.readLong();
+            final long metadataOffset = location.offset + RECORD_HEADER_BYTES;
+            final ChannelBuffer metadata =
+                segment.read(metadataOffset, metadataLength);
+            final long bodyOffset = metadataOffset + metadataLength;
+            final CacheBody body =
+                new SegmentCacheBody(segment, bodyOffset, bodyLength);
+            return CacheEntry.decodeMetadata(metadata, body);
+        } catch (final IOException e) {
+            LOG.debug("Could not read cache segment " + segment.getId(), e);
+            return null;
+        } catch (final RuntimeException e) {
+            LOG.warn("Bad metadata in segment " + segment.getId() + " at " +
+                location.offset, e);
+            return null;
+        }
+    }
+
+    private int slot(final long hash, final int probe) {
+        return (int) (((hash & Long.MAX_VALUE) + probe) % this.indexSlots);
+    }
+
+    private long keyHash(final int slot) {
+        return this.index.getLong(slot * SLOT_BYTES);
+    }
+
+    private long offset(final int slot) {
+        return this.index.getLong(slot * SLOT_BYTES + 8);
+    }
+
+    private int segmentId(final int slot) {
+        return this.index.getInt(slot * SLOT_BYTES + 16);
+    }
+
+    private int variantHash(final int slot) {
+        return this.index.getInt(slot * SLOT_BYTES + 20);
+    }
+
+    private void write(final int slot, final long hash, final long offset,
+        final int segmentId, final int variant, final SlotKey key) {
+        final int position = slot * SLOT_BYTES;
+        this.index.putLong(position, hash);
+        this.index.putLong(position + 8, offset);
+        this.index.putInt(position + 16, segmentId);
+        this.index.putInt(position + 20, variant);
+        this.keys[slot] = key;
+    }
+
+    /**
+     * 64 bit FNV-1a hash of the key.
+     */
+    static long hash(final String key) {
+        long hash = FNV_OFFSET_BASIS;
+        for (final byte b : key.getBytes(CharsetUtil.UTF_8)) {
+            hash ^= b & 0xff;
+            hash *= FNV_PRIME;
+        }
+        return hash;
+    }
+
+    /**
+     * CRC32 of the readable bytes of the buffers.
+     */
+    private static long crc(final ChannelBuffer... buffers) {
+        final CRC32 crc = new CRC32();
+        final byte[] chunk = new byte[8192];
+        for (final ChannelBuffer buf : buffers) {
+            int index = buf.readerIndex();
+            final int end = buf.writerIndex();
+            while (index < end) {
+                final int length = Math.min(chunk.length, end - index);
+                buf.getBytes(index, chunk, 0, length);
+                crc.update(chunk, 0, length);
+                index += length;
+            }
+        }
+        return crc.getValue();
+    }
+
+    private static int variantHash(final CacheEntry entry) {
+        final StringBuilder sb = new StringBuilder();
+        for (final Map.Entry<String, String> value :
+            new TreeMap<String, String>(entry.getVaryValues()).entrySet()) {
+            sb.append(value.getKey().toLowerCase()).append('=')
+                .append(value.getValue()).append('\n');
+        }
+        final long hash = hash(sb.toString());
+        return (int) (hash ^ (hash >>> 32));
+    }
+
+    private static final class SlotKey {
+
+        private final String key;
+        private final Set<String> tags;
+
+        private SlotKey(final String key, final Set<String> tags) {
+            this.key = key;
+            this.tags = tags;
+        }
+    }
+
+    private static final class Location {
+
+        private final CacheSegment segment;
+        private final long offset;
+
+        private Location(final CacheSegment segment, final long offset) {
+            this.segment = segment;
+            this.offset = offset;
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package org.littleshoot.proxy;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ExceptionEvent;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Handler for a browser connection we've already told the tunnel is 
+ * established before we've actually connected to the remote host. This 
+ * holds whatever the browser sends in the meantime, typically a TLS 
+ * ClientHello, until we can send it on.
+ */
+public class FirstFlightHandler extends SimpleChannelUpstreamHandler {
+
+    private static final Logger LOG = 
+        LoggerFactory.getLogger(FirstFlightHandler.class);
+    
+    private final PendingWriteQueue firstFlight;
+    
+    private final Tunnel tunnel;
+
+    /**
+     * Creates a new handler.
+     * 
+     * @param firstFlight The queue to hold data from the browser in.
+     * @param tunnel The tunnel the data is for.
+     */
+    public FirstFlightHandler(final PendingWriteQueue firstFlight,
+        final Tunnel tunnel) {
+        this.firstFlight = firstFlight;
+        this.tunnel = tunnel;
+    }
+
+    @Override
+    public void messageReceived(final ChannelHandlerContext ctx, 
+        final MessageEvent e) {
+        final ChannelBuffer msg = (ChannelBuffer) e.getMessage();
+        final int bytes = msg.readableBytes();
+        if (this.firstFlight.write(msg)) {
+            this.tunnel.relayed(e.getChannel(), bytes);
+        } else {
+            LOG.warn("Browser sent too much before the tunnel connected -- " +
+                "closing {}", e.getChannel());
+            ProxyUtils.closeOnFlush(e.getChannel());
+        }
+    }
+
+    @Override
+    public void exceptionCaught(final ChannelHandlerContext ctx, 
+        final ExceptionEvent e) {
+        LOG.info("Caught exception on browser connection while tunnel " +
+            "connects: "+e.getChannel(), e.getCause());
+        ProxyUtils.closeOnFlush(e.getChannel());
+    }
+}
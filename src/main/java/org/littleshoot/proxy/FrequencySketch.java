@@ -0,0 +1,109 @@
+package org.littleshoot.proxy;
+
+/**
+ * Approximate, decaying count of how often keys occur, in constant space.
+ * This is a count-min sketch with small saturating counters: a key's count
+ * is the smallest of its counters across several rows, so it may be
+ * overestimated but never underestimated. Once enough keys have been
+ * counted, all counters are halved so the sketch follows what's popular
+ * now rather than what was popular in the past.
+ */
+public class FrequencySketch {
+
+    private static final int DEPTH = 4;
+
+    private static final int MAX_COUNT = 15;
+
+    private static final int[] SEEDS = {
+        0x97cb3127, 0xc2b2ae35, 0x85ebca6b, 0x27d4eb2f
+    };
+
+    private final byte[][] table;
+
+    private final int mask;
+
+    private final int sampleSize;
+
+    private int additions;
+
+    /**
+     * Creates a new sketch.
+     *
+     * @param expectedKeys Roughly how many distinct keys we expect to count
+     * at any time.
+     */
+    public FrequencySketch(final int expectedKeys) {
+        int width = 16;
+        while (width < expectedKeys) {
+            width <<= 1;
+        }
+        this.table = new byte[DEPTH][width];
+        this.mask = width - 1;
+        this.sampleSize = 10 * width;
+    }
+
+    /**
+     * Counts an occurrence of the specified key.
+     *
+     * @param key The key.
+     */
+    public synchronized void increment(final Object key) {
+        final int hash = spread(key.hashCode());
+        final int min = frequency(hash);
+        if (min >= MAX_COUNT) {
+            return;
+        }
+        // Only raising the counters at the minimum keeps keys that share
+        // counters from inflating each other's counts.
+        for (int i = 0; i < DEPTH; i++) {
+            final int index = index(hash, i);
+            if (this.table[i][index] == min) {
+                this.table[i][index]++;
+            }
+        }
+        this.additions++;
+        if (this.additions >= this.sampleSize) {
+            reset();
+        }
+    }
+
+    /**
+     * Returns the estimated number of recent occurrences of the specified
+     * key.
+     *
+     * @param key The key.
+     * @return The estimated count, at most 15.
+     */
+    public synchronized int frequency(final Object key) {
+        return frequency(spread(key.hashCode()));
+    }
+
+    private int frequency(final int hash) {
+        int min = MAX_COUNT;
+        for (int i = 0; i < DEPTH; i++) {
+            min = Math.min(min, this.table[i][index(hash, i)]);
+        }
+        return min;
+    }
+
+    private void reset() {
+        for (final byte[] row : this.table) {
+            for (int i = 0; i < row.length; i++) {
+                row[i] = (byte) (row[i] >>> 1);
+            }
+        }
+        this.additions /= 2;
+    }
+
+    private int index(final int hash, final int row) {
+        int h = (hash ^ SEEDS[row]) * 0x9e3779b9;
+        h ^= h >>> 16;
+        return h & this.mask;
+    }
+
+    private static int spread(final int hashCode) {
+        int h = hashCode * 0x45d9f3b;
+        h ^= h >>> 16;
+        return h;
+    }
+}
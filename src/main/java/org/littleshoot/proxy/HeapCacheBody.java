@@ -0,0 +1,38 @@
+package org.littleshoot.proxy;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.FileRegion;
+
+/**
+ * The body of a cached response held in memory.
+ */
+public class HeapCacheBody implements CacheBody {
+
+    private final ChannelBuffer buffer;
+
+    /**
+     * Creates a new body.
+     * 
+     * @param buffer The body. This must not change after it's passed in.
+     */
+    public HeapCacheBody(final ChannelBuffer buffer) {
+        this.buffer = buffer;
+    }
+    
+    public long getLength() {
+        return this.buffer.readableBytes();
+    }
+
+    public ChannelBuffer getBuffer() {
+        // The duplicate shares the bytes but not the indexes.
+        return this.buffer.duplicate();
+    }
+
+    public FileRegion getFileRegion() {
+        return null;
+    }
+
+    public void release() {
+        // The garbage collector takes care of the buffer.
+    }
+}
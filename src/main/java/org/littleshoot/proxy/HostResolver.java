@@ -0,0 +1,18 @@
+package org.littleshoot.proxy;
+
+/**
+ * Interface for classes that look up the addresses of remote hosts without
+ * blocking the calling thread.
+ */
+public interface HostResolver {
+
+    /**
+     * Resolves the specified host. The listener is notified once the lookup
+     * completes, which may be on another thread or, if the result is 
+     * already known, on the calling thread before this method returns.
+     * 
+     * @param host The host name or literal address to resolve.
+     * @param listener The listener to notify with the result.
+     */
+    void resolve(String host, HostResolverListener listener);
+}
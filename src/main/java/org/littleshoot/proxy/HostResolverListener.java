@@ -0,0 +1,26 @@
+package org.littleshoot.proxy;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+/**
+ * Listener for the results of asynchronous host lookups.
+ */
+public interface HostResolverListener {
+
+    /**
+     * Called when a host resolves.
+     * 
+     * @param host The host that was resolved.
+     * @param addresses The addresses of the host, never empty.
+     */
+    void onResolved(String host, InetAddress[] addresses);
+
+    /**
+     * Called when a host could not be resolved.
+     * 
+     * @param host The host that could not be resolved.
+     * @param cause The cause of the failure.
+     */
+    void onFailure(String host, UnknownHostException cause);
+}
@@ -0,0 +1,655 @@
+package org.littleshoot.proxy;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.lang.math.NumberUtils;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
+import org.jboss.netty.handler.codec.http.HttpMessage;
+import org.jboss.netty.handler.codec.http.HttpMethod;
+import org.jboss.netty.handler.codec.http.HttpRequest;
+import org.jboss.netty.handler.codec.http.HttpResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The HTTP caching rules for a shared cache. For details, see:
+ *
+ * http://tools.ietf.org/html/rfc2616#section-13
+ * http://tools.ietf.org/html/rfc7234
+ */
+public final class HttpCacheRules {
+
+    private static final Logger LOG =
+        LoggerFactory.getLogger(HttpCacheRules.class);
+
+    /**
+     * The most we'll consider a response fresh for based on its
+     * Last-Modified date alone.
+     */
+    private static final long MAX_HEURISTIC_MILLIS = 24L * 60 * 60 * 1000;
+
+    /**
+     * The most ranges we'll serve for one request. Requests for more are
+     * answered with the whole response, as many small ranges cost more to
+     * send than the response itself.
+     */
+    private static final int MAX_RANGES = 16;
+
+    private HttpCacheRules() {}
+
+    /**
+     * Parses all Cache-Control directives in the message.
+     *
+     * @param msg The HTTP message.
+     * @return The directives, in lower case, mapped to their values.
+     * Directives without values are mapped to the empty string.
+     */
+    public static Map<String, String> cacheControl(final HttpMessage msg) {
+        return cacheControl(msg.getHeaders(HttpHeaders.Names.CACHE_CONTROL));
+    }
+
+    /**
+     * Parses all Cache-Control directives in the header values.
+     *
+     * @param headers The values of the Cache-Control headers.
+     * @return The directives, in lower case, mapped to their values.
+     * Directives without values are mapped to the empty string.
+     */
+    public static Map<String, String> cacheControl(final List<String> headers) {
+        final Map<String, String> directives = new HashMap<String, String>();
+        for (final String header : headers) {
+            for (final String directive : header.split(",")) {
+                final String trimmed = directive.trim();
+                if (trimmed.length() == 0) {
+                    continue;
+                }
+                final int eq = trimmed.indexOf('=');
+                if (eq == -1) {
+                    directives.put(trimmed.toLowerCase(), "");
+                } else {
+                    final String value =
+                        StringUtils.strip(trimmed.substring(eq + 1).trim(), "\"");
+                    directives.put(
+                        trimmed.substring(0, eq).trim().toLowerCase(), value);
+                }
+            }
+        }
+        return directives;
+    }
+
+    /**
+     * Returns whether or not we could possibly answer the request from the
+     * cache, regardless of what's in it.
+     *
+     * @param request The request.
+     * @return <code>true</code> if we can look for the response in the
+     * cache.
+     */
+    public static boolean isServableFromCache(final HttpRequest request) {
+        final HttpMethod method = request.getMethod();
+        if (method != HttpMethod.GET && method != HttpMethod.HEAD) {
+            return false;
+        }
+        final Map<String, String> cc = cacheControl(request);
+        if (cc.containsKey(HttpHeaders.Values.NO_STORE) ||
+            cc.containsKey(HttpHeaders.Values.NO_CACHE)) {
+            return false;
+        }
+        final String pragma = request.getHeader(HttpHeaders.Names.PRAGMA);
+        if (StringUtils.isNotBlank(pragma) &&
+            pragma.contains(HttpHeaders.Values.NO_CACHE)) {
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns whether or not a shared cache may store the response.
+     *
+     * @param request The request the response is for.
+     * @param response The response.
+     * @return <code>true</code> if the response is cacheable.
+     */
+    public static boolean isCacheable(final HttpRequest request,
+        final HttpResponse response) {
+        if (request.getMethod() != HttpMethod.GET) {
+            LOG.debug("Not caching response to {}", request.getMethod());
+            return false;
+        }
+        // We only store complete responses, and serve ranges from those.
+        if (response.getStatus().getCode() == 206) {
+            LOG.debug("Not caching partial content");
+            return false;
+        }
+        if (!isStorable(request, response)) {
+            return false;
+        }
+        if (freshnessLifetimeMillis(response, System.currentTimeMillis()) <= 0) {
+            LOG.debug("Response is never fresh");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns whether or not a shared cache may keep the response to answer
+     * other browsers with, whatever the method, status and freshness. This
+     * rules out responses the origin said not to store or that are only
+     * for the user who asked for them.
+     *
+     * @param request The request the response is for.
+     * @param response The response.
+     * @return <code>true</code> if the response can be shared.
+     */
+    public static boolean isStorable(final HttpRequest request,
+        final HttpResponse response) {
+        final Map<String, String> requestControl = cacheControl(request);
+        final Map<String, String> responseControl = cacheControl(response);
+        if (requestControl.containsKey(HttpHeaders.Values.NO_STORE) ||
+            responseControl.containsKey(HttpHeaders.Values.NO_STORE)) {
+            LOG.debug("No store header");
+            return false;
+        }
+        if (responseControl.containsKey(HttpHeaders.Values.PRIVATE)) {
+            LOG.debug("Private header");
+            return false;
+        }
+        if (responseControl.containsKey(HttpHeaders.Values.NO_CACHE)) {
+            LOG.debug("No cache header");
+            return false;
+        }
+        final String pragma = response.getHeader(HttpHeaders.Names.PRAGMA);
+        if (StringUtils.isNotBlank(pragma) &&
+            pragma.contains(HttpHeaders.Values.NO_CACHE)) {
+            LOG.debug("Not caching with response pragma no cache");
+            return false;
+        }
+
+        // Responses to authorized requests are only for that user, unless
+        // the origin explicitly says otherwise.
+        if (request.containsHeader(HttpHeaders.Names.AUTHORIZATION) &&
+            !responseControl.containsKey(HttpHeaders.Values.PUBLIC) &&
+            !responseControl.containsKey(HttpHeaders.Values.S_MAXAGE) &&
+            !responseControl.containsKey(HttpHeaders.Values.MUST_REVALIDATE)) {
+            LOG.debug("Not caching response to authorized request");
+            return false;
+        }
+
+        // Cookies are specific to the user, and we'd hand them out to
+        // everyone.
+        if (response.containsHeader(HttpHeaders.Names.SET_COOKIE) ||
+            response.containsHeader(HttpHeaders.Names.SET_COOKIE2)) {
+            LOG.debug("Response sets cookies");
+            return false;
+        }
+        if (varyHeaders(response).contains("*")) {
+            LOG.debug("Response varies on everything");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns whether or not the status code is cacheable when the response
+     * doesn't explicitly say how long it's fresh for.
+     *
+     * @param status The status code.
+     * @return <code>true</code> if the status is cacheable by default.
+     */
+    public static boolean isCacheableByDefault(final int status) {
+        switch (status) {
+            case 200:
+            case 203:
+            case 204:
+            case 300:
+            case 301:
+            case 404:
+            case 405:
+            case 410:
+            case 414:
+            case 501:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Calculates how long the response is fresh for after it was generated.
+     *
+     * @param response The response.
+     * @param responseTime When we received the response, used when the
+     * response has no valid Date header.
+     * @return The freshness lifetime in milliseconds.
+     */
+    public static long freshnessLifetimeMillis(final HttpResponse response,
+        final long responseTime) {
+        final Map<String, String> cc = cacheControl(response);
+        final long sMaxAge = seconds(cc.get(HttpHeaders.Values.S_MAXAGE));
+        if (sMaxAge >= 0) {
+            return sMaxAge * 1000;
+        }
+        final long maxAge = seconds(cc.get(HttpHeaders.Values.MAX_AGE));
+        if (maxAge >= 0) {
+            return maxAge * 1000;
+        }
+        final long date = dateValue(response, responseTime);
+        if (response.containsHeader(HttpHeaders.Names.EXPIRES)) {
+            // Invalid dates, such as "0", mean already expired.
+            final long expires =
+                ProxyUtils.parseDate(response.getHeader(HttpHeaders.Names.EXPIRES));
+            return Math.max(0, expires - date);
+        }
+        if (!isCacheableByDefault(response.getStatus().getCode())) {
+            return 0;
+        }
+        final long lastModified = ProxyUtils.parseDate(
+            response.getHeader(HttpHeaders.Names.LAST_MODIFIED));
+        if (lastModified < 0 || lastModified > date) {
+            return 0;
+        }
+        return Math.min(MAX_HEURISTIC_MILLIS, (date - lastModified) / 10);
+    }
+
+    /**
+     * Calculates the age of the response when we received it, taking into
+     * account its Age header, its Date header, and how long it took to
+     * arrive.
+     *
+     * @param response The response.
+     * @param requestTime When we sent the request.
+     * @param responseTime When we received the response.
+     * @return The corrected initial age in milliseconds.
+     */
+    public static long correctedInitialAgeMillis(final HttpResponse response,
+        final long requestTime, final long responseTime) {
+        final long apparentAge =
+            Math.max(0, responseTime - dateValue(response, responseTime));
+        final long ageValue =
+            Math.max(0, seconds(response.getHeader(HttpHeaders.Names.AGE))) * 1000;
+        final long correctedAgeValue = ageValue + (responseTime - requestTime);
+        return Math.max(apparentAge, correctedAgeValue);
+    }
+
+    /**
+     * Returns whether or not the cached entry is fresh enough to use for
+     * the request, taking into account any max-age, min-fresh, and
+     * max-stale directives in the request.
+     *
+     * @param entry The cached entry.
+     * @param request The request.
+     * @param now The current time.
+     * @return <code>true</code> if we can answer the request with the entry
+     * without checking with the origin.
+     */
+    public static boolean isFreshEnough(final CacheEntry entry,
+        final HttpRequest request, final long now) {
+        final Map<String, String> cc = cacheControl(request);
+        final long age = entry.getCurrentAgeMillis(now);
+        final long maxAge = seconds(cc.get(HttpHeaders.Values.MAX_AGE));
+        if (maxAge >= 0 && age > maxAge * 1000) {
+            return false;
+        }
+        final long minFresh = seconds(cc.get(HttpHeaders.Values.MIN_FRESH));
+        final long remaining = entry.getFreshnessLifetimeMillis() - age;
+        if (minFresh >= 0) {
+            return remaining >= minFresh * 1000;
+        }
+        if (remaining > 0) {
+            return true;
+        }
+        if (!cc.containsKey(HttpHeaders.Values.MAX_STALE) ||
+            entry.isMustRevalidate()) {
+            return false;
+        }
+        final long maxStale = seconds(cc.get(HttpHeaders.Values.MAX_STALE));
+        // A max-stale with no value means any staleness is fine.
+        return maxStale < 0 || -remaining <= maxStale * 1000;
+    }
+
+    /**
+     * Returns whether or not we can answer the request with the stale entry
+     * right away while we fetch a fresh copy in the background. That's the
+     * case for as long after the entry goes stale as its
+     * stale-while-revalidate directive says, or the configured default for
+     * the host if it doesn't have one. See:
+     *
+     * http://tools.ietf.org/html/rfc5861#section-3
+     *
+     * @param entry The cached entry.
+     * @param request The request.
+     * @param now The current time.
+     * @return <code>true</code> if we can serve the entry while refreshing
+     * it.
+     */
+    public static boolean isStaleWhileRevalidate(final CacheEntry entry,
+        final HttpRequest request, final long now) {
+        if (entry.isMustRevalidate()) {
+            return false;
+        }
+        // The browser wants something fresher than the entry.
+        final Map<String, String> cc = cacheControl(request);
+        if (cc.containsKey(HttpHeaders.Values.MAX_AGE) ||
+            cc.containsKey(HttpHeaders.Values.MIN_FRESH)) {
+            return false;
+        }
+        long window = seconds(entry.getCacheControl().get(
+            "stale-while-revalidate"));
+        if (window < 0) {
+            window = LittleProxyConfig.getCacheStaleWhileRevalidateSeconds(
+                host(request));
+        }
+        return staleness(entry, now) <= window * 1000;
+    }
+
+    /**
+     * Returns whether or not we can answer the request with the stale entry
+     * if the origin can't be reached or answers with a server error. That's
+     * the case for as long after the entry goes stale as the longest of the
+     * stale-if-error directives of the entry and the request, and the
+     * configured default for the host. See:
+     *
+     * http://tools.ietf.org/html/rfc5861#section-4
+     *
+     * @param entry The cached entry.
+     * @param request The request.
+     * @param now The current time.
+     * @return <code>true</code> if we can serve the entry on an error.
+     */
+    public static boolean isStaleIfError(final CacheEntry entry,
+        final HttpRequest request, final long now) {
+        if (entry.isMustRevalidate()) {
+            return false;
+        }
+        final long window = Math.max(
+            LittleProxyConfig.getCacheStaleIfErrorSeconds(host(request)),
+            Math.max(seconds(entry.getCacheControl().get("stale-if-error")),
+                seconds(cacheControl(request).get("stale-if-error"))));
+        return staleness(entry, now) <= window * 1000;
+    }
+
+    /**
+     * Returns whether or not the status is an error that we can answer with
+     * a stale response instead.
+     *
+     * @param status The status code from the origin.
+     * @return <code>true</code> for a server error.
+     */
+    public static boolean isStaleIfErrorStatus(final int status) {
+        switch (status) {
+            case 500:
+            case 502:
+            case 503:
+            case 504:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Returns whether or not the response means what we have cached for
+     * the request URI is out of date, which is the case when a request with
+     * an unsafe method like POST, PUT or DELETE succeeds. See:
+     *
+     * http://tools.ietf.org/html/rfc7234#section-4.4
+     *
+     * @param request The request.
+     * @param response The response from the remote server.
+     * @return <code>true</code> if we should remove the cached responses.
+     */
+    public static boolean isInvalidating(final HttpRequest request,
+        final HttpResponse response) {
+        final HttpMethod method = request.getMethod();
+        if (method == HttpMethod.GET || method == HttpMethod.HEAD ||
+            method == HttpMethod.OPTIONS || method == HttpMethod.TRACE ||
+            method == HttpMethod.CONNECT) {
+            return false;
+        }
+        final int status = response.getStatus().getCode();
+        return status >= 200 && status < 400;
+    }
+
+    private static long staleness(final CacheEntry entry, final long now) {
+        return entry.getCurrentAgeMillis(now) -
+            entry.getFreshnessLifetimeMillis();
+    }
+
+    private static String host(final HttpRequest request) {
+        return StringUtils.substringBefore(ProxyUtils.parseHost(request), ":");
+    }
+
+    /**
+     * Returns whether or not the request carries its own validators, in 
+     * which case the browser is checking a copy it already has.
+     *
+     * @param request The request.
+     * @return <code>true</code> if the request is conditional.
+     */
+    public static boolean isConditional(final HttpRequest request) {
+        return request.containsHeader(HttpHeaders.Names.IF_NONE_MATCH) ||
+            request.containsHeader(HttpHeaders.Names.IF_MODIFIED_SINCE) ||
+            request.containsHeader(HttpHeaders.Names.IF_MATCH) ||
+            request.containsHeader(HttpHeaders.Names.IF_UNMODIFIED_SINCE);
+    }
+
+    /**
+     * Returns whether or not the browser's copy of the cached response is
+     * still good according to the validators in its conditional request,
+     * meaning we can answer with a 304. If-None-Match takes precedence over
+     * If-Modified-Since, as in:
+     *
+     * http://tools.ietf.org/html/rfc7232#section-6
+     *
+     * @param entry The cached entry.
+     * @param request The request.
+     * @return <code>true</code> if the browser's copy matches the entry.
+     */
+    public static boolean isNotModified(final CacheEntry entry,
+        final HttpRequest request) {
+        final List<String> noneMatch =
+            request.getHeaders(HttpHeaders.Names.IF_NONE_MATCH);
+        if (!noneMatch.isEmpty()) {
+            final String etag = entry.getETag();
+            for (final String header : noneMatch) {
+                for (final String tag : header.split(",")) {
+                    final String trimmed = tag.trim();
+                    if (trimmed.equals("*")) {
+                        return true;
+                    }
+                    if (etag != null && weakMatch(trimmed, etag)) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+        final long since = ProxyUtils.parseDate(
+            request.getHeader(HttpHeaders.Names.IF_MODIFIED_SINCE));
+        if (since < 0) {
+            return false;
+        }
+        final long lastModified = ProxyUtils.parseDate(entry.getLastModified());
+        return lastModified >= 0 && lastModified <= since;
+    }
+
+    /**
+     * Returns whether or not we can answer the request's Range header from
+     * the cached response. That's only if the response is a 200, and if the
+     * request has an If-Range header, only if it matches the response
+     * exactly. Otherwise the browser gets the whole response.
+     *
+     * @param entry The cached entry.
+     * @param request The request.
+     * @return <code>true</code> if we should serve the requested ranges.
+     */
+    public static boolean isRangeApplicable(final CacheEntry entry,
+        final HttpRequest request) {
+        if (request.getMethod() != HttpMethod.GET ||
+            !request.containsHeader(HttpHeaders.Names.RANGE) ||
+            entry.getStatus().getCode() != 200) {
+            return false;
+        }
+        final String ifRange = request.getHeader(HttpHeaders.Names.IF_RANGE);
+        if (ifRange == null) {
+            return true;
+        }
+        final String validator = ifRange.trim();
+        if (validator.startsWith("\"") || validator.startsWith("W/")) {
+            // If-Range needs a strong match.
+            final String etag = entry.getETag();
+            return etag != null && !etag.startsWith("W/") &&
+                !validator.startsWith("W/") && etag.trim().equals(validator);
+        }
+        final long date = ProxyUtils.parseDate(validator);
+        final long lastModified = ProxyUtils.parseDate(entry.getLastModified());
+        return date >= 0 && date == lastModified;
+    }
+
+    /**
+     * Parses a Range header against a response of the specified length. See:
+     *
+     * http://tools.ietf.org/html/rfc7233#section-2.1
+     *
+     * @param header The value of the Range header.
+     * @param length The length of the full response body.
+     * @return The satisfiable ranges in the order requested, each as the
+     * first and last byte positions inclusive. The list is empty if none of
+     * the ranges are satisfiable. Returns <code>null</code> if the header
+     * is malformed or asks for too many ranges, in which case it should be
+     * ignored.
+     */
+    public static List<long[]> parseRange(final String header,
+        final long length) {
+        if (header == null) {
+            return null;
+        }
+        final String trimmed = header.trim();
+        if (!trimmed.toLowerCase().startsWith("bytes=")) {
+            return null;
+        }
+        final String[] specs = trimmed.substring(6).split(",");
+        if (specs.length > MAX_RANGES) {
+            return null;
+        }
+        final List<long[]> ranges = new ArrayList<long[]>(specs.length);
+        for (final String raw : specs) {
+            final String spec = raw.trim();
+            final int dash = spec.indexOf('-');
+            if (dash < 0) {
+                return null;
+            }
+            final String start = spec.substring(0, dash).trim();
+            final String end = spec.substring(dash + 1).trim();
+            if (start.length() == 0) {
+                // A suffix range, for the last so many bytes.
+                if (!NumberUtils.isDigits(end) || end.length() > 18) {
+                    return null;
+                }
+                final long suffix = Long.parseLong(end);
+                if (suffix > 0 && length > 0) {
+                    ranges.add(new long[] {
+                        Math.max(0, length - suffix), length - 1});
+                }
+                continue;
+            }
+            if (!NumberUtils.isDigits(start) || start.length() > 18) {
+                return null;
+            }
+            final long first = Long.parseLong(start);
+            long last = length - 1;
+            if (end.length() > 0) {
+                if (!NumberUtils.isDigits(end) || end.length() > 18) {
+                    return null;
+                }
+                last = Long.parseLong(end);
+                if (last < first) {
+                    return null;
+                }
+            }
+            if (first < length) {
+                ranges.add(new long[] {first, Math.min(last, length - 1)});
+            }
+        }
+        return ranges;
+    }
+
+    /**
+     * Accessor for the names of the request headers the response varies on.
+     *
+     * @param response The response.
+     * @return The header names, in lower case.
+     */
+    public static List<String> varyHeaders(final HttpResponse response) {
+        final List<String> names = new ArrayList<String>();
+        for (final String header : response.getHeaders(HttpHeaders.Names.VARY)) {
+            for (final String name : header.split(",")) {
+                final String trimmed = name.trim();
+                if (trimmed.length() > 0) {
+                    names.add(trimmed.toLowerCase());
+                }
+            }
+        }
+        return names;
+    }
+
+    /**
+     * Normalizes the values of the specified request headers so we can
+     * match requests a response varies on.
+     *
+     * @param request The request.
+     * @param names The header names.
+     * @return The header names mapped to their normalized values.
+     */
+    public static Map<String, String> varyValues(final HttpRequest request,
+        final List<String> names) {
+        final Map<String, String> values = new HashMap<String, String>();
+        for (final String name : names) {
+            final List<String> headers = request.getHeaders(name);
+            values.put(name,
+                StringUtils.join(headers, ",").replaceAll("\\s+", ""));
+        }
+        return values;
+    }
+
+    /**
+     * Compares entity tags ignoring whether they're weak, which is how
+     * If-None-Match compares them.
+     */
+    private static boolean weakMatch(final String tag1, final String tag2) {
+        return StringUtils.removeStart(tag1.trim(), "W/").equals(
+            StringUtils.removeStart(tag2.trim(), "W/"));
+    }
+
+    private static long dateValue(final HttpResponse response,
+        final long responseTime) {
+        final long date =
+            ProxyUtils.parseDate(response.getHeader(HttpHeaders.Names.DATE));
+        return date < 0 ? responseTime : date;
+    }
+
+    /**
+     * Parses a delta-seconds value.
+     *
+     * @return The number of seconds, or -1 if there's no valid value.
+     */
+    private static long seconds(final String value) {
+        if (value == null) {
+            return -1;
+        }
+        final String trimmed = value.trim();
+        if (!NumberUtils.isDigits(trimmed)) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(trimmed);
+        } catch (final NumberFormatException e) {
+            // Too big, which means forever for our purposes.
+            return Integer.MAX_VALUE;
+        }
+    }
+}
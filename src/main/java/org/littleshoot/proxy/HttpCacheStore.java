@@ -0,0 +1,54 @@
+package org.littleshoot.proxy;
+
+import org.jboss.netty.handler.codec.http.HttpRequest;
+
+/**
+ * Storage for cached responses. A key can have several entries when the
+ * response varies on request headers, one for each variant.
+ */
+public interface HttpCacheStore {
+
+    /**
+     * Looks up the entry for the request.
+     * 
+     * @param key The cache key for the request.
+     * @param request The request, for choosing among variants.
+     * @return The entry, or <code>null</code> if there isn't one.
+     */
+    CacheEntry get(String key, HttpRequest request);
+    
+    /**
+     * Stores the entry, replacing any entry for the same variant.
+     * 
+     * @param entry The entry to store.
+     */
+    void put(CacheEntry entry);
+    
+    /**
+     * Removes all variants stored under the key.
+     * 
+     * @param key The key.
+     * @return <code>true</code> if anything was removed.
+     */
+    boolean remove(String key);
+    
+    /**
+     * Accessor for the number of entries, counting each variant.
+     * 
+     * @return The number of entries.
+     */
+    int getEntryCount();
+    
+    /**
+     * Accessor for roughly how many bytes all entries take up.
+     * 
+     * @return The size of all entries in bytes.
+     */
+    long getSizeBytes();
+    
+    /**
+     * Releases the resources of the store, saving anything it keeps on disk
+     * for the next run.
+     */
+    void close();
+}
@@ -2,8 +2,6 @@ package org.littleshoot.proxy;
 
 import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.channel.Channel;
-import org.jboss.netty.channel.ChannelFuture;
-import org.jboss.netty.channel.ChannelFutureListener;
 import org.jboss.netty.channel.ChannelHandlerContext;
 import org.jboss.netty.channel.ChannelStateEvent;
 import org.jboss.netty.channel.ExceptionEvent;
@@ -16,7 +14,8 @@ import org.slf4j.LoggerFactory;
 
 /**
  * Class that simply relays traffic the channel this is connected to to 
- * another channel passed in to the constructor.
+ * another channel passed in to the constructor. We stop reading from this
+ * channel whenever the other channel is writing slower than we're reading.
  */
 @Sharable
 public class HttpConnectRelayingHandler extends SimpleChannelUpstreamHandler {
@@ -33,6 +32,8 @@ public class HttpConnectRelayingHandler extends SimpleChannelUpstreamHandler {
 
     private final ChannelGroup channelGroup;
 
+    private final Tunnel tunnel;
+
     /**
      * Creates a new {@link HttpConnectRelayingHandler} with the specified 
      * connection to relay to..
@@ -42,8 +43,23 @@ public class HttpConnectRelayingHandler extends SimpleChannelUpstreamHandler {
      */
     public HttpConnectRelayingHandler(final Channel relayChannel, 
         final ChannelGroup channelGroup) {
+        this(relayChannel, channelGroup, null);
+    }
+
+    /**
+     * Creates a new {@link HttpConnectRelayingHandler} with the specified 
+     * connection to relay to.
+     * 
+     * @param relayChannel The channel to relay messages to.
+     * @param channelGroup The group of channels to close on shutdown.
+     * @param tunnel The tunnel this relays for, or <code>null</code> if we
+     * don't keep track of it.
+     */
+    public HttpConnectRelayingHandler(final Channel relayChannel, 
+        final ChannelGroup channelGroup, final Tunnel tunnel) {
         this.relayChannel = relayChannel;
         this.channelGroup = channelGroup;
+        this.tunnel = tunnel;
     }
 
     @Override
@@ -51,14 +67,14 @@ public class HttpConnectRelayingHandler extends SimpleChannelUpstreamHandler {
         final MessageEvent e) throws Exception {
         final ChannelBuffer msg = (ChannelBuffer) e.getMessage();
         if (relayChannel.isConnected()) {
-            final ChannelFutureListener logListener = 
-                new ChannelFutureListener() {
-                public void operationComplete(final ChannelFuture future) 
-                    throws Exception {
-                    LOG.debug("Finished writing data on CONNECT channel");
-                }
-            };
-            relayChannel.write(msg).addListener(logListener);
+            if (this.tunnel != null) {
+                this.tunnel.relayed(e.getChannel(), msg.readableBytes());
+            }
+            relayChannel.write(msg);
+            
+            // Stop reading from this side of the tunnel while the other
+            // side can't keep up.
+            ReadThrottle.get(relayChannel).suspendIfUnwritable(e.getChannel());
         }
         else {
             LOG.info("Channel not open. Connected? {}", 
@@ -68,6 +84,13 @@ public class HttpConnectRelayingHandler extends SimpleChannelUpstreamHandler {
         }
     }
     
+    @Override
+    public void channelInterestChanged(final ChannelHandlerContext ctx, 
+        final ChannelStateEvent cse) throws Exception {
+        // Lets the other side of the tunnel read again if we've caught up.
+        ReadThrottle.get(cse.getChannel()).onInterestChanged();
+    }
+    
     @Override
     public void channelOpen(final ChannelHandlerContext ctx, 
         final ChannelStateEvent cse) throws Exception {
@@ -83,6 +106,9 @@ public class HttpConnectRelayingHandler extends SimpleChannelUpstreamHandler {
         final ChannelStateEvent e) throws Exception {
         LOG.info("Got closed event on proxy -> web connection: {}", 
             e.getChannel());
+        if (this.tunnel != null) {
+            this.tunnel.onClosed();
+        }
         ProxyUtils.closeOnFlush(this.relayChannel);
     }
 
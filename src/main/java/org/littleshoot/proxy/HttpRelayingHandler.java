@@ -53,6 +53,11 @@ public class HttpRelayingHandler extends SimpleChannelUpstreamHandler {
     private final String hostAndPort;
 
     private boolean closeEndsResponseBody;
+    
+    /**
+     * Whether or not we've started relaying a response we haven't finished.
+     */
+    private volatile boolean responseInProgress;
 
     /**
      * Creates a new {@link HttpRelayingHandler} with the specified connection
@@ -148,6 +153,7 @@ public class HttpRelayingHandler extends SimpleChannelUpstreamHandler {
                 response = hr;
             }
 
+            responseInProgress = true;
             if (response.isChunked()) {
                 log.info("Starting to read chunks");
                 readingChunks = true;
@@ -205,16 +211,25 @@ public class HttpRelayingHandler extends SimpleChannelUpstreamHandler {
                 this.closeEndsResponseBody = true;
             }
                 
-            ChannelFuture future = 
-                this.browserToProxyChannel.write(
-                    new ProxyHttpResponse(this.currentHttpRequest, originalHttpResponse, 
-                        messageToWrite));
+            ChannelFuture future = writeToBrowser(
+                new ProxyHttpResponse(this.currentHttpRequest, originalHttpResponse, 
+                    messageToWrite), wroteFullResponse && !writeEndBuffer,
+                me.getChannel());
 
             if (writeEndBuffer) {
                 // See the comment on this flag variable above.
-                future = browserToProxyChannel.write(ChannelBuffers.EMPTY_BUFFER);
+                future = writeToBrowser(ChannelBuffers.EMPTY_BUFFER, 
+                    wroteFullResponse, me.getChannel());
+            }
+            if (wroteFullResponse) {
+                responseInProgress = false;
             }
             
+            // Stop reading from the remote host if the browser isn't keeping
+            // up, so we don't hold the rest of the response in memory.
+            ReadThrottle.get(browserToProxyChannel).suspendIfUnwritable(
+                me.getChannel());
+            
             // If we've written the full response, we need to notify the 
             // request handler. This is because sometimes the remote server
             // will signify the end of an HTTP response body through closing
@@ -299,6 +314,21 @@ public class HttpRelayingHandler extends SimpleChannelUpstreamHandler {
         log.info("Finished processing message");
     }
     
+    /**
+     * Writes to the browser through its response sequencer, if any, so 
+     * responses to pipelined requests go back in the order of the requests.
+     */
+    private ChannelFuture writeToBrowser(final Object msg, 
+        final boolean complete, final Channel remoteChannel) {
+        final ResponseSequencer sequencer = 
+            ResponseSequencer.get(this.browserToProxyChannel);
+        if (sequencer == null) {
+            return this.browserToProxyChannel.write(msg);
+        }
+        return sequencer.write(this.currentHttpRequest, msg, complete, 
+            remoteChannel);
+    }
+    
     private boolean closeEndsResponseBody(final HttpResponse res) {
         final String cl = res.getHeader(HttpHeaders.Names.CONTENT_LENGTH);
         if (StringUtils.isNotBlank(cl)) {
@@ -445,6 +475,19 @@ public class HttpRelayingHandler extends SimpleChannelUpstreamHandler {
         // a single connection from the browser.
         final int unansweredRequests = this.requestQueue.size();
         log.info("Unanswered requests: {}", unansweredRequests);
+        
+        // Any response we were in the middle of, or never got, is as
+        // complete as it's going to get.
+        final ResponseSequencer sequencer = 
+            ResponseSequencer.get(browserToProxyChannel);
+        if (sequencer != null) {
+            if (this.responseInProgress) {
+                sequencer.abort(this.currentHttpRequest);
+            }
+            for (final HttpRequest request : this.requestQueue) {
+                sequencer.abort(request);
+            }
+        }
         this.relayListener.onRelayChannelClose(browserToProxyChannel, 
             this.hostAndPort, unansweredRequests, this.closeEndsResponseBody);
     }
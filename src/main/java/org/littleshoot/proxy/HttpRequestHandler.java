@@ -3,15 +3,10 @@ package org.littleshoot.proxy;
 import static org.jboss.netty.channel.Channels.pipeline;
 
 import java.lang.management.ManagementFactory;
-import java.net.UnknownHostException;
 import java.nio.channels.ClosedChannelException;
-import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
-import java.util.LinkedList;
-import java.util.Map;
-import java.util.Queue;
 import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -22,8 +17,6 @@ import javax.management.MalformedObjectNameException;
 import javax.management.NotCompliantMBeanException;
 import javax.management.ObjectName;
 
-import org.apache.commons.lang.StringUtils;
-import org.jboss.netty.bootstrap.ClientBootstrap;
 import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelFuture;
 import org.jboss.netty.channel.ChannelFutureListener;
@@ -31,6 +24,7 @@ import org.jboss.netty.channel.ChannelHandlerContext;
 import org.jboss.netty.channel.ChannelPipeline;
 import org.jboss.netty.channel.ChannelPipelineFactory;
 import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.Channels;
 import org.jboss.netty.channel.ExceptionEvent;
 import org.jboss.netty.channel.MessageEvent;
 import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
@@ -40,7 +34,6 @@ import org.jboss.netty.handler.codec.http.HttpChunk;
 import org.jboss.netty.handler.codec.http.HttpMethod;
 import org.jboss.netty.handler.codec.http.HttpRequest;
 import org.jboss.netty.handler.codec.http.HttpRequestEncoder;
-import org.littleshoot.dnssec4j.VerifiedAddressFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -64,8 +57,13 @@ public class HttpRequestHandler extends SimpleChannelUpstreamHandler
     private final AtomicInteger browserToProxyConnections = 
         new AtomicInteger(0);
     
-    private final Map<String, Queue<ChannelFuture>> externalHostsToChannelFutures = 
-        new ConcurrentHashMap<String, Queue<ChannelFuture>>();
+    /**
+     * The remote hosts we've returned connections to the shared pool for. 
+     * The connections themselves belong to the pool and can be used by any
+     * browser connection.
+     */
+    private final Set<String> externalHosts = 
+        Collections.synchronizedSet(new HashSet<String>());
     
     private final AtomicInteger messagesReceived = 
         new AtomicInteger(0);
@@ -87,13 +85,11 @@ public class HttpRequestHandler extends SimpleChannelUpstreamHandler
     private final Set<HttpRequest> unansweredHttpRequests = 
         new HashSet<HttpRequest>();
 
-    private ChannelFuture currentChannelFuture;
-    
     /**
-     * This lock is necessary for when a second chunk arrives in a request
-     * before we've even created the current channel future.
+     * Chunks of the current request, held until we've connected to the 
+     * remote host and written the request itself. 
      */
-    private final Object channelFutureLock = new Object();
+    private volatile PendingWriteQueue pendingChunks;
     
     private final ChainProxyManager chainProxyManager;
     private final ChannelGroup channelGroup;
@@ -106,6 +102,36 @@ public class HttpRequestHandler extends SimpleChannelUpstreamHandler
     
     private final RelayPipelineFactoryFactory relayPipelineFactoryFactory;
     
+    private final UpstreamChannelPool upstreamChannelPool;
+    
+    /**
+     * Whether or not we created the pool of upstream connections ourselves,
+     * in which case it's ours to close.
+     */
+    private final boolean ownsUpstreamChannelPool;
+    
+    private final UpstreamConnector upstreamConnector;
+    
+    private final TunnelRegistry tunnelRegistry;
+    
+    /**
+     * Data from the browser for an optimistic CONNECT tunnel, held until
+     * we've connected to the remote host.
+     */
+    private volatile PendingWriteQueue firstFlight;
+    
+    /**
+     * Our reason for not reading from the browser while we connect to the
+     * remote host and send it the request.
+     */
+    private final Object connecting = new Object();
+    
+    /**
+     * Our reason for not reading from the browser while we turn its
+     * connection into a CONNECT tunnel.
+     */
+    private final Object openingTunnel = new Object();
+    
     /**
      * Creates a new class for handling HTTP requests with no frills.
      * 
@@ -159,12 +185,100 @@ public class HttpRequestHandler extends SimpleChannelUpstreamHandler
         final ClientSocketChannelFactory clientChannelFactory,
         final ChainProxyManager chainProxyManager, 
         final RelayPipelineFactoryFactory relayPipelineFactoryFactory) {
+        this(cacheManager, authorizationManager, channelGroup, 
+            clientChannelFactory, chainProxyManager, 
+            relayPipelineFactoryFactory, null, null);
+    }
+    
+    /**
+     * Creates a new class for handling HTTP requests with the specified
+     * authentication manager.
+     * 
+     * @param cacheManager The manager for the cache. 
+     * @param authorizationManager The class that handles any 
+     * proxy authentication requirements.
+     * @param channelGroup The group of channels for keeping track of all
+     * channels we've opened.
+     * @param clientChannelFactory The common channel factory for clients.
+     * @param chainProxyManager upstream proxy server host and port or null 
+     * if none used.
+     * @param relayPipelineFactoryFactory The relay pipeline factory.
+     * @param upstreamChannelPool The pool of idle connections to remote hosts
+     * shared by all browser connections. If <code>null</code>, this handler
+     * only reuses connections it opened itself.
+     * @param upstreamConnector The class for opening new connections to
+     * remote hosts. If <code>null</code>, we use one with a resolver shared
+     * by all handlers created without one.
+     */
+    public HttpRequestHandler(final ProxyCacheManager cacheManager, 
+        final ProxyAuthorizationManager authorizationManager, 
+        final ChannelGroup channelGroup, 
+        final ClientSocketChannelFactory clientChannelFactory,
+        final ChainProxyManager chainProxyManager, 
+        final RelayPipelineFactoryFactory relayPipelineFactoryFactory,
+        final UpstreamChannelPool upstreamChannelPool,
+        final UpstreamConnector upstreamConnector) {
+        this(cacheManager, authorizationManager, channelGroup, 
+            clientChannelFactory, chainProxyManager, 
+            relayPipelineFactoryFactory, upstreamChannelPool, 
+            upstreamConnector, null);
+    }
+    
+    /**
+     * Creates a new class for handling HTTP requests with the specified
+     * authentication manager.
+     * 
+     * @param cacheManager The manager for the cache. 
+     * @param authorizationManager The class that handles any 
+     * proxy authentication requirements.
+     * @param channelGroup The group of channels for keeping track of all
+     * channels we've opened.
+     * @param clientChannelFactory The common channel factory for clients.
+     * @param chainProxyManager upstream proxy server host and port or null 
+     * if none used.
+     * @param relayPipelineFactoryFactory The relay pipeline factory.
+     * @param upstreamChannelPool The pool of idle connections to remote hosts
+     * shared by all browser connections. If <code>null</code>, this handler
+     * only reuses connections it opened itself.
+     * @param upstreamConnector The class for opening new connections to
+     * remote hosts. If <code>null</code>, we use one with a resolver shared
+     * by all handlers created without one.
+     * @param tunnelRegistry Keeps track of open CONNECT tunnels. If 
+     * <code>null</code>, we keep track of our own.
+     */
+    public HttpRequestHandler(final ProxyCacheManager cacheManager, 
+        final ProxyAuthorizationManager authorizationManager, 
+        final ChannelGroup channelGroup, 
+        final ClientSocketChannelFactory clientChannelFactory,
+        final ChainProxyManager chainProxyManager, 
+        final RelayPipelineFactoryFactory relayPipelineFactoryFactory,
+        final UpstreamChannelPool upstreamChannelPool,
+        final UpstreamConnector upstreamConnector,
+        final TunnelRegistry tunnelRegistry) {
         this.cacheManager = cacheManager;
         this.authorizationManager = authorizationManager;
         this.channelGroup = channelGroup;
         this.clientChannelFactory = clientChannelFactory;
         this.chainProxyManager = chainProxyManager;
         this.relayPipelineFactoryFactory = relayPipelineFactoryFactory;
+        if (upstreamChannelPool == null) {
+            this.upstreamChannelPool = new DefaultUpstreamChannelPool();
+            this.ownsUpstreamChannelPool = true;
+        } else {
+            this.upstreamChannelPool = upstreamChannelPool;
+            this.ownsUpstreamChannelPool = false;
+        }
+        if (upstreamConnector == null) {
+            this.upstreamConnector = 
+                new UpstreamConnector(clientChannelFactory);
+        } else {
+            this.upstreamConnector = upstreamConnector;
+        }
+        if (tunnelRegistry == null) {
+            this.tunnelRegistry = new TunnelRegistry();
+        } else {
+            this.tunnelRegistry = tunnelRegistry;
+        }
         if (LittleProxyConfig.isUseJmx()) {
             setupJmx();
         }
@@ -226,36 +340,19 @@ public class HttpRequestHandler extends SimpleChannelUpstreamHandler
             this.readingChunks = false;
         }
         
-        // It's possible to receive a chunk before a channel future has even
-        // been set.
-        if (this.currentChannelFuture == null) {
-            log.error("NO CHANNEL FUTURE!!");
-            synchronized (this.channelFutureLock) {
-                if (this.currentChannelFuture == null) {
-                    try {
-                        channelFutureLock.wait(4000);
-                    } catch (final InterruptedException e) {
-                        log.info("Interrupted!!", e);
-                    }
-                }
-            }
-        }
-        
-        // We don't necessarily know the channel is connected yet!! This can
-        // happen if the client sends a chunk directly after the initial 
-        // request.
-
-        if (this.currentChannelFuture.getChannel().isConnected()) {
-            this.currentChannelFuture.getChannel().write(chunk);
+        // It's possible to receive a chunk before we've even connected to 
+        // the remote host, in which case the queue holds it until we have.
+        final PendingWriteQueue chunks = this.pendingChunks;
+        if (chunks == null) {
+            log.warn("Received chunk with no chunked request?");
+            return;
         }
-        else {
-            this.currentChannelFuture.addListener(new ChannelFutureListener() {
-                
-                public void operationComplete(final ChannelFuture future) 
-                    throws Exception {
-                    currentChannelFuture.getChannel().write(chunk);
-                }
-            });
+        if (!chunks.write(chunk)) {
+            log.warn("Too many request chunks waiting for the connection " +
+                "to the remote host -- closing browser connection");
+            this.pendingChunks = null;
+            this.readingChunks = false;
+            ProxyUtils.closeOnFlush(me.getChannel());
         }
     }
     
@@ -265,18 +362,35 @@ public class HttpRequestHandler extends SimpleChannelUpstreamHandler
         final HttpRequest request = (HttpRequest) me.getMessage();
         
         final Channel inboundChannel = me.getChannel();
+        
+        log.info("Got request: {} on channel: "+inboundChannel, request);
+        if (this.authorizationManager != null && 
+            !this.authorizationManager.handleProxyAuthorization(request, ctx)) {
+            log.info("Not authorized!!");
+            return;
+        }
+        
+        // Every response goes through the sequencer, cache hits included,
+        // so a hit waits its turn behind responses to earlier pipelined
+        // requests instead of going to the remote server.
+        final ResponseSequencer sequencer = 
+            ResponseSequencer.get(inboundChannel);
+        if (sequencer != null && request.getMethod() != HttpMethod.CONNECT) {
+            sequencer.register(request);
+        }
+        
         if (this.cacheManager != null &&
-            this.cacheManager.returnCacheHit((HttpRequest)me.getMessage(), 
-            inboundChannel)) {
+            this.cacheManager.returnCacheHit(request, inboundChannel)) {
             log.info("Found cache hit! Cache wrote the response.");
             return;
         }
         this.unansweredRequestCount.incrementAndGet();
         
-        log.info("Got request: {} on channel: "+inboundChannel, request);
-        if (this.authorizationManager != null && 
-            !this.authorizationManager.handleProxyAuthorization(request, ctx)) {
-            log.info("Not authorized!!");
+        // PURGE requests are for us, not the remote server.
+        if (this.cacheManager != null && !request.isChunked() &&
+            request.getMethod().equals(ProxyConstants.PURGE)) {
+            this.cacheManager.returnPurge(request, inboundChannel);
+            this.unansweredRequestCount.decrementAndGet();
             return;
         }
         
@@ -289,14 +403,53 @@ public class HttpRequestHandler extends SimpleChannelUpstreamHandler
             hostAndPort = ProxyUtils.parseHostAndPort(request);
         }
         
+        // Don't keep trying a host we just couldn't reach. We can't answer
+        // early while the browser is still sending us the body.
+        if (this.cacheManager != null && !request.isChunked() &&
+            this.cacheManager.returnConnectFailure(request, inboundChannel, 
+                hostAndPort)) {
+            log.info("Answered request for unreachable host: {}", hostAndPort);
+            this.unansweredRequestCount.decrementAndGet();
+            return;
+        }
+        
+        final PendingWriteQueue chunks;
+        if (request.isChunked()) {
+            chunks = new PendingWriteQueue(
+                LittleProxyConfig.getMaxPendingChunkBytes());
+        } else {
+            chunks = null;
+        }
+        this.pendingChunks = chunks;
+        
+        final Tunnel tunnel;
+        if (request.getMethod() == HttpMethod.CONNECT) {
+            tunnel = new Tunnel(hostAndPort, inboundChannel, 
+                this.tunnelRegistry);
+            if (LittleProxyConfig.isOptimisticConnect() && 
+                ProxyUtils.parsePort(request) >= 0 && this.firstFlight == null) {
+                startOptimisticTunnel(ctx, tunnel);
+            }
+        } else {
+            tunnel = null;
+        }
+        final PendingWriteQueue optimistic = this.firstFlight;
+        
         final class OnConnect {
             public ChannelFuture onConnect(final ChannelFuture cf) {
                 if (request.getMethod() != HttpMethod.CONNECT) {
                     final ChannelFuture writeFuture = cf.getChannel().write(request);
+                    if (chunks != null) {
+                        chunks.flushTo(cf.getChannel());
+                    }
                     writeFuture.addListener(new ChannelFutureListener() {
                         
                         public void operationComplete(final ChannelFuture future) 
                             throws Exception {
+                            if (!future.isSuccess() && sequencer != null) {
+                                // We'll never get a response to this one.
+                                sequencer.abort(request);
+                            }
                             if (LittleProxyConfig.isUseJmx()) {
                                 unansweredRequests.add(request.toString());
                             }
@@ -306,8 +459,13 @@ public class HttpRequestHandler extends SimpleChannelUpstreamHandler
                     });
                     return writeFuture;
                 }
+                else if (optimistic != null) {
+                    finishOptimisticTunnel(ctx, request, cf.getChannel(), 
+                        tunnel, optimistic);
+                    return cf;
+                }
                 else {
-                    writeConnectResponse(ctx, request, cf.getChannel());
+                    writeConnectResponse(ctx, request, cf.getChannel(), tunnel);
                     return cf;
                 }
             }
@@ -315,16 +473,17 @@ public class HttpRequestHandler extends SimpleChannelUpstreamHandler
      
         final OnConnect onConnect = new OnConnect();
         
-        final ChannelFuture curFuture = getChannelFuture(hostAndPort);
+        // CONNECT tunnels always get their own connection, as we can't
+        // relay raw bytes over a pooled HTTP connection.
+        final ChannelFuture curFuture;
+        if (request.getMethod() == HttpMethod.CONNECT) {
+            curFuture = null;
+        } else {
+            curFuture = getChannelFuture(hostAndPort, request, inboundChannel);
+        }
         if (curFuture != null) {
             log.info("Using existing connection...");
             
-            // We don't notify here because the current channel future will not
-            // have been null before this assignment.
-            if (this.currentChannelFuture == null) {
-                log.error("Should not be null here");
-            }
-            this.currentChannelFuture = curFuture;
             if (curFuture.getChannel().isConnected()) {
                 onConnect.onConnect(curFuture);
             }
@@ -341,11 +500,26 @@ public class HttpRequestHandler extends SimpleChannelUpstreamHandler
         else {
             log.info("Establishing new connection");
             final ChannelFuture cf;
-            ctx.getChannel().setReadable(false);
+            // The sequencer keeps the responses to pipelined requests in
+            // order, so we can read the browser's next request while we
+            // connect for this one. Without a sequencer, or when the
+            // connection is about to become a tunnel, we wait.
+            if (optimistic == null && (sequencer == null || 
+                request.getMethod() == HttpMethod.CONNECT)) {
+                ReadThrottle.get(ctx.getChannel()).suspend(connecting);
+            }
             try {
-                cf = newChannelFuture(request, inboundChannel, hostAndPort);
-            } catch (final UnknownHostException e) {
-                log.warn("Could not resolve host?", e);
+                cf = newChannelFuture(request, inboundChannel, hostAndPort, 
+                    tunnel);
+            } catch (final Exception e) {
+                log.warn("Could not create channel to "+hostAndPort, e);
+                if (answerConnectFailure(ctx, request, hostAndPort)) {
+                    return;
+                }
+                if (sequencer != null) {
+                    sequencer.abort(request);
+                }
+                onRelayChannelClose(inboundChannel, hostAndPort, 1, true);
                 return;
             }
             
@@ -360,9 +534,6 @@ public class HttpRequestHandler extends SimpleChannelUpstreamHandler
                 public void operationComplete(final ChannelFuture future)
                     throws Exception {
                     final Channel channel = future.getChannel();
-                    if (channelGroup != null) {
-                        channelGroup.add(channel);
-                    }
                     if (future.isSuccess()) {
                         log.info("Connected successfully to: {}", channel);
                         log.info("Writing message on channel...");
@@ -374,13 +545,10 @@ public class HttpRequestHandler extends SimpleChannelUpstreamHandler
                                     request.getMethod()+" "+
                                     request.getUri());
                                 
-                                ctx.getChannel().setReadable(true);
+                                ReadThrottle.get(ctx.getChannel()).resume(
+                                    connecting);
                             }
                         });
-                        currentChannelFuture = wf;
-                        synchronized(channelFutureLock) {
-                            channelFutureLock.notifyAll();
-                        }
                     }
                     else {
                         log.info("Could not connect to " + hostAndPort, 
@@ -396,6 +564,12 @@ public class HttpRequestHandler extends SimpleChannelUpstreamHandler
                         }
                         
                         if (hostAndPort.equals(nextHostAndPort)) {
+                            if (answerConnectFailure(ctx, request, hostAndPort)) {
+                                return;
+                            }
+                            if (sequencer != null) {
+                                sequencer.abort(request);
+                            }
                             // We call the relay channel closed event handler
                             // with one associated unanswered request.
                             onRelayChannelClose(inboundChannel, hostAndPort, 1,
@@ -422,48 +596,112 @@ public class HttpRequestHandler extends SimpleChannelUpstreamHandler
     
     public void onChannelAvailable(final String hostAndPortKey, 
         final ChannelFuture cf) {
-        
-        synchronized (this.externalHostsToChannelFutures) {
-            final Queue<ChannelFuture> futures = 
-                this.externalHostsToChannelFutures.get(hostAndPortKey);
-            
-            final Queue<ChannelFuture> toUse;
-            if (futures == null) {
-                toUse = new LinkedList<ChannelFuture>();
-                this.externalHostsToChannelFutures.put(hostAndPortKey, toUse);
-            } else {
-                toUse = futures;
-            }
-            toUse.add(cf);
-        }
+        this.externalHosts.add(hostAndPortKey);
+        this.upstreamChannelPool.release(hostAndPortKey, cf.getChannel());
     }
 
-    private ChannelFuture getChannelFuture(final String hostAndPort) {
-        synchronized (this.externalHostsToChannelFutures) {
-            final Queue<ChannelFuture> futures = 
-                this.externalHostsToChannelFutures.get(hostAndPort);
-            if (futures == null) {
-                return null;
-            }
-            if (futures.isEmpty()) {
-                return null;
-            }
-            final ChannelFuture cf = futures.remove();
+    private ChannelFuture getChannelFuture(final String hostAndPort, 
+        final HttpRequest request, final Channel browserToProxyChannel) {
+        final Channel channel = this.upstreamChannelPool.borrow(hostAndPort);
+        if (channel == null) {
+            return null;
+        }
+        
+        // The pooled channel's handlers were created for whatever request 
+        // and browser connection last used it, so we give it fresh ones
+        // relaying to this browser connection.
+        try {
+            final ChannelPipelineFactory cpf = 
+                relayPipelineFactoryFactory.getRelayPipelineFactory(request, 
+                    browserToProxyChannel, this);
+            ProxyUtils.replaceHandlers(channel.getPipeline(), cpf.getPipeline());
+        } catch (final Exception e) {
+            log.warn("Could not create pipeline for pooled channel", e);
+            channel.close();
+            return null;
+        }
+        return Channels.succeededFuture(channel);
+    }
 
-            if (cf != null && cf.isSuccess() && 
-                !cf.getChannel().isConnected()) {
-                // In this case, the future successfully connected at one
-                // time, but we're no longer connected. We need to remove the
-                // channel and open a new one.
-                removeProxyToWebConnection(hostAndPort);
-                return null;
+    /**
+     * Tells the browser its tunnel is established before we've connected 
+     * to the remote host, saving the browser a round trip. We hold whatever
+     * the browser sends until we have connected.
+     */
+    private void startOptimisticTunnel(final ChannelHandlerContext ctx,
+        final Tunnel tunnel) {
+        final Channel browserToProxyChannel = ctx.getChannel();
+        final PendingWriteQueue queue = new PendingWriteQueue(
+            LittleProxyConfig.getOptimisticConnectBufferBytes());
+        this.firstFlight = queue;
+        
+        final ChannelPipeline pipeline = ctx.getPipeline();
+        pipeline.remove("encoder");
+        pipeline.remove("decoder");
+        pipeline.remove("handler");
+        if (pipeline.get("idle") != null) {
+            pipeline.remove("idle");
+        }
+        if (pipeline.get("idleAware") != null) {
+            pipeline.remove("idleAware");
+        }
+        tunnel.addIdleHandlers(pipeline);
+        ResponseSequencer.uninstall(browserToProxyChannel);
+        pipeline.addLast("handler", new FirstFlightHandler(queue, tunnel));
+        
+        final String statusLine = "HTTP/1.1 200 Connection established\r\n";
+        ProxyUtils.writeResponse(browserToProxyChannel, statusLine,
+            ProxyUtils.CONNECT_OK_HEADERS);
+    }
+    
+    /**
+     * Sends the data we've held for an optimistic tunnel to the remote host
+     * we've now connected to, and relays everything from then on. When 
+     * chaining, the data follows the CONNECT request to the chain proxy 
+     * without waiting for its response.
+     */
+    private void finishOptimisticTunnel(final ChannelHandlerContext ctx,
+        final HttpRequest httpRequest, final Channel outgoingChannel,
+        final Tunnel tunnel, final PendingWriteQueue queue) {
+        final Channel browserToProxyChannel = ctx.getChannel();
+        if (!browserToProxyChannel.isConnected()) {
+            log.info("Browser closed before optimistic tunnel connected");
+            outgoingChannel.close();
+            return;
+        }
+        tunnel.onOpen(outgoingChannel);
+        
+        String chainProxy = null;
+        if (chainProxyManager != null) {
+            chainProxy = chainProxyManager.getChainProxy(httpRequest);
+            if (chainProxy != null) {
+                // The browser already has its response, so we don't relay
+                // the chain proxy's.
+                outgoingChannel.getPipeline().addBefore("handler", 
+                    "connectResponse", new ChainConnectResponseHandler());
+                outgoingChannel.getPipeline().addBefore("handler", "encoder", 
+                    new HttpRequestEncoder());
+                outgoingChannel.write(httpRequest).addListener(
+                    new ChannelFutureListener() {
+                    public void operationComplete(final ChannelFuture future)
+                        throws Exception {
+                        outgoingChannel.getPipeline().remove("encoder");
+                    }
+                });
             }
-            return cf;
         }
+        
+        // Anything the browser sends from now on goes straight through the
+        // queue to the remote host until we've swapped in the relay.
+        queue.flushTo(outgoingChannel);
+        ctx.getPipeline().replace("handler", "handler", 
+            new HttpConnectRelayingHandler(outgoingChannel, this.channelGroup,
+                tunnel));
     }
-
+    
     private void writeConnectResponse(final ChannelHandlerContext ctx, 
-        final HttpRequest httpRequest, final Channel outgoingChannel) {
+        final HttpRequest httpRequest, final Channel outgoingChannel,
+        final Tunnel tunnel) {
         final int port = ProxyUtils.parsePort(httpRequest);
         final Channel browserToProxyChannel = ctx.getChannel();
         
@@ -478,7 +716,7 @@ public class HttpRequestHandler extends SimpleChannelUpstreamHandler
             ProxyUtils.closeOnFlush(browserToProxyChannel);
         }
         else {
-            browserToProxyChannel.setReadable(false);
+            ReadThrottle.get(browserToProxyChannel).suspend(openingTunnel);
             
             // We need to modify both the pipeline encoders and decoders for the
             // browser to proxy channel -- the outgoing channel already has
@@ -487,11 +725,27 @@ public class HttpRequestHandler extends SimpleChannelUpstreamHandler
             ctx.getPipeline().remove("decoder");
             ctx.getPipeline().remove("handler");
             
+            // Tunnels have their own idle timeout, which counts traffic in 
+            // both directions.
+            if (ctx.getPipeline().get("idle") != null) {
+                ctx.getPipeline().remove("idle");
+            }
+            if (ctx.getPipeline().get("idleAware") != null) {
+                ctx.getPipeline().remove("idleAware");
+            }
+            tunnel.addIdleHandlers(ctx.getPipeline());
+            tunnel.onOpen(outgoingChannel);
+            
+            // This handler won't see the channel close, and there won't be
+            // any more HTTP responses on it anyway.
+            ResponseSequencer.uninstall(browserToProxyChannel);
+            
             // Note there are two HttpConnectRelayingHandler for each HTTP
             // CONNECT tunnel -- one writing to the browser, and one writing
             // to the remote host.
             ctx.getPipeline().addLast("handler", 
-                new HttpConnectRelayingHandler(outgoingChannel, this.channelGroup));
+                new HttpConnectRelayingHandler(outgoingChannel, this.channelGroup,
+                    tunnel));
         }
         
         // This is sneaky -- thanks to Emil Goicovici from the list --
@@ -521,28 +775,12 @@ public class HttpRequestHandler extends SimpleChannelUpstreamHandler
                 ProxyUtils.CONNECT_OK_HEADERS);
         }
         
-        browserToProxyChannel.setReadable(true);
+        ReadThrottle.get(browserToProxyChannel).resume(openingTunnel);
     }
 
     private ChannelFuture newChannelFuture(final HttpRequest httpRequest, 
-        final Channel browserToProxyChannel, String hostAndPort) 
-        throws UnknownHostException {
-        final String host;
-        final int port;
-        if (hostAndPort.contains(":")) {
-            host = StringUtils.substringBefore(hostAndPort, ":");
-            final String portString = 
-                StringUtils.substringAfter(hostAndPort, ":");
-            port = Integer.parseInt(portString);
-        }
-        else {
-            host = hostAndPort;
-            port = 80;
-        }
-        
-        // Configure the client.
-        final ClientBootstrap cb = new ClientBootstrap(clientChannelFactory);
-        
+        final Channel browserToProxyChannel, final String hostAndPort,
+        final Tunnel tunnel) throws Exception {
         final ChannelPipelineFactory cpf;
         if (httpRequest.getMethod() == HttpMethod.CONNECT) {
             // In the case of CONNECT, we just want to relay all data in both 
@@ -552,9 +790,10 @@ public class HttpRequestHandler extends SimpleChannelUpstreamHandler
                 public ChannelPipeline getPipeline() throws Exception {
                     // Create a default pipeline implementation.
                     final ChannelPipeline pipeline = pipeline();
+                    tunnel.addIdleHandlers(pipeline);
                     pipeline.addLast("handler", 
                         new HttpConnectRelayingHandler(browserToProxyChannel,
-                            channelGroup));
+                            channelGroup, tunnel));
                     return pipeline;
                 }
             };
@@ -563,12 +802,10 @@ public class HttpRequestHandler extends SimpleChannelUpstreamHandler
             cpf = relayPipelineFactoryFactory.getRelayPipelineFactory(
                 httpRequest, browserToProxyChannel, this);
         }
-            
-        cb.setPipelineFactory(cpf);
-        cb.setOption("connectTimeoutMillis", 40*1000);
+        
+        // The connector resolves the host off of this I/O thread.
         log.info("Starting new connection to: {}", hostAndPort);
-        return cb.connect(VerifiedAddressFactory.newInetSocketAddress(host, port, 
-            LittleProxyConfig.isUseDnsSec()));
+        return this.upstreamConnector.connect(hostAndPort, cpf);
     }
     
     @Override
@@ -587,12 +824,23 @@ public class HttpRequestHandler extends SimpleChannelUpstreamHandler
         if (this.channelGroup != null) {
             this.channelGroup.add(inboundChannel);
         }
+        ResponseSequencer.install(inboundChannel);
+    }
+    
+    @Override
+    public void channelInterestChanged(final ChannelHandlerContext ctx, 
+        final ChannelStateEvent cse) {
+        // If we've been relaying responses faster than the browser reads
+        // them, this lets us read from the remote hosts again once the
+        // browser has caught up.
+        ReadThrottle.get(cse.getChannel()).onInterestChanged();
     }
     
     @Override
     public void channelClosed(final ChannelHandlerContext ctx, 
         final ChannelStateEvent cse) {
         log.info("Channel closed: {}", cse.getChannel());
+        ResponseSequencer.uninstall(cse.getChannel());
         totalBrowserToProxyConnections.decrementAndGet();
         browserToProxyConnections.decrementAndGet();
         log.info("Now "+totalBrowserToProxyConnections+
@@ -600,21 +848,14 @@ public class HttpRequestHandler extends SimpleChannelUpstreamHandler
         log.info("Now this class has "+browserToProxyConnections+
             " browser to proxy channels...");
         
-        // The following should always be the case with
-        // @ChannelPipelineCoverage("one")
-        if (browserToProxyConnections.get() == 0) {
+        // Idle connections to remote hosts belong to the shared pool, so we
+        // leave them open for other browser connections unless the pool is
+        // our own.
+        if (browserToProxyConnections.get() == 0 && 
+            this.ownsUpstreamChannelPool) {
             log.info("Closing all proxy to web channels for this browser " +
                 "to proxy connection!!!");
-            final Collection<Queue<ChannelFuture>> allFutures = 
-                this.externalHostsToChannelFutures.values();
-            for (final Queue<ChannelFuture> futures : allFutures) {
-                for (final ChannelFuture future : futures) {
-                    final Channel ch = future.getChannel();
-                    if (ch.isOpen()) {
-                        future.getChannel().close();
-                    }
-                }
-            }
+            this.upstreamChannelPool.close();
         }
     }
     
@@ -638,7 +879,7 @@ public class HttpRequestHandler extends SimpleChannelUpstreamHandler
             this.unansweredRequestCount.get() - unansweredRequestsOnChannel);
         //this.unansweredRequestCount -= unansweredRequestsOnChannel;
         if (this.receivedChannelClosed && 
-            (this.externalHostsToChannelFutures.isEmpty() || 
+            (this.externalHosts.isEmpty() || 
              this.unansweredRequestCount.get() == 0)) {
             if (!browserChannelClosed.getAndSet(true)) {
                 log.info("Closing browser to proxy channel");
@@ -647,15 +888,35 @@ public class HttpRequestHandler extends SimpleChannelUpstreamHandler
         }
         else {
             log.info("Not closing browser to proxy channel. Still "+
-                this.externalHostsToChannelFutures.size()+" connections and awaiting "+
+                this.externalHosts.size()+" connections and awaiting "+
                 this.unansweredRequestCount + " responses");
         }
     }
     
 
+    /**
+     * Tells the cache we couldn't connect to the remote server, and answers
+     * the request with a stale cached response if the cache has one it's
+     * allowed to serve.
+     */
+    private boolean answerConnectFailure(final ChannelHandlerContext ctx,
+        final HttpRequest request, final String hostAndPort) {
+        if (this.cacheManager == null) {
+            return false;
+        }
+        this.cacheManager.onConnectFailure(hostAndPort);
+        if (!this.cacheManager.returnStaleOnError(request, ctx.getChannel())) {
+            return false;
+        }
+        this.unansweredRequestCount.decrementAndGet();
+        removeProxyToWebConnection(hostAndPort);
+        ReadThrottle.get(ctx.getChannel()).resume(this.connecting);
+        return true;
+    }
+
     private void removeProxyToWebConnection(final String key) {
         // It's probably already been removed at this point, but just in case.
-        this.externalHostsToChannelFutures.remove(key);
+        this.externalHosts.remove(key);
     }
 
     public void onRelayHttpResponse(final Channel browserToProxyChannel,
@@ -708,7 +969,7 @@ public class HttpRequestHandler extends SimpleChannelUpstreamHandler
     }
 
     public int getOutgoingConnections() {
-        return this.externalHostsToChannelFutures.size();
+        return this.externalHosts.size();
     }
 
     public int getRequestsSent() {
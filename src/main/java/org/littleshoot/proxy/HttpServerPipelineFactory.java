@@ -4,7 +4,6 @@ import static org.jboss.netty.channel.Channels.pipeline;
 
 import java.lang.management.ManagementFactory;
 import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
 
 import javax.management.InstanceAlreadyExistsException;
 import javax.management.MBeanRegistrationException;
@@ -14,16 +13,12 @@ import javax.management.NotCompliantMBeanException;
 import javax.management.ObjectName;
 import javax.net.ssl.SSLEngine;
 
-import org.jboss.netty.buffer.ChannelBuffer;
-import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelPipeline;
 import org.jboss.netty.channel.ChannelPipelineFactory;
 import org.jboss.netty.channel.group.ChannelGroup;
 import org.jboss.netty.channel.socket.ClientSocketChannelFactory;
 import org.jboss.netty.channel.socket.nio.NioClientSocketChannelFactory;
-import org.jboss.netty.handler.codec.http.HttpRequest;
 import org.jboss.netty.handler.codec.http.HttpRequestDecoder;
-import org.jboss.netty.handler.codec.http.HttpResponse;
 import org.jboss.netty.handler.ssl.SslHandler;
 import org.jboss.netty.handler.timeout.IdleStateHandler;
 import org.jboss.netty.util.HashedWheelTimer;
@@ -41,18 +36,28 @@ public class HttpServerPipelineFactory implements ChannelPipelineFactory,
     private static final Logger log = 
         LoggerFactory.getLogger(HttpServerPipelineFactory.class);
     
-    private static final boolean CACHE_ENABLED = false;
-    
     private final ProxyAuthorizationManager authenticationManager;
     private final ChannelGroup channelGroup;
     private final ChainProxyManager chainProxyManager;
     
-    private final ClientSocketChannelFactory clientSocketChannelFactory =
-        new NioClientSocketChannelFactory(
-            Executors.newCachedThreadPool(),
-            Executors.newCachedThreadPool());
+    private final ClientSocketChannelFactory clientSocketChannelFactory;
     private final ProxyCacheManager cacheManager;
     
+    /**
+     * Idle connections to remote hosts, shared by all browser connections to
+     * this proxy.
+     */
+    private final UpstreamChannelPool upstreamChannelPool;
+    
+    private final DefaultHostResolver hostResolver = new DefaultHostResolver();
+    
+    /**
+     * All open CONNECT tunnels through this proxy.
+     */
+    private final TunnelRegistry tunnelRegistry = new TunnelRegistry();
+    
+    private final UpstreamConnector upstreamConnector;
+    
     //private final GlobalTrafficShapingHandler trafficShaper;
 
     private final KeyStoreManager ksm;
@@ -81,31 +86,66 @@ public class HttpServerPipelineFactory implements ChannelPipelineFactory,
         final ChannelGroup channelGroup, 
         final ChainProxyManager chainProxyManager, final KeyStoreManager ksm,
         final RelayPipelineFactoryFactory relayPipelineFactoryFactory) {
+        this(authorizationManager, channelGroup, chainProxyManager, ksm, 
+            relayPipelineFactoryFactory, null);
+    }
+    
+    /**
+     * Creates a new pipeline factory with the specified class for processing
+     * proxy authentication.
+     * 
+     * @param authorizationManager The manager for proxy authentication.
+     * @param channelGroup The group that keeps track of open channels.
+     * @param chainProxyManager upstream proxy server host and port or
+     * <code>null</code> if none used.
+     * @param ksm The KeyStore manager.
+     * @param relayPipelineFactoryFactory The relay pipeline factory factory.
+     * @param channelFactories The I/O engine for connections to remote
+     * hosts, typically shared with the server. If <code>null</code>, we
+     * create and release our own client channel factory.
+     */
+    public HttpServerPipelineFactory(
+        final ProxyAuthorizationManager authorizationManager, 
+        final ChannelGroup channelGroup, 
+        final ChainProxyManager chainProxyManager, final KeyStoreManager ksm,
+        final RelayPipelineFactoryFactory relayPipelineFactoryFactory,
+        final ProxyChannelFactories channelFactories) {
     	
     	this.relayPipelineFactoryFactory = relayPipelineFactoryFactory;
-    	
+        final boolean ownsClientSocketChannelFactory = 
+            channelFactories == null;
+        if (ownsClientSocketChannelFactory) {
+            this.clientSocketChannelFactory = new NioClientSocketChannelFactory(
+                Executors.newCachedThreadPool(),
+                Executors.newCachedThreadPool());
+            this.upstreamConnector = new UpstreamConnector(
+                this.clientSocketChannelFactory, this.hostResolver);
+        } else {
+            this.clientSocketChannelFactory = 
+                channelFactories.getClientChannelFactory();
+            this.upstreamConnector = new UpstreamConnector(
+                this.clientSocketChannelFactory, this.hostResolver,
+                channelFactories.getBufferFactory());
+        }
+        if (LittleProxyConfig.getPrewarmHosts() > 0) {
+            this.upstreamChannelPool = new PrewarmingUpstreamChannelPool(
+                new DefaultUpstreamChannelPool(), this.upstreamConnector);
+        } else {
+            this.upstreamChannelPool = new DefaultUpstreamChannelPool();
+        }
+        
         log.info("Creating server with keystore manager: {}", ksm);
         this.authenticationManager = authorizationManager;
         this.channelGroup = channelGroup;
         this.chainProxyManager = chainProxyManager;
         this.ksm = ksm;
         
-        if (CACHE_ENABLED) {
-            cacheManager = new DefaultProxyCacheManager();
+        if (LittleProxyConfig.isCacheEnabled()) {
+            this.cacheManager = new DefaultProxyCacheManager(
+                this.upstreamConnector, this.upstreamChannelPool, 
+                chainProxyManager);
         } else {
-            cacheManager = new ProxyCacheManager() {
-                
-                public boolean returnCacheHit(final HttpRequest request, 
-                    final Channel channel) {
-                    return false;
-                }
-                
-                public Future<String> cache(final HttpRequest originalRequest,
-                    final HttpResponse httpResponse, 
-                    final Object response, final ChannelBuffer encoded) {
-                    return null;
-                }
-            };
+            this.cacheManager = new NoOpProxyCacheManager();
         }
         
         if (LittleProxyConfig.isUseJmx()) {
@@ -114,7 +154,11 @@ public class HttpServerPipelineFactory implements ChannelPipelineFactory,
         
         Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
             public void run() {
-                clientSocketChannelFactory.releaseExternalResources();
+                upstreamChannelPool.close();
+                hostResolver.shutdown();
+                if (ownsClientSocketChannelFactory) {
+                    clientSocketChannelFactory.releaseExternalResources();
+                }
             }
         }));
     }
@@ -132,6 +176,18 @@ public class HttpServerPipelineFactory implements ChannelPipelineFactory,
             if(!mbs.isRegistered(mxBeanName)) {
                 mbs.registerMBean(this, mxBeanName);
             }
+            final ObjectName tunnelsName = new ObjectName(pack+":type="+
+                TunnelRegistry.class.getSimpleName()+"-"+hashCode());
+            if(!mbs.isRegistered(tunnelsName)) {
+                mbs.registerMBean(this.tunnelRegistry, tunnelsName);
+            }
+            if (this.cacheManager instanceof CacheData) {
+                final ObjectName cacheName = new ObjectName(pack+":type="+
+                    CacheData.class.getSimpleName()+"-"+hashCode());
+                if(!mbs.isRegistered(cacheName)) {
+                    mbs.registerMBean(this.cacheManager, cacheName);
+                }
+            }
         } catch (final MalformedObjectNameException e) {
             log.error("Could not set up JMX", e);
         } catch (final InstanceAlreadyExistsException e) {
@@ -171,7 +227,9 @@ public class HttpServerPipelineFactory implements ChannelPipelineFactory,
         final HttpRequestHandler httpRequestHandler = 
             new HttpRequestHandler(this.cacheManager, authenticationManager,
             this.channelGroup, this.clientSocketChannelFactory,
-            this.chainProxyManager, relayPipelineFactoryFactory);
+            this.chainProxyManager, relayPipelineFactoryFactory,
+            this.upstreamChannelPool, this.upstreamConnector, 
+            this.tunnelRegistry);
         
         pipeline.addLast("idle", new IdleStateHandler(TIMER, 0, 0, 70));
         //pipeline.addLast("idleAware", new IdleAwareHandler("Client-Pipeline"));
@@ -184,4 +242,12 @@ public class HttpServerPipelineFactory implements ChannelPipelineFactory,
     public int getNumRequestHandlers() {
         return this.numHandlers;
     }
+
+    public int getNumIdleUpstreamConnections() {
+        return this.upstreamChannelPool.getIdleCount();
+    }
+
+    public ProxyCacheManager getCacheManager() {
+        return this.cacheManager;
+    }
 }
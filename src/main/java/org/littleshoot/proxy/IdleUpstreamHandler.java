@@ -0,0 +1,34 @@
+package org.littleshoot.proxy;
+
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ExceptionEvent;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Handler for connections to remote hosts while they sit idle in a pool.
+ * Servers shouldn't send anything before they get a request, so we just
+ * close the connection if they do.
+ */
+public class IdleUpstreamHandler extends SimpleChannelUpstreamHandler {
+
+    private static final Logger LOG =
+        LoggerFactory.getLogger(IdleUpstreamHandler.class);
+
+    @Override
+    public void messageReceived(final ChannelHandlerContext ctx,
+        final MessageEvent me) {
+        LOG.info("Unexpected data on idle connection -- closing {}",
+            me.getChannel());
+        me.getChannel().close();
+    }
+
+    @Override
+    public void exceptionCaught(final ChannelHandlerContext ctx,
+        final ExceptionEvent e) {
+        LOG.debug("Exception on idle connection", e.getCause());
+        e.getChannel().close();
+    }
+}
@@ -0,0 +1,263 @@
+package org.littleshoot.proxy;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.jboss.netty.handler.codec.http.HttpRequest;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Store that keeps secondary indexes of the keys in another store, so we
+ * can purge all the entries for a host, under a path prefix, or with a tag
+ * at a cost that grows with the number of entries purged rather than the
+ * size of the cache. Keys are sorted for prefix and host purges, and
+ * tagged keys are indexed by each of their tags.
+ * <p>
+ * Every entry in the underlying store must be indexed, or purges would
+ * silently miss it, so entries have to be stored through this store, and
+ * we index whatever a {@link DiskHttpCacheStore} recovered from the last
+ * run when we're created. Entries the underlying store evicts stay in the
+ * indexes until they're purged or stored again, so we cap the number of
+ * keys we index. Past that we remove the oldest keys from the underlying
+ * store along with the indexes, rather than keep entries we can't find.
+ */
+public class IndexedHttpCacheStore implements HttpCacheStore {
+
+    private static final Logger LOG =
+        LoggerFactory.getLogger(IndexedHttpCacheStore.class);
+
+    private final HttpCacheStore store;
+
+    private final int maxKeys;
+
+    /**
+     * The tags of each key we index, oldest first.
+     */
+    private final LinkedHashMap<String, Set<String>> keys =
+        new LinkedHashMap<String, Set<String>>();
+
+    private final TreeSet<String> sorted = new TreeSet<String>();
+
+    private final Map<String, Set<String>> tagged =
+        new HashMap<String, Set<String>>();
+
+    /**
+     * Creates a new store.
+     *
+     * @param store The store to index.
+     * @param maxKeys The most keys we index.
+     */
+    public IndexedHttpCacheStore(final HttpCacheStore store,
+        final int maxKeys) {
+        this.store = store;
+        this.maxKeys = maxKeys;
+        final Map<String, Set<String>> recovered = recoveredKeys(store);
+        if (!recovered.isEmpty()) {
+            final List<String> dropped = new ArrayList<String>();
+            synchronized (this) {
+                for (final Map.Entry<String, Set<String>> e :
+                    recovered.entrySet()) {
+                    index(e.getKey(), e.getValue(), dropped);
+                }
+            }
+            removeAll(dropped);
+            LOG.info("Indexed {} recovered keys", recovered.size());
+        }
+    }
+
+    /**
+     * Returns the keys and tags of the entries the store recovered from
+     * disk, oldest first.
+     */
+    private static Map<String, Set<String>> recoveredKeys(
+        final HttpCacheStore store) {
+        if (store instanceof DiskHttpCacheStore) {
+            return ((DiskHttpCacheStore) store).takeRecoveredKeys();
+        }
+        if (store instanceof TieredHttpCacheStore) {
+            return recoveredKeys(((TieredHttpCacheStore) store).getDisk());
+        }
+        return Collections.emptyMap();
+    }
+
+    public CacheEntry get(final String key, final HttpRequest request) {
+        return this.store.get(key, request);
+    }
+
+    public void put(final CacheEntry entry) {
+        this.store.put(entry);
+        final List<String> dropped = new ArrayList<String>();
+        synchronized (this) {
+            index(entry.getKey(), entry.getTags(), dropped);
+        }
+        removeAll(dropped);
+    }
+
+    /**
+     * Adds the key to the indexes, dropping the oldest keys past the most
+     * we index. Callers must hold the lock on the store.
+     *
+     * @param key The key.
+     * @param tags The tags of the entry.
+     * @param dropped The list to add the keys we stopped indexing to, which
+     * the caller must remove from the underlying store.
+     */
+    private void index(final String key, final Set<String> tags,
+        final List<String> dropped) {
+        // Variants of the same key share their tags.
+        final Set<String> existing = this.keys.remove(key);
+        if (existing != null) {
+            tags.addAll(existing);
+        }
+        this.keys.put(key, tags);
+        this.sorted.add(key);
+        for (final String tag : tags) {
+            Set<String> keysWithTag = this.tagged.get(tag);
+            if (keysWithTag == null) {
+                keysWithTag = new HashSet<String>();
+                this.tagged.put(tag, keysWithTag);
+            }
+            keysWithTag.add(key);
+        }
+        final Iterator<Map.Entry<String, Set<String>>> oldest =
+            this.keys.entrySet().iterator();
+        while (this.keys.size() > this.maxKeys) {
+            final Map.Entry<String, Set<String>> old = oldest.next();
+            oldest.remove();
+            unindex(old.getKey(), old.getValue());
+            dropped.add(old.getKey());
+        }
+    }
+
+    /**
+     * Removes the entries for keys we stopped indexing from the underlying
+     * store, so we never hold entries a purge can't find.
+     */
+    private void removeAll(final List<String> dropped) {
+        for (final String key : dropped) {
+            LOG.debug("Too many keys to index -- removing {}", key);
+            this.store.remove(key);
+        }
+    }
+
+    public boolean remove(final String key) {
+        synchronized (this) {
+            unindex(key, this.keys.remove(key));
+        }
+        return this.store.remove(key);
+    }
+
+    /**
+     * Removes every entry whose key starts with the prefix.
+     *
+     * @param prefix The key prefix, which is the host followed by the
+     * start of the path.
+     * @return The number of keys removed.
+     */
+    public int purgePrefix(final String prefix) {
+        final List<String> matches = new ArrayList<String>();
+        synchronized (this) {
+            for (final String key : this.sorted.tailSet(prefix)) {
+                if (!key.startsWith(prefix)) {
+                    break;
+                }
+                matches.add(key);
+            }
+        }
+        return purge(matches);
+    }
+
+    /**
+     * Removes every entry for the host, on any port.
+     *
+     * @param host The host.
+     * @return The number of keys removed.
+     */
+    public int purgeHost(final String host) {
+        return purgePrefix(host + "/") + purgePrefix(host + ":");
+    }
+
+    /**
+     * Removes every entry tagged with the tag.
+     *
+     * @param tag The tag, from the Surrogate-Key or Cache-Tag header of the
+     * responses.
+     * @return The number of keys removed.
+     */
+    public int purgeTag(final String tag) {
+        final List<String> matches;
+        synchronized (this) {
+            final Set<String> keysWithTag = this.tagged.get(tag);
+            if (keysWithTag == null) {
+                return 0;
+            }
+            matches = new ArrayList<String>(keysWithTag);
+        }
+        return purge(matches);
+    }
+
+    private int purge(final List<String> matches) {
+        int purged = 0;
+        for (final String key : matches) {
+            if (remove(key)) {
+                purged++;
+            }
+        }
+        LOG.info("Purged {} cached responses", purged);
+        return purged;
+    }
+
+    /**
+     * Removes the key from the secondary indexes. Callers must hold the
+     * lock on the store.
+     */
+    private void unindex(final String key, final Set<String> tags) {
+        this.sorted.remove(key);
+        if (tags == null) {
+            return;
+        }
+        for (final String tag : tags) {
+            final Set<String> keysWithTag = this.tagged.get(tag);
+            if (keysWithTag != null) {
+                keysWithTag.remove(key);
+                if (keysWithTag.isEmpty()) {
+                    this.tagged.remove(tag);
+                }
+            }
+        }
+    }
+
+    /**
+     * Accessor for the number of keys we're indexing.
+     *
+     * @return The number of indexed keys.
+     */
+    public synchronized int getIndexedKeyCount() {
+        return this.keys.size();
+    }
+
+    public int getEntryCount() {
+        return this.store.getEntryCount();
+    }
+
+    public long getSizeBytes() {
+        return this.store.getSizeBytes();
+    }
+
+    public void close() {
+        this.store.close();
+    }
+
+    public HttpCacheStore getStore() {
+        return store;
+    }
+}
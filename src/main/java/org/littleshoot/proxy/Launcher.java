@@ -23,6 +23,8 @@ public class Launcher {
     private static final String OPTION_DNSSEC = "dnssec";
     
     private static final String OPTION_PORT = "port";
+    
+    private static final String OPTION_AFFINITY = "affinity";
 
     private static final String OPTION_HELP = "help";
     
@@ -38,6 +40,9 @@ public class Launcher {
             "Request and verify DNSSEC signatures.");
         options.addOption(null, OPTION_PORT, true, 
             "Run on the specified port.");
+        options.addOption(null, OPTION_AFFINITY, true, 
+            "Run connections to remote hosts on the same I/O thread as " +
+            "their browser connections.");
         options.addOption(null, OPTION_HELP, false,
             "Display command line help.");
         final CommandLineParser parser = new PosixParser();
@@ -70,6 +75,19 @@ public class Launcher {
                 return;
             }
         }
+        if (cmd.hasOption(OPTION_AFFINITY)) {
+            final String val = cmd.getOptionValue(OPTION_AFFINITY);
+            if (ProxyUtils.isTrue(val)) {
+                LOG.info("Using I/O worker affinity");
+                LittleProxyConfig.setUseWorkerAffinity(true);
+            } else if (ProxyUtils.isFalse(val)) {
+                LOG.info("Not using I/O worker affinity");
+                LittleProxyConfig.setUseWorkerAffinity(false);
+            } else {
+                printHelp(options, "Unexpected value for "+OPTION_AFFINITY+"=:"+val);
+                return;
+            }
+        }
         final int defaultPort = 8080;
         int port;
         if (cmd.hasOption(OPTION_PORT)) {
@@ -4,7 +4,9 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.commons.io.IOUtils;
 import org.slf4j.Logger;
@@ -47,7 +49,185 @@ public class LittleProxyConfig {
     private static boolean useJmx = 
         ProxyUtils.extractBooleanDefaultFalse(props, "jmx");
     
+    private static int upstreamPoolMaxIdlePerHost =
+        ProxyUtils.extractInt(props, "upstream_pool_max_idle_per_host", 8);
+    
+    private static int upstreamPoolMinIdlePerHost =
+        ProxyUtils.extractInt(props, "upstream_pool_min_idle_per_host", 0);
+    
+    private static long upstreamPoolIdleTimeoutMillis =
+        ProxyUtils.extractLong(props, "upstream_pool_idle_timeout_millis", 
+            30 * 1000);
+    
+    private static int ioBossThreads =
+        ProxyUtils.extractInt(props, "io_boss_threads", 1);
+    
+    private static int ioWorkerThreads =
+        ProxyUtils.extractInt(props, "io_worker_threads", 
+            Runtime.getRuntime().availableProcessors());
+    
+    private static boolean useWorkerAffinity =
+        ProxyUtils.extractBooleanDefaultFalse(props, "worker_affinity");
+    
+    private static long maxPendingChunkBytes =
+        ProxyUtils.extractLong(props, "max_pending_chunk_bytes", 1024 * 1024);
+    
+    private static int dnsResolverThreads =
+        ProxyUtils.extractInt(props, "dns_resolver_threads", 4);
+    
+    private static int dnsCacheSize =
+        ProxyUtils.extractInt(props, "dns_cache_size", 4096);
+    
+    private static int dnsCacheTtlSeconds =
+        ProxyUtils.extractInt(props, "dns_cache_ttl_seconds", -1);
+    
+    private static int dnsNegativeCacheTtlSeconds =
+        ProxyUtils.extractInt(props, "dns_negative_cache_ttl_seconds", -1);
+    
+    private static int connectTimeoutMillis =
+        ProxyUtils.extractInt(props, "connect_timeout_millis", 40 * 1000);
+    
+    private static long connectAttemptDelayMillis =
+        ProxyUtils.extractLong(props, "connect_attempt_delay_millis", 250);
+    
+    private static int prewarmHosts =
+        ProxyUtils.extractInt(props, "prewarm_hosts", 0);
+    
+    private static int prewarmConnectionsPerHost =
+        ProxyUtils.extractInt(props, "prewarm_connections_per_host", 2);
+    
+    private static long prewarmIntervalMillis =
+        ProxyUtils.extractLong(props, "prewarm_interval_millis", 1000);
+    
+    private static long maxPipelinedResponseBytes =
+        ProxyUtils.extractLong(props, "max_pipelined_response_bytes", 
+            1024 * 1024);
+    
+    private static boolean useDirectBuffers =
+        ProxyUtils.extractBooleanDefaultFalse(props, "direct_buffers");
+    
+    private static int writeBufferHighWaterMark =
+        ProxyUtils.extractInt(props, "write_buffer_high_water_mark", 
+            64 * 1024);
+    
+    private static int writeBufferLowWaterMark =
+        ProxyUtils.extractInt(props, "write_buffer_low_water_mark", 
+            32 * 1024);
+    
+    private static int tunnelIdleTimeoutSeconds =
+        ProxyUtils.extractInt(props, "tunnel_idle_timeout_seconds", 300);
+    
+    private static long tunnelMaxLifetimeSeconds =
+        ProxyUtils.extractLong(props, "tunnel_max_lifetime_seconds", 0);
+    
+    private static boolean optimisticConnect =
+        ProxyUtils.extractBooleanDefaultFalse(props, "optimistic_connect");
+    
+    private static long optimisticConnectBufferBytes =
+        ProxyUtils.extractLong(props, "optimistic_connect_buffer_bytes", 
+            64 * 1024);
+    
+    private static boolean cacheEnabled =
+        ProxyUtils.extractBooleanDefaultFalse(props, "cache");
+    
+    private static long cacheMaxBytes =
+        ProxyUtils.extractLong(props, "cache_max_bytes", 64 * 1024 * 1024);
+    
+    private static long cacheMaxObjectBytes =
+        ProxyUtils.extractLong(props, "cache_max_object_bytes", 1024 * 1024);
+    
+    private static long collapsedForwardingTimeoutMillis =
+        ProxyUtils.extractLong(props, "collapsed_forwarding_timeout_millis", 
+            10000);
+    
+    private static String cacheDir = props.getProperty("cache_dir");
+    
+    private static long cacheDiskMaxBytes =
+        ProxyUtils.extractLong(props, "cache_disk_max_bytes", 
+            10L * 1024 * 1024 * 1024);
+    
+    private static long cacheDiskSegmentBytes =
+        ProxyUtils.extractLong(props, "cache_disk_segment_bytes", 
+            256 * 1024 * 1024);
+    
+    private static int cacheDiskIndexSlots =
+        ProxyUtils.extractInt(props, "cache_disk_index_slots", 1024 * 1024);
+    
+    private static long cacheDiskCheckpointIntervalMillis =
+        ProxyUtils.extractLong(props, 
+            "cache_disk_checkpoint_interval_millis", 60 * 1000);
+    
+    private static long cacheMemoryMaxObjectBytes =
+        ProxyUtils.extractLong(props, "cache_memory_max_object_bytes", 
+            256 * 1024);
+    
+    private static boolean cacheOffHeap =
+        ProxyUtils.extractBooleanDefaultFalse(props, "cache_off_heap");
+    
+    private static int cacheSlabBytes =
+        ProxyUtils.extractInt(props, "cache_slab_bytes", 1024 * 1024);
+    
+    private static int cacheStaleWhileRevalidateSeconds =
+        ProxyUtils.extractInt(props, "cache_stale_while_revalidate_seconds", 0);
+    
+    private static final Map<String, Integer> 
+        hostCacheStaleWhileRevalidateSeconds = 
+            extractPerHost("cache_stale_while_revalidate_seconds.");
+    
+    private static int cacheStaleIfErrorSeconds =
+        ProxyUtils.extractInt(props, "cache_stale_if_error_seconds", 0);
+    
+    private static final Map<String, Integer> hostCacheStaleIfErrorSeconds = 
+        extractPerHost("cache_stale_if_error_seconds.");
+    
+    private static int cacheMaxRefreshes =
+        ProxyUtils.extractInt(props, "cache_max_refreshes", 64);
+    
+    private static int cacheInsertThreads =
+        ProxyUtils.extractInt(props, "cache_insert_threads", 2);
+    
+    private static int cacheInsertQueueSize =
+        ProxyUtils.extractInt(props, "cache_insert_queue_size", 1024);
+    
+    private static int cacheInsertBatchSize =
+        ProxyUtils.extractInt(props, "cache_insert_batch_size", 32);
+    
+    private static long negativeClientErrorTtlMillis =
+        ProxyUtils.extractLong(props, 
+            "negative_client_error_ttl_millis", 10 * 1000);
+    
+    private static long negativeServerErrorTtlMillis =
+        ProxyUtils.extractLong(props, 
+            "negative_server_error_ttl_millis", 5 * 1000);
+    
+    private static long negativeConnectTtlMillis =
+        ProxyUtils.extractLong(props, "negative_connect_ttl_millis", 5 * 1000);
+    
+    private static int cacheIndexMaxKeys =
+        ProxyUtils.extractInt(props, "cache_index_max_keys", 1024 * 1024);
+    
+    private static String cachePurgeAllowedAddresses = 
+        props.getProperty("cache_purge_allowed_addresses", "127.0.0.1");
+    
     private LittleProxyConfig(){}
+    
+    /**
+     * Reads the settings for individual hosts from properties named with
+     * the prefix followed by the host, such as 
+     * <code>cache_stale_if_error_seconds.www.example.com=600</code>.
+     */
+    private static Map<String, Integer> extractPerHost(final String prefix) {
+        final Map<String, Integer> values = 
+            new ConcurrentHashMap<String, Integer>();
+        for (final Object key : props.keySet()) {
+            final String name = (String) key;
+            if (name.startsWith(prefix) && name.length() > prefix.length()) {
+                values.put(name.substring(prefix.length()).toLowerCase(), 
+                    ProxyUtils.extractInt(props, name, 0));
+            }
+        }
+        return values;
+    }
 
     /**
      * Sets whether or not to use DNSSEC to request signed records when
@@ -87,4 +267,1038 @@ public class LittleProxyConfig {
     public static boolean isUseJmx() {
         return useJmx;
     }
+
+    /**
+     * Sets the maximum number of idle connections to any single remote host 
+     * we keep in the shared pool of upstream connections.
+     * 
+     * @param upstreamPoolMaxIdlePerHost The maximum number of idle 
+     * connections per host.
+     */
+    public static void setUpstreamPoolMaxIdlePerHost(
+        final int upstreamPoolMaxIdlePerHost) {
+        LittleProxyConfig.upstreamPoolMaxIdlePerHost = 
+            upstreamPoolMaxIdlePerHost;
+    }
+
+    /**
+     * Returns the maximum number of idle connections to any single remote 
+     * host -- defaults to 8.
+     * 
+     * @return The maximum number of idle connections per host.
+     */
+    public static int getUpstreamPoolMaxIdlePerHost() {
+        return upstreamPoolMaxIdlePerHost;
+    }
+
+    /**
+     * Sets the number of idle connections to each remote host we never 
+     * close for being idle.
+     * 
+     * @param upstreamPoolMinIdlePerHost The minimum number of idle 
+     * connections per host.
+     */
+    public static void setUpstreamPoolMinIdlePerHost(
+        final int upstreamPoolMinIdlePerHost) {
+        LittleProxyConfig.upstreamPoolMinIdlePerHost = 
+            upstreamPoolMinIdlePerHost;
+    }
+
+    /**
+     * Returns the number of idle connections to each remote host we never
+     * close for being idle -- defaults to 0.
+     * 
+     * @return The minimum number of idle connections per host.
+     */
+    public static int getUpstreamPoolMinIdlePerHost() {
+        return upstreamPoolMinIdlePerHost;
+    }
+
+    /**
+     * Sets how long connections to remote hosts can sit idle in the pool
+     * before we close them.
+     * 
+     * @param upstreamPoolIdleTimeoutMillis The idle timeout in milliseconds.
+     */
+    public static void setUpstreamPoolIdleTimeoutMillis(
+        final long upstreamPoolIdleTimeoutMillis) {
+        LittleProxyConfig.upstreamPoolIdleTimeoutMillis = 
+            upstreamPoolIdleTimeoutMillis;
+    }
+
+    /**
+     * Returns how long connections to remote hosts can sit idle in the pool
+     * -- defaults to 30 seconds.
+     * 
+     * @return The idle timeout in milliseconds.
+     */
+    public static long getUpstreamPoolIdleTimeoutMillis() {
+        return upstreamPoolIdleTimeoutMillis;
+    }
+
+    /**
+     * Sets the number of threads used for establishing connections to
+     * remote hosts.
+     * 
+     * @param ioBossThreads The number of boss threads.
+     */
+    public static void setIoBossThreads(final int ioBossThreads) {
+        LittleProxyConfig.ioBossThreads = ioBossThreads;
+    }
+
+    /**
+     * Returns the number of threads used for establishing connections to
+     * remote hosts -- defaults to 1.
+     * 
+     * @return The number of boss threads.
+     */
+    public static int getIoBossThreads() {
+        return ioBossThreads;
+    }
+
+    /**
+     * Sets the number of threads doing I/O for all connections, both from
+     * browsers and to remote hosts.
+     * 
+     * @param ioWorkerThreads The number of worker threads.
+     */
+    public static void setIoWorkerThreads(final int ioWorkerThreads) {
+        LittleProxyConfig.ioWorkerThreads = ioWorkerThreads;
+    }
+
+    /**
+     * Returns the number of threads doing I/O for all connections -- 
+     * defaults to the number of available processors.
+     * 
+     * @return The number of worker threads.
+     */
+    public static int getIoWorkerThreads() {
+        return ioWorkerThreads;
+    }
+
+    /**
+     * Sets whether or not connections to remote hosts should run on the same
+     * I/O worker thread as the browser connection they're relaying for.
+     * 
+     * @param useWorkerAffinity Whether or not to use worker affinity.
+     */
+    public static void setUseWorkerAffinity(final boolean useWorkerAffinity) {
+        LittleProxyConfig.useWorkerAffinity = useWorkerAffinity;
+    }
+
+    /**
+     * Whether or not connections to remote hosts run on the same I/O worker
+     * thread as their browser connections -- defaults to false.
+     * 
+     * @return <code>true</code> if using worker affinity, otherwise
+     * <code>false</code>.
+     */
+    public static boolean isUseWorkerAffinity() {
+        return useWorkerAffinity;
+    }
+
+    /**
+     * Sets the maximum number of bytes of request chunks we hold for a 
+     * browser connection while connecting to the remote host. Browsers
+     * sending more than this before we're connected are disconnected.
+     * 
+     * @param maxPendingChunkBytes The maximum number of pending bytes.
+     */
+    public static void setMaxPendingChunkBytes(
+        final long maxPendingChunkBytes) {
+        LittleProxyConfig.maxPendingChunkBytes = maxPendingChunkBytes;
+    }
+
+    /**
+     * Returns the maximum number of bytes of request chunks we hold while
+     * connecting to the remote host -- defaults to 1MB.
+     * 
+     * @return The maximum number of pending bytes.
+     */
+    public static long getMaxPendingChunkBytes() {
+        return maxPendingChunkBytes;
+    }
+
+    /**
+     * Sets the number of threads performing DNS lookups.
+     * 
+     * @param dnsResolverThreads The number of resolver threads.
+     */
+    public static void setDnsResolverThreads(final int dnsResolverThreads) {
+        LittleProxyConfig.dnsResolverThreads = dnsResolverThreads;
+    }
+
+    /**
+     * Returns the number of threads performing DNS lookups -- defaults to 4.
+     * 
+     * @return The number of resolver threads.
+     */
+    public static int getDnsResolverThreads() {
+        return dnsResolverThreads;
+    }
+
+    /**
+     * Sets the maximum number of hosts we cache DNS lookups for.
+     * 
+     * @param dnsCacheSize The maximum number of cached hosts.
+     */
+    public static void setDnsCacheSize(final int dnsCacheSize) {
+        LittleProxyConfig.dnsCacheSize = dnsCacheSize;
+    }
+
+    /**
+     * Returns the maximum number of hosts we cache DNS lookups for -- 
+     * defaults to 4096.
+     * 
+     * @return The maximum number of cached hosts.
+     */
+    public static int getDnsCacheSize() {
+        return dnsCacheSize;
+    }
+
+    /**
+     * Sets how long we cache successful DNS lookups for. Negative values
+     * mean we use the JVM's <code>networkaddress.cache.ttl</code> setting.
+     * 
+     * @param dnsCacheTtlSeconds The time to live in seconds.
+     */
+    public static void setDnsCacheTtlSeconds(final int dnsCacheTtlSeconds) {
+        LittleProxyConfig.dnsCacheTtlSeconds = dnsCacheTtlSeconds;
+    }
+
+    /**
+     * Returns how long we cache successful DNS lookups for -- defaults to
+     * -1, meaning the JVM's own setting.
+     * 
+     * @return The time to live in seconds.
+     */
+    public static int getDnsCacheTtlSeconds() {
+        return dnsCacheTtlSeconds;
+    }
+
+    /**
+     * Sets how long we cache failed DNS lookups for. Negative values mean we
+     * use the JVM's <code>networkaddress.cache.negative.ttl</code> setting.
+     * 
+     * @param dnsNegativeCacheTtlSeconds The time to live in seconds.
+     */
+    public static void setDnsNegativeCacheTtlSeconds(
+        final int dnsNegativeCacheTtlSeconds) {
+        LittleProxyConfig.dnsNegativeCacheTtlSeconds = 
+            dnsNegativeCacheTtlSeconds;
+    }
+
+    /**
+     * Returns how long we cache failed DNS lookups for -- defaults to -1,
+     * meaning the JVM's own setting.
+     * 
+     * @return The time to live in seconds.
+     */
+    public static int getDnsNegativeCacheTtlSeconds() {
+        return dnsNegativeCacheTtlSeconds;
+    }
+
+    /**
+     * Sets how long we wait for each attempt to connect to a remote host.
+     * 
+     * @param connectTimeoutMillis The connect timeout in milliseconds.
+     */
+    public static void setConnectTimeoutMillis(final int connectTimeoutMillis) {
+        LittleProxyConfig.connectTimeoutMillis = connectTimeoutMillis;
+    }
+
+    /**
+     * Returns how long we wait for each attempt to connect to a remote host
+     * -- defaults to 40 seconds.
+     * 
+     * @return The connect timeout in milliseconds.
+     */
+    public static int getConnectTimeoutMillis() {
+        return connectTimeoutMillis;
+    }
+
+    /**
+     * Sets how long we wait for an attempt to connect to one address of a
+     * remote host before also trying its next address.
+     * 
+     * @param connectAttemptDelayMillis The delay in milliseconds.
+     */
+    public static void setConnectAttemptDelayMillis(
+        final long connectAttemptDelayMillis) {
+        LittleProxyConfig.connectAttemptDelayMillis = connectAttemptDelayMillis;
+    }
+
+    /**
+     * Returns how long we wait for an attempt to connect to one address of
+     * a remote host before also trying its next address -- defaults to 250
+     * milliseconds.
+     * 
+     * @return The delay in milliseconds.
+     */
+    public static long getConnectAttemptDelayMillis() {
+        return connectAttemptDelayMillis;
+    }
+
+    /**
+     * Sets the number of most frequently requested remote hosts we keep 
+     * idle connections open to ahead of time. Zero disables pre-warming.
+     * 
+     * @param prewarmHosts The number of hosts to pre-warm connections to.
+     */
+    public static void setPrewarmHosts(final int prewarmHosts) {
+        LittleProxyConfig.prewarmHosts = prewarmHosts;
+    }
+
+    /**
+     * Returns the number of most frequently requested remote hosts we keep
+     * idle connections open to -- defaults to 0, meaning no pre-warming.
+     * 
+     * @return The number of hosts to pre-warm connections to.
+     */
+    public static int getPrewarmHosts() {
+        return prewarmHosts;
+    }
+
+    /**
+     * Sets the number of idle connections we keep open to each frequently
+     * requested host.
+     * 
+     * @param prewarmConnectionsPerHost The number of connections per host.
+     */
+    public static void setPrewarmConnectionsPerHost(
+        final int prewarmConnectionsPerHost) {
+        LittleProxyConfig.prewarmConnectionsPerHost = 
+            prewarmConnectionsPerHost;
+    }
+
+    /**
+     * Returns the number of idle connections we keep open to each 
+     * frequently requested host -- defaults to 2.
+     * 
+     * @return The number of connections per host.
+     */
+    public static int getPrewarmConnectionsPerHost() {
+        return prewarmConnectionsPerHost;
+    }
+
+    /**
+     * Sets how often we open connections to frequently requested hosts to 
+     * replace ones that were used or closed.
+     * 
+     * @param prewarmIntervalMillis The interval in milliseconds.
+     */
+    public static void setPrewarmIntervalMillis(
+        final long prewarmIntervalMillis) {
+        LittleProxyConfig.prewarmIntervalMillis = prewarmIntervalMillis;
+    }
+
+    /**
+     * Returns how often we open connections to frequently requested hosts
+     * -- defaults to every second.
+     * 
+     * @return The interval in milliseconds.
+     */
+    public static long getPrewarmIntervalMillis() {
+        return prewarmIntervalMillis;
+    }
+
+    /**
+     * Sets how many bytes of responses to pipelined requests we hold for a
+     * browser connection, while waiting on responses to earlier requests,
+     * before we stop reading from the remote hosts that are ahead.
+     * 
+     * @param maxPipelinedResponseBytes The maximum number of bytes to hold.
+     */
+    public static void setMaxPipelinedResponseBytes(
+        final long maxPipelinedResponseBytes) {
+        LittleProxyConfig.maxPipelinedResponseBytes = maxPipelinedResponseBytes;
+    }
+
+    /**
+     * Returns how many bytes of responses to pipelined requests we hold for
+     * a browser connection -- defaults to 1MB.
+     * 
+     * @return The maximum number of bytes to hold.
+     */
+    public static long getMaxPipelinedResponseBytes() {
+        return maxPipelinedResponseBytes;
+    }
+
+    /**
+     * Sets whether or not channels read into direct buffers carved out of
+     * larger slabs, which saves copying between heap buffers and the
+     * socket, at the cost of memory the GC doesn't size the heap by.
+     * 
+     * @param useDirectBuffers Whether or not to use direct buffers.
+     */
+    public static void setUseDirectBuffers(final boolean useDirectBuffers) {
+        LittleProxyConfig.useDirectBuffers = useDirectBuffers;
+    }
+
+    /**
+     * Returns whether or not channels read into direct buffers -- defaults
+     * to false.
+     * 
+     * @return Whether or not to use direct buffers.
+     */
+    public static boolean isUseDirectBuffers() {
+        return useDirectBuffers;
+    }
+
+    /**
+     * Sets how many bytes can be waiting to be written to a connection
+     * before we stop reading from the connections relaying to it.
+     * 
+     * @param writeBufferHighWaterMark The high water mark, in bytes.
+     */
+    public static void setWriteBufferHighWaterMark(
+        final int writeBufferHighWaterMark) {
+        LittleProxyConfig.writeBufferHighWaterMark = writeBufferHighWaterMark;
+    }
+
+    /**
+     * Returns how many bytes can be waiting to be written to a connection
+     * before we stop reading from the connections relaying to it -- 
+     * defaults to 64KB.
+     * 
+     * @return The high water mark, in bytes.
+     */
+    public static int getWriteBufferHighWaterMark() {
+        return writeBufferHighWaterMark;
+    }
+
+    /**
+     * Sets how few bytes must be waiting to be written to a connection
+     * before we read from the connections relaying to it again.
+     * 
+     * @param writeBufferLowWaterMark The low water mark, in bytes.
+     */
+    public static void setWriteBufferLowWaterMark(
+        final int writeBufferLowWaterMark) {
+        LittleProxyConfig.writeBufferLowWaterMark = writeBufferLowWaterMark;
+    }
+
+    /**
+     * Returns how few bytes must be waiting to be written to a connection
+     * before we read from the connections relaying to it again -- defaults
+     * to 32KB.
+     * 
+     * @return The low water mark, in bytes.
+     */
+    public static int getWriteBufferLowWaterMark() {
+        return writeBufferLowWaterMark;
+    }
+
+    /**
+     * Sets how long a CONNECT tunnel can go without relaying anything in
+     * either direction before we close it.
+     * 
+     * @param tunnelIdleTimeoutSeconds The idle timeout in seconds, or 0 to
+     * never close idle tunnels.
+     */
+    public static void setTunnelIdleTimeoutSeconds(
+        final int tunnelIdleTimeoutSeconds) {
+        LittleProxyConfig.tunnelIdleTimeoutSeconds = tunnelIdleTimeoutSeconds;
+    }
+
+    /**
+     * Returns how long a CONNECT tunnel can be idle before we close it -- 
+     * defaults to 5 minutes.
+     * 
+     * @return The idle timeout in seconds.
+     */
+    public static int getTunnelIdleTimeoutSeconds() {
+        return tunnelIdleTimeoutSeconds;
+    }
+
+    /**
+     * Sets how long a CONNECT tunnel can stay open, whether or not it's 
+     * idle.
+     * 
+     * @param tunnelMaxLifetimeSeconds The maximum lifetime in seconds, or 0
+     * for no limit.
+     */
+    public static void setTunnelMaxLifetimeSeconds(
+        final long tunnelMaxLifetimeSeconds) {
+        LittleProxyConfig.tunnelMaxLifetimeSeconds = tunnelMaxLifetimeSeconds;
+    }
+
+    /**
+     * Returns how long a CONNECT tunnel can stay open -- defaults to no
+     * limit.
+     * 
+     * @return The maximum lifetime in seconds.
+     */
+    public static long getTunnelMaxLifetimeSeconds() {
+        return tunnelMaxLifetimeSeconds;
+    }
+
+    /**
+     * Sets whether or not we tell browsers their CONNECT tunnels are 
+     * established before we've actually connected to the remote host. This
+     * saves a round trip on every tunnel, but browsers then only find out 
+     * we couldn't connect when the tunnel closes.
+     * 
+     * @param optimisticConnect Whether or not to use optimistic CONNECT.
+     */
+    public static void setOptimisticConnect(final boolean optimisticConnect) {
+        LittleProxyConfig.optimisticConnect = optimisticConnect;
+    }
+
+    /**
+     * Returns whether or not we tell browsers their CONNECT tunnels are
+     * established before we've connected -- defaults to false.
+     * 
+     * @return Whether or not to use optimistic CONNECT.
+     */
+    public static boolean isOptimisticConnect() {
+        return optimisticConnect;
+    }
+
+    /**
+     * Sets how many bytes we hold from a browser on an optimistic CONNECT
+     * tunnel until we've connected to the remote host.
+     * 
+     * @param optimisticConnectBufferBytes The maximum number of bytes to
+     * hold.
+     */
+    public static void setOptimisticConnectBufferBytes(
+        final long optimisticConnectBufferBytes) {
+        LittleProxyConfig.optimisticConnectBufferBytes = 
+            optimisticConnectBufferBytes;
+    }
+
+    /**
+     * Returns how many bytes we hold from a browser on an optimistic 
+     * CONNECT tunnel until we've connected -- defaults to 64KB.
+     * 
+     * @return The maximum number of bytes to hold.
+     */
+    public static long getOptimisticConnectBufferBytes() {
+        return optimisticConnectBufferBytes;
+    }
+
+    /**
+     * Sets whether or not to cache responses and serve requests from the
+     * cache. A proxy started with caching off never sets up a cache, but
+     * one started with it on can turn it off and back on while running.
+     * 
+     * @param cacheEnabled Whether or not to use the cache.
+     */
+    public static void setCacheEnabled(final boolean cacheEnabled) {
+        LittleProxyConfig.cacheEnabled = cacheEnabled;
+    }
+
+    /**
+     * Returns whether or not to cache responses -- defaults to false.
+     * 
+     * @return Whether or not to use the cache.
+     */
+    public static boolean isCacheEnabled() {
+        return cacheEnabled;
+    }
+
+    /**
+     * Sets how many bytes of responses the cache can hold in memory. This
+     * takes effect for caches created after it's set.
+     * 
+     * @param cacheMaxBytes The maximum size of the cache in bytes.
+     */
+    public static void setCacheMaxBytes(final long cacheMaxBytes) {
+        LittleProxyConfig.cacheMaxBytes = cacheMaxBytes;
+    }
+
+    /**
+     * Returns how many bytes of responses the cache can hold in memory --
+     * defaults to 64MB.
+     * 
+     * @return The maximum size of the cache in bytes.
+     */
+    public static long getCacheMaxBytes() {
+        return cacheMaxBytes;
+    }
+
+    /**
+     * Sets the largest response body we'll cache.
+     * 
+     * @param cacheMaxObjectBytes The maximum body size in bytes.
+     */
+    public static void setCacheMaxObjectBytes(final long cacheMaxObjectBytes) {
+        LittleProxyConfig.cacheMaxObjectBytes = cacheMaxObjectBytes;
+    }
+
+    /**
+     * Returns the largest response body we'll cache -- defaults to 1MB.
+     * 
+     * @return The maximum body size in bytes.
+     */
+    public static long getCacheMaxObjectBytes() {
+        return cacheMaxObjectBytes;
+    }
+
+    /**
+     * Sets how long requests for a response that isn't cached wait on 
+     * another request for the same response before they give up and fetch
+     * it themselves.
+     * 
+     * @param collapsedForwardingTimeoutMillis The time to wait for the
+     * response to start arriving, in milliseconds.
+     */
+    public static void setCollapsedForwardingTimeoutMillis(
+        final long collapsedForwardingTimeoutMillis) {
+        LittleProxyConfig.collapsedForwardingTimeoutMillis = 
+            collapsedForwardingTimeoutMillis;
+    }
+
+    /**
+     * Returns how long requests wait on another request for the same
+     * response -- defaults to 10 seconds.
+     * 
+     * @return The time to wait for the response to start arriving, in 
+     * milliseconds.
+     */
+    public static long getCollapsedForwardingTimeoutMillis() {
+        return collapsedForwardingTimeoutMillis;
+    }
+
+
+    /**
+     * Sets the directory for the disk cache.
+     * 
+     * @param cacheDir The directory, or <code>null</code> to only cache in
+     * memory.
+     */
+    public static void setCacheDir(final String cacheDir) {
+        LittleProxyConfig.cacheDir = cacheDir;
+    }
+
+    /**
+     * Returns the directory for the disk cache -- defaults to 
+     * <code>null</code>, meaning we only cache in memory.
+     * 
+     * @return The directory, or <code>null</code> if there's no disk cache.
+     */
+    public static String getCacheDir() {
+        return cacheDir;
+    }
+
+    /**
+     * Sets how many bytes of responses the disk cache can hold.
+     * 
+     * @param cacheDiskMaxBytes The maximum size of the disk cache in bytes.
+     */
+    public static void setCacheDiskMaxBytes(final long cacheDiskMaxBytes) {
+        LittleProxyConfig.cacheDiskMaxBytes = cacheDiskMaxBytes;
+    }
+
+    /**
+     * Returns how many bytes of responses the disk cache can hold -- 
+     * defaults to 10GB.
+     * 
+     * @return The maximum size of the disk cache in bytes.
+     */
+    public static long getCacheDiskMaxBytes() {
+        return cacheDiskMaxBytes;
+    }
+
+    /**
+     * Sets the size of each segment file of the disk cache. The disk cache
+     * frees space a whole segment at a time.
+     * 
+     * @param cacheDiskSegmentBytes The segment size in bytes.
+     */
+    public static void setCacheDiskSegmentBytes(
+        final long cacheDiskSegmentBytes) {
+        LittleProxyConfig.cacheDiskSegmentBytes = cacheDiskSegmentBytes;
+    }
+
+    /**
+     * Returns the size of each segment file of the disk cache -- defaults 
+     * to 256MB.
+     * 
+     * @return The segment size in bytes.
+     */
+    public static long getCacheDiskSegmentBytes() {
+        return cacheDiskSegmentBytes;
+    }
+
+    /**
+     * Sets the number of slots in the disk cache index, which caps how many
+     * responses the disk cache can hold. Each slot takes 24 bytes.
+     * 
+     * @param cacheDiskIndexSlots The number of index slots.
+     */
+    public static void setCacheDiskIndexSlots(final int cacheDiskIndexSlots) {
+        LittleProxyConfig.cacheDiskIndexSlots = cacheDiskIndexSlots;
+    }
+
+    /**
+     * Returns the number of slots in the disk cache index -- defaults to 
+     * 1M.
+     * 
+     * @return The number of index slots.
+     */
+    public static int getCacheDiskIndexSlots() {
+        return cacheDiskIndexSlots;
+    }
+
+    /**
+     * Sets how often the disk cache writes a checkpoint of its index, which
+     * is how much a crash can lose on top of whatever we were writing.
+     * 
+     * @param cacheDiskCheckpointIntervalMillis The interval in milliseconds,
+     * or 0 to only write a checkpoint when the proxy stops.
+     */
+    public static void setCacheDiskCheckpointIntervalMillis(
+        final long cacheDiskCheckpointIntervalMillis) {
+        LittleProxyConfig.cacheDiskCheckpointIntervalMillis = 
+            cacheDiskCheckpointIntervalMillis;
+    }
+
+    /**
+     * Returns how often the disk cache writes a checkpoint of its index --
+     * defaults to once a minute.
+     * 
+     * @return The interval in milliseconds.
+     */
+    public static long getCacheDiskCheckpointIntervalMillis() {
+        return cacheDiskCheckpointIntervalMillis;
+    }
+
+    /**
+     * Sets the largest response body we keep in memory when there's a disk
+     * cache. Larger bodies are only on disk.
+     * 
+     * @param cacheMemoryMaxObjectBytes The maximum body size in bytes.
+     */
+    public static void setCacheMemoryMaxObjectBytes(
+        final long cacheMemoryMaxObjectBytes) {
+        LittleProxyConfig.cacheMemoryMaxObjectBytes = 
+            cacheMemoryMaxObjectBytes;
+    }
+
+    /**
+     * Returns the largest response body we keep in memory when there's a 
+     * disk cache -- defaults to 256KB.
+     * 
+     * @return The maximum body size in bytes.
+     */
+    public static long getCacheMemoryMaxObjectBytes() {
+        return cacheMemoryMaxObjectBytes;
+    }
+
+    /**
+     * Sets whether or not the memory cache keeps response bodies outside
+     * the heap, in direct memory slabs. The slabs count against the JVM's
+     * direct memory limit.
+     * 
+     * @param cacheOffHeap Whether or not to cache bodies off the heap.
+     */
+    public static void setCacheOffHeap(final boolean cacheOffHeap) {
+        LittleProxyConfig.cacheOffHeap = cacheOffHeap;
+    }
+
+    /**
+     * Returns whether or not the memory cache keeps response bodies outside
+     * the heap -- defaults to false.
+     * 
+     * @return Whether or not to cache bodies off the heap.
+     */
+    public static boolean isCacheOffHeap() {
+        return cacheOffHeap;
+    }
+
+    /**
+     * Sets the size of each slab of the off-heap cache, which is also the 
+     * largest body it holds.
+     * 
+     * @param cacheSlabBytes The slab size in bytes.
+     */
+    public static void setCacheSlabBytes(final int cacheSlabBytes) {
+        LittleProxyConfig.cacheSlabBytes = cacheSlabBytes;
+    }
+
+    /**
+     * Returns the size of each slab of the off-heap cache -- defaults to 
+     * 1MB.
+     * 
+     * @return The slab size in bytes.
+     */
+    public static int getCacheSlabBytes() {
+        return cacheSlabBytes;
+    }
+
+    /**
+     * Sets how long after a cached response goes stale we keep serving it
+     * while we fetch a fresh copy in the background, for responses that
+     * don't say themselves.
+     * 
+     * @param cacheStaleWhileRevalidateSeconds The time in seconds.
+     */
+    public static void setCacheStaleWhileRevalidateSeconds(
+        final int cacheStaleWhileRevalidateSeconds) {
+        LittleProxyConfig.cacheStaleWhileRevalidateSeconds = 
+            cacheStaleWhileRevalidateSeconds;
+    }
+
+    /**
+     * Sets how long after a cached response from the host goes stale we 
+     * keep serving it while we fetch a fresh copy in the background, for
+     * responses that don't say themselves.
+     * 
+     * @param host The host.
+     * @param seconds The time in seconds.
+     */
+    public static void setCacheStaleWhileRevalidateSeconds(final String host,
+        final int seconds) {
+        hostCacheStaleWhileRevalidateSeconds.put(host.toLowerCase(), seconds);
+    }
+
+    /**
+     * Returns how long after a cached response from the host goes stale we
+     * keep serving it while we fetch a fresh copy -- defaults to 0, or the
+     * setting for all hosts if the host has none of its own.
+     * 
+     * @param host The host.
+     * @return The time in seconds.
+     */
+    public static int getCacheStaleWhileRevalidateSeconds(final String host) {
+        final Integer seconds = 
+            hostCacheStaleWhileRevalidateSeconds.get(host.toLowerCase());
+        if (seconds != null) {
+            return seconds.intValue();
+        }
+        return cacheStaleWhileRevalidateSeconds;
+    }
+
+    /**
+     * Sets how long after a cached response goes stale we can still serve
+     * it when the origin is down or answers with a server error.
+     * 
+     * @param cacheStaleIfErrorSeconds The time in seconds.
+     */
+    public static void setCacheStaleIfErrorSeconds(
+        final int cacheStaleIfErrorSeconds) {
+        LittleProxyConfig.cacheStaleIfErrorSeconds = cacheStaleIfErrorSeconds;
+    }
+
+    /**
+     * Sets how long after a cached response from the host goes stale we can
+     * still serve it when the host is down or answers with a server error.
+     * 
+     * @param host The host.
+     * @param seconds The time in seconds.
+     */
+    public static void setCacheStaleIfErrorSeconds(final String host,
+        final int seconds) {
+        hostCacheStaleIfErrorSeconds.put(host.toLowerCase(), seconds);
+    }
+
+    /**
+     * Returns how long after a cached response from the host goes stale we
+     * can still serve it on an error -- defaults to 0, or the setting for 
+     * all hosts if the host has none of its own.
+     * 
+     * @param host The host.
+     * @return The time in seconds.
+     */
+    public static int getCacheStaleIfErrorSeconds(final String host) {
+        final Integer seconds = 
+            hostCacheStaleIfErrorSeconds.get(host.toLowerCase());
+        if (seconds != null) {
+            return seconds.intValue();
+        }
+        return cacheStaleIfErrorSeconds;
+    }
+
+    /**
+     * Sets the most background fetches of stale responses we run at once.
+     * Past this we skip refreshing, and try again on the next request.
+     * 
+     * @param cacheMaxRefreshes The most refreshes at once.
+     */
+    public static void setCacheMaxRefreshes(final int cacheMaxRefreshes) {
+        LittleProxyConfig.cacheMaxRefreshes = cacheMaxRefreshes;
+    }
+
+    /**
+     * Returns the most background fetches of stale responses we run at 
+     * once -- defaults to 64.
+     * 
+     * @return The most refreshes at once.
+     */
+    public static int getCacheMaxRefreshes() {
+        return cacheMaxRefreshes;
+    }
+
+    /**
+     * Sets the number of threads putting responses in the cache. Each 
+     * thread has its own share of the responses, by cache key.
+     * 
+     * @param cacheInsertThreads The number of threads.
+     */
+    public static void setCacheInsertThreads(final int cacheInsertThreads) {
+        LittleProxyConfig.cacheInsertThreads = cacheInsertThreads;
+    }
+
+    /**
+     * Returns the number of threads putting responses in the cache -- 
+     * defaults to 2.
+     * 
+     * @return The number of threads.
+     */
+    public static int getCacheInsertThreads() {
+        return cacheInsertThreads;
+    }
+
+    /**
+     * Sets how many responses can wait to go in the cache. Responses that
+     * come in while the queue is full aren't cached.
+     * 
+     * @param cacheInsertQueueSize The size of the queue, shared by all the
+     * insertion threads.
+     */
+    public static void setCacheInsertQueueSize(final int cacheInsertQueueSize) {
+        LittleProxyConfig.cacheInsertQueueSize = cacheInsertQueueSize;
+    }
+
+    /**
+     * Returns how many responses can wait to go in the cache -- defaults 
+     * to 1024.
+     * 
+     * @return The size of the queue.
+     */
+    public static int getCacheInsertQueueSize() {
+        return cacheInsertQueueSize;
+    }
+
+    /**
+     * Sets the most responses an insertion thread takes off its queue at
+     * once.
+     * 
+     * @param cacheInsertBatchSize The size of a batch.
+     */
+    public static void setCacheInsertBatchSize(final int cacheInsertBatchSize) {
+        LittleProxyConfig.cacheInsertBatchSize = cacheInsertBatchSize;
+    }
+
+    /**
+     * Returns the most responses an insertion thread takes off its queue 
+     * at once -- defaults to 32.
+     * 
+     * @return The size of a batch.
+     */
+    public static int getCacheInsertBatchSize() {
+        return cacheInsertBatchSize;
+    }
+
+    /**
+     * Sets how long we answer requests for a URI with the 404 or 410 the
+     * remote server last sent for it, instead of asking again.
+     * 
+     * @param negativeClientErrorTtlMillis The time in milliseconds, or 0 to
+     * always ask.
+     */
+    public static void setNegativeClientErrorTtlMillis(
+        final long negativeClientErrorTtlMillis) {
+        LittleProxyConfig.negativeClientErrorTtlMillis = 
+            negativeClientErrorTtlMillis;
+    }
+
+    /**
+     * Returns how long we answer requests for a URI with the 404 or 410 the
+     * remote server last sent for it -- defaults to 10 seconds.
+     * 
+     * @return The time in milliseconds.
+     */
+    public static long getNegativeClientErrorTtlMillis() {
+        return negativeClientErrorTtlMillis;
+    }
+
+    /**
+     * Sets how long we answer requests for a URI with the 500, 502, 503 or
+     * 504 the remote server last sent for it, instead of asking again.
+     * 
+     * @param negativeServerErrorTtlMillis The time in milliseconds, or 0 to
+     * always ask.
+     */
+    public static void setNegativeServerErrorTtlMillis(
+        final long negativeServerErrorTtlMillis) {
+        LittleProxyConfig.negativeServerErrorTtlMillis = 
+            negativeServerErrorTtlMillis;
+    }
+
+    /**
+     * Returns how long we answer requests for a URI with the server error
+     * the remote server last sent for it -- defaults to 5 seconds.
+     * 
+     * @return The time in milliseconds.
+     */
+    public static long getNegativeServerErrorTtlMillis() {
+        return negativeServerErrorTtlMillis;
+    }
+
+    /**
+     * Sets how long we answer requests for a host we couldn't connect to,
+     * or couldn't resolve, with a 502 instead of trying again.
+     * 
+     * @param negativeConnectTtlMillis The time in milliseconds, or 0 to
+     * always try.
+     */
+    public static void setNegativeConnectTtlMillis(
+        final long negativeConnectTtlMillis) {
+        LittleProxyConfig.negativeConnectTtlMillis = negativeConnectTtlMillis;
+    }
+
+    /**
+     * Returns how long we answer requests for a host we couldn't connect to
+     * with a 502 -- defaults to 5 seconds.
+     * 
+     * @return The time in milliseconds.
+     */
+    public static long getNegativeConnectTtlMillis() {
+        return negativeConnectTtlMillis;
+    }
+
+    /**
+     * Sets the most cached URIs we index for purging by host, path prefix
+     * and tag.
+     * 
+     * @param cacheIndexMaxKeys The most URIs to index.
+     */
+    public static void setCacheIndexMaxKeys(final int cacheIndexMaxKeys) {
+        LittleProxyConfig.cacheIndexMaxKeys = cacheIndexMaxKeys;
+    }
+
+    /**
+     * Returns the most cached URIs we index for purging by host, path 
+     * prefix and tag -- defaults to 1048576.
+     * 
+     * @return The most URIs to index.
+     */
+    public static int getCacheIndexMaxKeys() {
+        return cacheIndexMaxKeys;
+    }
+
+    /**
+     * Sets the addresses browsers can send PURGE requests from.
+     * 
+     * @param cachePurgeAllowedAddresses The IP addresses, separated by
+     * commas.
+     */
+    public static void setCachePurgeAllowedAddresses(
+        final String cachePurgeAllowedAddresses) {
+        LittleProxyConfig.cachePurgeAllowedAddresses = 
+            cachePurgeAllowedAddresses;
+    }
+
+    /**
+     * Returns the addresses browsers can send PURGE requests from -- 
+     * defaults to 127.0.0.1.
+     * 
+     * @return The IP addresses, separated by commas.
+     */
+    public static String getCachePurgeAllowedAddresses() {
+        return cachePurgeAllowedAddresses;
+    }
 }
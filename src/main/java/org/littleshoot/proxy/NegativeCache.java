@@ -0,0 +1,224 @@
+package org.littleshoot.proxy;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.handler.codec.http.DefaultHttpResponse;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
+import org.jboss.netty.handler.codec.http.HttpMethod;
+import org.jboss.netty.handler.codec.http.HttpRequest;
+import org.jboss.netty.handler.codec.http.HttpResponse;
+import org.jboss.netty.handler.codec.http.HttpResponseStatus;
+import org.jboss.netty.handler.codec.http.HttpVersion;
+import org.jboss.netty.util.CharsetUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Short lived memory of failures, so repeated requests for something that
+ * just failed are answered right away instead of each making the same
+ * failed round trip. We remember error responses by URI, and hosts we
+ * couldn't connect to by host and port, each for as long as
+ * {@link LittleProxyConfig} says for that kind of failure.
+ */
+public class NegativeCache {
+
+    private static final Logger LOG =
+        LoggerFactory.getLogger(NegativeCache.class);
+
+    /**
+     * The most entries of each kind we hold. Past this we purge expired
+     * entries, and if that's not enough we stop adding until some expire.
+     */
+    private static final int MAX_ENTRIES = 10000;
+
+    /**
+     * The biggest error body we keep. We don't remember errors with bigger
+     * bodies.
+     */
+    private static final int MAX_BODY_BYTES = 16 * 1024;
+
+    private final ConcurrentMap<String, Negative> uris =
+        new ConcurrentHashMap<String, Negative>();
+
+    private final ConcurrentMap<String, Negative> hosts =
+        new ConcurrentHashMap<String, Negative>();
+
+    /**
+     * Returns how long we remember an error response with the specified
+     * status, if at all.
+     *
+     * @param status The status code.
+     * @return The time to live in milliseconds, or 0 if we don't remember
+     * the response.
+     */
+    public static long ttlMillis(final int status) {
+        switch (status) {
+            case 404:
+            case 410:
+                return LittleProxyConfig.getNegativeClientErrorTtlMillis();
+            case 500:
+            case 502:
+            case 503:
+            case 504:
+                return LittleProxyConfig.getNegativeServerErrorTtlMillis();
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * Remembers the response if it's an error worth remembering that we
+     * can share with other browsers, or forgets any error we had for the
+     * URI if it's not. We only remember whole responses to GETs, as we
+     * answer both GETs and HEADs with them, and a HEAD response or a body
+     * we didn't keep would leave GETs with an empty body.
+     *
+     * @param request The request.
+     * @param response The response from the remote server.
+     */
+    public void put(final HttpRequest request, final HttpResponse response) {
+        // We only ever answer GETs and HEADs from the cache.
+        if (request.getMethod() != HttpMethod.GET &&
+            request.getMethod() != HttpMethod.HEAD) {
+            return;
+        }
+        final String uri = ProxyUtils.cacheUri(request);
+        final long ttl = ttlMillis(response.getStatus().getCode());
+        if (ttl <= 0) {
+            this.uris.remove(uri);
+            return;
+        }
+        // We answer by URI alone, so anything only for the user who asked,
+        // or that depends on how they asked, can't be shared.
+        if (!HttpCacheRules.isStorable(request, response) ||
+            !HttpCacheRules.varyHeaders(response).isEmpty()) {
+            this.uris.remove(uri);
+            return;
+        }
+        final ChannelBuffer content = response.getContent();
+        if (request.getMethod() != HttpMethod.GET || response.isChunked() ||
+            content.readableBytes() > MAX_BODY_BYTES) {
+            this.uris.remove(uri);
+            return;
+        }
+        final ChannelBuffer body = ChannelBuffers.copiedBuffer(content);
+        final long now = System.currentTimeMillis();
+        LOG.debug("Remembering {} for {}", response.getStatus(), uri);
+        final CacheEntry entry =
+            new CacheEntry(uri, request, response, body, now, now);
+        add(this.uris, uri, new Negative(entry, now + ttl));
+    }
+
+    /**
+     * Returns the error response we're remembering for the request, if
+     * any.
+     *
+     * @param request The request.
+     * @param now The current time.
+     * @return The remembered response, or <code>null</code> if there isn't
+     * one.
+     */
+    public CacheEntry get(final HttpRequest request, final long now) {
+        return get(this.uris, ProxyUtils.cacheUri(request), now);
+    }
+
+    /**
+     * Forgets any error response we're remembering for the URI.
+     *
+     * @param uri The URI, as returned by {@link ProxyUtils#cacheUri}.
+     */
+    public void remove(final String uri) {
+        this.uris.remove(uri);
+    }
+
+    /**
+     * Remembers that we couldn't connect to the host, with a 502 response
+     * to answer requests for it with.
+     *
+     * @param hostAndPort The host and port.
+     */
+    public void putConnectFailure(final String hostAndPort) {
+        final long ttl = LittleProxyConfig.getNegativeConnectTtlMillis();
+        if (ttl <= 0) {
+            return;
+        }
+        final HttpResponse response = new DefaultHttpResponse(
+            HttpVersion.HTTP_1_1, HttpResponseStatus.BAD_GATEWAY);
+        response.setHeader(HttpHeaders.Names.CONTENT_TYPE,
+            "text/plain; charset=UTF-8");
+        response.setHeader(HttpHeaders.Names.CACHE_CONTROL,
+            HttpHeaders.Values.NO_STORE);
+        response.setHeader(HttpHeaders.Names.RETRY_AFTER,
+            String.valueOf(Math.max(1, ttl / 1000)));
+        final long now = System.currentTimeMillis();
+        final ChannelBuffer body = ChannelBuffers.copiedBuffer(
+            "Could not connect to " + hostAndPort + "\r\n",
+            CharsetUtil.UTF_8);
+        LOG.debug("Remembering connect failure for {}", hostAndPort);
+        // Nothing varies, so there's no request to take values from.
+        final CacheEntry entry =
+            new CacheEntry(hostAndPort, null, response, body, now, now);
+        add(this.hosts, hostAndPort, new Negative(entry, now + ttl));
+    }
+
+    /**
+     * Returns the response for a host we recently couldn't connect to, if
+     * any.
+     *
+     * @param hostAndPort The host and port.
+     * @param now The current time.
+     * @return The response, or <code>null</code> if we haven't recently
+     * failed to connect to the host.
+     */
+    public CacheEntry getConnectFailure(final String hostAndPort,
+        final long now) {
+        return get(this.hosts, hostAndPort, now);
+    }
+
+    private static CacheEntry get(final ConcurrentMap<String, Negative> map,
+        final String key, final long now) {
+        final Negative negative = map.get(key);
+        if (negative == null) {
+            return null;
+        }
+        if (negative.expires <= now) {
+            map.remove(key, negative);
+            return null;
+        }
+        return negative.entry;
+    }
+
+    private static void add(final ConcurrentMap<String, Negative> map,
+        final String key, final Negative negative) {
+        if (map.size() >= MAX_ENTRIES && !map.containsKey(key)) {
+            final long now = System.currentTimeMillis();
+            final Iterator<Map.Entry<String, Negative>> it =
+                map.entrySet().iterator();
+            while (it.hasNext()) {
+                if (it.next().getValue().expires <= now) {
+                    it.remove();
+                }
+            }
+            if (map.size() >= MAX_ENTRIES) {
+                return;
+            }
+        }
+        map.put(key, negative);
+    }
+
+    private static final class Negative {
+
+        private final CacheEntry entry;
+        private final long expires;
+
+        private Negative(final CacheEntry entry, final long expires) {
+            this.entry = entry;
+            this.expires = expires;
+        }
+    }
+}
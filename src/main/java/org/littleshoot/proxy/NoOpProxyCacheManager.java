@@ -0,0 +1,78 @@
+package org.littleshoot.proxy;
+
+import java.util.concurrent.Future;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.handler.codec.http.DefaultHttpResponse;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
+import org.jboss.netty.handler.codec.http.HttpRequest;
+import org.jboss.netty.handler.codec.http.HttpResponse;
+import org.jboss.netty.handler.codec.http.HttpResponseStatus;
+import org.jboss.netty.handler.codec.http.HttpVersion;
+import org.jboss.netty.util.CharsetUtil;
+
+/**
+ * Cache manager for when caching is off. It never caches anything, so it
+ * doesn't start any threads or open any files either.
+ */
+public class NoOpProxyCacheManager implements ProxyCacheManager {
+
+    public boolean returnCacheHit(final HttpRequest request,
+        final Channel channel) {
+        return false;
+    }
+
+    public Future<String> cache(final HttpRequest originalRequest,
+        final HttpResponse httpResponse, final Object response,
+        final ChannelBuffer encoded) {
+        return null;
+    }
+
+    public ChannelBuffer returnRevalidated(final HttpRequest request,
+        final HttpResponse response) {
+        return null;
+    }
+
+    public boolean returnStaleOnError(final HttpRequest request,
+        final Channel channel) {
+        return false;
+    }
+
+    public void onConnectFailure(final String hostAndPort) {
+    }
+
+    public boolean returnConnectFailure(final HttpRequest request,
+        final Channel channel, final String hostAndPort) {
+        return false;
+    }
+
+    public void returnPurge(final HttpRequest request, final Channel channel) {
+        // There's nothing to purge, but the browser still needs an answer,
+        // in turn with any requests pipelined ahead of this one.
+        final HttpResponse response = new DefaultHttpResponse(
+            HttpVersion.HTTP_1_1, HttpResponseStatus.NOT_FOUND);
+        response.setHeader(HttpHeaders.Names.CONTENT_TYPE,
+            "text/plain; charset=UTF-8");
+        final ChannelBuffer body =
+            ChannelBuffers.copiedBuffer("Purged 0\r\n", CharsetUtil.UTF_8);
+        HttpHeaders.setContentLength(response, body.readableBytes());
+        response.setContent(body);
+        final ResponseSequencer sequencer = ResponseSequencer.get(channel);
+        final ChannelFuture cf;
+        if (sequencer == null) {
+            cf = channel.write(response);
+        } else {
+            cf = sequencer.write(request, response, true, null);
+        }
+        if (!HttpHeaders.isKeepAlive(request)) {
+            cf.addListener(ChannelFutureListener.CLOSE);
+        }
+    }
+
+    public void stop() {
+    }
+}
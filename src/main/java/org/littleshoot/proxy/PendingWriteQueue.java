@@ -0,0 +1,83 @@
+package org.littleshoot.proxy;
+
+import java.util.LinkedList;
+import java.util.Queue;
+
+import org.jboss.netty.channel.Channel;
+
+/**
+ * Holds messages destined for a channel that isn't available yet, such as
+ * request chunks that arrive from the browser while we're still connecting
+ * to the remote host. Once the channel is available, all held messages are
+ * written to it in order and any later messages are written straight
+ * through. The queue is bounded by the number of bytes it holds, so a
+ * browser can't make us buffer an arbitrarily large request body.
+ */
+public class PendingWriteQueue {
+
+    private final Queue<Object> pending = new LinkedList<Object>();
+
+    private final long maxPendingBytes;
+
+    private long pendingBytes;
+
+    private Channel channel;
+
+    /**
+     * Creates a new queue.
+     *
+     * @param maxPendingBytes The maximum number of bytes to hold before the
+     * channel is available.
+     */
+    public PendingWriteQueue(final long maxPendingBytes) {
+        this.maxPendingBytes = maxPendingBytes;
+    }
+
+    /**
+     * Writes the message to the channel if it's available, otherwise holds
+     * it until it is.
+     *
+     * @param msg The message to write.
+     * @return <code>true</code> if the message was written or queued, or
+     * <code>false</code> if holding it would exceed the maximum number of
+     * pending bytes, in which case the message is discarded.
+     */
+    public synchronized boolean write(final Object msg) {
+        if (this.channel != null) {
+            this.channel.write(msg);
+            return true;
+        }
+        final long size = ProxyUtils.messageSize(msg);
+        if (this.pendingBytes + size > this.maxPendingBytes) {
+            return false;
+        }
+        this.pendingBytes += size;
+        this.pending.add(msg);
+        return true;
+    }
+
+    /**
+     * Writes all held messages to the specified channel in the order they
+     * were received, and writes all later messages straight to it.
+     *
+     * @param ch The channel that's now available.
+     */
+    public synchronized void flushTo(final Channel ch) {
+        // We write while holding the lock so no message written concurrently
+        // can overtake the ones we're holding.
+        while (!this.pending.isEmpty()) {
+            ch.write(this.pending.remove());
+        }
+        this.pendingBytes = 0;
+        this.channel = ch;
+    }
+
+    /**
+     * Accessor for the number of bytes currently held.
+     *
+     * @return The number of bytes held.
+     */
+    public synchronized long getPendingBytes() {
+        return this.pendingBytes;
+    }
+}
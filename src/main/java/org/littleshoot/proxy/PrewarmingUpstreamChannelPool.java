@@ -0,0 +1,323 @@
+package org.littleshoot.proxy;
+
+import static org.jboss.netty.channel.Channels.pipeline;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.ChannelPipelineFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Pool of upstream connections that learns which hosts are requested most
+ * often and keeps connections to them open ahead of time. Every attempt to
+ * borrow a connection counts as a request for that host, and periodically
+ * we top up the idle connections to the most popular hosts so requests to
+ * them don't have to wait for a new connection.
+ * <p>
+ * If connections we opened ahead of time are closed before anyone borrows
+ * them, say because the pool closed them for sitting idle too long, we
+ * don't open any more to that host until it's borrowed from again. That
+ * way we don't keep reopening connections the pool just closed.
+ */
+public class PrewarmingUpstreamChannelPool implements UpstreamChannelPool {
+
+    private static final Logger LOG =
+        LoggerFactory.getLogger(PrewarmingUpstreamChannelPool.class);
+
+    private static final ScheduledExecutorService PREWARMER =
+        Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(final Runnable r) {
+                final Thread t = new Thread(r, "Upstream-Prewarmer");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+    /**
+     * Hosts requested less often than this recently aren't worth keeping
+     * connections open to.
+     */
+    private static final int MIN_FREQUENCY = 2;
+
+    private static final ChannelPipelineFactory IDLE_PIPELINE_FACTORY =
+        new ChannelPipelineFactory() {
+            public ChannelPipeline getPipeline() throws Exception {
+                final ChannelPipeline pipeline = pipeline();
+                pipeline.addLast("handler", new IdleUpstreamHandler());
+                return pipeline;
+            }
+        };
+
+    private final UpstreamChannelPool pool;
+
+    private final UpstreamConnector connector;
+
+    private final FrequencySketch sketch;
+
+    /**
+     * The hosts that are candidates for pre-warming, with their most recent
+     * estimated frequencies.
+     */
+    private final Map<String, Integer> candidates =
+        new HashMap<String, Integer>();
+
+    /**
+     * Candidates whose pre-warmed connections were closed without being
+     * borrowed. Guarded by the lock on the candidates.
+     */
+    private final Set<String> unused = new HashSet<String>();
+
+    /**
+     * Pre-warmed connections that haven't been borrowed yet.
+     */
+    private final Set<Channel> unborrowed = new HashSet<Channel>();
+
+    /**
+     * The number of connections we're opening to each host. Hosts are only
+     * here while we're opening connections to them, so hosts that fall out
+     * of the hottest set don't stay around.
+     */
+    private final Map<String, Integer> connecting =
+        new HashMap<String, Integer>();
+
+    private final int hosts;
+
+    private final int connectionsPerHost;
+
+    private final ScheduledFuture<?> prewarmTask;
+
+    private volatile boolean closed = false;
+
+    /**
+     * Creates a new pool using the settings from {@link LittleProxyConfig}.
+     *
+     * @param pool The pool to keep connections in.
+     * @param connector The class for opening connections.
+     */
+    public PrewarmingUpstreamChannelPool(final UpstreamChannelPool pool,
+        final UpstreamConnector connector) {
+        this(pool, connector, LittleProxyConfig.getPrewarmHosts(),
+            LittleProxyConfig.getPrewarmConnectionsPerHost(),
+            LittleProxyConfig.getPrewarmIntervalMillis());
+    }
+
+    /**
+     * Creates a new pool.
+     *
+     * @param pool The pool to keep connections in.
+     * @param connector The class for opening connections.
+     * @param hosts The number of most popular hosts to keep connections to.
+     * @param connectionsPerHost The number of idle connections to keep to
+     * each of those hosts.
+     * @param intervalMillis How often to top up idle connections.
+     */
+    public PrewarmingUpstreamChannelPool(final UpstreamChannelPool pool,
+        final UpstreamConnector connector, final int hosts,
+        final int connectionsPerHost, final long intervalMillis) {
+        this.pool = pool;
+        this.connector = connector;
+        this.hosts = hosts;
+        this.connectionsPerHost = connectionsPerHost;
+        this.sketch = new FrequencySketch(Math.max(256, hosts * 64));
+        this.prewarmTask = PREWARMER.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                try {
+                    prewarm();
+                } catch (final Throwable t) {
+                    LOG.warn("Error pre-warming connections", t);
+                }
+            }
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public Channel borrow(final String hostAndPort) {
+        record(hostAndPort);
+        final Channel channel = this.pool.borrow(hostAndPort);
+        if (channel != null) {
+            synchronized (this.unborrowed) {
+                this.unborrowed.remove(channel);
+            }
+        }
+        return channel;
+    }
+
+    private void record(final String hostAndPort) {
+        this.sketch.increment(hostAndPort);
+        final int frequency = this.sketch.frequency(hostAndPort);
+        synchronized (this.candidates) {
+            this.unused.remove(hostAndPort);
+            if (this.candidates.containsKey(hostAndPort) ||
+                this.candidates.size() < this.hosts * 4) {
+                this.candidates.put(hostAndPort, frequency);
+                return;
+            }
+            // Replace the least popular candidate if this host is more
+            // popular.
+            String coldest = null;
+            int coldestFrequency = Integer.MAX_VALUE;
+            for (final Map.Entry<String, Integer> entry :
+                this.candidates.entrySet()) {
+                if (entry.getValue().intValue() < coldestFrequency) {
+                    coldest = entry.getKey();
+                    coldestFrequency = entry.getValue().intValue();
+                }
+            }
+            if (frequency > coldestFrequency) {
+                this.candidates.remove(coldest);
+                this.unused.remove(coldest);
+                this.candidates.put(hostAndPort, frequency);
+            }
+        }
+    }
+
+    /**
+     * Tops up the idle connections to the hottest hosts.
+     */
+    void prewarm() {
+        if (this.closed) {
+            return;
+        }
+        final List<String> hottest;
+        final Set<String> skipped;
+        synchronized (this.candidates) {
+            skipped = new HashSet<String>(this.unused);
+            // Refresh the frequencies, as the sketch decays over time.
+            for (final Map.Entry<String, Integer> entry :
+                this.candidates.entrySet()) {
+                entry.setValue(this.sketch.frequency(entry.getKey()));
+            }
+            hottest = new ArrayList<String>(this.candidates.keySet());
+            Collections.sort(hottest, new Comparator<String>() {
+                public int compare(final String a, final String b) {
+                    return candidates.get(b).compareTo(candidates.get(a));
+                }
+            });
+        }
+        int warmed = 0;
+        for (final String hostAndPort : hottest) {
+            if (warmed >= this.hosts) {
+                break;
+            }
+            if (this.sketch.frequency(hostAndPort) < MIN_FREQUENCY) {
+                break;
+            }
+            if (skipped.contains(hostAndPort)) {
+                continue;
+            }
+            warmed++;
+            final int missing = this.connectionsPerHost -
+                this.pool.getIdleCount(hostAndPort) - connecting(hostAndPort);
+            for (int i = 0; i < missing; i++) {
+                open(hostAndPort);
+            }
+        }
+    }
+
+    private int connecting(final String hostAndPort) {
+        synchronized (this.connecting) {
+            final Integer count = this.connecting.get(hostAndPort);
+            return count == null ? 0 : count.intValue();
+        }
+    }
+
+    private void opening(final String hostAndPort, final int delta) {
+        synchronized (this.connecting) {
+            final int count = connecting(hostAndPort) + delta;
+            if (count <= 0) {
+                this.connecting.remove(hostAndPort);
+            } else {
+                this.connecting.put(hostAndPort, count);
+            }
+        }
+    }
+
+    private void open(final String hostAndPort) {
+        LOG.debug("Pre-warming connection to {}", hostAndPort);
+        opening(hostAndPort, 1);
+        final ChannelFuture cf;
+        try {
+            cf = this.connector.connect(hostAndPort, IDLE_PIPELINE_FACTORY);
+        } catch (final Exception e) {
+            opening(hostAndPort, -1);
+            LOG.warn("Could not pre-warm connection to "+hostAndPort, e);
+            return;
+        }
+        cf.addListener(new ChannelFutureListener() {
+            public void operationComplete(final ChannelFuture future) {
+                opening(hostAndPort, -1);
+                if (future.isSuccess()) {
+                    watch(hostAndPort, future.getChannel());
+                    // The pool closes the channel if it's already full or
+                    // closed.
+                    release(hostAndPort, future.getChannel());
+                } else {
+                    LOG.debug("Could not pre-warm connection to {}",
+                        hostAndPort);
+                }
+            }
+        });
+    }
+
+    /**
+     * Notes that the channel hasn't been borrowed yet, and marks the host
+     * as unused if the channel is closed before it is.
+     */
+    private void watch(final String hostAndPort, final Channel channel) {
+        synchronized (this.unborrowed) {
+            this.unborrowed.add(channel);
+        }
+        channel.getCloseFuture().addListener(new ChannelFutureListener() {
+            public void operationComplete(final ChannelFuture future) {
+                final boolean borrowed;
+                synchronized (unborrowed) {
+                    borrowed = !unborrowed.remove(channel);
+                }
+                if (borrowed) {
+                    return;
+                }
+                LOG.debug("Pre-warmed connection to {} closed unused",
+                    hostAndPort);
+                synchronized (candidates) {
+                    if (candidates.containsKey(hostAndPort)) {
+                        unused.add(hostAndPort);
+                    }
+                }
+            }
+        });
+    }
+
+    public void release(final String hostAndPort, final Channel channel) {
+        this.pool.release(hostAndPort, channel);
+    }
+
+    public int getIdleCount(final String hostAndPort) {
+        return this.pool.getIdleCount(hostAndPort);
+    }
+
+    public int getIdleCount() {
+        return this.pool.getIdleCount();
+    }
+
+    public void close() {
+        this.closed = true;
+        this.prewarmTask.cancel(false);
+        this.pool.close();
+    }
+}
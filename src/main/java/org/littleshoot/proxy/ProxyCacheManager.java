@@ -36,4 +36,69 @@ public interface ProxyCacheManager {
     Future<String> cache(HttpRequest originalRequest, HttpResponse httpResponse,
         Object response, ChannelBuffer encoded);
 
+    /**
+     * Returns the cached response to send to the browser in place of a 
+     * response from the remote server, such as when the cache asked the
+     * server whether a stale response is still good and the server said it
+     * is.
+     * 
+     * @param request The original HTTP request.
+     * @param response The response from the remote server, with hop-by-hop
+     * headers removed.
+     * @return The encoded cached response, or <code>null</code> to send the
+     * response from the server as is.
+     */
+    ChannelBuffer returnRevalidated(HttpRequest request, HttpResponse response);
+
+    /**
+     * Writes a stale cached response back to the browser when we couldn't
+     * reach the remote server, if the response allows it.
+     * 
+     * @param request The original HTTP request.
+     * @param channel The channel the request came in on.
+     * @return <code>true</code> if we returned a stale response, otherwise
+     * <code>false</code>.
+     */
+    boolean returnStaleOnError(HttpRequest request, Channel channel);
+
+    /**
+     * Tells the cache we couldn't connect to a remote host, or couldn't
+     * resolve it, so it can answer requests for the host right away for a
+     * while instead of each trying again.
+     * 
+     * @param hostAndPort The host and port we couldn't connect to.
+     */
+    void onConnectFailure(String hostAndPort);
+
+    /**
+     * Writes an error response back to the browser if we recently couldn't
+     * connect to the host the request is going to, or a stale cached 
+     * response if the cached response allows it.
+     * 
+     * @param request The HTTP request.
+     * @param channel The channel the request came in on.
+     * @param hostAndPort The host and port the request is going to.
+     * @return <code>true</code> if we returned a response, otherwise
+     * <code>false</code>.
+     */
+    boolean returnConnectFailure(HttpRequest request, Channel channel,
+        String hostAndPort);
+
+    /**
+     * Removes the responses a PURGE request asks for from the cache and
+     * writes the result back to the browser: the response for the URI, 
+     * every response under the URI if it ends in "*", or every response
+     * tagged with one of the tags in the request's Surrogate-Key header.
+     * 
+     * @param request The PURGE request.
+     * @param channel The channel the request came in on.
+     */
+    void returnPurge(HttpRequest request, Channel channel);
+
+    /**
+     * Stops the cache, finishing pending insertions and saving anything it
+     * keeps on disk so a restart can pick up where we left off.
+     */
+    void stop();
+
 }
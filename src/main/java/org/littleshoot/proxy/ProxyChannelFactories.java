@@ -0,0 +1,207 @@
+package org.littleshoot.proxy;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.MBeanRegistrationException;
+import javax.management.MBeanServer;
+import javax.management.MalformedObjectNameException;
+import javax.management.NotCompliantMBeanException;
+import javax.management.ObjectName;
+
+import org.jboss.netty.buffer.ChannelBufferFactory;
+import org.jboss.netty.buffer.HeapChannelBufferFactory;
+import org.jboss.netty.channel.socket.ClientSocketChannelFactory;
+import org.jboss.netty.channel.socket.ServerSocketChannelFactory;
+import org.jboss.netty.channel.socket.nio.NioClientSocketChannelFactory;
+import org.jboss.netty.channel.socket.nio.NioServerSocketChannelFactory;
+import org.jboss.netty.channel.socket.nio.NioWorker;
+import org.jboss.netty.channel.socket.nio.NioWorkerPool;
+import org.jboss.netty.channel.socket.nio.WorkerPool;
+import org.jboss.netty.util.ExternalResourceReleasable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The I/O engine for a single proxy server. Connections from browsers and
+ * connections to remote hosts all share one fixed set of I/O worker threads,
+ * so the number of threads doing I/O never grows with load. They also all
+ * share the same policy for allocating buffers.
+ */
+public class ProxyChannelFactories implements ExternalResourceReleasable {
+
+    private static final Logger LOG =
+        LoggerFactory.getLogger(ProxyChannelFactories.class);
+
+    private final ExecutorService bossExecutor;
+
+    private final ExecutorService workerExecutor;
+
+    private final WorkerPool<NioWorker> workerPool;
+
+    private final ServerSocketChannelFactory serverChannelFactory;
+
+    private final ClientSocketChannelFactory clientChannelFactory;
+
+    private final ChannelBufferFactory bufferFactory;
+
+    /**
+     * Creates new channel factories using the thread counts from
+     * {@link LittleProxyConfig}.
+     */
+    public ProxyChannelFactories() {
+        this(LittleProxyConfig.getIoBossThreads(),
+            LittleProxyConfig.getIoWorkerThreads());
+    }
+
+    /**
+     * Creates new channel factories.
+     *
+     * @param bossThreads The number of threads used for establishing
+     * connections to remote hosts.
+     * @param workerThreads The number of threads doing I/O for all
+     * connections.
+     */
+    public ProxyChannelFactories(final int bossThreads,
+        final int workerThreads) {
+        LOG.info("Creating I/O engine with {} boss and {} worker threads",
+            bossThreads, workerThreads);
+        this.bossExecutor =
+            Executors.newCachedThreadPool(new IoThreadFactory("Boss"));
+        this.workerExecutor =
+            Executors.newCachedThreadPool(new IoThreadFactory("Worker"));
+        this.workerPool = newWorkerPool(this.workerExecutor, workerThreads);
+        this.serverChannelFactory =
+            new NioServerSocketChannelFactory(this.bossExecutor,
+                this.workerPool);
+        this.clientChannelFactory =
+            new NioClientSocketChannelFactory(this.bossExecutor, bossThreads,
+                this.workerPool);
+        this.bufferFactory = newBufferFactory();
+    }
+
+    /**
+     * Creates the pool of workers doing I/O for all connections.
+     *
+     * @param executor The executor that runs the workers.
+     * @param workerThreads The number of workers.
+     * @return The pool of workers.
+     */
+    protected WorkerPool<NioWorker> newWorkerPool(final ExecutorService executor,
+        final int workerThreads) {
+        if (LittleProxyConfig.isUseWorkerAffinity()) {
+            LOG.info("Running connections to remote hosts on the same " +
+                "worker as their browser connections");
+            return new AffinityNioWorkerPool(executor, workerThreads, true);
+        }
+        return new NioWorkerPool(executor, workerThreads, true);
+    }
+
+    /**
+     * Creates the factory for the buffers all channels read into.
+     *
+     * @return The buffer factory.
+     */
+    protected ChannelBufferFactory newBufferFactory() {
+        if (!LittleProxyConfig.isUseDirectBuffers()) {
+            return HeapChannelBufferFactory.getInstance();
+        }
+        LOG.info("Reading into direct buffers carved out of slabs");
+        final BumpDirectChannelBufferFactory factory =
+            new BumpDirectChannelBufferFactory();
+        if (LittleProxyConfig.isUseJmx()) {
+            setupJmx(factory);
+        }
+        return factory;
+    }
+
+    private void setupJmx(final DirectBufferData data) {
+        final MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+        try {
+            final Class<? extends DirectBufferData> clazz = data.getClass();
+            final String pack = clazz.getPackage().getName();
+            final String oName =
+                pack+":type="+clazz.getSimpleName()+"-"+clazz.getSimpleName() +
+                data.hashCode();
+            LOG.info("Registering MBean with name: {}", oName);
+            final ObjectName mxBeanName = new ObjectName(oName);
+            if(!mbs.isRegistered(mxBeanName)) {
+                mbs.registerMBean(data, mxBeanName);
+            }
+        } catch (final MalformedObjectNameException e) {
+            LOG.error("Could not set up JMX", e);
+        } catch (final InstanceAlreadyExistsException e) {
+            LOG.error("Could not set up JMX", e);
+        } catch (final MBeanRegistrationException e) {
+            LOG.error("Could not set up JMX", e);
+        } catch (final NotCompliantMBeanException e) {
+            LOG.error("Could not set up JMX", e);
+        }
+    }
+
+    /**
+     * Accessor for the factory for channels accepted from browsers.
+     *
+     * @return The server channel factory.
+     */
+    public ServerSocketChannelFactory getServerChannelFactory() {
+        return serverChannelFactory;
+    }
+
+    /**
+     * Accessor for the factory for channels to remote hosts.
+     *
+     * @return The client channel factory.
+     */
+    public ClientSocketChannelFactory getClientChannelFactory() {
+        return clientChannelFactory;
+    }
+
+    /**
+     * Accessor for the pool of workers shared by all channels.
+     *
+     * @return The worker pool.
+     */
+    public WorkerPool<NioWorker> getWorkerPool() {
+        return workerPool;
+    }
+
+    /**
+     * Accessor for the factory for the buffers all channels read into.
+     *
+     * @return The buffer factory.
+     */
+    public ChannelBufferFactory getBufferFactory() {
+        return bufferFactory;
+    }
+
+    public void releaseExternalResources() {
+        // Both factories release the shared worker pool along with their own
+        // resources, which is fine as releasing it twice is harmless.
+        this.clientChannelFactory.releaseExternalResources();
+        this.serverChannelFactory.releaseExternalResources();
+        this.bossExecutor.shutdownNow();
+        this.workerExecutor.shutdownNow();
+    }
+
+    private static final class IoThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger threadNumber = new AtomicInteger(1);
+        private final String name;
+
+        private IoThreadFactory(final String name) {
+            this.name = name;
+        }
+
+        public Thread newThread(final Runnable r) {
+            // These are deliberately not daemon threads, as they're what
+            // keeps the proxy running.
+            return new Thread(r,
+                "LittleProxy-I/O-"+name+"-"+threadNumber.getAndIncrement());
+        }
+    }
+}
@@ -1,5 +1,7 @@
 package org.littleshoot.proxy;
 
+import org.jboss.netty.handler.codec.http.HttpMethod;
+
 /**
  * Constants for the proxy.
  */
@@ -9,16 +11,10 @@ public class ProxyConstants {
      * The name of the base cache.
      */
     public static final String CACHE = "DEFAULT_CACHE";
-    
-    /**
-     * Top-level cache for chunks.
-     */
-    public static final String CHUNKS_CACHE = "CHUNKS_CACHE";
-    
-    
+
     /**
-     * Cache for the chunks themselves.
+     * The method for requests to remove responses from the cache.
      */
-    public static final String CHUNK_CACHE = "CHUNK_CACHE";
+    public static final HttpMethod PURGE = new HttpMethod("PURGE");
 
 }
@@ -1,8 +1,10 @@
 package org.littleshoot.proxy;
 
 import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
 import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.handler.codec.http.HttpChunk;
 import org.jboss.netty.handler.codec.http.HttpRequest;
 import org.jboss.netty.handler.codec.http.HttpResponse;
 import org.jboss.netty.handler.codec.http.HttpResponseEncoder;
@@ -17,6 +19,12 @@ public class ProxyHttpResponseEncoder extends HttpResponseEncoder {
     private final Logger log = LoggerFactory.getLogger(getClass());
     private final ProxyCacheManager cacheManager;
     private final boolean transparent;
+    
+    /**
+     * Whether or not we're dropping the chunks of a response the cache
+     * replaced.
+     */
+    private boolean skippingChunks;
 
     /**
      * Creates a new HTTP response encoder that doesn't include responses in 
@@ -74,6 +82,13 @@ public class ProxyHttpResponseEncoder extends HttpResponseEncoder {
             // The actual response is either a chunk or a "normal" response.
             final Object response = proxyResponse.getResponse();
             
+            if (this.skippingChunks && response instanceof HttpChunk) {
+                if (((HttpChunk) response).isLast()) {
+                    this.skippingChunks = false;
+                }
+                return ChannelBuffers.EMPTY_BUFFER;
+            }
+            
             // We do this right before encoding because we want to deal with
             // the hop-by-hop headers elsewhere in the proxy processing logic.
             if (!this.transparent) {
@@ -85,11 +100,24 @@ public class ProxyHttpResponseEncoder extends HttpResponseEncoder {
                 }
             }
             
+            if (this.cacheManager != null && 
+                response instanceof HttpResponse) {
+                final ChannelBuffer cached = 
+                    this.cacheManager.returnRevalidated(httpRequest, 
+                        (HttpResponse) response);
+                if (cached != null) {
+                    this.skippingChunks = ((HttpResponse) response).isChunked();
+                    return cached;
+                }
+            }
+            
             final ChannelBuffer encoded = 
                 (ChannelBuffer) super.encode(ctx, channel, response);
             
-            // The buffer will be null when it's the last chunk, for example.
-            if (encoded != null && this.cacheManager != null) {
+            // We always tell the cache, even when the buffer is null, as 
+            // it's collecting the body of chunked responses and needs to 
+            // know when the last chunk has gone by.
+            if (this.cacheManager != null) {
                 this.cacheManager.cache(httpRequest, httpResponse, response, 
                     encoded);
             }
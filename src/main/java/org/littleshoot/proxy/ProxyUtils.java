@@ -4,6 +4,7 @@ import java.io.UnsupportedEncodingException;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.nio.charset.Charset;
+import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.Arrays;
 import java.util.Collection;
@@ -11,6 +12,7 @@ import java.util.Date;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
 import java.util.TimeZone;
@@ -18,12 +20,14 @@ import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import org.apache.commons.lang.StringUtils;
-import org.apache.commons.lang.math.NumberUtils;
 import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.buffer.ChannelBuffers;
 import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelFuture;
 import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.channel.ChannelHandler;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.FileRegion;
 import org.jboss.netty.handler.codec.http.DefaultHttpRequest;
 import org.jboss.netty.handler.codec.http.HttpChunk;
 import org.jboss.netty.handler.codec.http.HttpHeaders;
@@ -54,6 +58,12 @@ public class ProxyUtils {
      */
     public static final String PATTERN_RFC1036 = "EEEE, dd-MMM-yy HH:mm:ss zzz";
     
+    /**
+     * Date format pattern used to parse HTTP date headers in ANSI C 
+     * asctime() format.
+     */
+    public static final String PATTERN_ASCTIME = "EEE MMM d HH:mm:ss yyyy";
+    
     private static final Set<String> hopByHopHeaders = new HashSet<String>();
     
     private static final String via;
@@ -219,6 +229,33 @@ public class ProxyUtils {
     public static String httpDate() {
         return formatDate(new Date());
     }
+    
+    /**
+     * Parses a date from an HTTP header in any of the formats HTTP allows.
+     * 
+     * @param date The date string.
+     * @return The date in milliseconds since the epoch, or -1 if the date 
+     * is missing or invalid.
+     */
+    public static long parseDate(final String date) {
+        if (StringUtils.isBlank(date)) {
+            return -1;
+        }
+        final String trimmed = date.trim();
+        final String[] patterns = 
+            {PATTERN_RFC1123, PATTERN_RFC1036, PATTERN_ASCTIME};
+        for (final String pattern : patterns) {
+            final SimpleDateFormat parser = 
+                new SimpleDateFormat(pattern, Locale.US);
+            parser.setTimeZone(GMT);
+            try {
+                return parser.parse(trimmed).getTime();
+            } catch (final ParseException e) {
+                // Try the next format.
+            }
+        }
+        return -1;
+    }
 
     /**
      * Copies the mutable fields from the response original to the copy.
@@ -272,7 +309,6 @@ public class ProxyUtils {
             final ChannelBuffer buf = 
                 ChannelBuffers.copiedBuffer(fullResponse.getBytes("UTF-8"));
             channel.write(buf);
-            channel.setReadable(true);
         }
         catch (final UnsupportedEncodingException e) {
             // Never.
@@ -321,6 +357,33 @@ public class ProxyUtils {
         }
     }
     
+    /**
+     * Returns the number of bytes of content in the specified message, for
+     * bounding how much we buffer.
+     * 
+     * @param msg The message.
+     * @return The number of content bytes, or 0 if the message isn't one we
+     * know the size of.
+     */
+    public static long messageSize(final Object msg) {
+        if (msg instanceof ProxyHttpResponse) {
+            return messageSize(((ProxyHttpResponse) msg).getResponse());
+        }
+        if (msg instanceof HttpMessage) {
+            return ((HttpMessage) msg).getContent().readableBytes();
+        }
+        if (msg instanceof HttpChunk) {
+            return ((HttpChunk) msg).getContent().readableBytes();
+        }
+        if (msg instanceof ChannelBuffer) {
+            return ((ChannelBuffer) msg).readableBytes();
+        }
+        if (msg instanceof FileRegion) {
+            return ((FileRegion) msg).getCount();
+        }
+        return 0;
+    }
+    
     private static ChannelFutureListener CLOSE = new ChannelFutureListener() {
         public void operationComplete(final ChannelFuture future) {
             final Channel ch = future.getChannel();
@@ -342,6 +405,26 @@ public class ProxyUtils {
         }
     }
     
+    /**
+     * Replaces all the handlers in a pipeline with the handlers from another,
+     * typically freshly created, pipeline. This allows us to reuse a 
+     * connected channel for a different browser connection than the one it
+     * was created for.
+     * 
+     * @param pipeline The pipeline whose handlers to replace.
+     * @param source The pipeline with the new handlers.
+     */
+    public static void replaceHandlers(final ChannelPipeline pipeline, 
+        final ChannelPipeline source) {
+        for (final String name : pipeline.getNames()) {
+            pipeline.remove(name);
+        }
+        for (final Map.Entry<String, ChannelHandler> entry : 
+            source.toMap().entrySet()) {
+            pipeline.addLast(entry.getKey(), entry.getValue());
+        }
+    }
+    
     /**
      * Parses the host and port an HTTP request is being sent to.
      * 
@@ -661,12 +744,26 @@ public class ProxyUtils {
     }
 
     public static long extractLong(final Properties props, final String key) {
+        return extractLong(props, key, -1);
+    }
+    
+    public static long extractLong(final Properties props, final String key,
+        final long defaultValue) {
         final String readThrottleString = props.getProperty(key);
-        if (StringUtils.isNotBlank(readThrottleString) &&
-            NumberUtils.isNumber(readThrottleString)) {
-            return Long.parseLong(readThrottleString);
+        if (StringUtils.isBlank(readThrottleString)) {
+            return defaultValue;
         }
-        return -1;
+        try {
+            return Long.parseLong(readThrottleString.trim());
+        } catch (final NumberFormatException e) {
+            LOG.warn("Ignoring bad value for {}: {}", key, readThrottleString);
+            return defaultValue;
+        }
+    }
+    
+    public static int extractInt(final Properties props, final String key,
+        final int defaultValue) {
+        return (int) extractLong(props, key, defaultValue);
     }
     
 
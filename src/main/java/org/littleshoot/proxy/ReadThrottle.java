@@ -0,0 +1,211 @@
+package org.littleshoot.proxy;
+
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.channel.ChannelLocal;
+
+/**
+ * Controls whether or not we read from a channel. Several things can want
+ * to stop reading from the same channel for their own reasons, such as a
+ * slow browser on the other end of the relay and responses to pipelined
+ * requests that are getting ahead, so we only read again once none of them
+ * want us to stop.
+ *
+ * Each throttle also keeps track of the channels we stopped reading from
+ * because its own channel's write buffer was above the high water mark, and
+ * lets them read again once the buffer drops below the low water mark.
+ */
+public class ReadThrottle {
+
+    private static final ChannelLocal<ReadThrottle> THROTTLES =
+        new ChannelLocal<ReadThrottle>();
+
+    private final Channel channel;
+
+    /**
+     * The reasons we're not reading from the channel.
+     */
+    private final Set<Object> reasons = new HashSet<Object>();
+
+    /**
+     * The channels we're not reading from until this channel is writable.
+     */
+    private final Set<Channel> waiting = new LinkedHashSet<Channel>();
+
+    /**
+     * Whether or not the channel was last set to readable by us.
+     */
+    private boolean readable = true;
+
+    private boolean updating = false;
+
+    /**
+     * Accessor for the throttle for the specified channel, creating it if
+     * it doesn't exist yet. The throttle goes away when the channel closes.
+     *
+     * @param channel The channel.
+     * @return The throttle.
+     */
+    public static ReadThrottle get(final Channel channel) {
+        final ReadThrottle existing = THROTTLES.get(channel);
+        if (existing != null) {
+            return existing;
+        }
+        final ReadThrottle created = new ReadThrottle(channel);
+        final ReadThrottle raced = THROTTLES.setIfAbsent(channel, created);
+        if (raced != null) {
+            return raced;
+        }
+        channel.getCloseFuture().addListener(new ChannelFutureListener() {
+            public void operationComplete(final ChannelFuture future) {
+                THROTTLES.remove(channel);
+                
+                // Nothing more will be written to the channel, so the
+                // channels waiting on it shouldn't wait any longer.
+                created.releaseWaiting();
+            }
+        });
+        return created;
+    }
+
+    /**
+     * Creates a new throttle.
+     *
+     * @param channel The channel to control reads from.
+     */
+    public ReadThrottle(final Channel channel) {
+        this.channel = channel;
+    }
+
+    /**
+     * Stops reading from the channel for the specified reason, if we're
+     * still reading from it.
+     *
+     * @param reason The reason for not reading, which must be passed to
+     * {@link #resume(Object)} to read again.
+     */
+    public void suspend(final Object reason) {
+        synchronized (this) {
+            if (!this.reasons.add(reason)) {
+                return;
+            }
+        }
+        update();
+    }
+
+    /**
+     * Removes a reason for not reading from the channel, reading from it
+     * again if there are no other reasons.
+     *
+     * @param reason The reason passed to {@link #suspend(Object)}.
+     */
+    public void resume(final Object reason) {
+        synchronized (this) {
+            if (!this.reasons.remove(reason)) {
+                return;
+            }
+        }
+        update();
+    }
+
+    /**
+     * Forgets every reason for not reading from the channel and reads from
+     * it again, and lets the channels waiting on this one read again too.
+     * This is for when the channel is handed to someone else, such as a
+     * pooled connection to a remote host, and the reasons of whoever used
+     * it last no longer apply.
+     */
+    public void reset() {
+        synchronized (this) {
+            this.reasons.clear();
+        }
+        update();
+        releaseWaiting();
+    }
+
+    /**
+     * Accessor for whether or not anything wants us to stop reading.
+     *
+     * @return <code>true</code> if we're not reading from the channel.
+     */
+    public synchronized boolean isSuspended() {
+        return !this.reasons.isEmpty();
+    }
+
+    /**
+     * Stops reading from the specified channel if this channel's write
+     * buffer is full, until it drains. Call this after writing something
+     * read from the other channel to this one.
+     *
+     * @param source The channel we're relaying from.
+     */
+    public void suspendIfUnwritable(final Channel source) {
+        if (this.channel.isWritable()) {
+            return;
+        }
+        synchronized (this) {
+            this.waiting.add(source);
+        }
+        get(source).suspend(this);
+
+        // The buffer may have drained before the source was waiting on it,
+        // in which case no one else will let it read again.
+        if (this.channel.isWritable()) {
+            releaseWaiting();
+        }
+    }
+
+    /**
+     * Lets any channels waiting on this one read again if this channel is
+     * now writable. Call this whenever the channel's interest ops change.
+     */
+    public void onInterestChanged() {
+        if (this.channel.isWritable()) {
+            releaseWaiting();
+        }
+    }
+
+    private void releaseWaiting() {
+        final Channel[] sources;
+        synchronized (this) {
+            if (this.waiting.isEmpty()) {
+                return;
+            }
+            sources = this.waiting.toArray(new Channel[this.waiting.size()]);
+            this.waiting.clear();
+        }
+        for (final Channel source : sources) {
+            get(source).resume(this);
+        }
+    }
+
+    private void update() {
+        // We never call into the channel holding the lock, as changing the
+        // interest ops can fire events that call into other throttles. Only
+        // one thread applies changes at a time, and it keeps going until
+        // the channel reflects the latest reasons.
+        synchronized (this) {
+            if (this.updating) {
+                return;
+            }
+            this.updating = true;
+        }
+        while (true) {
+            final boolean shouldRead;
+            synchronized (this) {
+                shouldRead = this.reasons.isEmpty();
+                if (shouldRead == this.readable) {
+                    this.updating = false;
+                    return;
+                }
+                this.readable = shouldRead;
+            }
+            this.channel.setReadable(shouldRead);
+        }
+    }
+}
@@ -0,0 +1,281 @@
+package org.littleshoot.proxy;
+
+import java.nio.channels.ClosedChannelException;
+import java.util.LinkedList;
+import java.util.Queue;
+
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.channel.ChannelLocal;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.handler.codec.http.HttpRequest;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Makes sure responses go back to a browser in the order it sent the
+ * requests. Browsers and other clients can pipeline requests on a single
+ * connection, and we may send those requests to different remote hosts
+ * over different connections, so responses can come back in any order.
+ * Responses that arrive before the responses to earlier requests are held
+ * until those are complete. If we're holding too much, we stop reading from
+ * the remote hosts that are getting ahead until it's their turn.
+ */
+public class ResponseSequencer {
+
+    private static final Logger LOG =
+        LoggerFactory.getLogger(ResponseSequencer.class);
+
+    private static final ChannelLocal<ResponseSequencer> SEQUENCERS =
+        new ChannelLocal<ResponseSequencer>();
+
+    private final Channel browserToProxyChannel;
+
+    private final long maxBufferedBytes;
+
+    /**
+     * Responses we're waiting on, in the order of their requests.
+     */
+    private final LinkedList<Slot> slots = new LinkedList<Slot>();
+
+    private long bufferedBytes;
+
+    /**
+     * Creates and installs a sequencer for the specified browser connection.
+     *
+     * @param browserToProxyChannel The browser connection.
+     * @return The new sequencer.
+     */
+    public static ResponseSequencer install(
+        final Channel browserToProxyChannel) {
+        final ResponseSequencer sequencer =
+            new ResponseSequencer(browserToProxyChannel,
+                LittleProxyConfig.getMaxPipelinedResponseBytes());
+        SEQUENCERS.set(browserToProxyChannel, sequencer);
+        return sequencer;
+    }
+
+    /**
+     * Accessor for the sequencer for the specified browser connection.
+     *
+     * @param browserToProxyChannel The browser connection.
+     * @return The sequencer, or <code>null</code> if there isn't one.
+     */
+    public static ResponseSequencer get(final Channel browserToProxyChannel) {
+        return SEQUENCERS.get(browserToProxyChannel);
+    }
+
+    /**
+     * Removes the sequencer for the specified browser connection.
+     *
+     * @param browserToProxyChannel The browser connection.
+     */
+    public static void uninstall(final Channel browserToProxyChannel) {
+        final ResponseSequencer sequencer =
+            SEQUENCERS.remove(browserToProxyChannel);
+        if (sequencer != null) {
+            sequencer.discardAll();
+        }
+    }
+
+    /**
+     * Creates a new sequencer.
+     *
+     * @param browserToProxyChannel The browser connection.
+     * @param maxBufferedBytes The number of bytes of responses we hold
+     * before we stop reading from remote hosts that are ahead.
+     */
+    public ResponseSequencer(final Channel browserToProxyChannel,
+        final long maxBufferedBytes) {
+        this.browserToProxyChannel = browserToProxyChannel;
+        this.maxBufferedBytes = maxBufferedBytes;
+    }
+
+    /**
+     * Registers a request we're sending to a remote host. Requests must be
+     * registered in the order the browser sent them. Registering the same
+     * request again, such as when retrying with another proxy, does
+     * nothing.
+     *
+     * @param request The request.
+     */
+    public synchronized void register(final HttpRequest request) {
+        if (find(request) == null) {
+            this.slots.add(new Slot(request));
+        }
+    }
+
+    /**
+     * Whether or not we're waiting on any responses. Only when we're not
+     * can anything else write a response to the browser directly.
+     *
+     * @return <code>true</code> if there are no outstanding responses.
+     */
+    public synchronized boolean isIdle() {
+        return this.slots.isEmpty();
+    }
+
+    /**
+     * Writes part of the response to the specified request, or holds it if
+     * responses to earlier requests are still outstanding.
+     *
+     * @param request The request this is a response to.
+     * @param msg The message to write.
+     * @param complete Whether or not this is the last message of the
+     * response.
+     * @param remoteChannel The connection the response is arriving on,
+     * which we stop reading from if we're holding too much.
+     * @return The future for the write, which completes once the message is
+     * actually written to the browser.
+     */
+    public synchronized ChannelFuture write(final HttpRequest request,
+        final Object msg, final boolean complete, final Channel remoteChannel) {
+        final Slot slot = find(request);
+        if (slot == null) {
+            // Not a request we're sequencing.
+            return this.browserToProxyChannel.write(msg);
+        }
+        if (slot == this.slots.getFirst()) {
+            final ChannelFuture future = this.browserToProxyChannel.write(msg);
+            if (complete) {
+                slot.complete = true;
+                advance();
+            }
+            return future;
+        }
+        final ChannelFuture future = Channels.future(this.browserToProxyChannel);
+        final long size = ProxyUtils.messageSize(msg);
+        slot.pending.add(new PendingWrite(msg, future, size));
+        this.bufferedBytes += size;
+        if (complete) {
+            // Nothing more is coming on the remote connection for this
+            // response, so there's no reason to hold off reading from it.
+            slot.complete = true;
+            resume(slot);
+        } else if (this.bufferedBytes > this.maxBufferedBytes &&
+            !slot.suspended && remoteChannel != null) {
+            LOG.info("Holding {} bytes of pipelined responses -- " +
+                "suspending reads from {}", this.bufferedBytes, remoteChannel);
+            slot.remoteChannel = remoteChannel;
+            slot.suspended = true;
+            ReadThrottle.get(remoteChannel).suspend(slot);
+        }
+        return future;
+    }
+
+    /**
+     * Marks the response to the specified request as complete if it's not
+     * already, such as when the remote host closed the connection partway
+     * through. Whatever we have of the response is still written, but as
+     * the browser can't tell where it ends, we then close the browser
+     * connection.
+     *
+     * @param request The request whose response is done.
+     */
+    public synchronized void abort(final HttpRequest request) {
+        final Slot slot = find(request);
+        if (slot == null || slot.complete) {
+            return;
+        }
+        LOG.info("Response aborted for {}", request.getUri());
+        slot.complete = true;
+        slot.closeAfter = true;
+        resume(slot);
+        advance();
+    }
+
+    private void advance() {
+        while (!this.slots.isEmpty() && this.slots.getFirst().complete) {
+            final Slot done = this.slots.removeFirst();
+            if (done.closeAfter) {
+                ProxyUtils.closeOnFlush(this.browserToProxyChannel);
+                discardAll();
+                return;
+            }
+            if (this.slots.isEmpty()) {
+                return;
+            }
+            // The next response is now at the front, so everything we've
+            // held of it can go.
+            final Slot next = this.slots.getFirst();
+            while (!next.pending.isEmpty()) {
+                final PendingWrite pw = next.pending.remove();
+                this.bufferedBytes -= pw.size;
+                chain(this.browserToProxyChannel.write(pw.msg), pw.future);
+            }
+            resume(next);
+        }
+    }
+
+    private void discardAll() {
+        final ClosedChannelException cause = new ClosedChannelException();
+        synchronized (this) {
+            for (final Slot slot : this.slots) {
+                for (final PendingWrite pw : slot.pending) {
+                    pw.future.setFailure(cause);
+                }
+                resume(slot);
+            }
+            this.slots.clear();
+            this.bufferedBytes = 0;
+        }
+    }
+
+    private void resume(final Slot slot) {
+        if (slot.suspended) {
+            slot.suspended = false;
+            ReadThrottle.get(slot.remoteChannel).resume(slot);
+        }
+    }
+
+    private Slot find(final HttpRequest request) {
+        for (final Slot slot : this.slots) {
+            if (slot.request == request) {
+                return slot;
+            }
+        }
+        return null;
+    }
+
+    private static void chain(final ChannelFuture source,
+        final ChannelFuture target) {
+        source.addListener(new ChannelFutureListener() {
+            public void operationComplete(final ChannelFuture future) {
+                if (future.isSuccess()) {
+                    target.setSuccess();
+                } else {
+                    target.setFailure(future.getCause());
+                }
+            }
+        });
+    }
+
+    private static final class Slot {
+
+        private final HttpRequest request;
+        private final Queue<PendingWrite> pending = new LinkedList<PendingWrite>();
+        private boolean complete;
+        private boolean closeAfter;
+        private boolean suspended;
+        private Channel remoteChannel;
+
+        private Slot(final HttpRequest request) {
+            this.request = request;
+        }
+    }
+
+    private static final class PendingWrite {
+
+        private final Object msg;
+        private final ChannelFuture future;
+        private final long size;
+
+        private PendingWrite(final Object msg, final ChannelFuture future,
+            final long size) {
+            this.msg = msg;
+            this.future = future;
+            this.size = size;
+        }
+    }
+}
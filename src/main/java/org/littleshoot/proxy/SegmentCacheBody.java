@@ -0,0 +1,70 @@
+package org.littleshoot.proxy;
+
+import java.io.IOException;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.FileRegion;
+
+/**
+ * The body of a cached response stored in a {@link CacheSegment} on disk.
+ * We normally send the body straight from the file, so we only map it into
+ * memory if something asks for it as a buffer. Mappings are only released
+ * once they're garbage collected, so mapping every body we send would soon
+ * run us out of them.
+ */
+public class SegmentCacheBody implements CacheBody {
+
+    private final CacheSegment segment;
+    private final long offset;
+    private final long length;
+    private ChannelBuffer mapped;
+
+    /**
+     * Creates a new body.
+     * 
+     * @param segment The segment the body is in.
+     * @param offset Where the body starts in the segment.
+     * @param length The length of the body.
+     */
+    public SegmentCacheBody(final CacheSegment segment, final long offset,
+        final long length) {
+        this.segment = segment;
+        this.offset = offset;
+        this.length = length;
+    }
+    
+    public long getLength() {
+        return this.length;
+    }
+
+    /**
+     * Maps the body into memory, for when we can't send it as a file 
+     * region, such as over SSL. The segment has to still be open, so 
+     * callers sending a region they couldn't use should get the buffer 
+     * before releasing the region.
+     * 
+     * @return The body.
+     * @throws IllegalStateException If the segment is already closed.
+     */
+    public ChannelBuffer getBuffer() {
+        synchronized (this) {
+            if (this.mapped == null) {
+                try {
+                    this.mapped = this.segment.map(this.offset, this.length);
+                } catch (final IOException e) {
+                    throw new IllegalStateException("Could not map body in "+
+                        "cache segment " + this.segment.getId(), e);
+                }
+            }
+        }
+        return this.mapped.duplicate();
+    }
+
+    public FileRegion getFileRegion() {
+        return this.segment.region(this.offset, this.length);
+    }
+
+    public void release() {
+        // Appended bytes never change, so there's nothing to hold on to.
+    }
+}
@@ -0,0 +1,467 @@
+package org.littleshoot.proxy;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.FileRegion;
+import org.jboss.netty.handler.codec.http.HttpRequest;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * In-memory store that keeps response bodies outside the heap, so a large
+ * cache doesn't add to garbage collection pauses. Memory is allocated as
+ * direct slabs of a fixed size, and each slab is cut into equal chunks for
+ * one size class. A body takes the smallest chunk it fits in.
+ * <p>
+ * Each size class evicts its least recently used entries, but a new entry
+ * is only let in over an existing one if it's been asked for more often
+ * recently, going by a {@link FrequencySketch} of lookups. That way a scan
+ * of responses that are only asked for once can't push out popular ones.
+ * When a size class has nothing to evict and there are no free slabs, it
+ * takes over the slab holding the coldest entry of the size class with the
+ * most slabs.
+ * <p>
+ * Hits get a read-only slice of the chunk the body is in rather than a
+ * copy. The chunk is pinned until the body is released once it's been
+ * written, and isn't reused before then even if the entry is removed.
+ */
+public class SlabHttpCacheStore implements HttpCacheStore {
+
+    private static final Logger LOG =
+        LoggerFactory.getLogger(SlabHttpCacheStore.class);
+
+    /**
+     * The most variants we keep for a single key.
+     */
+    private static final int MAX_VARIANTS = 8;
+
+    private static final int MIN_CHUNK_BYTES = 256;
+
+    private final int slabBytes;
+
+    private final int maxSlabs;
+
+    private final SizeClass[] sizeClasses;
+
+    private final Map<String, List<SlabEntry>> entries =
+        new HashMap<String, List<SlabEntry>>();
+
+    private final FrequencySketch sketch;
+
+    private int slabs;
+
+    private int count;
+
+    private long bytes;
+
+    private long rejected;
+
+    /**
+     * Creates a new store.
+     *
+     * @param maxBytes The most bytes of slabs we'll allocate.
+     * @param slabBytes The size of each slab, which is also the largest body
+     * we'll store.
+     */
+    public SlabHttpCacheStore(final long maxBytes, final int slabBytes) {
+        if (slabBytes < MIN_CHUNK_BYTES) {
+            throw new IllegalArgumentException("Slab too small: " + slabBytes);
+        }
+        this.slabBytes = slabBytes;
+        this.maxSlabs = (int) Math.min(Integer.MAX_VALUE, maxBytes / slabBytes);
+        final List<SizeClass> classes = new ArrayList<SizeClass>();
+        for (int size = MIN_CHUNK_BYTES; size < slabBytes; size <<= 1) {
+            classes.add(new SizeClass(size));
+        }
+        classes.add(new SizeClass(slabBytes));
+        this.sizeClasses = classes.toArray(new SizeClass[classes.size()]);
+
+        // Guess at an average body of 4KB to size the sketch.
+        this.sketch = new FrequencySketch(
+            (int) Math.max(1024, Math.min(1 << 24, maxBytes / 4096)));
+    }
+
+    public CacheEntry get(final String key, final HttpRequest request) {
+        this.sketch.increment(key);
+        final SlabEntry found;
+        synchronized (this) {
+            found = find(key, request);
+            if (found == null) {
+                return null;
+            }
+            // Keep the chunk from being reused until the body is released.
+            found.pins++;
+            found.sizeClass.lru.get(found);
+        }
+        final ByteBuffer chunk = found.chunk.slab.buffer.duplicate();
+        chunk.limit(found.chunk.offset + found.length);
+        chunk.position(found.chunk.offset);
+        return found.entry.withBody(new SlabCacheBody(found,
+            ChannelBuffers.wrappedBuffer(chunk.slice().asReadOnlyBuffer())));
+    }
+
+    /**
+     * Lets go of a chunk a hit was reading from, freeing it if its entry
+     * was removed in the meantime. Callers must hold the lock on the store.
+     */
+    private void unpin(final SlabEntry slabEntry) {
+        slabEntry.pins--;
+        if (slabEntry.pins == 0 && slabEntry.removed) {
+            slabEntry.chunk.slab.pinned--;
+            slabEntry.sizeClass.free.add(slabEntry.chunk);
+        }
+    }
+
+    private SlabEntry find(final String key, final HttpRequest request) {
+        final List<SlabEntry> variants = this.entries.get(key);
+        if (variants == null) {
+            return null;
+        }
+        for (final SlabEntry slabEntry : variants) {
+            if (slabEntry.entry.matches(request)) {
+                return slabEntry;
+            }
+        }
+        return null;
+    }
+
+    public void put(final CacheEntry entry) {
+        final long length = entry.getBody().getLength();
+        if (length > this.slabBytes) {
+            LOG.debug("Entry too big for slabs: {}", entry);
+            return;
+        }
+        final SizeClass sizeClass = sizeClass((int) length);
+        final ChannelBuffer body = entry.getBody().getBuffer();
+        final int frequency = this.sketch.frequency(entry.getKey());
+        synchronized (this) {
+            // The new entry replaces any entry for the same variant whether
+            // or not we let it in, as that entry is out of date.
+            final List<SlabEntry> variants = this.entries.get(entry.getKey());
+            if (variants != null) {
+                for (final SlabEntry existing :
+                    new ArrayList<SlabEntry>(variants)) {
+                    if (existing.entry.sameVariant(entry)) {
+                        remove(existing);
+                    }
+                }
+            }
+            final Chunk chunk = allocate(sizeClass, frequency);
+            if (chunk == null) {
+                this.rejected++;
+                LOG.debug("Not admitting to slabs: {}", entry);
+                return;
+            }
+            final ByteBuffer dst = chunk.slab.buffer.duplicate();
+            dst.limit(chunk.offset + (int) length);
+            dst.position(chunk.offset);
+            body.getBytes(body.readerIndex(), dst);
+
+            // We hold on to everything but the body on the heap.
+            final SlabEntry slabEntry = new SlabEntry(
+                entry.withBody(new HeapCacheBody(ChannelBuffers.EMPTY_BUFFER)),
+                sizeClass, chunk, (int) length);
+            List<SlabEntry> current = this.entries.get(entry.getKey());
+            if (current == null) {
+                current = new ArrayList<SlabEntry>(1);
+                this.entries.put(entry.getKey(), current);
+            }
+            if (current.size() >= MAX_VARIANTS) {
+                remove(current.get(0));
+            }
+            current.add(slabEntry);
+            sizeClass.lru.put(slabEntry, Boolean.TRUE);
+            this.count++;
+            this.bytes += slabEntry.getSize();
+        }
+    }
+
+    public synchronized boolean remove(final String key) {
+        final List<SlabEntry> variants = this.entries.get(key);
+        if (variants == null) {
+            return false;
+        }
+        for (final SlabEntry slabEntry : new ArrayList<SlabEntry>(variants)) {
+            remove(slabEntry);
+        }
+        return true;
+    }
+
+    public synchronized int getEntryCount() {
+        return this.count;
+    }
+
+    /**
+     * Accessor for the bytes the entries take up, counting the whole chunk
+     * each body is in along with what the rest of each entry takes on the
+     * heap.
+     */
+    public synchronized long getSizeBytes() {
+        return this.bytes;
+    }
+
+    /**
+     * Accessor for the bytes of slabs we've allocated so far.
+     *
+     * @return The size of all slabs in bytes.
+     */
+    public synchronized long getSlabBytes() {
+        return (long) this.slabs * this.slabBytes;
+    }
+
+    /**
+     * Accessor for the number of entries we've turned away because they
+     * were asked for less often than the entries they would have replaced.
+     *
+     * @return The number of entries not admitted.
+     */
+    public synchronized long getRejectedCount() {
+        return this.rejected;
+    }
+
+    public void close() {
+        // The slabs go away along with the store.
+    }
+
+    /**
+     * Finds a chunk for a new entry, evicting an entry if we have to and if
+     * the new entry is more popular.
+     */
+    private Chunk allocate(final SizeClass sizeClass, final int frequency) {
+        if (!sizeClass.free.isEmpty()) {
+            return sizeClass.free.removeFirst();
+        }
+        if (this.slabs < this.maxSlabs) {
+            this.slabs++;
+            sizeClass.assign(new Slab(ByteBuffer.allocateDirect(
+                this.slabBytes)));
+            return sizeClass.free.removeFirst();
+        }
+        final SlabEntry victim = sizeClass.victim();
+        if (victim != null) {
+            if (frequency <= this.sketch.frequency(victim.entry.getKey())) {
+                return null;
+            }
+            remove(victim);
+            return sizeClass.free.removeFirst();
+        }
+        return reassign(sizeClass, frequency);
+    }
+
+    /**
+     * Moves the slab holding the coldest entry of the size class with the
+     * most slabs to the specified size class.
+     */
+    private Chunk reassign(final SizeClass sizeClass, final int frequency) {
+        SizeClass donor = null;
+        for (final SizeClass candidate : this.sizeClasses) {
+            if (candidate != sizeClass && candidate.slabs > 1 &&
+                (donor == null || candidate.slabs > donor.slabs)) {
+                donor = candidate;
+            }
+        }
+        if (donor == null) {
+            return null;
+        }
+        final SlabEntry victim = donor.victim();
+        if (victim == null ||
+            frequency <= this.sketch.frequency(victim.entry.getKey())) {
+            return null;
+        }
+        final Slab slab = victim.chunk.slab;
+        final List<SlabEntry> inSlab = new ArrayList<SlabEntry>();
+        for (final SlabEntry slabEntry : donor.lru.keySet()) {
+            if (slabEntry.chunk.slab == slab) {
+                if (slabEntry.pins > 0) {
+                    return null;
+                }
+                inSlab.add(slabEntry);
+            }
+        }
+        // Entries removed while pinned still hold their chunks.
+        if (slab.pinned > 0) {
+            return null;
+        }
+        for (final SlabEntry slabEntry : inSlab) {
+            remove(slabEntry);
+        }
+        for (final Iterator<Chunk> it = donor.free.iterator(); it.hasNext();) {
+            if (it.next().slab == slab) {
+                it.remove();
+            }
+        }
+        donor.slabs--;
+        LOG.debug("Moving slab from {} to {} byte chunks", donor.chunkBytes,
+            sizeClass.chunkBytes);
+        sizeClass.assign(slab);
+        return sizeClass.free.removeFirst();
+    }
+
+    private void remove(final SlabEntry slabEntry) {
+        final List<SlabEntry> variants =
+            this.entries.get(slabEntry.entry.getKey());
+        if (variants != null) {
+            variants.remove(slabEntry);
+            if (variants.isEmpty()) {
+                this.entries.remove(slabEntry.entry.getKey());
+            }
+        }
+        slabEntry.sizeClass.lru.remove(slabEntry);
+        slabEntry.removed = true;
+        this.count--;
+        this.bytes -= slabEntry.getSize();
+        if (slabEntry.pins == 0) {
+            slabEntry.sizeClass.free.add(slabEntry.chunk);
+        } else {
+            slabEntry.chunk.slab.pinned++;
+        }
+    }
+
+    private SizeClass sizeClass(final int length) {
+        for (final SizeClass sizeClass : this.sizeClasses) {
+            if (length <= sizeClass.chunkBytes) {
+                return sizeClass;
+            }
+        }
+        throw new IllegalArgumentException("No size class for " + length);
+    }
+
+    private static final class Slab {
+
+        private final ByteBuffer buffer;
+
+        /**
+         * Chunks of removed entries that are still being written from.
+         */
+        private int pinned;
+
+        private Slab(final ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+    }
+
+    private static final class Chunk {
+
+        private final Slab slab;
+        private final int offset;
+
+        private Chunk(final Slab slab, final int offset) {
+            this.slab = slab;
+            this.offset = offset;
+        }
+    }
+
+    private final class SizeClass {
+
+        private final int chunkBytes;
+
+        private final LinkedList<Chunk> free = new LinkedList<Chunk>();
+
+        /**
+         * The entries in this size class, in access order.
+         */
+        private final LinkedHashMap<SlabEntry, Boolean> lru =
+            new LinkedHashMap<SlabEntry, Boolean>(16, 0.75f, true);
+
+        private int slabs;
+
+        private SizeClass(final int chunkBytes) {
+            this.chunkBytes = chunkBytes;
+        }
+
+        private void assign(final Slab slab) {
+            this.slabs++;
+            for (int offset = 0; offset + this.chunkBytes <= slabBytes;
+                offset += this.chunkBytes) {
+                this.free.add(new Chunk(slab, offset));
+            }
+        }
+
+        /**
+         * Returns the least recently used entry that isn't being written
+         * from, looking only a little way in.
+         */
+        private SlabEntry victim() {
+            int looked = 0;
+            for (final SlabEntry slabEntry : this.lru.keySet()) {
+                if (slabEntry.pins == 0) {
+                    return slabEntry;
+                }
+                if (++looked >= 8) {
+                    break;
+                }
+            }
+            return null;
+        }
+    }
+
+    private static final class SlabEntry {
+
+        private final CacheEntry entry;
+        private final SizeClass sizeClass;
+        private final Chunk chunk;
+        private final int length;
+        private int pins;
+        private boolean removed;
+
+        private SlabEntry(final CacheEntry entry, final SizeClass sizeClass,
+            final Chunk chunk, final int length) {
+            this.entry = entry;
+            this.sizeClass = sizeClass;
+            this.chunk = chunk;
+            this.length = length;
+        }
+
+        private long getSize() {
+            return this.entry.getSize() + this.sizeClass.chunkBytes;
+        }
+    }
+
+    /**
+     * A body read straight from its chunk, which stays pinned until the
+     * body is released.
+     */
+    private final class SlabCacheBody implements CacheBody {
+
+        private final SlabEntry slabEntry;
+        private final ChannelBuffer buffer;
+        private boolean released;
+
+        private SlabCacheBody(final SlabEntry slabEntry,
+            final ChannelBuffer buffer) {
+            this.slabEntry = slabEntry;
+            this.buffer = buffer;
+        }
+
+        public long getLength() {
+            return this.buffer.readableBytes();
+        }
+
+        public ChannelBuffer getBuffer() {
+            return this.buffer.duplicate();
+        }
+
+        public FileRegion getFileRegion() {
+            return null;
+        }
+
+        public void release() {
+            synchronized (SlabHttpCacheStore.this) {
+                if (this.released) {
+                    return;
+                }
+                this.released = true;
+                unpin(this.slabEntry);
+            }
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package org.littleshoot.proxy;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jboss.netty.handler.codec.http.HttpRequest;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * In-memory store for cached responses. Keys are spread over a number of
+ * stripes, each with its own lock and its own share of the memory budget,
+ * so lookups for different keys rarely contend. Each stripe evicts its
+ * least recently used keys when it's over budget.
+ */
+public class StripedHttpCacheStore implements HttpCacheStore {
+
+    private static final Logger LOG = 
+        LoggerFactory.getLogger(StripedHttpCacheStore.class);
+    
+    /**
+     * The most variants we keep for a single key.
+     */
+    private static final int MAX_VARIANTS = 8;
+    
+    private final Stripe[] stripes;
+
+    /**
+     * Creates a new store with 16 stripes.
+     * 
+     * @param maxBytes The most bytes all entries can take up.
+     */
+    public StripedHttpCacheStore(final long maxBytes) {
+        this(maxBytes, 16);
+    }
+    
+    /**
+     * Creates a new store.
+     * 
+     * @param maxBytes The most bytes all entries can take up.
+     * @param numStripes The number of stripes, rounded up to a power of 2.
+     */
+    public StripedHttpCacheStore(final long maxBytes, final int numStripes) {
+        int n = 1;
+        while (n < numStripes) {
+            n <<= 1;
+        }
+        this.stripes = new Stripe[n];
+        for (int i = 0; i < n; i++) {
+            this.stripes[i] = new Stripe(maxBytes / n);
+        }
+    }
+    
+    public CacheEntry get(final String key, final HttpRequest request) {
+        return stripe(key).get(key, request);
+    }
+
+    public void put(final CacheEntry entry) {
+        stripe(entry.getKey()).put(entry);
+    }
+
+    public boolean remove(final String key) {
+        return stripe(key).remove(key);
+    }
+
+    public int getEntryCount() {
+        int count = 0;
+        for (final Stripe stripe : this.stripes) {
+            count += stripe.getEntryCount();
+        }
+        return count;
+    }
+
+    public long getSizeBytes() {
+        long bytes = 0;
+        for (final Stripe stripe : this.stripes) {
+            bytes += stripe.getSizeBytes();
+        }
+        return bytes;
+    }
+    
+    public void close() {
+        // Nothing to release or save.
+    }
+    
+    private Stripe stripe(final String key) {
+        // Spread the hash so keys that differ only in their high bits don't
+        // all land in the same stripe.
+        int h = key.hashCode();
+        h ^= (h >>> 20) ^ (h >>> 12);
+        h ^= (h >>> 7) ^ (h >>> 4);
+        return this.stripes[h & (this.stripes.length - 1)];
+    }
+    
+    private static final class Stripe {
+        
+        private final long maxBytes;
+        
+        /**
+         * All variants for each key, in access order.
+         */
+        private final LinkedHashMap<String, List<CacheEntry>> entries =
+            new LinkedHashMap<String, List<CacheEntry>>(16, 0.75f, true);
+        
+        private long bytes;
+        
+        private int count;
+        
+        private Stripe(final long maxBytes) {
+            this.maxBytes = maxBytes;
+        }
+        
+        private synchronized CacheEntry get(final String key, 
+            final HttpRequest request) {
+            final List<CacheEntry> variants = this.entries.get(key);
+            if (variants == null) {
+                return null;
+            }
+            for (final CacheEntry entry : variants) {
+                if (entry.matches(request)) {
+                    return entry;
+                }
+            }
+            return null;
+        }
+        
+        private synchronized void put(final CacheEntry entry) {
+            final long size = entry.getSize();
+            if (size > this.maxBytes) {
+                LOG.debug("Entry too big to cache: {}", entry);
+                return;
+            }
+            List<CacheEntry> variants = this.entries.get(entry.getKey());
+            if (variants == null) {
+                variants = new ArrayList<CacheEntry>(1);
+                this.entries.put(entry.getKey(), variants);
+            }
+            for (final Iterator<CacheEntry> it = variants.iterator(); 
+                it.hasNext();) {
+                final CacheEntry existing = it.next();
+                if (existing.sameVariant(entry)) {
+                    it.remove();
+                    removed(existing);
+                }
+            }
+            if (variants.size() >= MAX_VARIANTS) {
+                removed(variants.remove(0));
+            }
+            variants.add(entry);
+            this.bytes += size;
+            this.count++;
+            evict();
+        }
+        
+        private synchronized boolean remove(final String key) {
+            final List<CacheEntry> variants = this.entries.remove(key);
+            if (variants == null) {
+                return false;
+            }
+            for (final CacheEntry entry : variants) {
+                removed(entry);
+            }
+            return true;
+        }
+        
+        private void evict() {
+            final Iterator<Map.Entry<String, List<CacheEntry>>> it = 
+                this.entries.entrySet().iterator();
+            while (this.bytes > this.maxBytes && it.hasNext()) {
+                final Map.Entry<String, List<CacheEntry>> eldest = it.next();
+                it.remove();
+                for (final CacheEntry entry : eldest.getValue()) {
+                    removed(entry);
+                }
+            }
+        }
+        
+        private void removed(final CacheEntry entry) {
+            this.bytes -= entry.getSize();
+            this.count--;
+        }
+        
+        private synchronized int getEntryCount() {
+            return this.count;
+        }
+        
+        private synchronized long getSizeBytes() {
+            return this.bytes;
+        }
+    }
+}
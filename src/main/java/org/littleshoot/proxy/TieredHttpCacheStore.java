@@ -0,0 +1,83 @@
+package org.littleshoot.proxy;
+
+import org.jboss.netty.handler.codec.http.HttpRequest;
+
+/**
+ * Store that keeps small entries in memory and everything on disk. Hits on
+ * small entries come straight from the heap, while large entries are only
+ * ever on disk, where we can send them to browsers without copying them
+ * into the heap.
+ */
+public class TieredHttpCacheStore implements HttpCacheStore {
+
+    private final HttpCacheStore memory;
+
+    private final HttpCacheStore disk;
+
+    private final long memoryMaxObjectBytes;
+
+    /**
+     * Creates a new store.
+     *
+     * @param memory The memory tier.
+     * @param disk The disk tier.
+     * @param memoryMaxObjectBytes The largest body we keep in memory.
+     */
+    public TieredHttpCacheStore(final HttpCacheStore memory,
+        final HttpCacheStore disk, final long memoryMaxObjectBytes) {
+        this.memory = memory;
+        this.disk = disk;
+        this.memoryMaxObjectBytes = memoryMaxObjectBytes;
+    }
+
+    public CacheEntry get(final String key, final HttpRequest request) {
+        final CacheEntry entry = this.memory.get(key, request);
+        if (entry != null) {
+            return entry;
+        }
+        return this.disk.get(key, request);
+    }
+
+    public void put(final CacheEntry entry) {
+        final CacheBody body = entry.getBody();
+        if (body instanceof HeapCacheBody &&
+            body.getLength() <= this.memoryMaxObjectBytes) {
+            this.memory.put(entry);
+        } else {
+            // Don't leave an older copy in memory hiding this one.
+            this.memory.remove(entry.getKey());
+        }
+        this.disk.put(entry);
+    }
+
+    public boolean remove(final String key) {
+        final boolean removedFromMemory = this.memory.remove(key);
+        final boolean removedFromDisk = this.disk.remove(key);
+        return removedFromMemory || removedFromDisk;
+    }
+
+    /**
+     * Accessor for the number of entries on disk, which includes all the
+     * entries in memory.
+     */
+    public int getEntryCount() {
+        return this.disk.getEntryCount();
+    }
+
+    public long getSizeBytes() {
+        return this.memory.getSizeBytes() + this.disk.getSizeBytes();
+    }
+
+    public void close() {
+        this.memory.close();
+        this.disk.close();
+    }
+
+    public HttpCacheStore getMemory() {
+        return memory;
+    }
+
+    public HttpCacheStore getDisk() {
+        return disk;
+    }
+}
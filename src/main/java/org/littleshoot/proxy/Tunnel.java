@@ -0,0 +1,173 @@
+package org.littleshoot.proxy;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.handler.timeout.IdleStateAwareChannelHandler;
+import org.jboss.netty.handler.timeout.IdleStateEvent;
+import org.jboss.netty.handler.timeout.IdleStateHandler;
+import org.jboss.netty.util.HashedWheelTimer;
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.Timer;
+import org.jboss.netty.util.TimerTask;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A single CONNECT tunnel between a browser and a remote host. This keeps
+ * track of how much data the tunnel has relayed in each direction, and
+ * closes the tunnel when it's been idle for too long or has been open for
+ * longer than we allow.
+ */
+public class Tunnel {
+
+    private static final Logger LOG = LoggerFactory.getLogger(Tunnel.class);
+
+    private static final Timer TIMER = new HashedWheelTimer();
+
+    private final String hostAndPort;
+
+    private final Channel browserToProxyChannel;
+
+    private final TunnelRegistry registry;
+
+    private volatile long openedAt = System.currentTimeMillis();
+
+    private final AtomicLong bytesFromBrowser = new AtomicLong();
+
+    private final AtomicLong bytesToBrowser = new AtomicLong();
+
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+
+    private volatile Channel proxyToWebChannel;
+
+    private volatile Timeout lifetimeTimeout;
+
+    /**
+     * Creates a new tunnel.
+     *
+     * @param hostAndPort The host and port the browser asked to connect to.
+     * @param browserToProxyChannel The browser connection.
+     * @param registry The registry of open tunnels.
+     */
+    public Tunnel(final String hostAndPort,
+        final Channel browserToProxyChannel, final TunnelRegistry registry) {
+        this.hostAndPort = hostAndPort;
+        this.browserToProxyChannel = browserToProxyChannel;
+        this.registry = registry;
+    }
+
+    /**
+     * Called when we've connected to the remote host and start relaying.
+     *
+     * @param proxyToWebChannel The connection to the remote host.
+     */
+    public void onOpen(final Channel proxyToWebChannel) {
+        this.proxyToWebChannel = proxyToWebChannel;
+        this.openedAt = System.currentTimeMillis();
+        this.registry.add(this);
+        final long maxLifetime = 
+            LittleProxyConfig.getTunnelMaxLifetimeSeconds();
+        if (maxLifetime > 0) {
+            this.lifetimeTimeout = TIMER.newTimeout(new TimerTask() {
+                public void run(final Timeout timeout) {
+                    LOG.info("Closing tunnel open for too long: {}",
+                        Tunnel.this);
+                    closeChannels();
+                }
+            }, maxLifetime, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Adds the handlers for closing the tunnel when it's idle to the
+     * specified pipeline for either side of the tunnel.
+     *
+     * @param pipeline The pipeline.
+     */
+    public void addIdleHandlers(final ChannelPipeline pipeline) {
+        final int idleSeconds = LittleProxyConfig.getTunnelIdleTimeoutSeconds();
+        if (idleSeconds <= 0) {
+            return;
+        }
+        // Anything relayed in either direction is both read and written on
+        // both channels, so we only consider a tunnel idle if neither
+        // happens.
+        pipeline.addLast("idle", new IdleStateHandler(TIMER, 0, 0,
+            idleSeconds));
+        pipeline.addLast("idleAware", new IdleStateAwareChannelHandler() {
+            @Override
+            public void channelIdle(final ChannelHandlerContext ctx,
+                final IdleStateEvent e) {
+                LOG.info("Closing idle tunnel: {}", Tunnel.this);
+                closeChannels();
+            }
+        });
+    }
+
+    /**
+     * Counts data relayed over the tunnel.
+     *
+     * @param from The channel the data was read from.
+     * @param bytes The number of bytes.
+     */
+    public void relayed(final Channel from, final long bytes) {
+        if (from == this.browserToProxyChannel) {
+            this.bytesFromBrowser.addAndGet(bytes);
+        } else {
+            this.bytesToBrowser.addAndGet(bytes);
+        }
+    }
+
+    /**
+     * Called when either side of the tunnel closes. The other side is
+     * closed separately once it's written everything it has.
+     */
+    public void onClosed() {
+        if (this.closed.getAndSet(true)) {
+            return;
+        }
+        final Timeout timeout = this.lifetimeTimeout;
+        if (timeout != null) {
+            timeout.cancel();
+        }
+        this.registry.remove(this);
+        LOG.info("Tunnel closed: {}", this);
+    }
+
+    private void closeChannels() {
+        this.browserToProxyChannel.close();
+        final Channel ch = this.proxyToWebChannel;
+        if (ch != null) {
+            ch.close();
+        }
+    }
+
+    public String getHostAndPort() {
+        return hostAndPort;
+    }
+
+    public long getBytesFromBrowser() {
+        return bytesFromBrowser.get();
+    }
+
+    public long getBytesToBrowser() {
+        return bytesToBrowser.get();
+    }
+
+    public long getDurationMillis() {
+        return System.currentTimeMillis() - this.openedAt;
+    }
+
+    @Override
+    public String toString() {
+        return "Tunnel [hostAndPort=" + hostAndPort + ", browser="
+            + browserToProxyChannel.getRemoteAddress() + ", bytesFromBrowser="
+            + bytesFromBrowser + ", bytesToBrowser=" + bytesToBrowser
+            + ", durationMillis=" + getDurationMillis() + "]";
+    }
+}
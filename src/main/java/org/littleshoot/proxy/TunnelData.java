@@ -0,0 +1,26 @@
+package org.littleshoot.proxy;
+
+import java.util.List;
+
+import javax.management.MXBean;
+
+/**
+ * Interface for JMX data on CONNECT tunnels.
+ */
+@MXBean(true)
+public interface TunnelData {
+
+    int getNumOpenTunnels();
+    
+    long getTotalTunnels();
+    
+    long getBytesFromBrowsers();
+    
+    long getBytesToBrowsers();
+    
+    /**
+     * @return Descriptions of the open tunnels that have relayed the most
+     * bytes, busiest first.
+     */
+    List<String> getBusiestTunnels();
+}
@@ -0,0 +1,109 @@
+package org.littleshoot.proxy;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps track of all open CONNECT tunnels, along with totals for tunnels
+ * that have already closed.
+ */
+public class TunnelRegistry implements TunnelData {
+
+    /**
+     * The most tunnels we describe in {@link #getBusiestTunnels()}.
+     */
+    private static final int MAX_BUSIEST = 20;
+
+    private final Map<Tunnel, Boolean> open =
+        new ConcurrentHashMap<Tunnel, Boolean>();
+
+    private final AtomicLong totalTunnels = new AtomicLong();
+
+    private final AtomicLong closedBytesFromBrowsers = new AtomicLong();
+
+    private final AtomicLong closedBytesToBrowsers = new AtomicLong();
+
+    /**
+     * Adds a newly opened tunnel.
+     *
+     * @param tunnel The tunnel.
+     */
+    public void add(final Tunnel tunnel) {
+        this.totalTunnels.incrementAndGet();
+        this.open.put(tunnel, Boolean.TRUE);
+    }
+
+    /**
+     * Removes a closed tunnel, keeping its byte counts in our totals.
+     *
+     * @param tunnel The tunnel.
+     */
+    public void remove(final Tunnel tunnel) {
+        if (this.open.remove(tunnel) != null) {
+            this.closedBytesFromBrowsers.addAndGet(tunnel.getBytesFromBrowser());
+            this.closedBytesToBrowsers.addAndGet(tunnel.getBytesToBrowser());
+        }
+    }
+
+    /**
+     * Accessor for the open tunnels.
+     *
+     * @return A snapshot of the open tunnels.
+     */
+    public List<Tunnel> getTunnels() {
+        return new ArrayList<Tunnel>(this.open.keySet());
+    }
+
+    public int getNumOpenTunnels() {
+        return this.open.size();
+    }
+
+    public long getTotalTunnels() {
+        return this.totalTunnels.get();
+    }
+
+    public long getBytesFromBrowsers() {
+        long bytes = this.closedBytesFromBrowsers.get();
+        for (final Tunnel tunnel : this.open.keySet()) {
+            bytes += tunnel.getBytesFromBrowser();
+        }
+        return bytes;
+    }
+
+    public long getBytesToBrowsers() {
+        long bytes = this.closedBytesToBrowsers.get();
+        for (final Tunnel tunnel : this.open.keySet()) {
+            bytes += tunnel.getBytesToBrowser();
+        }
+        return bytes;
+    }
+
+    public List<String> getBusiestTunnels() {
+        // The counts keep changing, so we sort on a snapshot of them.
+        final Map<Tunnel, Long> bytes = new HashMap<Tunnel, Long>();
+        for (final Tunnel tunnel : this.open.keySet()) {
+            bytes.put(tunnel, 
+                tunnel.getBytesFromBrowser() + tunnel.getBytesToBrowser());
+        }
+        final List<Tunnel> tunnels = new ArrayList<Tunnel>(bytes.keySet());
+        Collections.sort(tunnels, new Comparator<Tunnel>() {
+            public int compare(final Tunnel a, final Tunnel b) {
+                return bytes.get(b).compareTo(bytes.get(a));
+            }
+        });
+        final List<String> busiest = new ArrayList<String>();
+        for (final Tunnel tunnel : tunnels) {
+            if (busiest.size() >= MAX_BUSIEST) {
+                break;
+            }
+            busiest.add(tunnel.toString());
+        }
+        return busiest;
+    }
+}
@@ -0,0 +1,50 @@
+package org.littleshoot.proxy;
+
+import org.jboss.netty.channel.Channel;
+
+/**
+ * Interface for pools of idle connections from the proxy to remote hosts.
+ * Pools are keyed by the host and port the connections are connected to and
+ * are shared across all browser to proxy connections.
+ */
+public interface UpstreamChannelPool {
+
+    /**
+     * Borrows an idle, connected channel to the specified host and port if
+     * one is available.
+     *
+     * @param hostAndPort The host and port of the remote host.
+     * @return The channel, or <code>null</code> if there is no idle,
+     * connected channel to that host.
+     */
+    Channel borrow(String hostAndPort);
+
+    /**
+     * Returns a channel to the pool once it's no longer in use, making it
+     * available for any other browser connection to the same host.
+     *
+     * @param hostAndPort The host and port the channel is connected to.
+     * @param channel The channel.
+     */
+    void release(String hostAndPort, Channel channel);
+
+    /**
+     * Accessor for the number of idle channels to a single host.
+     *
+     * @param hostAndPort The host and port of the remote host.
+     * @return The number of idle channels to that host.
+     */
+    int getIdleCount(String hostAndPort);
+
+    /**
+     * Accessor for the total number of idle channels in the pool.
+     *
+     * @return The total number of idle channels.
+     */
+    int getIdleCount();
+
+    /**
+     * Closes all idle channels and stops accepting new ones.
+     */
+    void close();
+}
@@ -0,0 +1,450 @@
+package org.littleshoot.proxy;
+
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.lang.StringUtils;
+import org.jboss.netty.buffer.ChannelBufferFactory;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelEvent;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.ChannelPipelineFactory;
+import org.jboss.netty.channel.ChannelState;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.ChannelUpstreamHandler;
+import org.jboss.netty.channel.DefaultChannelFuture;
+import org.jboss.netty.channel.ExceptionEvent;
+import org.jboss.netty.channel.socket.ClientSocketChannelFactory;
+import org.jboss.netty.util.HashedWheelTimer;
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.Timer;
+import org.jboss.netty.util.TimerTask;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Opens connections to remote hosts. Host names are resolved with a
+ * {@link HostResolver} rather than on the calling thread, so connecting
+ * never blocks the I/O thread handling the browser connection.
+ *
+ * When a host has several addresses, we don't wait for one address to time
+ * out before trying the next. Instead we start a new attempt on the next
+ * address every so often while earlier attempts are still pending,
+ * alternating between IPv6 and IPv4, and use whichever connects first.
+ * Addresses that recently failed are tried last.
+ *
+ * Every attempt gets its own pipeline from the factory when its channel is
+ * created, so handlers see the channel open, behind a gate that holds back
+ * everything else until the attempt wins. Later attempts are started on
+ * the I/O thread of the first, so with worker affinity all attempts stay
+ * on the worker of the thread that asked to connect.
+ */
+public class UpstreamConnector {
+
+    private static final Logger LOG =
+        LoggerFactory.getLogger(UpstreamConnector.class);
+
+    private static final HostResolver DEFAULT_RESOLVER =
+        new DefaultHostResolver();
+
+    private static final Timer TIMER = new HashedWheelTimer();
+
+    /**
+     * How long we try addresses that failed to connect last.
+     */
+    private static final long FAILED_ADDRESS_MILLIS = 60 * 1000;
+
+    private static final int MAX_FAILED_ADDRESSES = 4096;
+
+    private final ClientSocketChannelFactory clientChannelFactory;
+
+    private final HostResolver resolver;
+
+    private final ChannelBufferFactory bufferFactory;
+
+    private final Map<InetAddress, Long> failedAddresses =
+        new ConcurrentHashMap<InetAddress, Long>();
+
+    /**
+     * Creates a new connector using a resolver shared by all connectors
+     * created this way.
+     *
+     * @param clientChannelFactory The factory for channels to remote hosts.
+     */
+    public UpstreamConnector(
+        final ClientSocketChannelFactory clientChannelFactory) {
+        this(clientChannelFactory, DEFAULT_RESOLVER);
+    }
+
+    /**
+     * Creates a new connector.
+     *
+     * @param clientChannelFactory The factory for channels to remote hosts.
+     * @param resolver The resolver for host names.
+     */
+    public UpstreamConnector(
+        final ClientSocketChannelFactory clientChannelFactory,
+        final HostResolver resolver) {
+        this(clientChannelFactory, resolver, null);
+    }
+
+    /**
+     * Creates a new connector.
+     *
+     * @param clientChannelFactory The factory for channels to remote hosts.
+     * @param resolver The resolver for host names.
+     * @param bufferFactory The factory for the buffers channels to remote
+     * hosts read into, or <code>null</code> to use the default.
+     */
+    public UpstreamConnector(
+        final ClientSocketChannelFactory clientChannelFactory,
+        final HostResolver resolver, final ChannelBufferFactory bufferFactory) {
+        this.clientChannelFactory = clientChannelFactory;
+        this.resolver = resolver;
+        this.bufferFactory = bufferFactory;
+    }
+
+    /**
+     * Connects to the specified host and port.
+     *
+     * Only the channel that wins the race to connect passes on any event
+     * but its opening to its pipeline, so handlers never hear about
+     * attempts that failed or lost. The returned future's channel is the
+     * winning channel once the future succeeds.
+     *
+     * @param hostAndPort The host and port to connect to, with the port
+     * defaulting to 80.
+     * @param cpf The factory for the pipeline of the new channel.
+     * @return The future for the connection. This fails with an
+     * {@link UnknownHostException} if the host doesn't resolve.
+     * @throws Exception If the pipeline could not be created.
+     */
+    public ChannelFuture connect(final String hostAndPort,
+        final ChannelPipelineFactory cpf) throws Exception {
+        final String host;
+        final int port;
+        if (hostAndPort.contains(":")) {
+            host = StringUtils.substringBefore(hostAndPort, ":");
+            final String portString =
+                StringUtils.substringAfter(hostAndPort, ":");
+            port = Integer.parseInt(portString);
+        }
+        else {
+            host = hostAndPort;
+            port = 80;
+        }
+
+        // We create the first channel right away so it's registered with
+        // the calling thread's worker when using worker affinity.
+        final ConnectFuture future =
+            new ConnectFuture(newAttemptChannel(cpf));
+
+        LOG.info("Resolving {}", host);
+        this.resolver.resolve(host, new HostResolverListener() {
+
+            public void onResolved(final String resolved,
+                final InetAddress[] addresses) {
+                final List<InetSocketAddress> ordered =
+                    new ArrayList<InetSocketAddress>(addresses.length);
+                for (final InetAddress address : order(addresses)) {
+                    ordered.add(new InetSocketAddress(address, port));
+                }
+                new ConnectAttempts(ordered, cpf, future).scheduleNext();
+            }
+
+            public void onFailure(final String unresolved,
+                final UnknownHostException cause) {
+                future.getChannel().close();
+                future.setFailure(cause);
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Orders addresses for connecting, alternating between address families
+     * starting with the family of the first address, and moving addresses
+     * that failed recently to the end.
+     *
+     * @param addresses The addresses in the order DNS returned them.
+     * @return The addresses in the order we should try them.
+     */
+    List<InetAddress> order(final InetAddress[] addresses) {
+        final LinkedList<InetAddress> preferred = new LinkedList<InetAddress>();
+        final LinkedList<InetAddress> other = new LinkedList<InetAddress>();
+        final boolean preferIpv6 = addresses[0] instanceof Inet6Address;
+        for (final InetAddress address : addresses) {
+            if ((address instanceof Inet6Address) == preferIpv6) {
+                preferred.add(address);
+            } else {
+                other.add(address);
+            }
+        }
+        final List<InetAddress> interleaved =
+            new ArrayList<InetAddress>(addresses.length);
+        while (!preferred.isEmpty() || !other.isEmpty()) {
+            if (!preferred.isEmpty()) {
+                interleaved.add(preferred.removeFirst());
+            }
+            if (!other.isEmpty()) {
+                interleaved.add(other.removeFirst());
+            }
+        }
+
+        final List<InetAddress> ordered =
+            new ArrayList<InetAddress>(addresses.length);
+        final List<InetAddress> failed = new ArrayList<InetAddress>();
+        final long now = System.currentTimeMillis();
+        for (final InetAddress address : interleaved) {
+            final Long failedUntil = this.failedAddresses.get(address);
+            if (failedUntil != null && failedUntil.longValue() > now) {
+                failed.add(address);
+            } else {
+                ordered.add(address);
+            }
+        }
+        ordered.addAll(failed);
+        return ordered;
+    }
+
+    private void onAttemptFailed(final InetAddress address) {
+        if (this.failedAddresses.size() >= MAX_FAILED_ADDRESSES) {
+            final long now = System.currentTimeMillis();
+            for (final Map.Entry<InetAddress, Long> entry :
+                this.failedAddresses.entrySet()) {
+                if (entry.getValue().longValue() <= now) {
+                    this.failedAddresses.remove(entry.getKey());
+                }
+            }
+            if (this.failedAddresses.size() >= MAX_FAILED_ADDRESSES) {
+                this.failedAddresses.clear();
+            }
+        }
+        this.failedAddresses.put(address,
+            System.currentTimeMillis() + FAILED_ADDRESS_MILLIS);
+    }
+
+    private void onAttemptSucceeded(final InetAddress address) {
+        this.failedAddresses.remove(address);
+    }
+
+    private Channel newAttemptChannel(final ChannelPipelineFactory cpf)
+        throws Exception {
+        final ChannelPipeline pipeline = cpf.getPipeline();
+        pipeline.addFirst("attempt", new AttemptGate());
+        final Channel channel = this.clientChannelFactory.newChannel(pipeline);
+        channel.getConfig().setConnectTimeoutMillis(
+            LittleProxyConfig.getConnectTimeoutMillis());
+        if (this.bufferFactory != null) {
+            channel.getConfig().setBufferFactory(this.bufferFactory);
+        }
+        channel.getConfig().setOption("writeBufferHighWaterMark", 
+            LittleProxyConfig.getWriteBufferHighWaterMark());
+        channel.getConfig().setOption("writeBufferLowWaterMark", 
+            LittleProxyConfig.getWriteBufferLowWaterMark());
+        return channel;
+    }
+
+    /**
+     * The connection attempts for a single call to connect.
+     */
+    private final class ConnectAttempts {
+
+        private final List<InetSocketAddress> addresses;
+        private final ChannelPipelineFactory cpf;
+        private final ConnectFuture future;
+
+        /**
+         * The channel of the first attempt, whose I/O thread starts all
+         * the others.
+         */
+        private final Channel first;
+        private final List<Channel> pending = new LinkedList<Channel>();
+        private int next = 0;
+        private Timeout nextAttempt;
+        private Throwable lastCause;
+        private boolean done = false;
+
+        private ConnectAttempts(final List<InetSocketAddress> addresses,
+            final ChannelPipelineFactory cpf, final ConnectFuture future) {
+            this.addresses = addresses;
+            this.cpf = cpf;
+            this.future = future;
+            this.first = future.getChannel();
+        }
+
+        /**
+         * Starts the next attempt from the I/O thread of the first, as we
+         * get called from resolver, timer and boss threads too.
+         */
+        private void scheduleNext() {
+            final Runnable task = new Runnable() {
+                public void run() {
+                    startNext();
+                }
+            };
+            if (LittleProxyConfig.isUseWorkerAffinity()) {
+                this.first.getPipeline().execute(task);
+            } else {
+                task.run();
+            }
+        }
+
+        private synchronized void startNext() {
+            if (this.done) {
+                return;
+            }
+            if (this.future.isCancelled()) {
+                this.done = true;
+                closeAll(this.pending);
+                this.future.getChannel().close();
+                return;
+            }
+            if (this.next >= this.addresses.size()) {
+                if (this.pending.isEmpty()) {
+                    this.done = true;
+                    this.future.getChannel().close();
+                    this.future.setFailure(this.lastCause);
+                }
+                return;
+            }
+            final InetSocketAddress address = this.addresses.get(this.next);
+            final Channel channel;
+            if (this.next == 0) {
+                channel = this.first;
+            } else {
+                try {
+                    channel = newAttemptChannel(this.cpf);
+                } catch (final Exception e) {
+                    LOG.warn("Could not create pipeline", e);
+                    this.next = this.addresses.size();
+                    this.lastCause = e;
+                    startNext();
+                    return;
+                }
+            }
+            this.next++;
+            this.pending.add(channel);
+
+            if (this.next < this.addresses.size()) {
+                this.nextAttempt = TIMER.newTimeout(new TimerTask() {
+                    public void run(final Timeout timeout) {
+                        scheduleNext();
+                    }
+                }, LittleProxyConfig.getConnectAttemptDelayMillis(),
+                TimeUnit.MILLISECONDS);
+            }
+            LOG.info("Starting new connection to: {}", address);
+            channel.connect(address).addListener(new ChannelFutureListener() {
+                public void operationComplete(final ChannelFuture cf) {
+                    onAttemptComplete(channel, address, cf);
+                }
+            });
+        }
+
+        private void onAttemptComplete(final Channel channel,
+            final InetSocketAddress address, final ChannelFuture cf) {
+            final List<Channel> losers;
+            synchronized (this) {
+                this.pending.remove(channel);
+                if (this.done) {
+                    // Another attempt already won.
+                    channel.close();
+                    return;
+                }
+                if (!cf.isSuccess()) {
+                    LOG.info("Could not connect to "+address, cf.getCause());
+                    onAttemptFailed(address.getAddress());
+                    this.lastCause = cf.getCause();
+
+                    // No point waiting to try the next address.
+                    if (this.nextAttempt != null) {
+                        this.nextAttempt.cancel();
+                    }
+                    scheduleNext();
+                    return;
+                }
+                this.done = true;
+                if (this.nextAttempt != null) {
+                    this.nextAttempt.cancel();
+                }
+                losers = new ArrayList<Channel>(this.pending);
+                this.pending.clear();
+            }
+            onAttemptSucceeded(address.getAddress());
+            closeAll(losers);
+            if (channel != this.future.getChannel()) {
+                this.future.getChannel().close();
+            }
+
+            // This is called on the channel's I/O thread before it reads
+            // anything, so the handlers see the connect and all data.
+            channel.getPipeline().remove(AttemptGate.class);
+            this.future.setChannel(channel);
+            this.future.setSuccess();
+        }
+
+        private void closeAll(final List<Channel> channels) {
+            for (final Channel ch : channels) {
+                ch.close();
+            }
+        }
+    }
+
+    /**
+     * Future for a connection whose channel is whichever attempt connects
+     * first.
+     */
+    private static final class ConnectFuture extends DefaultChannelFuture {
+
+        private volatile Channel channel;
+
+        private ConnectFuture(final Channel channel) {
+            super(channel, true);
+            this.channel = channel;
+        }
+
+        private void setChannel(final Channel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public Channel getChannel() {
+            return this.channel;
+        }
+    }
+
+    /**
+     * Sits in front of the pipeline of an attempt until it wins, letting
+     * only the channel opening through. Failed attempts are handled
+     * through their connect futures.
+     */
+    private static final class AttemptGate implements ChannelUpstreamHandler {
+
+        public void handleUpstream(final ChannelHandlerContext ctx,
+            final ChannelEvent e) {
+            if (e instanceof ChannelStateEvent) {
+                final ChannelStateEvent cse = (ChannelStateEvent) e;
+                if (cse.getState() == ChannelState.OPEN &&
+                    Boolean.TRUE.equals(cse.getValue())) {
+                    ctx.sendUpstream(e);
+                }
+            } else if (e instanceof ExceptionEvent) {
+                LOG.debug("Exception on connection attempt",
+                    ((ExceptionEvent) e).getCause());
+                e.getChannel().close();
+            }
+        }
+    }
+}
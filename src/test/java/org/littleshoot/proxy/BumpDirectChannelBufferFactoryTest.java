@@ -0,0 +1,41 @@
+package org.littleshoot.proxy;
+
+import static org.junit.Assert.*;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.junit.Test;
+
+/**
+ * Test for bump allocating direct buffers out of slabs.
+ */
+public class BumpDirectChannelBufferFactoryTest {
+
+    @Test public void testBuffersFromSlabsDontOverlap() throws Exception {
+        final BumpDirectChannelBufferFactory factory =
+            new BumpDirectChannelBufferFactory();
+        final ChannelBuffer first = factory.getBuffer(100);
+        final ChannelBuffer second = factory.getBuffer(100);
+        assertTrue(first.isDirect());
+        assertEquals(100, first.capacity());
+        assertEquals(0, first.writerIndex());
+        assertEquals(1, factory.getSlabsAllocated());
+        assertEquals(2, factory.getSlabBuffers());
+        assertEquals(0, factory.getOwnBuffers());
+
+        first.writeBytes(new byte[] {1, 1, 1, 1});
+        second.writeBytes(new byte[] {2, 2, 2, 2});
+        assertEquals(1, first.getByte(3));
+        assertEquals(2, second.getByte(0));
+    }
+
+    @Test public void testLargeBuffersAreNotFromSlabs() throws Exception {
+        final BumpDirectChannelBufferFactory factory =
+            new BumpDirectChannelBufferFactory();
+        final ChannelBuffer buf = factory.getBuffer(1024 * 1024);
+        assertTrue(buf.isDirect());
+        assertEquals(0, factory.getSlabsAllocated());
+        assertEquals(0, factory.getSlabBuffers());
+        assertEquals(1, factory.getOwnBuffers());
+        assertEquals(1024 * 1024, factory.getBytesServed());
+    }
+}
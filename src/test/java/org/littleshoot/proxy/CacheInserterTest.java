@@ -0,0 +1,55 @@
+package org.littleshoot.proxy;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * Test for the cache insertion pipeline.
+ */
+public class CacheInserterTest {
+
+    @Test public void testDropsWhenFull() throws Exception {
+        final CacheInserter inserter = new CacheInserter(1, 1, 8);
+        final CountDownLatch running = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final Future<String> first = inserter.insert("/first",
+            new Callable<String>() {
+                public String call() throws Exception {
+                    running.countDown();
+                    release.await();
+                    return "/first";
+                }
+            });
+        assertTrue(running.await(2000, TimeUnit.MILLISECONDS));
+
+        // The thread is busy, so the queue fills up after one more.
+        final Future<String> second = inserter.insert("/second",
+            insert("/second"));
+        final Future<String> third = inserter.insert("/third",
+            insert("/third"));
+        assertTrue(third.isCancelled());
+        assertEquals(1, inserter.getDroppedCount());
+        assertEquals(1, inserter.getQueuedCount());
+
+        release.countDown();
+        assertEquals("/first", first.get(2000, TimeUnit.MILLISECONDS));
+        assertEquals("/second", second.get(2000, TimeUnit.MILLISECONDS));
+        assertTrue(inserter.stop(2000, TimeUnit.MILLISECONDS));
+        assertEquals(2, inserter.getInsertedCount());
+        assertTrue(inserter.insert("/fourth", insert("/fourth")).isCancelled());
+    }
+
+    private Callable<String> insert(final String key) {
+        return new Callable<String>() {
+            public String call() {
+                return key;
+            }
+        };
+    }
+}
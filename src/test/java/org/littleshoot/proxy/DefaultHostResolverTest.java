@@ -0,0 +1,92 @@
+package org.littleshoot.proxy;
+
+import static org.junit.Assert.*;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+/**
+ * Test for asynchronous host lookups and caching them.
+ */
+public class DefaultHostResolverTest {
+
+    private final AtomicInteger lookups = new AtomicInteger();
+    
+    private final AtomicLong now = new AtomicLong(1000000);
+    
+    private final StubHostResolver stub = new StubHostResolver();
+    
+    private final DefaultHostResolver resolver = 
+        new DefaultHostResolver(1, 16, 10000, 5000) {
+        @Override
+        protected InetAddress[] lookup(final String host) 
+            throws UnknownHostException {
+            lookups.incrementAndGet();
+            final AtomicReference<InetAddress[]> result = 
+                new AtomicReference<InetAddress[]>();
+            stub.resolve(host, new HostResolverListener() {
+                public void onResolved(String h, InetAddress[] addresses) {
+                    result.set(addresses);
+                }
+                public void onFailure(String h, UnknownHostException cause) {
+                }
+            });
+            if (result.get() == null) {
+                throw new UnknownHostException(host);
+            }
+            return result.get();
+        }
+        
+        @Override
+        protected long now() {
+            return now.get();
+        }
+    };
+
+    @Test public void testCachesUntilExpired() throws Exception {
+        stub.add("www.test.com", "10.0.0.1");
+        assertEquals("10.0.0.1", resolve("www.test.com").getHostAddress());
+        assertEquals("10.0.0.1", resolve("WWW.test.com").getHostAddress());
+        assertEquals(1, lookups.get());
+        
+        now.addAndGet(10001);
+        stub.add("www.test.com", "10.0.0.2");
+        assertEquals("10.0.0.2", resolve("www.test.com").getHostAddress());
+        assertEquals(2, lookups.get());
+    }
+
+    @Test public void testCachesFailures() throws Exception {
+        assertNull(resolve("missing.test.com"));
+        stub.add("missing.test.com", "10.0.0.3");
+        assertNull(resolve("missing.test.com"));
+        assertEquals(1, lookups.get());
+        
+        now.addAndGet(5001);
+        assertEquals("10.0.0.3", resolve("missing.test.com").getHostAddress());
+        assertEquals(2, lookups.get());
+    }
+
+    private InetAddress resolve(final String host) throws Exception {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final AtomicReference<InetAddress> result = 
+            new AtomicReference<InetAddress>();
+        resolver.resolve(host, new HostResolverListener() {
+            public void onResolved(String h, InetAddress[] addresses) {
+                result.set(addresses[0]);
+                latch.countDown();
+            }
+            public void onFailure(String h, UnknownHostException cause) {
+                latch.countDown();
+            }
+        });
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        return result.get();
+    }
+}
@@ -3,18 +3,27 @@ package org.littleshoot.proxy;
 import static org.junit.Assert.*;
 import static org.mockito.Matchers.any;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import java.io.File;
+import java.net.InetSocketAddress;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
 import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelFuture;
 import org.jboss.netty.channel.ChannelHandlerContext;
 import org.jboss.netty.channel.DefaultChannelConfig;
+import org.jboss.netty.handler.codec.http.DefaultHttpChunk;
 import org.jboss.netty.handler.codec.http.DefaultHttpRequest;
 import org.jboss.netty.handler.codec.http.DefaultHttpResponse;
+import org.jboss.netty.handler.codec.http.HttpChunk;
 import org.jboss.netty.handler.codec.http.HttpHeaders;
 import org.jboss.netty.handler.codec.http.HttpMethod;
 import org.jboss.netty.handler.codec.http.HttpRequest;
@@ -22,23 +31,31 @@ import org.jboss.netty.handler.codec.http.HttpResponse;
 import org.jboss.netty.handler.codec.http.HttpResponseEncoder;
 import org.jboss.netty.handler.codec.http.HttpResponseStatus;
 import org.jboss.netty.handler.codec.http.HttpVersion;
-import org.junit.Ignore;
+import org.jboss.netty.util.CharsetUtil;
+import org.junit.After;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 
 /**
  * Test for the proxy cache manager.
  */
-@Ignore
 public class DefaultProxyCacheManagerTest {
 
+    @After public void tearDown() {
+        LittleProxyConfig.setCacheEnabled(false);
+    }
+
     @Test public void testCaching() throws Exception {
+        LittleProxyConfig.setCacheEnabled(true);
         final DefaultProxyCacheManager cm = new DefaultProxyCacheManager();
         final HttpRequest httpRequest = 
             new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, 
                 "http://www.littleshoot.org");
         final HttpResponse httpResponse = 
             new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
-        httpResponse.setHeader(HttpHeaders.Names.CACHE_CONTROL, HttpHeaders.Values.PUBLIC);
+        httpResponse.setHeader(HttpHeaders.Names.CACHE_CONTROL, "public, max-age=3600");
+        httpResponse.setContent(ChannelBuffers.copiedBuffer("hello", CharsetUtil.UTF_8));
+        HttpHeaders.setContentLength(httpResponse, 5);
         final class PubEncoder extends HttpResponseEncoder {
             public Object pubEncode(ChannelHandlerContext ctx, Channel channel, Object msg) throws Exception {
                 return encode(ctx, channel, msg);
@@ -46,10 +63,10 @@ public class DefaultProxyCacheManagerTest {
         }
         final PubEncoder encoder = new PubEncoder();
 
-        //TODO:  The test is @Ignored so this mocks are not tested
         final Channel channel = mock(Channel.class);
         when(channel.getConfig()).thenReturn(new DefaultChannelConfig());
         when(channel.write(any())).thenReturn(mock(ChannelFuture.class));
+        when(channel.getCloseFuture()).thenReturn(mock(ChannelFuture.class));
 
         final ChannelBuffer encoded = (ChannelBuffer) encoder.pubEncode(null, channel, httpResponse);
         final Future<String> future = cm.cache(httpRequest, httpResponse, httpResponse, encoded);
@@ -58,4 +75,436 @@ public class DefaultProxyCacheManagerTest {
         future.get(2000, TimeUnit.MILLISECONDS);
         assertTrue("No hit in cache!!", cm.returnCacheHit(httpRequest, channel));
     }
+
+    @Test public void testHitWaitsForEarlierResponses() throws Exception {
+        LittleProxyConfig.setCacheEnabled(true);
+        final DefaultProxyCacheManager cm = new DefaultProxyCacheManager();
+        final HttpRequest httpRequest = 
+            new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, 
+                "http://www.littleshoot.org/hit");
+        final HttpResponse httpResponse = 
+            new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+        httpResponse.setHeader(HttpHeaders.Names.CACHE_CONTROL, "public, max-age=3600");
+        httpResponse.setContent(ChannelBuffers.copiedBuffer("hello", CharsetUtil.UTF_8));
+        HttpHeaders.setContentLength(httpResponse, 5);
+        cm.cache(httpRequest, httpResponse, httpResponse, null).get(2000, 
+            TimeUnit.MILLISECONDS);
+
+        final Channel channel = mock(Channel.class);
+        when(channel.write(any())).thenReturn(mock(ChannelFuture.class));
+        when(channel.getCloseFuture()).thenReturn(mock(ChannelFuture.class));
+        final ResponseSequencer sequencer = ResponseSequencer.install(channel);
+        try {
+            // A miss the browser sent first is still on its way.
+            final HttpRequest miss = 
+                new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, 
+                    "http://www.littleshoot.org/miss");
+            sequencer.register(miss);
+            final HttpRequest hit = 
+                new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, 
+                    "http://www.littleshoot.org/hit");
+            sequencer.register(hit);
+            assertTrue(cm.returnCacheHit(hit, channel));
+            verify(channel, times(0)).write(any());
+
+            sequencer.write(miss, "miss", true, null);
+            final ArgumentCaptor<Object> written = 
+                ArgumentCaptor.forClass(Object.class);
+            verify(channel, times(2)).write(written.capture());
+            assertEquals("miss", written.getAllValues().get(0));
+            assertTrue(((ChannelBuffer) written.getAllValues().get(1)).toString(
+                CharsetUtil.UTF_8).endsWith("\r\n\r\nhello"));
+            assertTrue(sequencer.isIdle());
+        } finally {
+            ResponseSequencer.uninstall(channel);
+        }
+    }
+
+    @Test public void testCachingChunks() throws Exception {
+        LittleProxyConfig.setCacheEnabled(true);
+        final DefaultProxyCacheManager cm = new DefaultProxyCacheManager();
+        final HttpRequest httpRequest = 
+            new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, 
+                "http://www.littleshoot.org/chunked");
+        final HttpResponse httpResponse = 
+            new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+        httpResponse.setHeader(HttpHeaders.Names.CACHE_CONTROL, "public, max-age=3600");
+        httpResponse.setChunked(true);
+        
+        final Channel channel = mock(Channel.class);
+        when(channel.write(any())).thenReturn(mock(ChannelFuture.class));
+        when(channel.getCloseFuture()).thenReturn(mock(ChannelFuture.class));
+
+        assertNull(cm.cache(httpRequest, httpResponse, httpResponse, null));
+        assertNull(cm.cache(httpRequest, httpResponse, new DefaultHttpChunk(
+            ChannelBuffers.copiedBuffer("hel", CharsetUtil.UTF_8)), null));
+        assertNull(cm.cache(httpRequest, httpResponse, new DefaultHttpChunk(
+            ChannelBuffers.copiedBuffer("lo", CharsetUtil.UTF_8)), null));
+        assertFalse("Hit before the last chunk!!", 
+            cm.returnCacheHit(httpRequest, channel));
+        
+        final Future<String> future = 
+            cm.cache(httpRequest, httpResponse, HttpChunk.LAST_CHUNK, null);
+        assertNotNull("No future?", future);
+        future.get(2000, TimeUnit.MILLISECONDS);
+        
+        final ArgumentCaptor<ChannelBuffer> written = 
+            ArgumentCaptor.forClass(ChannelBuffer.class);
+        assertTrue("No hit in cache!!", cm.returnCacheHit(httpRequest, channel));
+        verify(channel).write(written.capture());
+        final String cached = written.getValue().toString(CharsetUtil.UTF_8);
+        assertTrue(cached.contains("Content-Length: 5\r\n"));
+        assertTrue(cached.endsWith("\r\n\r\nhello"));
+    }
+
+    @Test public void testRevalidation() throws Exception {
+        LittleProxyConfig.setCacheEnabled(true);
+        final HttpCacheStore store = new StripedHttpCacheStore(1024 * 1024);
+        final DefaultProxyCacheManager cm = new DefaultProxyCacheManager(store);
+        final HttpRequest httpRequest = 
+            new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, 
+                "http://www.littleshoot.org/stale");
+        final HttpResponse stale = 
+            new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+        stale.setHeader(HttpHeaders.Names.CACHE_CONTROL, "max-age=60");
+        stale.setHeader(HttpHeaders.Names.AGE, "120");
+        stale.setHeader(HttpHeaders.Names.ETAG, "\"v1\"");
+        final long now = System.currentTimeMillis();
+        store.put(new CacheEntry(ProxyUtils.cacheUri(httpRequest), httpRequest,
+            stale, ChannelBuffers.copiedBuffer("hello", CharsetUtil.UTF_8),
+            now, now));
+        
+        final Channel channel = mock(Channel.class);
+        when(channel.write(any())).thenReturn(mock(ChannelFuture.class));
+        when(channel.getCloseFuture()).thenReturn(mock(ChannelFuture.class));
+        assertFalse(cm.returnCacheHit(httpRequest, channel));
+        assertEquals("\"v1\"", 
+            httpRequest.getHeader(HttpHeaders.Names.IF_NONE_MATCH));
+        
+        final HttpResponse notModified = new DefaultHttpResponse(
+            HttpVersion.HTTP_1_1, HttpResponseStatus.NOT_MODIFIED);
+        notModified.setHeader(HttpHeaders.Names.CACHE_CONTROL, "max-age=60");
+        final ChannelBuffer revalidated = 
+            cm.returnRevalidated(httpRequest, notModified);
+        assertNotNull("Cached response not returned", revalidated);
+        final String response = revalidated.toString(CharsetUtil.UTF_8);
+        assertTrue(response.startsWith("HTTP/1.1 200 OK\r\n"));
+        assertTrue(response.endsWith("\r\n\r\nhello"));
+        
+        // The browser's own conditional request gets a 304 now the entry
+        // is fresh again.
+        final HttpRequest conditional = 
+            new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, 
+                "http://www.littleshoot.org/stale");
+        conditional.setHeader(HttpHeaders.Names.IF_NONE_MATCH, "W/\"v1\"");
+        final ArgumentCaptor<ChannelBuffer> written = 
+            ArgumentCaptor.forClass(ChannelBuffer.class);
+        assertTrue(cm.returnCacheHit(conditional, channel));
+        verify(channel).write(written.capture());
+        assertTrue(written.getValue().toString(CharsetUtil.UTF_8).startsWith(
+            "HTTP/1.1 304 Not Modified\r\n"));
+    }
+
+    @Test public void testHitFromDeletedSegment() throws Exception {
+        LittleProxyConfig.setCacheEnabled(true);
+        final File file = File.createTempFile("segment", ".dat");
+        final CacheSegment segment = new CacheSegment(file, 1, 1024);
+        segment.delete();
+        // The segment goes away between looking the entry up and reading it.
+        final HttpCacheStore store = new StripedHttpCacheStore(1024 * 1024) {
+            @Override
+            public CacheEntry get(final String key, final HttpRequest request) {
+                final CacheEntry entry = super.get(key, request);
+                return entry == null ? null : 
+                    entry.withBody(new SegmentCacheBody(segment, 0, 5));
+            }
+        };
+        final DefaultProxyCacheManager cm = new DefaultProxyCacheManager(store);
+        final HttpRequest httpRequest = 
+            new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, 
+                "http://www.littleshoot.org/deleted");
+        final HttpResponse fresh = 
+            new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+        fresh.setHeader(HttpHeaders.Names.CACHE_CONTROL, "max-age=60");
+        final long now = System.currentTimeMillis();
+        store.put(new CacheEntry(ProxyUtils.cacheUri(httpRequest), httpRequest,
+            fresh, ChannelBuffers.copiedBuffer("hello", CharsetUtil.UTF_8),
+            now, now));
+        
+        final Channel channel = mock(Channel.class);
+        when(channel.write(any())).thenReturn(mock(ChannelFuture.class));
+        when(channel.getCloseFuture()).thenReturn(mock(ChannelFuture.class));
+        assertFalse(cm.returnCacheHit(httpRequest, channel));
+        verify(channel, never()).write(any());
+    }
+
+    @Test public void testCollapsedForwarding() throws Exception {
+        LittleProxyConfig.setCacheEnabled(true);
+        final DefaultProxyCacheManager cm = new DefaultProxyCacheManager();
+        final HttpRequest leader = 
+            new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, 
+                "http://www.littleshoot.org/popular");
+        final HttpRequest follower = 
+            new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, 
+                "http://www.littleshoot.org/popular");
+        final Channel leaderChannel = mock(Channel.class);
+        when(leaderChannel.getCloseFuture()).thenReturn(mock(ChannelFuture.class));
+        final Channel followerChannel = mock(Channel.class);
+        when(followerChannel.write(any())).thenReturn(mock(ChannelFuture.class));
+        when(followerChannel.getCloseFuture()).thenReturn(mock(ChannelFuture.class));
+        
+        assertFalse(cm.returnCacheHit(leader, leaderChannel));
+        assertTrue("Follower should wait on the leader", 
+            cm.returnCacheHit(follower, followerChannel));
+        verify(followerChannel).setReadable(false);
+        
+        final HttpResponse httpResponse = 
+            new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+        httpResponse.setHeader(HttpHeaders.Names.CACHE_CONTROL, "public, max-age=3600");
+        httpResponse.setContent(ChannelBuffers.copiedBuffer("hello", CharsetUtil.UTF_8));
+        final Future<String> future = 
+            cm.cache(leader, httpResponse, httpResponse, null);
+        assertNotNull("No future?", future);
+        
+        final ArgumentCaptor<ChannelBuffer> written = 
+            ArgumentCaptor.forClass(ChannelBuffer.class);
+        verify(followerChannel).write(written.capture());
+        assertTrue(written.getValue().toString(CharsetUtil.UTF_8).endsWith(
+            "\r\n\r\nhello"));
+        verify(followerChannel).setReadable(true);
+    }
+
+    @Test public void testStaleWhileRevalidate() throws Exception {
+        LittleProxyConfig.setCacheEnabled(true);
+        final HttpCacheStore store = new StripedHttpCacheStore(1024 * 1024);
+        final AtomicInteger fetches = new AtomicInteger();
+        final CacheRefresher refresher = new CacheRefresher(store, 
+            mock(UpstreamConnector.class), null, null) {
+            @Override
+            protected void fetch(final CacheEntry entry, 
+                final HttpRequest request) {
+                // Never finishes, so the refresh stays in progress.
+                fetches.incrementAndGet();
+            }
+        };
+        final DefaultProxyCacheManager cm = 
+            new DefaultProxyCacheManager(store, refresher);
+        final HttpRequest httpRequest = 
+            new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, 
+                "http://www.littleshoot.org/swr");
+        final HttpResponse stale = 
+            new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+        stale.setHeader(HttpHeaders.Names.CACHE_CONTROL, 
+            "max-age=60, stale-while-revalidate=120");
+        stale.setHeader(HttpHeaders.Names.AGE, "100");
+        final long now = System.currentTimeMillis();
+        store.put(new CacheEntry(ProxyUtils.cacheUri(httpRequest), httpRequest,
+            stale, ChannelBuffers.copiedBuffer("hello", CharsetUtil.UTF_8),
+            now, now));
+        
+        final Channel channel = mock(Channel.class);
+        when(channel.write(any())).thenReturn(mock(ChannelFuture.class));
+        when(channel.getCloseFuture()).thenReturn(mock(ChannelFuture.class));
+        assertTrue(cm.returnCacheHit(httpRequest, channel));
+        assertTrue(cm.returnCacheHit(httpRequest, channel));
+        
+        final ArgumentCaptor<ChannelBuffer> written = 
+            ArgumentCaptor.forClass(ChannelBuffer.class);
+        verify(channel, times(2)).write(written.capture());
+        final String response = written.getValue().toString(CharsetUtil.UTF_8);
+        assertTrue(response.contains("Warning: 110 - \"Response is Stale\"\r\n"));
+        assertTrue(response.endsWith("\r\n\r\nhello"));
+        assertEquals("Only one refresh at a time", 1, fetches.get());
+        refresher.stop();
+    }
+
+    @Test public void testStaleIfError() throws Exception {
+        LittleProxyConfig.setCacheEnabled(true);
+        final HttpCacheStore store = new StripedHttpCacheStore(1024 * 1024);
+        final DefaultProxyCacheManager cm = new DefaultProxyCacheManager(store);
+        final HttpRequest httpRequest = 
+            new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, 
+                "http://www.littleshoot.org/sie");
+        final HttpResponse stale = 
+            new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+        stale.setHeader(HttpHeaders.Names.CACHE_CONTROL, 
+            "max-age=60, stale-if-error=300");
+        stale.setHeader(HttpHeaders.Names.AGE, "100");
+        final long now = System.currentTimeMillis();
+        store.put(new CacheEntry(ProxyUtils.cacheUri(httpRequest), httpRequest,
+            stale, ChannelBuffers.copiedBuffer("hello", CharsetUtil.UTF_8),
+            now, now));
+        
+        final Channel channel = mock(Channel.class);
+        when(channel.write(any())).thenReturn(mock(ChannelFuture.class));
+        when(channel.getCloseFuture()).thenReturn(mock(ChannelFuture.class));
+        assertFalse(cm.returnCacheHit(httpRequest, channel));
+        
+        final HttpResponse unavailable = new DefaultHttpResponse(
+            HttpVersion.HTTP_1_1, HttpResponseStatus.SERVICE_UNAVAILABLE);
+        final ChannelBuffer served = 
+            cm.returnRevalidated(httpRequest, unavailable);
+        assertNotNull("Stale response not returned", served);
+        final String response = served.toString(CharsetUtil.UTF_8);
+        assertTrue(response.startsWith("HTTP/1.1 200 OK\r\n"));
+        assertTrue(response.contains("Warning: 111 - \"Revalidation Failed\"\r\n"));
+        assertTrue(response.endsWith("\r\n\r\nhello"));
+    }
+
+    @Test public void testNegativeCaching() throws Exception {
+        LittleProxyConfig.setCacheEnabled(true);
+        final DefaultProxyCacheManager cm = new DefaultProxyCacheManager();
+        final HttpRequest httpRequest = 
+            new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, 
+                "http://www.littleshoot.org/missing");
+        final HttpResponse notFound = new DefaultHttpResponse(
+            HttpVersion.HTTP_1_1, HttpResponseStatus.NOT_FOUND);
+        notFound.setContent(ChannelBuffers.copiedBuffer("gone", CharsetUtil.UTF_8));
+        cm.cache(httpRequest, notFound, notFound, null);
+        
+        final HttpRequest repeat = 
+            new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, 
+                "http://www.littleshoot.org/missing");
+        final Channel channel = mock(Channel.class);
+        when(channel.write(any())).thenReturn(mock(ChannelFuture.class));
+        when(channel.getCloseFuture()).thenReturn(mock(ChannelFuture.class));
+        assertTrue(cm.returnCacheHit(repeat, channel));
+        final ArgumentCaptor<ChannelBuffer> written = 
+            ArgumentCaptor.forClass(ChannelBuffer.class);
+        verify(channel).write(written.capture());
+        final String response = written.getValue().toString(CharsetUtil.UTF_8);
+        assertTrue(response.startsWith("HTTP/1.1 404 Not Found\r\n"));
+        assertTrue(response.endsWith("\r\n\r\ngone"));
+        
+        // Errors only for the user who asked aren't shared.
+        final HttpRequest privateRequest = 
+            new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, 
+                "http://www.littleshoot.org/mine");
+        final HttpResponse privateNotFound = new DefaultHttpResponse(
+            HttpVersion.HTTP_1_1, HttpResponseStatus.NOT_FOUND);
+        privateNotFound.setHeader(HttpHeaders.Names.SET_COOKIE, "id=1");
+        cm.cache(privateRequest, privateNotFound, privateNotFound, null);
+        assertFalse(cm.returnCacheHit(new DefaultHttpRequest(
+            HttpVersion.HTTP_1_1, HttpMethod.GET, 
+            "http://www.littleshoot.org/mine"), channel));
+        
+        // HEAD responses have no body to answer GETs with.
+        final HttpResponse headNotFound = new DefaultHttpResponse(
+            HttpVersion.HTTP_1_1, HttpResponseStatus.NOT_FOUND);
+        cm.cache(new DefaultHttpRequest(HttpVersion.HTTP_1_1, 
+            HttpMethod.HEAD, "http://www.littleshoot.org/head"), 
+            headNotFound, headNotFound, null);
+        assertFalse(cm.returnCacheHit(new DefaultHttpRequest(
+            HttpVersion.HTTP_1_1, HttpMethod.GET, 
+            "http://www.littleshoot.org/head"), channel));
+        
+        // Nothing is remembered while caching is off.
+        LittleProxyConfig.setCacheEnabled(false);
+        final HttpResponse offNotFound = new DefaultHttpResponse(
+            HttpVersion.HTTP_1_1, HttpResponseStatus.NOT_FOUND);
+        cm.cache(new DefaultHttpRequest(HttpVersion.HTTP_1_1, 
+            HttpMethod.GET, "http://www.littleshoot.org/off"), 
+            offNotFound, offNotFound, null);
+        LittleProxyConfig.setCacheEnabled(true);
+        assertFalse(cm.returnCacheHit(new DefaultHttpRequest(
+            HttpVersion.HTTP_1_1, HttpMethod.GET, 
+            "http://www.littleshoot.org/off"), channel));
+        
+        // Hosts we couldn't connect to get a 502 without trying again.
+        final HttpRequest other = 
+            new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, 
+                "http://down.littleshoot.org/");
+        final Channel otherChannel = mock(Channel.class);
+        when(otherChannel.write(any())).thenReturn(mock(ChannelFuture.class));
+        assertFalse(cm.returnConnectFailure(other, otherChannel, 
+            "down.littleshoot.org:80"));
+        cm.onConnectFailure("down.littleshoot.org:80");
+        assertTrue(cm.returnConnectFailure(other, otherChannel, 
+            "down.littleshoot.org:80"));
+        verify(otherChannel).write(written.capture());
+        assertTrue(written.getValue().toString(CharsetUtil.UTF_8).startsWith(
+            "HTTP/1.1 502 Bad Gateway\r\n"));
+    }
+    
+    @Test public void testPurge() throws Exception {
+        LittleProxyConfig.setCacheEnabled(true);
+        final DefaultProxyCacheManager cm = new DefaultProxyCacheManager();
+        cache(cm, "www.littleshoot.org", "/a", "news");
+        cache(cm, "www.littleshoot.org", "/images/b", "news images");
+        cache(cm, "www.littleshoot.org", "/images/c", null);
+        cache(cm, "other.littleshoot.org", "/d", "images");
+        assertEquals(4, cm.getEntryCount());
+        
+        assertEquals(2, cm.purgeTag("images"));
+        assertFalse(isCached(cm, "www.littleshoot.org", "/images/b"));
+        assertTrue(isCached(cm, "www.littleshoot.org", "/a"));
+        assertEquals(1, cm.purgePrefix("http://www.littleshoot.org/images/"));
+        assertEquals(1, cm.purgeHost("www.littleshoot.org"));
+        assertEquals(0, cm.getEntryCount());
+        
+        // PURGE requests only work from the allowed addresses.
+        cache(cm, "www.littleshoot.org", "/e", null);
+        final HttpRequest purge = new DefaultHttpRequest(
+            HttpVersion.HTTP_1_1, ProxyConstants.PURGE, "/e");
+        purge.setHeader(HttpHeaders.Names.HOST, "www.littleshoot.org");
+        final Channel remote = mock(Channel.class);
+        when(remote.write(any())).thenReturn(mock(ChannelFuture.class));
+        when(remote.getRemoteAddress()).thenReturn(
+            new InetSocketAddress("10.1.1.1", 5000));
+        cm.returnPurge(purge, remote);
+        final ArgumentCaptor<HttpResponse> written = 
+            ArgumentCaptor.forClass(HttpResponse.class);
+        verify(remote).write(written.capture());
+        assertEquals(HttpResponseStatus.FORBIDDEN, 
+            written.getValue().getStatus());
+        assertTrue(isCached(cm, "www.littleshoot.org", "/e"));
+        
+        final Channel local = mock(Channel.class);
+        when(local.write(any())).thenReturn(mock(ChannelFuture.class));
+        when(local.getRemoteAddress()).thenReturn(
+            new InetSocketAddress("127.0.0.1", 5000));
+        cm.returnPurge(purge, local);
+        verify(local).write(written.capture());
+        assertEquals(HttpResponseStatus.OK, written.getValue().getStatus());
+        assertFalse(isCached(cm, "www.littleshoot.org", "/e"));
+        
+        // Successful unsafe requests purge the URI they went to.
+        cache(cm, "www.littleshoot.org", "/f", null);
+        final HttpRequest post = new DefaultHttpRequest(
+            HttpVersion.HTTP_1_1, HttpMethod.POST, "/f");
+        post.setHeader(HttpHeaders.Names.HOST, "www.littleshoot.org");
+        final HttpResponse ok = 
+            new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+        cm.cache(post, ok, ok, null);
+        assertFalse(isCached(cm, "www.littleshoot.org", "/f"));
+    }
+    
+    private void cache(final DefaultProxyCacheManager cm, final String host,
+        final String path, final String tags) throws Exception {
+        final HttpRequest httpRequest = 
+            new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, path);
+        httpRequest.setHeader(HttpHeaders.Names.HOST, host);
+        final HttpResponse httpResponse = 
+            new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+        httpResponse.setHeader(HttpHeaders.Names.CACHE_CONTROL, "public, max-age=3600");
+        if (tags != null) {
+            httpResponse.setHeader("Surrogate-Key", tags);
+        }
+        httpResponse.setContent(ChannelBuffers.copiedBuffer("hello", CharsetUtil.UTF_8));
+        HttpHeaders.setContentLength(httpResponse, 5);
+        cm.cache(httpRequest, httpResponse, httpResponse, null).get(
+            2000, TimeUnit.MILLISECONDS);
+    }
+    
+    private boolean isCached(final DefaultProxyCacheManager cm, 
+        final String host, final String path) {
+        final HttpRequest httpRequest = 
+            new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, path);
+        httpRequest.setHeader(HttpHeaders.Names.HOST, host);
+        final Channel channel = mock(Channel.class);
+        when(channel.getConfig()).thenReturn(new DefaultChannelConfig());
+        when(channel.write(any())).thenReturn(mock(ChannelFuture.class));
+        when(channel.getCloseFuture()).thenReturn(mock(ChannelFuture.class));
+        return cm.returnCacheHit(httpRequest, channel);
+    }
 }
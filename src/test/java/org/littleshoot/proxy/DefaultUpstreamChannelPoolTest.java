@@ -0,0 +1,94 @@
+package org.littleshoot.proxy;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.junit.Test;
+
+/**
+ * Test for the pool of idle connections to remote hosts.
+ */
+public class DefaultUpstreamChannelPoolTest {
+
+    @Test public void testBorrowMostRecentlyUsedFirst() throws Exception {
+        final UpstreamChannelPool pool =
+            new DefaultUpstreamChannelPool(4, 0, 30000);
+        final Channel first = connectedChannel();
+        final Channel second = connectedChannel();
+        pool.release("www.test.com:80", first);
+        pool.release("www.test.com:80", second);
+        assertEquals(2, pool.getIdleCount());
+
+        assertSame(second, pool.borrow("www.test.com:80"));
+        assertSame(first, pool.borrow("www.test.com:80"));
+        assertNull(pool.borrow("www.test.com:80"));
+        assertNull(pool.borrow("www.other.com:80"));
+        assertEquals(0, pool.getIdleCount());
+        pool.close();
+    }
+
+    @Test public void testDiscardsDisconnectedChannels() throws Exception {
+        final UpstreamChannelPool pool =
+            new DefaultUpstreamChannelPool(4, 0, 30000);
+        final Channel ch = connectedChannel();
+        pool.release("www.test.com:80", ch);
+        when(ch.isConnected()).thenReturn(false);
+
+        assertNull(pool.borrow("www.test.com:80"));
+        verify(ch).close();
+        pool.close();
+    }
+
+    @Test public void testClosesOverflow() throws Exception {
+        final UpstreamChannelPool pool =
+            new DefaultUpstreamChannelPool(1, 0, 30000);
+        final Channel oldest = connectedChannel();
+        final Channel newest = connectedChannel();
+        pool.release("www.test.com:80", oldest);
+        pool.release("www.test.com:80", newest);
+
+        verify(oldest).close();
+        verify(newest, never()).close();
+        assertEquals(1, pool.getIdleCount("www.test.com:80"));
+
+        pool.close();
+        verify(newest).close();
+        assertEquals(0, pool.getIdleCount());
+    }
+
+    @Test public void testResetsReleasedChannels() throws Exception {
+        final UpstreamChannelPool pool =
+            new DefaultUpstreamChannelPool(4, 0, 30000);
+        final Channel ch = connectedChannel();
+        ch.getPipeline().addLast("idle", new SimpleChannelUpstreamHandler());
+        ch.getPipeline().addLast("handler", new SimpleChannelUpstreamHandler());
+
+        // The browser the response went to couldn't keep up.
+        ReadThrottle.get(ch).suspend(new Object());
+        verify(ch).setReadable(false);
+        pool.release("www.test.com:80", ch);
+
+        assertSame(ch, pool.borrow("www.test.com:80"));
+        assertFalse(ReadThrottle.get(ch).isSuspended());
+        verify(ch).setReadable(true);
+        assertEquals(1, ch.getPipeline().getNames().size());
+        assertTrue(ch.getPipeline().get("handler") instanceof 
+            IdleUpstreamHandler);
+        pool.close();
+    }
+
+    private Channel connectedChannel() {
+        final Channel ch = mock(Channel.class);
+        when(ch.isConnected()).thenReturn(true);
+        when(ch.getPipeline()).thenReturn(Channels.pipeline());
+        when(ch.getCloseFuture()).thenReturn(mock(ChannelFuture.class));
+        return ch;
+    }
+}
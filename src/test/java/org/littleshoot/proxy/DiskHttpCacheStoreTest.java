@@ -0,0 +1,219 @@
+package org.littleshoot.proxy;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.FileRegion;
+import org.jboss.netty.handler.codec.http.DefaultHttpRequest;
+import org.jboss.netty.handler.codec.http.DefaultHttpResponse;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
+import org.jboss.netty.handler.codec.http.HttpMethod;
+import org.jboss.netty.handler.codec.http.HttpRequest;
+import org.jboss.netty.handler.codec.http.HttpResponse;
+import org.jboss.netty.handler.codec.http.HttpResponseStatus;
+import org.jboss.netty.handler.codec.http.HttpVersion;
+import org.jboss.netty.util.CharsetUtil;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test for the disk cache store.
+ */
+public class DiskHttpCacheStoreTest {
+
+    private File dir;
+
+    private DiskHttpCacheStore store;
+
+    @Before public void setUp() throws Exception {
+        this.dir = File.createTempFile("cache", "");
+        this.dir.delete();
+        this.store = new DiskHttpCacheStore(this.dir, 4096, 1024, 64);
+    }
+
+    @After public void tearDown() throws Exception {
+        this.store.close();
+        for (final File file : this.dir.listFiles()) {
+            file.delete();
+        }
+        this.dir.delete();
+    }
+
+    @Test public void testPutAndGet() throws Exception {
+        final HttpRequest request = request("/hello");
+        this.store.put(entry(request, response(), "hello"));
+
+        final CacheEntry entry = this.store.get("/hello", request);
+        assertNotNull(entry);
+        assertEquals(5, entry.getBody().getLength());
+        assertEquals("hello",
+            entry.getBody().getBuffer().toString(CharsetUtil.UTF_8));
+        assertTrue(entry.isFresh(System.currentTimeMillis()));
+        final String encoded =
+            entry.encode(System.currentTimeMillis(), false).toString(
+                CharsetUtil.UTF_8);
+        assertTrue(encoded.startsWith("HTTP/1.1 200 OK\r\n"));
+        assertTrue(encoded.contains("Cache-Control: max-age=60\r\n"));
+        assertTrue(encoded.endsWith("\r\n\r\nhello"));
+
+        final FileRegion region = entry.getBody().getFileRegion();
+        assertNotNull(region);
+        assertEquals(5, region.getCount());
+        region.releaseExternalResources();
+
+        assertNull(this.store.get("/other", request("/other")));
+        assertTrue(this.store.remove("/hello"));
+        assertNull(this.store.get("/hello", request));
+    }
+
+    @Test public void testVariants() throws Exception {
+        final HttpResponse response = response();
+        response.setHeader(HttpHeaders.Names.VARY,
+            HttpHeaders.Names.ACCEPT_ENCODING);
+        final HttpRequest gzip = request("/vary");
+        gzip.setHeader(HttpHeaders.Names.ACCEPT_ENCODING, "gzip");
+        final HttpRequest identity = request("/vary");
+        this.store.put(entry(gzip, response, "gzipped"));
+        this.store.put(entry(identity, response, "plain"));
+        this.store.put(entry(identity, response, "plainer"));
+
+        assertEquals("gzipped", body(this.store.get("/vary", gzip)));
+        assertEquals("plainer", body(this.store.get("/vary", identity)));
+    }
+
+    @Test public void testSegmentEviction() throws Exception {
+        // Each entry fills most of a segment, and we only keep four.
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 700; i++) {
+            sb.append('x');
+        }
+        for (int i = 0; i < 6; i++) {
+            this.store.put(entry(request("/" + i), response(), sb.toString()));
+        }
+        assertNull(this.store.get("/0", request("/0")));
+        assertNull(this.store.get("/1", request("/1")));
+        assertNotNull(this.store.get("/5", request("/5")));
+        assertEquals(4, this.store.getEntryCount());
+    }
+
+    @Test public void testRestart() throws Exception {
+        this.store.put(entry(request("/kept"), response(), "kept"));
+        this.store.put(entry(request("/removed"), response(), "removed"));
+        assertTrue(this.store.remove("/removed"));
+        this.store.close();
+
+        this.store = new DiskHttpCacheStore(this.dir, 4096, 1024, 64);
+        assertEquals("kept", body(this.store.get("/kept", request("/kept"))));
+        assertNull(this.store.get("/removed", request("/removed")));
+
+        // New entries go after the recovered ones.
+        this.store.put(entry(request("/new"), response(), "new"));
+        assertEquals("new", body(this.store.get("/new", request("/new"))));
+        assertEquals("kept", body(this.store.get("/kept", request("/kept"))));
+    }
+
+    @Test public void testRestartAfterRemovingFromProbeChain()
+        throws Exception {
+        // Find two keys that start probing at the same slot, so the second
+        // goes in the slot after the first.
+        final String first = "/chain0";
+        String second = null;
+        for (int i = 1; second == null; i++) {
+            if (home("/chain" + i) == home(first)) {
+                second = "/chain" + i;
+            }
+        }
+        this.store.put(entry(request(first), response(), "first"));
+        this.store.put(entry(request(second), response(), "second"));
+        assertTrue(this.store.remove(first));
+        this.store.checkpoint();
+        this.store.close();
+
+        this.store = new DiskHttpCacheStore(this.dir, 4096, 1024, 64);
+        assertNull(this.store.get(first, request(first)));
+        assertEquals("second", body(this.store.get(second, request(second))));
+        assertTrue(this.store.remove(second));
+        assertNull(this.store.get(second, request(second)));
+    }
+
+    @Test public void testCrashRecovery() throws Exception {
+        this.store.put(entry(request("/checkpointed"), response(), "before"));
+        this.store.checkpoint();
+        this.store.put(entry(request("/appended"), response(), "after"));
+
+        // Crash part way through writing another record.
+        final File segment = new File(this.dir, "segment-1.dat");
+        final RandomAccessFile raf = new RandomAccessFile(segment, "rw");
+        try {
+            raf.seek(raf.length());
+            raf.writeInt(0x4C504332);
+            raf.writeInt(100);
+        } finally {
+            raf.close();
+        }
+        final long length = segment.length();
+
+        final DiskHttpCacheStore crashed = this.store;
+        this.store = new DiskHttpCacheStore(this.dir, 4096, 1024, 64);
+        assertEquals("before", body(this.store.get("/checkpointed",
+            request("/checkpointed"))));
+        assertEquals("after", body(this.store.get("/appended",
+            request("/appended"))));
+        assertEquals(length - 8, segment.length());
+        assertEquals(2, this.store.getEntryCount());
+        crashed.close();
+    }
+
+    @Test public void testRecoveredEntriesAreIndexed() throws Exception {
+        final HttpResponse tagged = response();
+        tagged.setHeader("Surrogate-Key", "news");
+        this.store.put(entry(request("/checkpointed"), tagged, "before"));
+        this.store.checkpoint();
+        this.store.put(entry(request("/appended"), tagged, "after"));
+        this.store.put(entry(request("/untagged"), response(), "other"));
+
+        final DiskHttpCacheStore crashed = this.store;
+        this.store = new DiskHttpCacheStore(this.dir, 4096, 1024, 64);
+        final IndexedHttpCacheStore indexed =
+            new IndexedHttpCacheStore(this.store, 100);
+        assertEquals(3, indexed.getIndexedKeyCount());
+        assertTrue(this.store.takeRecoveredKeys().isEmpty());
+        assertEquals(2, indexed.purgeTag("news"));
+        assertNull(this.store.get("/checkpointed", request("/checkpointed")));
+        assertNull(this.store.get("/appended", request("/appended")));
+        assertEquals("other", body(this.store.get("/untagged",
+            request("/untagged"))));
+        crashed.close();
+    }
+
+    private long home(final String key) {
+        return (DiskHttpCacheStore.hash(key) & Long.MAX_VALUE) % 64;
+    }
+
+    private String body(final CacheEntry entry) {
+        return entry.getBody().getBuffer().toString(CharsetUtil.UTF_8);
+    }
+
+    private CacheEntry entry(final HttpRequest request,
+        final HttpResponse response, final String body) {
+        final long now = System.currentTimeMillis();
+        return new CacheEntry(request.getUri(), request, response,
+            ChannelBuffers.copiedBuffer(body, CharsetUtil.UTF_8), now, now);
+    }
+
+    private HttpRequest request(final String uri) {
+        return new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET,
+            uri);
+    }
+
+    private HttpResponse response() {
+        final HttpResponse response =
+            new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+        response.setHeader(HttpHeaders.Names.CACHE_CONTROL, "max-age=60");
+        return response;
+    }
+}
@@ -0,0 +1,32 @@
+package org.littleshoot.proxy;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+/**
+ * Test for approximate frequency counting.
+ */
+public class FrequencySketchTest {
+
+    @Test public void testCountsFrequentKeysHigher() throws Exception {
+        final FrequencySketch sketch = new FrequencySketch(64);
+        for (int i = 0; i < 10; i++) {
+            sketch.increment("www.popular.com:80");
+        }
+        sketch.increment("www.rare.com:80");
+        
+        assertEquals(10, sketch.frequency("www.popular.com:80"));
+        assertTrue(sketch.frequency("www.rare.com:80") >= 1);
+        assertTrue(sketch.frequency("www.rare.com:80") < 10);
+        assertEquals(0, sketch.frequency("www.never.com:80"));
+    }
+
+    @Test public void testSaturates() throws Exception {
+        final FrequencySketch sketch = new FrequencySketch(16);
+        for (int i = 0; i < 100; i++) {
+            sketch.increment("www.popular.com:80");
+        }
+        assertEquals(15, sketch.frequency("www.popular.com:80"));
+    }
+}
@@ -0,0 +1,176 @@
+package org.littleshoot.proxy;
+
+import static org.junit.Assert.*;
+
+import java.util.Date;
+import java.util.List;
+
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.handler.codec.http.DefaultHttpRequest;
+import org.jboss.netty.handler.codec.http.DefaultHttpResponse;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
+import org.jboss.netty.handler.codec.http.HttpMethod;
+import org.jboss.netty.handler.codec.http.HttpRequest;
+import org.jboss.netty.handler.codec.http.HttpResponse;
+import org.jboss.netty.handler.codec.http.HttpResponseStatus;
+import org.jboss.netty.handler.codec.http.HttpVersion;
+import org.jboss.netty.util.CharsetUtil;
+import org.junit.Test;
+
+/**
+ * Test for the HTTP caching rules.
+ */
+public class HttpCacheRulesTest {
+
+    private final long now = (System.currentTimeMillis() / 1000) * 1000;
+
+    @Test public void testFreshnessLifetime() throws Exception {
+        final HttpResponse response = response();
+        response.setHeader(HttpHeaders.Names.CACHE_CONTROL, "max-age=60");
+        assertEquals(60000, HttpCacheRules.freshnessLifetimeMillis(response, now));
+
+        response.setHeader(HttpHeaders.Names.CACHE_CONTROL,
+            "max-age=60, s-maxage=120");
+        assertEquals(120000,
+            HttpCacheRules.freshnessLifetimeMillis(response, now));
+
+        response.removeHeader(HttpHeaders.Names.CACHE_CONTROL);
+        response.setHeader(HttpHeaders.Names.DATE, date(now));
+        response.setHeader(HttpHeaders.Names.EXPIRES, date(now + 30000));
+        assertEquals(30000, HttpCacheRules.freshnessLifetimeMillis(response, now));
+
+        response.setHeader(HttpHeaders.Names.EXPIRES, "0");
+        assertEquals(0, HttpCacheRules.freshnessLifetimeMillis(response, now));
+
+        response.removeHeader(HttpHeaders.Names.EXPIRES);
+        response.setHeader(HttpHeaders.Names.LAST_MODIFIED, date(now - 100000));
+        assertEquals(10000, HttpCacheRules.freshnessLifetimeMillis(response, now));
+    }
+
+    @Test public void testCacheable() throws Exception {
+        final HttpRequest request = request();
+        final HttpResponse response = response();
+        response.setHeader(HttpHeaders.Names.CACHE_CONTROL, "max-age=60");
+        assertTrue(HttpCacheRules.isCacheable(request, response));
+
+        response.setHeader(HttpHeaders.Names.CACHE_CONTROL,
+            "max-age=60, no-store");
+        assertFalse(HttpCacheRules.isCacheable(request, response));
+
+        response.setHeader(HttpHeaders.Names.CACHE_CONTROL,
+            "private, max-age=60");
+        assertFalse(HttpCacheRules.isCacheable(request, response));
+
+        response.setHeader(HttpHeaders.Names.CACHE_CONTROL, "max-age=60");
+        request.setHeader(HttpHeaders.Names.AUTHORIZATION, "Basic Zm9vOmJhcg==");
+        assertFalse(HttpCacheRules.isCacheable(request, response));
+
+        response.setHeader(HttpHeaders.Names.CACHE_CONTROL,
+            "public, max-age=60");
+        assertTrue(HttpCacheRules.isCacheable(request, response));
+
+        response.setHeader(HttpHeaders.Names.VARY, "*");
+        assertFalse(HttpCacheRules.isCacheable(request, response));
+    }
+
+    @Test public void testAge() throws Exception {
+        final HttpResponse response = response();
+        response.setHeader(HttpHeaders.Names.CACHE_CONTROL, "max-age=60");
+        response.setHeader(HttpHeaders.Names.DATE, date(now));
+        response.setHeader(HttpHeaders.Names.AGE, "10");
+        assertEquals(12000,
+            HttpCacheRules.correctedInitialAgeMillis(response, now, now + 2000));
+
+        final CacheEntry entry = new CacheEntry("uri", request(), response,
+            ChannelBuffers.EMPTY_BUFFER, now, now);
+        assertEquals(10000, entry.getCurrentAgeMillis(now));
+        assertTrue(entry.isFresh(now + 49000));
+        assertFalse(entry.isFresh(now + 50000));
+
+        final HttpRequest request = request();
+        request.setHeader(HttpHeaders.Names.CACHE_CONTROL, "max-age=5");
+        assertFalse(HttpCacheRules.isFreshEnough(entry, request, now));
+        request.setHeader(HttpHeaders.Names.CACHE_CONTROL, "max-stale=20");
+        assertTrue(HttpCacheRules.isFreshEnough(entry, request, now + 60000));
+        assertFalse(HttpCacheRules.isFreshEnough(entry, request, now + 80000));
+    }
+
+    @Test public void testParseRange() throws Exception {
+        List<long[]> ranges = HttpCacheRules.parseRange("bytes=0-99", 1000);
+        assertEquals(1, ranges.size());
+        assertRange(0, 99, ranges.get(0));
+
+        ranges = HttpCacheRules.parseRange("bytes=500-, -100, 990-2000", 1000);
+        assertEquals(3, ranges.size());
+        assertRange(500, 999, ranges.get(0));
+        assertRange(900, 999, ranges.get(1));
+        assertRange(990, 999, ranges.get(2));
+
+        assertTrue(HttpCacheRules.parseRange("bytes=1000-", 1000).isEmpty());
+        assertEquals(1, HttpCacheRules.parseRange("bytes=1000-,0-0", 1000)
+            .size());
+        assertNull(HttpCacheRules.parseRange("bytes=5-1", 1000));
+        assertNull(HttpCacheRules.parseRange("items=0-1", 1000));
+        assertNull(HttpCacheRules.parseRange("bytes=a-b", 1000));
+    }
+
+    @Test public void testRanges() throws Exception {
+        final HttpResponse response = response();
+        response.setHeader(HttpHeaders.Names.CACHE_CONTROL, "max-age=60");
+        response.setHeader(HttpHeaders.Names.ETAG, "\"v1\"");
+        response.setHeader(HttpHeaders.Names.CONTENT_TYPE, "text/plain");
+        final CacheEntry entry = new CacheEntry("uri", request(), response,
+            ChannelBuffers.copiedBuffer("0123456789", CharsetUtil.UTF_8),
+            now, now);
+
+        final HttpRequest request = request();
+        assertFalse(HttpCacheRules.isRangeApplicable(entry, request));
+        request.setHeader(HttpHeaders.Names.RANGE, "bytes=2-4");
+        assertTrue(HttpCacheRules.isRangeApplicable(entry, request));
+        request.setHeader(HttpHeaders.Names.IF_RANGE, "\"v2\"");
+        assertFalse(HttpCacheRules.isRangeApplicable(entry, request));
+        request.setHeader(HttpHeaders.Names.IF_RANGE, "\"v1\"");
+        assertTrue(HttpCacheRules.isRangeApplicable(entry, request));
+
+        String encoded = entry.encodeRanges(now,
+            HttpCacheRules.parseRange("bytes=2-4", 10)).toString(
+                CharsetUtil.UTF_8);
+        assertTrue(encoded.startsWith("HTTP/1.1 206 Partial Content\r\n"));
+        assertTrue(encoded.contains("Content-Range: bytes 2-4/10\r\n"));
+        assertTrue(encoded.contains("Content-Length: 3\r\n"));
+        assertTrue(encoded.endsWith("\r\n\r\n234"));
+
+        encoded = entry.encodeRanges(now,
+            HttpCacheRules.parseRange("bytes=0-1,-2", 10)).toString(
+                CharsetUtil.UTF_8);
+        assertTrue(encoded.contains(
+            "Content-Type: multipart/byteranges; boundary="));
+        assertTrue(encoded.contains(
+            "Content-Range: bytes 0-1/10\r\n\r\n01\r\n"));
+        assertTrue(encoded.contains(
+            "Content-Range: bytes 8-9/10\r\n\r\n89\r\n"));
+        final int bodyStart = encoded.indexOf("\r\n\r\n") + 4;
+        assertTrue(encoded.contains("Content-Length: " +
+            (encoded.length() - bodyStart) + "\r\n"));
+    }
+
+    private void assertRange(final long first, final long last,
+        final long[] range) {
+        assertEquals(first, range[0]);
+        assertEquals(last, range[1]);
+    }
+
+    private HttpRequest request() {
+        return new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET,
+            "http://www.littleshoot.org/");
+    }
+
+    private HttpResponse response() {
+        return new DefaultHttpResponse(HttpVersion.HTTP_1_1,
+            HttpResponseStatus.OK);
+    }
+
+    private String date(final long millis) {
+        return ProxyUtils.formatDate(new Date(millis));
+    }
+}
@@ -0,0 +1,50 @@
+package org.littleshoot.proxy;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.handler.codec.http.DefaultHttpChunk;
+import org.jboss.netty.handler.codec.http.HttpChunk;
+import org.junit.Test;
+import org.mockito.InOrder;
+
+/**
+ * Test for holding writes until a channel is available.
+ */
+public class PendingWriteQueueTest {
+
+    @Test public void testFlushesInOrder() throws Exception {
+        final PendingWriteQueue queue = new PendingWriteQueue(1024);
+        final HttpChunk first = chunk(10);
+        final HttpChunk second = chunk(20);
+        final HttpChunk third = chunk(30);
+        assertTrue(queue.write(first));
+        assertTrue(queue.write(second));
+        assertEquals(30, queue.getPendingBytes());
+
+        final Channel ch = mock(Channel.class);
+        queue.flushTo(ch);
+        assertEquals(0, queue.getPendingBytes());
+        assertTrue(queue.write(third));
+
+        final InOrder order = inOrder(ch);
+        order.verify(ch).write(first);
+        order.verify(ch).write(second);
+        order.verify(ch).write(third);
+    }
+
+    @Test public void testBounded() throws Exception {
+        final PendingWriteQueue queue = new PendingWriteQueue(100);
+        assertTrue(queue.write(chunk(60)));
+        assertFalse(queue.write(chunk(60)));
+        assertTrue(queue.write(chunk(40)));
+        assertEquals(100, queue.getPendingBytes());
+    }
+
+    private HttpChunk chunk(final int size) {
+        return new DefaultHttpChunk(ChannelBuffers.wrappedBuffer(new byte[size]));
+    }
+}
@@ -0,0 +1,195 @@
+package org.littleshoot.proxy;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelPipelineFactory;
+import org.jboss.netty.channel.DefaultChannelFuture;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+/**
+ * Test for the pool that opens connections to popular hosts ahead of time.
+ */
+public class PrewarmingUpstreamChannelPoolTest {
+
+    private final List<DefaultChannelFuture> connects =
+        new ArrayList<DefaultChannelFuture>();
+
+    private final StubPool stub = new StubPool();
+
+    private UpstreamConnector connector;
+
+    private PrewarmingUpstreamChannelPool pool;
+
+    @Before public void setUp() throws Exception {
+        this.connector = mock(UpstreamConnector.class);
+        when(this.connector.connect(anyString(),
+            any(ChannelPipelineFactory.class))).thenAnswer(
+                new Answer<ChannelFuture>() {
+                    public ChannelFuture answer(
+                        final InvocationOnMock invocation) {
+                        final Channel ch = mock(Channel.class);
+                        when(ch.getCloseFuture()).thenReturn(
+                            new DefaultChannelFuture(ch, false));
+                        final DefaultChannelFuture cf =
+                            new DefaultChannelFuture(ch, false);
+                        connects.add(cf);
+                        return cf;
+                    }
+                });
+        // Only one host is warmed, and we prewarm by hand.
+        this.pool = new PrewarmingUpstreamChannelPool(this.stub,
+            this.connector, 1, 2, 60 * 60 * 1000);
+    }
+
+    @After public void tearDown() {
+        this.pool.close();
+    }
+
+    @Test public void testWarmsHottestHost() throws Exception {
+        this.pool.borrow("a:80");
+        this.pool.prewarm();
+        // Hosts asked for once aren't worth it.
+        assertEquals(0, this.connects.size());
+
+        this.pool.borrow("a:80");
+        this.pool.borrow("a:80");
+        this.pool.borrow("b:80");
+        this.pool.borrow("b:80");
+        this.pool.prewarm();
+        verify(this.connector, times(2)).connect(eq("a:80"),
+            any(ChannelPipelineFactory.class));
+        verify(this.connector, never()).connect(eq("b:80"),
+            any(ChannelPipelineFactory.class));
+
+        // Connections we're still opening count toward the host.
+        this.pool.prewarm();
+        assertEquals(2, this.connects.size());
+
+        connectAll();
+        assertEquals(2, this.pool.getIdleCount("a:80"));
+        this.pool.prewarm();
+        assertEquals(2, this.connects.size());
+
+        // A borrowed connection is replaced, even once it's closed.
+        final Channel borrowed = this.pool.borrow("a:80");
+        assertNotNull(borrowed);
+        ((DefaultChannelFuture) borrowed.getCloseFuture()).setSuccess();
+        this.pool.prewarm();
+        assertEquals(3, this.connects.size());
+    }
+
+    @Test public void testReplacesColdestCandidate() throws Exception {
+        // The pool considers four times as many hosts as it warms.
+        for (int i = 0; i < 4; i++) {
+            this.pool.borrow("cold" + i + ":80");
+        }
+        for (int i = 0; i < 3; i++) {
+            this.pool.borrow("hot:80");
+        }
+        this.pool.prewarm();
+        verify(this.connector, times(2)).connect(eq("hot:80"),
+            any(ChannelPipelineFactory.class));
+        assertEquals(2, this.connects.size());
+    }
+
+    @Test public void testStopsReopeningUnusedConnections() throws Exception {
+        this.pool.borrow("a:80");
+        this.pool.borrow("a:80");
+        this.pool.prewarm();
+        connectAll();
+        assertEquals(2, this.pool.getIdleCount("a:80"));
+
+        // The pool closes them for being idle too long, and we don't
+        // open them again right away.
+        this.stub.evict("a:80");
+        this.pool.prewarm();
+        assertEquals(2, this.connects.size());
+
+        // Until the host is asked for again.
+        this.pool.borrow("a:80");
+        this.pool.prewarm();
+        assertEquals(4, this.connects.size());
+    }
+
+    private void connectAll() {
+        for (final DefaultChannelFuture cf : this.connects) {
+            if (!cf.isDone()) {
+                cf.setSuccess();
+            }
+        }
+    }
+
+    /**
+     * Pool that keeps every channel it's given until told to evict them.
+     */
+    private static final class StubPool implements UpstreamChannelPool {
+
+        private final Map<String, LinkedList<Channel>> idle =
+            new HashMap<String, LinkedList<Channel>>();
+
+        public synchronized Channel borrow(final String hostAndPort) {
+            final LinkedList<Channel> channels = this.idle.get(hostAndPort);
+            if (channels == null || channels.isEmpty()) {
+                return null;
+            }
+            return channels.removeFirst();
+        }
+
+        public synchronized void release(final String hostAndPort,
+            final Channel channel) {
+            LinkedList<Channel> channels = this.idle.get(hostAndPort);
+            if (channels == null) {
+                channels = new LinkedList<Channel>();
+                this.idle.put(hostAndPort, channels);
+            }
+            channels.add(channel);
+        }
+
+        public synchronized int getIdleCount(final String hostAndPort) {
+            final LinkedList<Channel> channels = this.idle.get(hostAndPort);
+            return channels == null ? 0 : channels.size();
+        }
+
+        public synchronized int getIdleCount() {
+            int count = 0;
+            for (final LinkedList<Channel> channels : this.idle.values()) {
+                count += channels.size();
+            }
+            return count;
+        }
+
+        public synchronized void close() {
+            this.idle.clear();
+        }
+
+        private void evict(final String hostAndPort) {
+            final List<Channel> evicted;
+            synchronized (this) {
+                evicted = this.idle.remove(hostAndPort);
+            }
+            for (final Channel channel : evicted) {
+                ((DefaultChannelFuture) channel.getCloseFuture()).setSuccess();
+            }
+        }
+    }
+}
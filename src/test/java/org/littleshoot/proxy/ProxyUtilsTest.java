@@ -1,8 +1,11 @@
 package org.littleshoot.proxy;
 
+import java.util.Properties;
+
 import org.junit.Test;
 
 import static org.junit.Assert.assertEquals;
+import static org.littleshoot.proxy.ProxyUtils.extractLong;
 import static org.littleshoot.proxy.ProxyUtils.parseHost;
 import static org.littleshoot.proxy.ProxyUtils.parseHostAndPort;
 
@@ -28,4 +31,16 @@ public class ProxyUtilsTest {
         assertEquals("www.test.com", parseHostAndPort("http://www.test.com"));
         assertEquals("www.test.com", parseHostAndPort("www.test.com"));
     }
+
+    @Test
+    public void testExtractLong() throws Exception {
+        final Properties props = new Properties();
+        props.setProperty("negative", "-1");
+        props.setProperty("padded", " 7 ");
+        props.setProperty("bad", "7ms");
+        assertEquals(-1L, extractLong(props, "negative", 5));
+        assertEquals(7L, extractLong(props, "padded", 5));
+        assertEquals(5L, extractLong(props, "bad", 5));
+        assertEquals(5L, extractLong(props, "missing", 5));
+    }
 }
@@ -0,0 +1,95 @@
+package org.littleshoot.proxy;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.handler.codec.http.DefaultHttpRequest;
+import org.jboss.netty.handler.codec.http.HttpMethod;
+import org.jboss.netty.handler.codec.http.HttpRequest;
+import org.jboss.netty.handler.codec.http.HttpVersion;
+import org.junit.Test;
+import org.mockito.InOrder;
+
+/**
+ * Test for returning responses to pipelined requests in order.
+ */
+public class ResponseSequencerTest {
+
+    private final Channel browser = mock(Channel.class);
+
+    public ResponseSequencerTest() {
+        when(browser.write(any())).thenReturn(mock(ChannelFuture.class));
+        when(browser.isConnected()).thenReturn(true);
+    }
+
+    @Test public void testHoldsLaterResponses() throws Exception {
+        final ResponseSequencer sequencer =
+            new ResponseSequencer(browser, 1024);
+        final HttpRequest first = request("/first");
+        final HttpRequest second = request("/second");
+        sequencer.register(first);
+        sequencer.register(second);
+        assertFalse(sequencer.isIdle());
+
+        final Channel remote = mock(Channel.class);
+        sequencer.write(second, "second-head", false, remote);
+        sequencer.write(second, "second-tail", true, remote);
+        verify(browser, never()).write(any());
+
+        sequencer.write(first, "first", true, remote);
+
+        final InOrder order = inOrder(browser);
+        order.verify(browser).write("first");
+        order.verify(browser).write("second-head");
+        order.verify(browser).write("second-tail");
+        assertTrue(sequencer.isIdle());
+    }
+
+    @Test public void testSuspendsRemoteThatIsAhead() throws Exception {
+        final ResponseSequencer sequencer = new ResponseSequencer(browser, 0);
+        final HttpRequest first = request("/first");
+        final HttpRequest second = request("/second");
+        sequencer.register(first);
+        sequencer.register(second);
+
+        final Channel remote = mock(Channel.class);
+        when(remote.getCloseFuture()).thenReturn(mock(ChannelFuture.class));
+        sequencer.write(second, new byte[0], false, remote);
+        sequencer.write(second, "more", false, remote);
+        verify(remote, never()).setReadable(false);
+
+        sequencer.write(second, ChannelBuffers.wrappedBuffer(new byte[10]), false, remote);
+        verify(remote).setReadable(false);
+
+        sequencer.write(first, "first", true, remote);
+        verify(remote).setReadable(true);
+    }
+
+    @Test public void testAbortClosesAfterEarlierResponses() throws Exception {
+        final ResponseSequencer sequencer =
+            new ResponseSequencer(browser, 1024);
+        final HttpRequest first = request("/first");
+        final HttpRequest second = request("/second");
+        sequencer.register(first);
+        sequencer.register(second);
+
+        sequencer.abort(second);
+        verify(browser, never()).write(any());
+
+        sequencer.write(first, "first", true, null);
+        verify(browser).write("first");
+        assertTrue(sequencer.isIdle());
+    }
+
+    private HttpRequest request(final String uri) {
+        return new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, uri);
+    }
+}
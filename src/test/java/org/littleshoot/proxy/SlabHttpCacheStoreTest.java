@@ -0,0 +1,119 @@
+package org.littleshoot.proxy;
+
+import static org.junit.Assert.*;
+
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.handler.codec.http.DefaultHttpRequest;
+import org.jboss.netty.handler.codec.http.DefaultHttpResponse;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
+import org.jboss.netty.handler.codec.http.HttpMethod;
+import org.jboss.netty.handler.codec.http.HttpRequest;
+import org.jboss.netty.handler.codec.http.HttpResponse;
+import org.jboss.netty.handler.codec.http.HttpResponseStatus;
+import org.jboss.netty.handler.codec.http.HttpVersion;
+import org.jboss.netty.util.CharsetUtil;
+import org.junit.Test;
+
+/**
+ * Test for the off-heap slab cache store.
+ */
+public class SlabHttpCacheStoreTest {
+
+    @Test public void testPutAndGet() throws Exception {
+        final SlabHttpCacheStore store = new SlabHttpCacheStore(4096, 1024);
+        store.put(entry("/hello", "hello"));
+        final CacheEntry entry = store.get("/hello", request("/hello"));
+        assertNotNull(entry);
+        assertEquals("hello",
+            entry.getBody().getBuffer().toString(CharsetUtil.UTF_8));
+        assertTrue(entry.encode(System.currentTimeMillis(), false).toString(
+            CharsetUtil.UTF_8).endsWith("\r\n\r\nhello"));
+
+        // The hit reads from the chunk, which isn't reused until released.
+        store.put(entry("/hello", "goodbye"));
+        assertEquals(1, store.getEntryCount());
+        assertEquals("hello",
+            entry.getBody().getBuffer().toString(CharsetUtil.UTF_8));
+        entry.getBody().release();
+        final CacheEntry replaced = store.get("/hello", request("/hello"));
+        assertEquals("goodbye",
+            replaced.getBody().getBuffer().toString(CharsetUtil.UTF_8));
+        replaced.getBody().release();
+        assertTrue(store.remove("/hello"));
+        assertNull(store.get("/hello", request("/hello")));
+        assertEquals(0, store.getEntryCount());
+    }
+
+    @Test public void testAdmission() throws Exception {
+        // Two slabs of four 256 byte chunks each.
+        final SlabHttpCacheStore store = new SlabHttpCacheStore(2048, 1024);
+        for (int i = 0; i < 8; i++) {
+            store.put(entry("/hot" + i, body(200)));
+        }
+        for (int i = 0; i < 8; i++) {
+            for (int j = 0; j < 3; j++) {
+                assertTrue(hit(store, "/hot" + i));
+            }
+        }
+        assertEquals(8, store.getEntryCount());
+
+        // Something asked for once doesn't push out anything popular.
+        assertNull(store.get("/cold", request("/cold")));
+        store.put(entry("/cold", body(200)));
+        assertNull(store.get("/cold", request("/cold")));
+        assertEquals(1, store.getRejectedCount());
+        assertEquals(8, store.getEntryCount());
+
+        // Something asked for more often pushes out the least recently used.
+        for (int i = 0; i < 5; i++) {
+            assertNull(store.get("/new", request("/new")));
+        }
+        store.put(entry("/new", body(200)));
+        assertTrue(hit(store, "/new"));
+        assertNull(store.get("/hot0", request("/hot0")));
+        assertEquals(8, store.getEntryCount());
+
+        // A bigger body takes over a slab from the smaller size class.
+        for (int i = 0; i < 5; i++) {
+            assertNull(store.get("/big", request("/big")));
+        }
+        store.put(entry("/big", body(1000)));
+        assertTrue(hit(store, "/big"));
+        assertEquals(5, store.getEntryCount());
+        assertEquals(2048, store.getSlabBytes());
+    }
+
+    /**
+     * Looks the URI up, releasing the body of any hit right away.
+     */
+    private boolean hit(final SlabHttpCacheStore store, final String uri) {
+        final CacheEntry entry = store.get(uri, request(uri));
+        if (entry == null) {
+            return false;
+        }
+        entry.getBody().release();
+        return true;
+    }
+
+    private String body(final int length) {
+        final StringBuilder sb = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            sb.append('x');
+        }
+        return sb.toString();
+    }
+
+    private CacheEntry entry(final String uri, final String body) {
+        final HttpResponse response =
+            new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+        response.setHeader(HttpHeaders.Names.CACHE_CONTROL, "max-age=60");
+        final long now = System.currentTimeMillis();
+        return new CacheEntry(uri, request(uri), response,
+            ChannelBuffers.copiedBuffer(body, CharsetUtil.UTF_8), now, now);
+    }
+
+    private HttpRequest request(final String uri) {
+        return new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET,
+            uri);
+    }
+}
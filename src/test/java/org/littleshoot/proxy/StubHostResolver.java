@@ -0,0 +1,44 @@
+package org.littleshoot.proxy;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Resolver for tests that answers from a fixed table of hosts instead of
+ * querying DNS.
+ */
+public class StubHostResolver implements HostResolver {
+
+    private final Map<String, InetAddress[]> hosts = 
+        new ConcurrentHashMap<String, InetAddress[]>();
+
+    /**
+     * Adds a host to the table.
+     * 
+     * @param host The host name.
+     * @param addresses The literal addresses the host resolves to.
+     * @return This resolver.
+     * @throws UnknownHostException If any address isn't a literal address.
+     */
+    public StubHostResolver add(final String host, final String... addresses) 
+        throws UnknownHostException {
+        final InetAddress[] resolved = new InetAddress[addresses.length];
+        for (int i = 0; i < addresses.length; i++) {
+            resolved[i] = InetAddress.getByName(addresses[i]);
+        }
+        this.hosts.put(host, resolved);
+        return this;
+    }
+
+    public void resolve(final String host, 
+        final HostResolverListener listener) {
+        final InetAddress[] addresses = this.hosts.get(host);
+        if (addresses == null) {
+            listener.onFailure(host, new UnknownHostException(host));
+        } else {
+            listener.onResolved(host, addresses);
+        }
+    }
+}
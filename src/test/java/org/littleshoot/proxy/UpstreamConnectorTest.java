@@ -0,0 +1,111 @@
+package org.littleshoot.proxy;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.mock;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.ChannelPipelineFactory;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.jboss.netty.channel.socket.ClientSocketChannelFactory;
+import org.jboss.netty.channel.socket.nio.NioClientSocketChannelFactory;
+import org.junit.Test;
+
+/**
+ * Test for connecting to remote hosts.
+ */
+public class UpstreamConnectorTest {
+
+    @Test public void testOrderAlternatesAddressFamilies() throws Exception {
+        final UpstreamConnector connector = new UpstreamConnector(
+            mock(ClientSocketChannelFactory.class), new StubHostResolver());
+        final InetAddress v6a = InetAddress.getByName("2001:db8::1");
+        final InetAddress v6b = InetAddress.getByName("2001:db8::2");
+        final InetAddress v4a = InetAddress.getByName("192.0.2.1");
+        final InetAddress v4b = InetAddress.getByName("192.0.2.2");
+        
+        final List<InetAddress> ordered = connector.order(
+            new InetAddress[] {v6a, v6b, v4a, v4b});
+        assertEquals(Arrays.asList(v6a, v4a, v6b, v4b), ordered);
+        
+        final List<InetAddress> v4First = connector.order(
+            new InetAddress[] {v4a, v4b, v6a});
+        assertEquals(Arrays.asList(v4a, v6a, v4b), v4First);
+    }
+
+    @Test public void testRaceToSecondAddress() throws Exception {
+        // Nothing answers on the documentation address, so the attempt to
+        // the local server started after it has to win the race.
+        final ServerSocket server = new ServerSocket(0);
+        final int port = server.getLocalPort();
+        final ClientSocketChannelFactory factory = 
+            new NioClientSocketChannelFactory(Executors.newCachedThreadPool(),
+                Executors.newCachedThreadPool());
+        final long delay = LittleProxyConfig.getConnectAttemptDelayMillis();
+        LittleProxyConfig.setConnectAttemptDelayMillis(100);
+        final AtomicInteger opened = new AtomicInteger();
+        final AtomicInteger connected = new AtomicInteger();
+        final AtomicInteger closed = new AtomicInteger();
+        try {
+            final UpstreamConnector connector = new UpstreamConnector(factory,
+                new StubHostResolver().add("race", "192.0.2.1", "127.0.0.1"));
+            final ChannelFuture cf = connector.connect("race:" + port, 
+                new ChannelPipelineFactory() {
+                    public ChannelPipeline getPipeline() {
+                        return Channels.pipeline(
+                            new SimpleChannelUpstreamHandler() {
+                            @Override
+                            public void channelOpen(
+                                final ChannelHandlerContext ctx,
+                                final ChannelStateEvent e) {
+                                opened.incrementAndGet();
+                            }
+                            @Override
+                            public void channelConnected(
+                                final ChannelHandlerContext ctx,
+                                final ChannelStateEvent e) {
+                                connected.incrementAndGet();
+                            }
+                            @Override
+                            public void channelClosed(
+                                final ChannelHandlerContext ctx,
+                                final ChannelStateEvent e) {
+                                closed.incrementAndGet();
+                            }
+                        });
+                    }
+                });
+            assertTrue(cf.await(5000, TimeUnit.MILLISECONDS));
+            assertTrue(cf.isSuccess());
+            final InetSocketAddress remote = 
+                (InetSocketAddress) cf.getChannel().getRemoteAddress();
+            assertEquals("127.0.0.1", remote.getAddress().getHostAddress());
+            assertEquals(port, remote.getPort());
+            
+            Thread.sleep(200);
+            assertEquals("Each attempt's handlers see it open", 2, 
+                opened.get());
+            assertEquals(1, connected.get());
+            assertEquals("The losing attempt is closed quietly", 0, 
+                closed.get());
+            
+            cf.getChannel().close().awaitUninterruptibly();
+        } finally {
+            LittleProxyConfig.setConnectAttemptDelayMillis(delay);
+            factory.releaseExternalResources();
+            server.close();
+        }
+    }
+}